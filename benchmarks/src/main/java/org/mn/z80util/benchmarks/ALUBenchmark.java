@@ -0,0 +1,83 @@
+/*
+ * ALUBenchmark.java - Throughput of the YAZE based ALU.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.benchmarks;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.mn.z80util.z80.yaze.*;
+
+/**
+ * Throughput of the 8-bit and 16-bit arithmetic of YazeBasedALU over all
+ * operand values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ALUBenchmark {
+
+    private final YazeBasedALU alu = new YazeBasedALU();
+
+    /**
+     * All eight 8-bit arithmetic and logic operations with every operand.
+     */
+    @Benchmark
+    public int arithmetic8() {
+        for (int cmd = 0; cmd < 8; cmd++) {
+            for (int value = 0; value < 0x100; value++) {
+                alu.cmd8(cmd, value);
+            }
+        }
+        return alu.af();
+    }
+
+    /**
+     * INC, DEC and DAA with every operand.
+     */
+    @Benchmark
+    public int incDecDaa() {
+        int sum = 0;
+        for (int value = 0; value < 0x100; value++) {
+            sum += alu.inc8(value) + alu.dec8(value);
+            alu.a(value);
+            alu.daa();
+        }
+        return sum + alu.af();
+    }
+
+    /**
+     * ADD, ADC and SBC of 16 bits with 256 operands.
+     */
+    @Benchmark
+    public int arithmetic16() {
+        int hl = 0x1234;
+        for (int value = 0; value < 0x10000; value += 0x101) {
+            hl = alu.add16(hl, value);
+            hl = alu.adc16(hl, value);
+            hl = alu.sbc16(hl, value ^ 0x5555);
+        }
+        return hl;
+    }
+}
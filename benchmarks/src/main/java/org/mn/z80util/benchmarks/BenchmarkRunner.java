@@ -0,0 +1,49 @@
+/*
+ * BenchmarkRunner.java - Runs the benchmarks with JSON results.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.benchmarks;
+
+import java.util.*;
+
+/**
+ * Runs the JMH benchmarks, writing the results as JSON into
+ * jmh-result.json unless another result format or file is given. All the
+ * options of JMH are accepted, for example a regular expression selecting
+ * the benchmarks to run.
+ *
+ * Usage: java -jar benchmarks.jar [JMH options] [benchmarks]
+ */
+public class BenchmarkRunner {
+
+    public static final String RESULT_FILE = "jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<String>(Arrays.asList(args));
+        if (!options.contains("-rf")) {
+            options.add(0, "-rf");
+            options.add(1, "json");
+        }
+        if (!options.contains("-rff")) {
+            options.add(0, "-rff");
+            options.add(1, RESULT_FILE);
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[options.size()]));
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * DisassemblerBenchmark.java - Throughput of the disassembler.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.benchmarks;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.mn.z80util.disassembler.*;
+
+/**
+ * Disassembles the whole 48K Spectrum ROM instruction by instruction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DisassemblerBenchmark {
+
+    private final byte[] memory = new byte[0x10000];
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] rom = Machines.rom();
+        System.arraycopy(rom, 0, memory, 0, rom.length);
+    }
+
+    @Benchmark
+    public int disassembleROM() {
+        int instructions = 0;
+        for (int address = 0; address < 0x4000;) {
+            DisasmResult dar = Disassembler.disassemble(memory,
+                    (short) address);
+            address += dar.getBytesRead();
+            instructions++;
+        }
+        return instructions;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Machines.java - Processors and Spectrums for the benchmarks.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.benchmarks;
+
+import java.io.*;
+
+import org.mn.z80util.spectrum.*;
+import org.mn.z80util.z80.*;
+import org.mn.z80util.z80.qaop.*;
+import org.mn.z80util.z80.yaze.*;
+
+/**
+ * Creates the processors and machines measured by the benchmarks.
+ */
+final class Machines {
+
+    static final String QAOP = "qaop";
+    static final String YAZE = "yaze";
+    /* The BASIC prompt appears after about 30 frames */
+    static final int BOOT_FRAMES = 100;
+
+    private Machines() {
+    }
+
+    /**
+     * @param core	QAOP or YAZE
+     */
+    static Z80 processor(String core) {
+        if (core.equals(QAOP)) {
+            return new QaopZ80Impl();
+        } else if (core.equals(YAZE)) {
+            return new YazeBasedZ80Impl();
+        }
+        throw new IllegalArgumentException("Unknown processor core " + core
+                + ".");
+    }
+
+    /**
+     * @return	The 16K ROM of the 48K Spectrum
+     */
+    static byte[] rom() throws IOException {
+        InputStream is = Machines.class.getResourceAsStream("/48.rom");
+        if (is == null) {
+            throw new FileNotFoundException("ROM 48.rom not found.");
+        }
+        try {
+            byte[] rom = new byte[0x4000];
+            int length = 0, n;
+            while ((length < rom.length)
+                    && ((n = is.read(rom, length, rom.length - length)) > 0)) {
+                length += n;
+            }
+            return rom;
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Creates a 48K Spectrum with the ROM loaded and the processor reset.
+     */
+    static SpectrumTurboRunner spectrum(Z80 z80, SpectrumULA ula)
+            throws IOException {
+        z80.setUla(ula);
+        ula.reset();
+        z80.reset();
+        ula.loadROM(new ByteArrayInputStream(rom()));
+        SpectrumTurboRunner runner = new SpectrumTurboRunner();
+        runner.setZ80(z80);
+        runner.setUla(ula);
+        return runner;
+    }
+}
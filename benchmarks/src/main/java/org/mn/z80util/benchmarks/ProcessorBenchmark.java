@@ -0,0 +1,93 @@
+/*
+ * ProcessorBenchmark.java - Throughput of the processor cores.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.benchmarks;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.mn.z80util.spectrum.*;
+import org.mn.z80util.z80.*;
+
+/**
+ * Throughput of the processor cores on two workloads: booting the 48K
+ * Spectrum from reset to the BASIC prompt, and a tight loop of LDIR and
+ * 8-bit arithmetic on a plain 64K memory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessorBenchmark {
+
+    /*
+     * 0000 LD HL,8000h; LD DE,9000h; LD BC,0400h; LDIR; LD B,00h
+     * 000D loop: ADD A,B; XOR C; INC C; DJNZ loop; JP 0000h
+     */
+    private static final byte[] LOOP = {
+        0x21, 0x00, (byte) 0x80, 0x11, 0x00, (byte) 0x90, 0x01, 0x00, 0x04,
+        (byte) 0xed, (byte) 0xb0, 0x06, 0x00, (byte) 0x80, (byte) 0xa9, 0x0c,
+        0x10, (byte) 0xfb, (byte) 0xc3, 0x00, 0x00
+    };
+    @Param({Machines.QAOP, Machines.YAZE})
+    public String core;
+    private Z80 z80, loopZ80;
+    private SpectrumULA ula;
+    private SpectrumTurboRunner runner;
+
+    @Setup
+    public void setUp() throws IOException {
+        z80 = Machines.processor(core);
+        ula = new SpectrumULA();
+        runner = Machines.spectrum(z80, ula);
+
+        MockAddressBusProvider bus = new MockAddressBusProvider();
+        System.arraycopy(LOOP, 0, bus.getMemory(), 0, LOOP.length);
+        loopZ80 = Machines.processor(core);
+        loopZ80.setUla(bus);
+        loopZ80.reset();
+        loopZ80.setTStates(0);
+    }
+
+    /**
+     * Boots the Spectrum from reset to the BASIC prompt.
+     */
+    @Benchmark
+    public short romBoot() {
+        z80.reset();
+        ula.resetPaging();
+        z80.setTStates(0);
+        runner.runFrames(Machines.BOOT_FRAMES);
+        return z80.getRegPair(Z80.PC);
+    }
+
+    /**
+     * Runs the LDIR and arithmetic loop for a frame of 69888 T-states.
+     */
+    @Benchmark
+    public short tightLoop() {
+        loopZ80.executeTStates(SpectrumULA.TSTATES_PER_FRAME);
+        return loopZ80.getRegPair(Z80.AF);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * ScreenBenchmark.java - Rendering of the Spectrum screen.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.mn.z80util.spectrum.*;
+
+/**
+ * Rendering of the Spectrum screen into RGB pixels, as done by
+ * SpectrumScreen, on a screen of random pixels and attributes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScreenBenchmark {
+
+    private final byte[] memory = new byte[0x10000];
+    private final SpectrumRaster raster = new SpectrumRaster();
+    private boolean flashState;
+
+    @Setup
+    public void setUp() {
+        byte[] screen = new byte[0x1b00];
+        new Random(0x5a80L).nextBytes(screen);
+        System.arraycopy(screen, 0, memory, 0x4000, screen.length);
+    }
+
+    /**
+     * Renders a row of paper with the border on both sides.
+     */
+    @Benchmark
+    public int renderRow() {
+        flashState = !flashState;
+        raster.renderRow(memory, 0x4000, 2, flashState, 148);
+        return raster.getPixels()[148 * SpectrumRaster.WIDTH + 100];
+    }
+
+    /**
+     * Renders the whole screen, border included.
+     */
+    @Benchmark
+    public int renderFrame() {
+        flashState = !flashState;
+        raster.render(memory, 0x4000, 2, flashState);
+        return raster.getPixels()[148 * SpectrumRaster.WIDTH + 100];
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * SnapshotBenchmark.java - Loading and saving of snapshots.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.benchmarks;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.mn.z80util.spectrum.*;
+import org.mn.z80util.spectrum.snapshots.*;
+import org.mn.z80util.z80.*;
+
+/**
+ * Loading and saving Z80 and SNA snapshots of a 48K Spectrum at the BASIC
+ * prompt, in memory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+
+    private Z80 z80;
+    private SpectrumULA ula;
+    private final byte[] buffer = new byte[Z80Snapshot.MAX_LENGTH];
+    private byte[] z80File, snaFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        z80 = Machines.processor(Machines.QAOP);
+        ula = new SpectrumULA();
+        Machines.spectrum(z80, ula).runFrames(Machines.BOOT_FRAMES);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new Z80Snapshot(z80, ula).write(os);
+        z80File = os.toByteArray();
+        os = new ByteArrayOutputStream();
+        new SNASnapshot(z80, ula).write(os);
+        snaFile = os.toByteArray();
+    }
+
+    @Benchmark
+    public int saveZ80() {
+        return new Z80Snapshot(z80, ula).encode(buffer);
+    }
+
+    @Benchmark
+    public short loadZ80() throws IOException {
+        new Z80Snapshot(z80File).write(z80, ula);
+        return z80.getRegPair(Z80.PC);
+    }
+
+    @Benchmark
+    public int saveSNA() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(snaFile.length);
+        new SNASnapshot(z80, ula).write(os);
+        return os.size();
+    }
+
+    @Benchmark
+    public short loadSNA() throws IOException {
+        new SNASnapshot(new ByteArrayInputStream(snaFile)).write(z80, ula);
+        return z80.getRegPair(Z80.PC);
+    }
+}
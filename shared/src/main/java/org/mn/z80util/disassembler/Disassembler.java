@@ -20,9 +20,12 @@
  */
 package org.mn.z80util.disassembler;
 
+import org.mn.z80util.z80.MemoryPages;
+
 public final class Disassembler {
 
     private static byte[] memory;
+    private static MemoryPages pages;
     private static int base_address;
     private static int bytes_read;
     private static String command;
@@ -45,6 +48,9 @@ public final class Disassembler {
         "LDDR", "CPDR", "INDR", "OTDR"};
 
     private static int getByteAt(int addr) {
+        if (pages != null) {
+            return pages.read(addr & 0xffff) & 0xff;
+        }
         return memory[addr & 0xffff] & 0xff;
     }
 
@@ -78,6 +84,21 @@ public final class Disassembler {
 
     public static DisasmResult disassemble(byte[] memory, short address) {
         Disassembler.memory = memory;
+        Disassembler.pages = null;
+        return disassemble(address);
+    }
+
+    /**
+     * Disassembles a command from paged memory, read in place without
+     * copying the address space.
+     */
+    public static DisasmResult disassemble(MemoryPages pages, short address) {
+        Disassembler.memory = null;
+        Disassembler.pages = pages;
+        return disassemble(address);
+    }
+
+    private static DisasmResult disassemble(short address) {
         Disassembler.base_address = address;
         Disassembler.bytes_read = 0;
         Disassembler.command = "";
@@ -2,6 +2,12 @@ package org.mn.z80util.z80;
 
 public interface AddressBusProvider {
 
+    /**
+     * @return	The 64K address space as an array. With paged memory this may
+     * be a read-only snapshot, allocated on every call, to which writes are
+     * lost; FastAddressBusProvider.getMemoryPages() gives access without
+     * copying.
+     */
     byte[] getMemory();
 
     void setByte(short address, byte value);
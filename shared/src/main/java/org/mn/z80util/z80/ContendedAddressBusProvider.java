@@ -1,8 +1,8 @@
 /*
- * ProfileNode.java - Spectrum runtime profiler node.
- * 
+ * ContendedAddressBusProvider.java - Address bus with memory contention.
+ *
  * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
- * 
+ *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
  * the Free Software Foundation; either version 2 of the License, or
@@ -18,22 +18,14 @@
  * Foundation, Inc., 59 Temple Place - Suite 330,
  * Boston, MA 02111-1307, USA.
  */
-package org.mn.z80util.spectrum.profiling;
-
-import java.util.*;
+package org.mn.z80util.z80;
 
-public class ProfileNode {
-
-    boolean startBlock = false, endBlock = false;
-    long density = 0L;
-    TreeSet<Integer> predecessors = new TreeSet<Integer>(),
-            successors = new TreeSet<Integer>();
-
-    void addPredecessor(int address) {
-        predecessors.add(address);
-    }
+/**
+ * Address bus provider whose memory and I/O accesses may be delayed by
+ * contention. The processor looks the delays up itself from the returned
+ * table when the bus is set, so the bus is not called for them.
+ */
+public interface ContendedAddressBusProvider extends AddressBusProvider {
 
-    void addSuccessor(int address) {
-        successors.add(address);
-    }
+    public MemoryContention getMemoryContention();
 }
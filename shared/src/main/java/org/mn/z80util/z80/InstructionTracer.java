@@ -0,0 +1,47 @@
+/*
+ * InstructionTracer.java - Receiver of executed instructions.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.z80;
+
+/**
+ * Receives the address, the bytes and the starting time of each instruction a
+ * TracingZ80 executes, from inside its execution loop. The registers are
+ * given only when the tracer asks for them, so that the processor does not
+ * gather them for every instruction.
+ */
+public interface InstructionTracer {
+
+    /**
+     * @param tstates	T-states of the processor before the instruction, as
+     * returned by getTStates()
+     * @param pc	Address of the instruction
+     * @param opcode	The four bytes at PC, the first one in the highest byte
+     * @return	True if the tracer wants the registers before the instruction,
+     * in which case the processor calls registers() before executing it
+     */
+    public boolean instruction(int tstates, int pc, int opcode);
+
+    /**
+     * @param regPairs	Register pairs BC to IR, in the order of their indices
+     * in Z80. The processor reuses the array.
+     * @param imIff	The interrupt flags, as register IM_IFF
+     */
+    public void registers(int[] regPairs, int imIff);
+}
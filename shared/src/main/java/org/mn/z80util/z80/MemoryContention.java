@@ -0,0 +1,131 @@
+/*
+ * MemoryContention.java - Memory and I/O contention delays of a machine.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.z80;
+
+/**
+ * Contention delays of memory and I/O accesses, precomputed for every
+ * T-state of a frame. The processor asks for the delay of each access and
+ * adds it to its T-states, so the cost of an access is a bit test of the
+ * 16K page and, for contended pages, one table lookup.
+ *
+ * The position in the frame is derived from the T-state counter of the
+ * processor, see Z80.getTStates(): the machine sets the frame offset, which
+ * is the T-state of the frame where the counter of the processor reaches
+ * zero, whenever it gives the processor more T-states.
+ */
+public final class MemoryContention {
+
+    /**
+     * No contention at all, used by processors on buses without contention.
+     */
+    public static final MemoryContention NONE =
+            new MemoryContention(new byte[0], 0);
+    private final byte[] delays;
+    private int contendedPages;
+    private int frameOffset;
+
+    /**
+     * @param delays	Contention delay in T-states for an access starting at
+     * each T-state of the frame. Accesses beyond the table are not delayed.
+     * @param contendedPages	Bit mask of contended 16K pages, bit 0 for
+     * 0000h-3FFFh and so on.
+     */
+    public MemoryContention(byte[] delays, int contendedPages) {
+        this.delays = delays;
+        this.contendedPages = contendedPages;
+    }
+
+    public int getContendedPages() {
+        return contendedPages;
+    }
+
+    public void setContendedPages(int contendedPages) {
+        this.contendedPages = contendedPages;
+    }
+
+    public int getFrameOffset() {
+        return frameOffset;
+    }
+
+    /**
+     * @param frameOffset	T-state of the frame where the T-state counter of
+     * the processor reaches zero
+     */
+    public void setFrameOffset(int frameOffset) {
+        this.frameOffset = frameOffset;
+    }
+
+    private int delayAt(int pos) {
+        if ((pos >= 0) && (pos < delays.length)) {
+            return delays[pos];
+        }
+        return 0;
+    }
+
+    /**
+     * @param address	The memory address accessed
+     * @param tstates	The T-state counter of the processor at the beginning
+     * of the access
+     * @return	Number of T-states the access is delayed
+     */
+    public int getMemoryDelay(int address, int tstates) {
+        if ((contendedPages & (1 << ((address >> 14) & 3))) == 0) {
+            return 0;
+        }
+        return delayAt(frameOffset - tstates);
+    }
+
+    /**
+     * Returns the delay of an I/O access of four T-states. Ports with the
+     * high byte in a contended page are contended as memory, and ports with
+     * the lowest bit reset belong to the ULA, which is contended during the
+     * last three T-states of the access.
+     *
+     * @param port	The port accessed
+     * @param tstates	The T-state counter of the processor at the beginning
+     * of the access
+     * @return	Number of T-states the access is delayed
+     */
+    public int getIODelay(int port, int tstates) {
+        boolean highContended =
+                (contendedPages & (1 << ((port >> 14) & 3))) != 0;
+        int pos = frameOffset - tstates, t = pos;
+        if ((port & 1) == 0) {
+            /* C:1, C:3 or N:1, C:3 */
+            if (highContended) {
+                t += delayAt(t);
+            }
+            t++;
+            t += delayAt(t);
+            t += 3;
+        } else if (highContended) {
+            /* C:1, C:1, C:1, C:1 */
+            for (int i = 0; i < 4; i++) {
+                t += delayAt(t);
+                t++;
+            }
+        } else {
+            /* N:4 */
+            return 0;
+        }
+        return t - pos - 4;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * MemoryPages.java - Memory of an address bus for direct access.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.z80;
+
+/**
+ * Memory of an address bus for direct access by the processor. The address
+ * space is divided into four 16K pages, each of which is mapped to an offset
+ * of the backing array, so that switching a bank is a matter of changing
+ * an offset. Reads are served straight from the array. Writes are made
+ * straight to the array too, unless they hit a 256 byte block marked
+ * watched, such as ROM or screen memory, in which case the processor must
+ * write through AddressBusProvider.setByte() so that the bus sees them.
+ *
+ * A processor may cache code decoded from the memory, so whoever writes to
+ * the memory other than through the processor, for example when loading a
+ * snapshot, must call markModified() afterwards.
+ */
+public final class MemoryPages {
+
+    public static final int PAGE_SIZE = 0x4000;
+    private byte[] memory;
+    private final int[] offsets = new int[4];
+    /* One bit per 256 byte block of the address space */
+    private final int[] watched = new int[8];
+    private int modifications;
+
+    /**
+     * Maps the address space to the first 64K of the memory.
+     *
+     * @param memory	The backing array
+     */
+    public MemoryPages(byte[] memory) {
+        this.memory = memory;
+        for (int page = 0; page < 4; page++) {
+            offsets[page] = page * PAGE_SIZE;
+        }
+    }
+
+    public byte[] getMemory() {
+        return memory;
+    }
+
+    /**
+     * Replaces the backing array, for example when the machine is changed.
+     * The page offsets are kept.
+     */
+    public void setMemory(byte[] memory) {
+        this.memory = memory;
+        modifications++;
+    }
+
+    /**
+     * @return	Number of times the memory has been changed other than by the
+     * processor, see markModified()
+     */
+    public int getModificationCount() {
+        return modifications;
+    }
+
+    /**
+     * Tells the processor that the memory has been changed other than
+     * through it, so that it discards any code it has decoded.
+     */
+    public void markModified() {
+        modifications++;
+    }
+
+    public int getPageOffset(int page) {
+        return offsets[page];
+    }
+
+    /**
+     * @param page	The 16K page of the address space, 0-3
+     * @param offset	Offset of the page in the backing array
+     */
+    public void setPageOffset(int page, int offset) {
+        offsets[page] = offset;
+    }
+
+    /**
+     * @return	Index of the address in the backing array
+     */
+    public int index(int address) {
+        return offsets[(address >> 14) & 3] + (address & 0x3fff);
+    }
+
+    public byte read(int address) {
+        return memory[offsets[(address >> 14) & 3] + (address & 0x3fff)];
+    }
+
+    /**
+     * Writes a byte unless the address is watched.
+     *
+     * @return	False if the address is watched and nothing was written
+     */
+    public boolean write(int address, byte value) {
+        if (isWatched(address)) {
+            return false;
+        }
+        memory[offsets[(address >> 14) & 3] + (address & 0x3fff)] = value;
+        return true;
+    }
+
+    public boolean isWatched(int address) {
+        return (watched[(address >> 13) & 7] & (1 << ((address >> 8) & 0x1f)))
+                != 0;
+    }
+
+    /**
+     * @param i	Index of 32 consecutive 256 byte blocks, 0-7
+     * @return	One bit per block, set if the block is watched, the lowest
+     * bit for the lowest block
+     */
+    public int getWatchedBlocks(int i) {
+        return watched[i];
+    }
+
+    /**
+     * Marks the 256 byte blocks overlapping given address range watched or
+     * unwatched.
+     *
+     * @param start	First address of the range
+     * @param end	Address after the range
+     */
+    public void setWatched(int start, int end, boolean watch) {
+        for (int block = start >> 8; block < ((end + 0xff) >> 8); block++) {
+            if (watch) {
+                watched[block >> 5] |= 1 << (block & 0x1f);
+            } else {
+                watched[block >> 5] &= ~(1 << (block & 0x1f));
+            }
+        }
+    }
+}
@@ -12,6 +12,11 @@ public class MockZ80 implements Z80 {
         // TODO Auto-generated method stub
     }
 
+    @Override
+    public void executeTStates(int tstates) {
+        // TODO Auto-generated method stub
+    }
+
     @Override
     public byte getReg(int regno) {
         // TODO Auto-generated method stub
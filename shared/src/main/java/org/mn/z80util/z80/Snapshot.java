@@ -29,8 +29,10 @@ public interface Snapshot {
      * empty snapshot must be obtained in platform-specific manner.
      *
      * @param is	The input stream.
+     * @throws IOException	If the stream cannot be read or does not hold
+     * a valid snapshot
      */
-    void read(InputStream is);
+    void read(InputStream is) throws IOException;
 
     /**
      * Writes the snapshot to specified output stream. The snapshot must be
@@ -38,7 +40,7 @@ public interface Snapshot {
      *
      * @param os	The output stream.
      */
-    void write(OutputStream os);
+    void write(OutputStream os) throws IOException;
 
     /**
      * Writes the snapshot to default processor configuration, whatever that is
@@ -0,0 +1,34 @@
+/*
+ * TracingZ80.java - Processor reporting its instructions to a tracer.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.z80;
+
+/**
+ * Processor which reports each instruction it executes to a tracer, reading
+ * the state from its own fields, so that a traced program may still be run
+ * by executeTStates() instead of one executeNextCommand() at a time.
+ */
+public interface TracingZ80 extends Z80 {
+
+    /**
+     * @param tracer	The tracer, or null to end tracing
+     */
+    public void setInstructionTracer(InstructionTracer tracer);
+}
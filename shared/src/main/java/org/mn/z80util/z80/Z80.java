@@ -84,6 +84,18 @@ public interface Z80 extends TestZ80 {
      */
     public void setTStates(int value);
 
+    /**
+     * Adds given number of T-states to the available ones and executes
+     * commands until they are used up, just as calling executeNextCommand()
+     * while getTStates() is positive would. The processor synchronizes once
+     * per call instead of once per command, so this is the way to run it at
+     * full speed, and executeNextCommand() is for single stepping.
+     *
+     * @param tstates	Number of T-states to add, 0 to only use up the
+     * T-states already available
+     */
+    public void executeTStates(int tstates);
+
     /**
      * Gets the value of available T-states. Useful for testing.
      *
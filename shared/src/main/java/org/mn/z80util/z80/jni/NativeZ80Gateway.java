@@ -25,23 +25,198 @@
 
 package org.mn.z80util.z80.jni;
 
+import java.nio.*;
+
 import org.mn.z80util.z80.*;
 
+/**
+ * The native processor keeps its registers in a structure which is shared
+ * with Java as a direct byte buffer, so a command or a batch of commands
+ * takes a single JNI crossing and registers are read and written without
+ * crossing at all.
+ * 
+ * The processor accesses the memory array of the address bus provider in
+ * place, through the page offsets of its MemoryPages, which are stored into
+ * the shared structure before each crossing and after each OUT command.
+ * Writes to watched blocks call back to setByte(), so the provider sees
+ * them just as from a Java processor. A provider without MemoryPages is
+ * read through the 64K array of getMemory(), and all its writes call back.
+ * I/O calls back to the provider too.
+ * 
+ * The native processor implements all the commands YazeBasedZ80Impl does,
+ * with the same flags and T-states, but without memory contention and
+ * interrupts. It keeps the halt state in bit 4 of IM_IFF, which is hidden
+ * from getReg() and setReg() as the Java processors keep it apart.
+ */
 public class NativeZ80Gateway implements TestZ80 {
+	/* Layout of the shared state, see Z80State in NativeMNZ80.h */
+	private static final int TSTATES_OFFSET=28;
+	private static final int COMMANDS_OFFSET=32;
+	private static final int PAGE_OFFSETS_OFFSET=36;
+	private static final int WATCHED_OFFSET=52;
+	private static final int STATE_SIZE=84;
+	private static final int HALT_MASK=0x10;
+	
+	private final ByteBuffer state=ByteBuffer.allocateDirect(STATE_SIZE)
+		.order(ByteOrder.nativeOrder());
+	
 	public NativeZ80Gateway() {
 		System.loadLibrary("Z80Gateway");
+		attach(state);
 	}
 	
-	public native void executeNextCommand();
-	public native byte getReg(int regno);
-	public native short getRegPair(int regpairno);
+	/**
+	 * Shares the state with the native processor.
+	 */
+	private native void attach(ByteBuffer state);
+	
+	/**
+	 * Executes commands in the native processor until the given number of
+	 * them has been executed, or if that is zero, until the available
+	 * T-states have been used up.
+	 * 
+	 * @param memory	The memory array, mapped by the page offsets of the
+	 * state
+	 * @param commands	Number of commands, 0 for running by T-states
+	 * @param tstates	Number of T-states to add to the available ones
+	 * @return	Number of commands executed
+	 */
+	private native int execute(byte[] memory, int commands, int tstates);
+	
 	public native void reset();
-	public native void setHaltState(boolean value);
-	public native void setReg(int regno, byte value);
-	public native void setRegPair(int regpairno, short value);
+	
+	/**
+	 * Stores the page offsets of the memory into the shared state.
+	 */
+	private void mapPages() {
+		for(int page=0; page<4; page++) {
+			state.putInt(PAGE_OFFSETS_OFFSET+4*page, (pages!=null)
+				? pages.getPageOffset(page) : page*MemoryPages.PAGE_SIZE);
+		}
+	}
+	
+	private int run(int commands, int tstates) {
+		mapPages();
+		for(int i=0; i<8; i++) {
+			state.putInt(WATCHED_OFFSET+4*i, (pages!=null)
+				? pages.getWatchedBlocks(i) : -1);
+		}
+		return execute((pages!=null) ? pages.getMemory() : ula.getMemory(),
+			commands, tstates);
+	}
+	
+	public void executeNextCommand() {
+		run(1, 0);
+	}
+	
+	/**
+	 * Executes given number of commands in a single crossing.
+	 * 
+	 * @return	Number of commands executed
+	 */
+	public int executeCommands(int commands) {
+		return run(commands, 0);
+	}
+	
+	/**
+	 * Adds given number of T-states to the available ones and executes
+	 * commands until they are used up, in a single crossing, like
+	 * Z80.executeTStates().
+	 * 
+	 * @return	Number of commands executed
+	 */
+	public int executeTStates(int tstates) {
+		return run(0, tstates);
+	}
+	
+	public int getTStates() {
+		return state.getInt(TSTATES_OFFSET);
+	}
+	
+	public void setTStates(int value) {
+		state.putInt(TSTATES_OFFSET, value);
+	}
+	
+	/**
+	 * @return	Number of commands executed since reset
+	 */
+	public int getCommandCount() {
+		return state.getInt(COMMANDS_OFFSET);
+	}
+	
+	public byte getReg(int regno) {
+		if(regno==IM_IFF) {
+			return (byte)(state.get(IM_IFF) & ~HALT_MASK);
+		}
+		return state.get(regno);
+	}
+	
+	public void setReg(int regno, byte value) {
+		if(regno==IM_IFF) {
+			value=(byte)((value & ~HALT_MASK)
+				| (state.get(IM_IFF) & HALT_MASK));
+		}
+		state.put(regno, value);
+	}
+	
+	/* AF and AF' are stored as F, A */
+	private static int highReg(int regpairno) {
+		return ((regpairno==AF) || (regpairno==AF_ALT)) ? 2*regpairno+1
+			: 2*regpairno;
+	}
+	
+	public short getRegPair(int regpairno) {
+		int high=highReg(regpairno);
+		int low=high ^ 1;
+		return (short)(((state.get(high) & 0xff) << 8)
+			| (state.get(low) & 0xff));
+	}
+	
+	public void setRegPair(int regpairno, short value) {
+		int high=highReg(regpairno);
+		state.put(high, (byte)(value >> 8));
+		state.put(high ^ 1, (byte)value);
+	}
+	
+	public void setHaltState(boolean value) {
+		int imIff=state.get(IM_IFF);
+		state.put(IM_IFF, (byte)(value ? imIff | HALT_MASK
+			: imIff & ~HALT_MASK));
+	}
+	
+	/**
+	 * Called by the native processor on IN commands.
+	 */
+	private byte readPort(short port) {
+		return ula.getIOByte(port);
+	}
+	
+	/**
+	 * Called by the native processor on OUT commands, which may switch
+	 * banks.
+	 */
+	private void writePort(short port, byte value) {
+		ula.setIOByte(port, value);
+		mapPages();
+	}
+	
+	/**
+	 * Called by the native processor on writes to watched blocks.
+	 */
+	private void writeByte(short address, byte value) {
+		ula.setByte(address, value);
+	}
 	
 	AddressBusProvider ula;
+	/* Memory of the provider, or null if it does not allow direct access */
+	private MemoryPages pages;
+	
 	public void setUla(AddressBusProvider ula) {
 		this.ula=ula;
+		if(ula instanceof FastAddressBusProvider) {
+			pages=((FastAddressBusProvider)ula).getMemoryPages();
+		} else {
+			pages=null;
+		}
 	}
 }
@@ -0,0 +1,2304 @@
+/*
+ * BlockTranslator.java - Basic block translation for the Qaop based
+ * processor.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.z80.qaop;
+
+import java.util.*;
+
+import org.mn.z80util.z80.*;
+
+/**
+ * Translates the unprefixed instructions of QaopZ80Impl into handlers whose
+ * operands are decoded in advance, and caches them as basic blocks. A block
+ * ends at the first jump, call, return or OUT, before the first instruction
+ * which is not translated, and before leaving the 16K page it starts in, so
+ * that it covers a contiguous range of the memory of the bus. The handlers
+ * take the contention of the operand reads without making them, so the
+ * T-states are the same as in the interpreter.
+ *
+ * Blocks are cached by the index of their first byte in the memory, and a
+ * write by the processor to a translated byte drops every block covering
+ * it. Memory changed other than by the processor is seen from
+ * MemoryPages.getModificationCount(), which drops the whole cache.
+ */
+final class BlockTranslator {
+
+    /* Longest block in bytes */
+    static final int MAX_LENGTH = 128;
+
+    /**
+     * Translated instruction. The processor makes the opcode fetch and sets
+     * PC to the next instruction before running the handler.
+     */
+    abstract static class Op {
+
+        final int next;
+
+        Op(int next) {
+            this.next = next;
+        }
+
+        abstract void run(QaopZ80Impl z);
+    }
+
+    static final class Block {
+
+        final int pc;
+        /* Range of the block in the memory, at least one byte */
+        final int start, end;
+        /* Empty if the first instruction is not translated */
+        final Op[] ops;
+        /* Cleared when the block is dropped, also while it is running */
+        boolean valid = true;
+
+        Block(int pc, int start, int end, Op[] ops) {
+            this.pc = pc;
+            this.start = start;
+            this.end = end;
+            this.ops = ops;
+        }
+    }
+    private MemoryPages pages;
+    private byte[] memory;
+    private int modifications;
+    /* Blocks by the index of their first byte in the memory */
+    private Block[] blocks;
+    /* Whether each byte of the memory belongs to a cached block */
+    private boolean[] translated;
+
+    /**
+     * Drops the cache if the memory is not the one translated or has been
+     * changed other than by the processor, which cannot happen while the
+     * processor runs.
+     */
+    void update(MemoryPages pages) {
+        if ((pages != this.pages) || (pages.getMemory() != memory)
+                || (pages.getModificationCount() != modifications)) {
+            flush(pages);
+        }
+    }
+
+    /**
+     * @return	The block starting at given address, translated now unless
+     * it is cached
+     */
+    Block getBlock(int pc) {
+        int index = pages.index(pc);
+        Block block = blocks[index];
+        if ((block == null) || (block.pc != pc)) {
+            /* Not cached, or cached where the memory was mapped elsewhere */
+            block = translate(pc, index);
+            blocks[index] = block;
+            Arrays.fill(translated, block.start, block.end, true);
+        }
+        return block;
+    }
+
+    private void flush(MemoryPages pages) {
+        this.pages = pages;
+        memory = pages.getMemory();
+        modifications = pages.getModificationCount();
+        blocks = new Block[memory.length];
+        translated = new boolean[memory.length];
+    }
+
+    private Block translate(int pc, int index) {
+        List<Op> ops = new ArrayList<Op>();
+        int addr = pc;
+        for (;;) {
+            int c = pages.read(addr) & 0xff;
+            int length = length(c);
+            if ((length == 0) || (((addr + length - 1) >> 14) != (pc >> 14))
+                    || (addr + length - pc > MAX_LENGTH)) {
+                break;
+            }
+            int n = pages.read(addr + 1) & 0xff;
+            ops.add(decode(addr, c, n,
+                    n | (pages.read(addr + 2) & 0xff) << 8));
+            addr += length;
+            if (endsBlock(c)) {
+                break;
+            }
+        }
+        return new Block(pc, index, index + Math.max(addr - pc, 1),
+                ops.toArray(new Op[ops.size()]));
+    }
+
+    /**
+     * Drops the blocks covering a byte the processor has written, if any.
+     */
+    void written(int addr) {
+        if (translated == null) {
+            return;
+        }
+        int index = pages.index(addr);
+        if ((index < translated.length) && translated[index]) {
+            drop(index);
+        }
+    }
+
+    private void drop(int index) {
+        int from = index, to = index + 1;
+        for (int start = Math.max(index - MAX_LENGTH + 1, 0); start <= index;
+                start++) {
+            Block block = blocks[start];
+            if ((block != null) && (block.end > index)) {
+                block.valid = false;
+                blocks[start] = null;
+                from = Math.min(from, start);
+                to = Math.max(to, block.end);
+            }
+        }
+        /* Unmarks the bytes of the dropped blocks not in any other block */
+        Arrays.fill(translated, from, to, false);
+        for (int start = Math.max(from - MAX_LENGTH + 1, 0); start < to;
+                start++) {
+            Block block = blocks[start];
+            if ((block != null) && (block.end > from)) {
+                Arrays.fill(translated, Math.max(block.start, from),
+                        Math.min(block.end, to), true);
+            }
+        }
+    }
+
+    /**
+     * @return	Length of the instruction with given opcode, or 0 if the
+     * instruction is not translated
+     */
+    static int length(int c) {
+        switch (c) {
+            case 0x76:
+            case 0xCB:
+            case 0xDD:
+            case 0xED:
+            case 0xF3:
+            case 0xFB:
+            case 0xFD:
+                return 0;
+            case 0x06:
+            case 0x0E:
+            case 0x10:
+            case 0x16:
+            case 0x18:
+            case 0x1E:
+            case 0x20:
+            case 0x26:
+            case 0x28:
+            case 0x2E:
+            case 0x30:
+            case 0x36:
+            case 0x38:
+            case 0x3E:
+            case 0xC6:
+            case 0xCE:
+            case 0xD3:
+            case 0xD6:
+            case 0xDB:
+            case 0xDE:
+            case 0xE6:
+            case 0xEE:
+            case 0xF6:
+            case 0xFE:
+                return 2;
+            case 0x01:
+            case 0x11:
+            case 0x21:
+            case 0x22:
+            case 0x2A:
+            case 0x31:
+            case 0x32:
+            case 0x3A:
+            case 0xC2:
+            case 0xC3:
+            case 0xC4:
+            case 0xCA:
+            case 0xCC:
+            case 0xCD:
+            case 0xD2:
+            case 0xD4:
+            case 0xDA:
+            case 0xDC:
+            case 0xE2:
+            case 0xE4:
+            case 0xEA:
+            case 0xEC:
+            case 0xF2:
+            case 0xF4:
+            case 0xFA:
+            case 0xFC:
+                return 3;
+        }
+        return 1;
+    }
+
+    /**
+     * @return	Whether the instruction with given opcode may change PC other
+     * than by moving to the next instruction, or the memory mapping
+     */
+    static boolean endsBlock(int c) {
+        switch (c) {
+            case 0x10:
+            case 0x18:
+            case 0x20:
+            case 0x28:
+            case 0x30:
+            case 0x38:
+            case 0xC0:
+            case 0xC2:
+            case 0xC3:
+            case 0xC4:
+            case 0xC7:
+            case 0xC8:
+            case 0xC9:
+            case 0xCA:
+            case 0xCC:
+            case 0xCD:
+            case 0xCF:
+            case 0xD0:
+            case 0xD2:
+            case 0xD3:
+            case 0xD4:
+            case 0xD7:
+            case 0xD8:
+            case 0xDA:
+            case 0xDC:
+            case 0xDF:
+            case 0xE0:
+            case 0xE2:
+            case 0xE4:
+            case 0xE7:
+            case 0xE8:
+            case 0xE9:
+            case 0xEA:
+            case 0xEC:
+            case 0xEF:
+            case 0xF0:
+            case 0xF2:
+            case 0xF4:
+            case 0xF7:
+            case 0xF8:
+            case 0xFA:
+            case 0xFC:
+            case 0xFF:
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Translates an instruction.
+     *
+     * @param pc	Address of the instruction
+     * @param c	The opcode
+     * @param n	The byte after the opcode
+     * @param nn	The word after the opcode
+     * @return	The handler, or null if the instruction is not translated
+     */
+    static Op decode(int pc, int c, final int n, final int nn) {
+        final int next = (char) (pc + length(c));
+        final int a1 = (char) (pc + 1);
+        final int target = (char) (next + (byte) n);
+        switch (c) {
+            case 0x00:
+            case 0x40:
+            case 0x49:
+            case 0x52:
+            case 0x5B:
+            case 0x64:
+            case 0x6D:
+            case 0x7F:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                    }
+                };
+            case 0x01: {
+                final int high = nn >>> 8, low = nn & 0xFF;
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.B = high;
+                        z.C = low;
+                    }
+                };
+            }
+            case 0x02:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.env.mem(z.B << 8 | z.C, z.A);
+                        z.time += 3;
+                    }
+                };
+            case 0x03:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        int v = (char) ((z.B << 8 | z.C) + 1);
+                        z.B = v >>> 8;
+                        z.C = v & 0xFF;
+                        z.time += 2;
+                    }
+                };
+            case 0x04:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.B = z.inc(z.B);
+                    }
+                };
+            case 0x05:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.B = z.dec(z.B);
+                    }
+                };
+            case 0x06:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 3;
+                        z.B = n;
+                    }
+                };
+            case 0x07:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.rot(z.A * 0x101 >>> 7);
+                    }
+                };
+            case 0x08:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.ex_af();
+                    }
+                };
+            case 0x09:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.add16(z.HL, z.B << 8 | z.C);
+                    }
+                };
+            case 0x0A:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.A = z.env.mem(z.B << 8 | z.C);
+                        z.time += 3;
+                    }
+                };
+            case 0x0B:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        int v = (char) ((z.B << 8 | z.C) - 1);
+                        z.B = v >>> 8;
+                        z.C = v & 0xFF;
+                        z.time += 2;
+                    }
+                };
+            case 0x0C:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.C = z.inc(z.C);
+                    }
+                };
+            case 0x0D:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.C = z.dec(z.C);
+                    }
+                };
+            case 0x0E:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 3;
+                        z.C = n;
+                    }
+                };
+            case 0x0F:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.rot(z.A * 0x80800000 >> 24);
+                    }
+                };
+            case 0x10:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.time++;
+                        z.operand(a1);
+                        z.time += 3;
+                        if ((z.B = z.B - 1 & 0xFF) != 0) {
+                            z.time += 5;
+                            z.PC = target;
+                        }
+                    }
+                };
+            case 0x11: {
+                final int high = nn >>> 8, low = nn & 0xFF;
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.D = high;
+                        z.E = low;
+                    }
+                };
+            }
+            case 0x12:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.env.mem(z.D << 8 | z.E, z.A);
+                        z.time += 3;
+                    }
+                };
+            case 0x13:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        int v = (char) ((z.D << 8 | z.E) + 1);
+                        z.D = v >>> 8;
+                        z.E = v & 0xFF;
+                        z.time += 2;
+                    }
+                };
+            case 0x14:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.D = z.inc(z.D);
+                    }
+                };
+            case 0x15:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.D = z.dec(z.D);
+                    }
+                };
+            case 0x16:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 3;
+                        z.D = n;
+                    }
+                };
+            case 0x17:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.rot(z.A << 1 | z.Ff >>> 8 & 1);
+                    }
+                };
+            case 0x18:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 8;
+                        z.PC = z.mr = target;
+                    }
+                };
+            case 0x19:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.add16(z.HL, z.D << 8 | z.E);
+                    }
+                };
+            case 0x1A:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.A = z.env.mem(z.D << 8 | z.E);
+                        z.time += 3;
+                    }
+                };
+            case 0x1B:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        int v = (char) ((z.D << 8 | z.E) - 1);
+                        z.D = v >>> 8;
+                        z.E = v & 0xFF;
+                        z.time += 2;
+                    }
+                };
+            case 0x1C:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.E = z.inc(z.E);
+                    }
+                };
+            case 0x1D:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.E = z.dec(z.E);
+                    }
+                };
+            case 0x1E:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 3;
+                        z.E = n;
+                    }
+                };
+            case 0x1F:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.rot((z.A * 0x201 | z.Ff & 0x100) >>> 1);
+                    }
+                };
+            case 0x20:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        if (z.Fr != 0) {
+                            z.time += 8;
+                            z.mr = z.PC = target;
+                        } else {
+                            z.time += 3;
+                        }
+                    }
+                };
+            case 0x21:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.HL = nn;
+                    }
+                };
+            case 0x22:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.env.mem16(nn, z.HL);
+                        z.time += 6;
+                    }
+                };
+            case 0x23:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = (char) (z.HL + 1);
+                        z.time += 2;
+                    }
+                };
+            case 0x24:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.HL & 0xFF | z.inc(z.HL >>> 8) << 8;
+                    }
+                };
+            case 0x25:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.HL & 0xFF | z.dec(z.HL >>> 8) << 8;
+                    }
+                };
+            case 0x26:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 3;
+                        z.HL = z.HL & 0xFF | n << 8;
+                    }
+                };
+            case 0x27:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.daa();
+                    }
+                };
+            case 0x28:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        if (z.Fr == 0) {
+                            z.time += 8;
+                            z.mr = z.PC = target;
+                        } else {
+                            z.time += 3;
+                        }
+                    }
+                };
+            case 0x29:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.add16(z.HL, z.HL);
+                    }
+                };
+            case 0x2A:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.HL = z.env.mem16(nn);
+                        z.time += 6;
+                    }
+                };
+            case 0x2B:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = (char) (z.HL - 1);
+                        z.time += 2;
+                    }
+                };
+            case 0x2C:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.HL & 0xFF00 | z.inc(z.HL & 0xFF);
+                    }
+                };
+            case 0x2D:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.HL & 0xFF00 | z.dec(z.HL & 0xFF);
+                    }
+                };
+            case 0x2E:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 3;
+                        z.HL = z.HL & 0xFF00 | n;
+                    }
+                };
+            case 0x2F:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.cpl();
+                    }
+                };
+            case 0x30:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        if ((z.Ff & 0x100) == 0) {
+                            z.time += 8;
+                            z.mr = z.PC = target;
+                        } else {
+                            z.time += 3;
+                        }
+                    }
+                };
+            case 0x31:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.SP = nn;
+                    }
+                };
+            case 0x32:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.env.mem(nn, z.A);
+                        z.time += 3;
+                    }
+                };
+            case 0x33:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.SP = (char) (z.SP + 1);
+                        z.time += 2;
+                    }
+                };
+            case 0x34:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        int v = z.inc(z.env.mem(z.HL));
+                        z.time += 4;
+                        z.env.mem(z.HL, v);
+                        z.time += 3;
+                    }
+                };
+            case 0x35:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        int v = z.dec(z.env.mem(z.HL));
+                        z.time += 4;
+                        z.env.mem(z.HL, v);
+                        z.time += 3;
+                    }
+                };
+            case 0x36:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 3;
+                        z.env.mem(z.HL, n);
+                        z.time += 3;
+                    }
+                };
+            case 0x37:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.scf_ccf(0);
+                    }
+                };
+            case 0x38:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        if ((z.Ff & 0x100) != 0) {
+                            z.time += 8;
+                            z.mr = z.PC = target;
+                        } else {
+                            z.time += 3;
+                        }
+                    }
+                };
+            case 0x39:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.add16(z.HL, z.SP);
+                    }
+                };
+            case 0x3A:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.A = z.env.mem(nn);
+                        z.time += 3;
+                    }
+                };
+            case 0x3B:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.SP = (char) (z.SP - 1);
+                        z.time += 2;
+                    }
+                };
+            case 0x3C:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.A = z.inc(z.A);
+                    }
+                };
+            case 0x3D:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.A = z.dec(z.A);
+                    }
+                };
+            case 0x3E:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 3;
+                        z.A = n;
+                    }
+                };
+            case 0x3F:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.scf_ccf(z.Ff & 0x100);
+                    }
+                };
+            case 0x41:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.B = z.C;
+                    }
+                };
+            case 0x42:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.B = z.D;
+                    }
+                };
+            case 0x43:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.B = z.E;
+                    }
+                };
+            case 0x44:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.B = z.HL >>> 8;
+                    }
+                };
+            case 0x45:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.B = z.HL & 0xFF;
+                    }
+                };
+            case 0x46:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.B = z.env.mem(z.HL);
+                        z.time += 3;
+                    }
+                };
+            case 0x47:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.B = z.A;
+                    }
+                };
+            case 0x48:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.C = z.B;
+                    }
+                };
+            case 0x4A:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.C = z.D;
+                    }
+                };
+            case 0x4B:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.C = z.E;
+                    }
+                };
+            case 0x4C:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.C = z.HL >>> 8;
+                    }
+                };
+            case 0x4D:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.C = z.HL & 0xFF;
+                    }
+                };
+            case 0x4E:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.C = z.env.mem(z.HL);
+                        z.time += 3;
+                    }
+                };
+            case 0x4F:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.C = z.A;
+                    }
+                };
+            case 0x50:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.D = z.B;
+                    }
+                };
+            case 0x51:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.D = z.C;
+                    }
+                };
+            case 0x53:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.D = z.E;
+                    }
+                };
+            case 0x54:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.D = z.HL >>> 8;
+                    }
+                };
+            case 0x55:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.D = z.HL & 0xFF;
+                    }
+                };
+            case 0x56:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.D = z.env.mem(z.HL);
+                        z.time += 3;
+                    }
+                };
+            case 0x57:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.D = z.A;
+                    }
+                };
+            case 0x58:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.E = z.B;
+                    }
+                };
+            case 0x59:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.E = z.C;
+                    }
+                };
+            case 0x5A:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.E = z.D;
+                    }
+                };
+            case 0x5C:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.E = z.HL >>> 8;
+                    }
+                };
+            case 0x5D:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.E = z.HL & 0xFF;
+                    }
+                };
+            case 0x5E:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.E = z.env.mem(z.HL);
+                        z.time += 3;
+                    }
+                };
+            case 0x5F:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.E = z.A;
+                    }
+                };
+            case 0x60:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.HL & 0xFF | z.B << 8;
+                    }
+                };
+            case 0x61:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.HL & 0xFF | z.C << 8;
+                    }
+                };
+            case 0x62:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.HL & 0xFF | z.D << 8;
+                    }
+                };
+            case 0x63:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.HL & 0xFF | z.E << 8;
+                    }
+                };
+            case 0x65:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.HL & 0xFF | (z.HL & 0xFF) << 8;
+                    }
+                };
+            case 0x66:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.HL & 0xFF | z.env.mem(z.HL) << 8;
+                        z.time += 3;
+                    }
+                };
+            case 0x67:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.HL & 0xFF | z.A << 8;
+                    }
+                };
+            case 0x68:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.HL & 0xFF00 | z.B;
+                    }
+                };
+            case 0x69:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.HL & 0xFF00 | z.C;
+                    }
+                };
+            case 0x6A:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.HL & 0xFF00 | z.D;
+                    }
+                };
+            case 0x6B:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.HL & 0xFF00 | z.E;
+                    }
+                };
+            case 0x6C:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.HL & 0xFF00 | z.HL >>> 8;
+                    }
+                };
+            case 0x6E:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.HL & 0xFF00 | z.env.mem(z.HL);
+                        z.time += 3;
+                    }
+                };
+            case 0x6F:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.HL & 0xFF00 | z.A;
+                    }
+                };
+            case 0x70:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.env.mem(z.HL, z.B);
+                        z.time += 3;
+                    }
+                };
+            case 0x71:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.env.mem(z.HL, z.C);
+                        z.time += 3;
+                    }
+                };
+            case 0x72:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.env.mem(z.HL, z.D);
+                        z.time += 3;
+                    }
+                };
+            case 0x73:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.env.mem(z.HL, z.E);
+                        z.time += 3;
+                    }
+                };
+            case 0x74:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.env.mem(z.HL, z.HL >>> 8);
+                        z.time += 3;
+                    }
+                };
+            case 0x75:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.env.mem(z.HL, z.HL & 0xFF);
+                        z.time += 3;
+                    }
+                };
+            case 0x77:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.env.mem(z.HL, z.A);
+                        z.time += 3;
+                    }
+                };
+            case 0x78:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.A = z.B;
+                    }
+                };
+            case 0x79:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.A = z.C;
+                    }
+                };
+            case 0x7A:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.A = z.D;
+                    }
+                };
+            case 0x7B:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.A = z.E;
+                    }
+                };
+            case 0x7C:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.A = z.HL >>> 8;
+                    }
+                };
+            case 0x7D:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.A = z.HL & 0xFF;
+                    }
+                };
+            case 0x7E:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.A = z.env.mem(z.HL);
+                        z.time += 3;
+                    }
+                };
+            case 0x80:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.add(z.B);
+                    }
+                };
+            case 0x81:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.add(z.C);
+                    }
+                };
+            case 0x82:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.add(z.D);
+                    }
+                };
+            case 0x83:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.add(z.E);
+                    }
+                };
+            case 0x84:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.add(z.HL >>> 8);
+                    }
+                };
+            case 0x85:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.add(z.HL & 0xFF);
+                    }
+                };
+            case 0x86:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.add(z.env.mem(z.HL));
+                        z.time += 3;
+                    }
+                };
+            case 0x87:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.add(z.A);
+                    }
+                };
+            case 0x88:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.adc(z.B);
+                    }
+                };
+            case 0x89:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.adc(z.C);
+                    }
+                };
+            case 0x8A:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.adc(z.D);
+                    }
+                };
+            case 0x8B:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.adc(z.E);
+                    }
+                };
+            case 0x8C:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.adc(z.HL >>> 8);
+                    }
+                };
+            case 0x8D:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.adc(z.HL & 0xFF);
+                    }
+                };
+            case 0x8E:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.adc(z.env.mem(z.HL));
+                        z.time += 3;
+                    }
+                };
+            case 0x8F:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.adc(z.A);
+                    }
+                };
+            case 0x90:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.sub(z.B);
+                    }
+                };
+            case 0x91:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.sub(z.C);
+                    }
+                };
+            case 0x92:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.sub(z.D);
+                    }
+                };
+            case 0x93:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.sub(z.E);
+                    }
+                };
+            case 0x94:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.sub(z.HL >>> 8);
+                    }
+                };
+            case 0x95:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.sub(z.HL & 0xFF);
+                    }
+                };
+            case 0x96:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.sub(z.env.mem(z.HL));
+                        z.time += 3;
+                    }
+                };
+            case 0x97:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.sub(z.A);
+                    }
+                };
+            case 0x98:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.sbc(z.B);
+                    }
+                };
+            case 0x99:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.sbc(z.C);
+                    }
+                };
+            case 0x9A:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.sbc(z.D);
+                    }
+                };
+            case 0x9B:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.sbc(z.E);
+                    }
+                };
+            case 0x9C:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.sbc(z.HL >>> 8);
+                    }
+                };
+            case 0x9D:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.sbc(z.HL & 0xFF);
+                    }
+                };
+            case 0x9E:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.sbc(z.env.mem(z.HL));
+                        z.time += 3;
+                    }
+                };
+            case 0x9F:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.sbc(z.A);
+                    }
+                };
+            case 0xA0:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.and(z.B);
+                    }
+                };
+            case 0xA1:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.and(z.C);
+                    }
+                };
+            case 0xA2:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.and(z.D);
+                    }
+                };
+            case 0xA3:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.and(z.E);
+                    }
+                };
+            case 0xA4:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.and(z.HL >>> 8);
+                    }
+                };
+            case 0xA5:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.and(z.HL & 0xFF);
+                    }
+                };
+            case 0xA6:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.and(z.env.mem(z.HL));
+                        z.time += 3;
+                    }
+                };
+            case 0xA7:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.and(z.A);
+                    }
+                };
+            case 0xA8:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.xor(z.B);
+                    }
+                };
+            case 0xA9:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.xor(z.C);
+                    }
+                };
+            case 0xAA:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.xor(z.D);
+                    }
+                };
+            case 0xAB:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.xor(z.E);
+                    }
+                };
+            case 0xAC:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.xor(z.HL >>> 8);
+                    }
+                };
+            case 0xAD:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.xor(z.HL & 0xFF);
+                    }
+                };
+            case 0xAE:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.xor(z.env.mem(z.HL));
+                        z.time += 3;
+                    }
+                };
+            case 0xAF:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.xor(z.A);
+                    }
+                };
+            case 0xB0:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.or(z.B);
+                    }
+                };
+            case 0xB1:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.or(z.C);
+                    }
+                };
+            case 0xB2:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.or(z.D);
+                    }
+                };
+            case 0xB3:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.or(z.E);
+                    }
+                };
+            case 0xB4:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.or(z.HL >>> 8);
+                    }
+                };
+            case 0xB5:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.or(z.HL & 0xFF);
+                    }
+                };
+            case 0xB6:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.or(z.env.mem(z.HL));
+                        z.time += 3;
+                    }
+                };
+            case 0xB7:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.or(z.A);
+                    }
+                };
+            case 0xB8:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.cp(z.B);
+                    }
+                };
+            case 0xB9:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.cp(z.C);
+                    }
+                };
+            case 0xBA:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.cp(z.D);
+                    }
+                };
+            case 0xBB:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.cp(z.E);
+                    }
+                };
+            case 0xBC:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.cp(z.HL >>> 8);
+                    }
+                };
+            case 0xBD:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.cp(z.HL & 0xFF);
+                    }
+                };
+            case 0xBE:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.cp(z.env.mem(z.HL));
+                        z.time += 3;
+                    }
+                };
+            case 0xBF:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.cp(z.A);
+                    }
+                };
+            case 0xC0:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.time++;
+                        if (z.Fr != 0) {
+                            z.mr = z.PC = z.pop();
+                        }
+                    }
+                };
+            case 0xC1:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        int v = z.pop();
+                        z.B = v >>> 8;
+                        z.C = v & 0xFF;
+                    }
+                };
+            case 0xC2:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.mr = nn;
+                        if (z.Fr != 0) {
+                            z.PC = nn;
+                        }
+                    }
+                };
+            case 0xC3:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.PC = nn;
+                    }
+                };
+            case 0xC4:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.mr = nn;
+                        if (z.Fr != 0) {
+                            z.push(z.PC);
+                            z.PC = nn;
+                        }
+                    }
+                };
+            case 0xC5:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.push(z.B << 8 | z.C);
+                    }
+                };
+            case 0xC6:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 3;
+                        z.add(n);
+                    }
+                };
+            case 0xC7:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.push(z.PC);
+                        z.PC = 0x00;
+                    }
+                };
+            case 0xC8:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.time++;
+                        if (z.Fr == 0) {
+                            z.mr = z.PC = z.pop();
+                        }
+                    }
+                };
+            case 0xC9:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.mr = z.PC = z.pop();
+                    }
+                };
+            case 0xCA:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.mr = nn;
+                        if (z.Fr == 0) {
+                            z.PC = nn;
+                        }
+                    }
+                };
+            case 0xCC:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.mr = nn;
+                        if (z.Fr == 0) {
+                            z.push(z.PC);
+                            z.PC = nn;
+                        }
+                    }
+                };
+            case 0xCD:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.push(z.PC);
+                        z.mr = z.PC = nn;
+                    }
+                };
+            case 0xCE:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 3;
+                        z.adc(n);
+                    }
+                };
+            case 0xCF:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.push(z.PC);
+                        z.PC = 0x08;
+                    }
+                };
+            case 0xD0:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.time++;
+                        if ((z.Ff & 0x100) == 0) {
+                            z.mr = z.PC = z.pop();
+                        }
+                    }
+                };
+            case 0xD1:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        int v = z.pop();
+                        z.D = v >>> 8;
+                        z.E = v & 0xFF;
+                    }
+                };
+            case 0xD2:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.mr = nn;
+                        if ((z.Ff & 0x100) == 0) {
+                            z.PC = nn;
+                        }
+                    }
+                };
+            case 0xD3:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 3;
+                        z.env.out(n | z.A << 8, z.A);
+                        z.time += 4;
+                    }
+                };
+            case 0xD4:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.mr = nn;
+                        if ((z.Ff & 0x100) == 0) {
+                            z.push(z.PC);
+                            z.PC = nn;
+                        }
+                    }
+                };
+            case 0xD5:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.push(z.D << 8 | z.E);
+                    }
+                };
+            case 0xD6:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 3;
+                        z.sub(n);
+                    }
+                };
+            case 0xD7:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.push(z.PC);
+                        z.PC = 0x10;
+                    }
+                };
+            case 0xD8:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.time++;
+                        if ((z.Ff & 0x100) != 0) {
+                            z.mr = z.PC = z.pop();
+                        }
+                    }
+                };
+            case 0xD9:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.exx();
+                    }
+                };
+            case 0xDA:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.mr = nn;
+                        if ((z.Ff & 0x100) != 0) {
+                            z.PC = nn;
+                        }
+                    }
+                };
+            case 0xDB:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 3;
+                        z.A = z.env.in(n | z.A << 8);
+                        z.time += 4;
+                    }
+                };
+            case 0xDC:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.mr = nn;
+                        if ((z.Ff & 0x100) != 0) {
+                            z.push(z.PC);
+                            z.PC = nn;
+                        }
+                    }
+                };
+            case 0xDE:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 3;
+                        z.sbc(n);
+                    }
+                };
+            case 0xDF:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.push(z.PC);
+                        z.PC = 0x18;
+                    }
+                };
+            case 0xE0:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.time++;
+                        if ((z.f() & QaopZ80Impl.FP) == 0) {
+                            z.mr = z.PC = z.pop();
+                        }
+                    }
+                };
+            case 0xE1:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.HL = z.pop();
+                    }
+                };
+            case 0xE2:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.mr = nn;
+                        if ((z.f() & QaopZ80Impl.FP) == 0) {
+                            z.PC = nn;
+                        }
+                    }
+                };
+            case 0xE3:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        int v = z.pop();
+                        z.push(z.HL);
+                        z.HL = v;
+                        z.time += 2;
+                    }
+                };
+            case 0xE4:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.mr = nn;
+                        if ((z.f() & QaopZ80Impl.FP) == 0) {
+                            z.push(z.PC);
+                            z.PC = nn;
+                        }
+                    }
+                };
+            case 0xE5:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.push(z.HL);
+                    }
+                };
+            case 0xE6:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 3;
+                        z.and(n);
+                    }
+                };
+            case 0xE7:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.push(z.PC);
+                        z.PC = 0x20;
+                    }
+                };
+            case 0xE8:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.time++;
+                        if ((z.f() & QaopZ80Impl.FP) != 0) {
+                            z.mr = z.PC = z.pop();
+                        }
+                    }
+                };
+            case 0xE9:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.PC = z.HL;
+                    }
+                };
+            case 0xEA:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.mr = nn;
+                        if ((z.f() & QaopZ80Impl.FP) != 0) {
+                            z.PC = nn;
+                        }
+                    }
+                };
+            case 0xEB:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        int v = z.HL;
+                        z.HL = z.D << 8 | z.E;
+                        z.D = v >>> 8;
+                        z.E = v & 0xFF;
+                    }
+                };
+            case 0xEC:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.mr = nn;
+                        if ((z.f() & QaopZ80Impl.FP) != 0) {
+                            z.push(z.PC);
+                            z.PC = nn;
+                        }
+                    }
+                };
+            case 0xEE:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 3;
+                        z.xor(n);
+                    }
+                };
+            case 0xEF:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.push(z.PC);
+                        z.PC = 0x28;
+                    }
+                };
+            case 0xF0:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.time++;
+                        if ((z.Ff & QaopZ80Impl.FS) == 0) {
+                            z.mr = z.PC = z.pop();
+                        }
+                    }
+                };
+            case 0xF1:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.af(z.pop());
+                    }
+                };
+            case 0xF2:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.mr = nn;
+                        if ((z.Ff & QaopZ80Impl.FS) == 0) {
+                            z.PC = nn;
+                        }
+                    }
+                };
+            case 0xF4:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.mr = nn;
+                        if ((z.Ff & QaopZ80Impl.FS) == 0) {
+                            z.push(z.PC);
+                            z.PC = nn;
+                        }
+                    }
+                };
+            case 0xF5:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.push(z.af());
+                    }
+                };
+            case 0xF6:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 3;
+                        z.or(n);
+                    }
+                };
+            case 0xF7:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.push(z.PC);
+                        z.PC = 0x30;
+                    }
+                };
+            case 0xF8:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.time++;
+                        if ((z.Ff & QaopZ80Impl.FS) != 0) {
+                            z.mr = z.PC = z.pop();
+                        }
+                    }
+                };
+            case 0xF9:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.SP = z.HL;
+                        z.time += 2;
+                    }
+                };
+            case 0xFA:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.mr = nn;
+                        if ((z.Ff & QaopZ80Impl.FS) != 0) {
+                            z.PC = nn;
+                        }
+                    }
+                };
+            case 0xFC:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand16(a1);
+                        z.time += 6;
+                        z.mr = nn;
+                        if ((z.Ff & QaopZ80Impl.FS) != 0) {
+                            z.push(z.PC);
+                            z.PC = nn;
+                        }
+                    }
+                };
+            case 0xFE:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.operand(a1);
+                        z.time += 3;
+                        z.cp(n);
+                    }
+                };
+            case 0xFF:
+                return new Op(next) {
+                    @Override
+                    void run(QaopZ80Impl z) {
+                        z.push(z.PC);
+                        z.PC = 0x38;
+                    }
+                };
+        }
+        return null;
+    }
+}
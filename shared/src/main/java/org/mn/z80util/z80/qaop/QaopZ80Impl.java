@@ -19,7 +19,7 @@ import org.mn.z80util.z80.*;
 /*
  *	Based on "The Undocumented Z80 Documented" by Sean Young
  */
-public class QaopZ80Impl implements Z80 {
+public class QaopZ80Impl implements TracingZ80 {
 
     Logger LOG = Logger.getLogger(QaopZ80Impl.class);
 
@@ -35,9 +35,44 @@ public class QaopZ80Impl implements Z80 {
 
     @Override
     public synchronized void executeNextCommand() {
+        if ((tracer != null) && !halted) {
+            trace();
+        }
+        if ((translator != null) && !halted) {
+            /* Decoded afresh, so that single steps work on any bus */
+            BlockTranslator.Op op = BlockTranslator.decode(PC, peekByte(PC),
+                    peekByte(PC + 1),
+                    peekByte(PC + 1) | (peekByte(PC + 2) << 8));
+            if (op != null) {
+                step(op);
+                return;
+            }
+        }
         execute();
     }
 
+    @Override
+    public synchronized void executeTStates(int tstates) {
+        time -= tstates;
+        if ((translator != null) && (pages != null) && (tracer == null)) {
+            translator.update(pages);
+            while (time < 0) {
+                if (halted) {
+                    execute();
+                } else {
+                    executeBlocks();
+                }
+            }
+            return;
+        }
+        while (time < 0) {
+            if ((tracer != null) && !halted) {
+                trace();
+            }
+            execute();
+        }
+    }
+
     @Override
     public byte getReg(int regno) {
         switch (regno) {
@@ -97,24 +132,31 @@ public class QaopZ80Impl implements Z80 {
             case Z80.R:
                 return (byte) (IR & 0xff);
             case Z80.IM_IFF:
-                byte im = 0;
-                switch (IM) {
-                    case 0:
-                    case 1:
-                        im = 0;
-                        break;
-                    case 2:
-                        im = 1;
-                        break;
-                    case 3:
-                        im = 2;
-                        break;
-                }
-                return (byte) ((im << 2) | IFF);
+                return (byte) imIff();
         }
         return (byte) 0x00;
     }
 
+    /**
+     * @return	The interrupt mode and flip flops, as register IM_IFF
+     */
+    private int imIff() {
+        int im = 0;
+        switch (IM) {
+            case 0:
+            case 1:
+                im = 0;
+                break;
+            case 2:
+                im = 1;
+                break;
+            case 3:
+                im = 2;
+                break;
+        }
+        return (im << 2) | IFF;
+    }
+
     @Override
     public short getRegPair(int regpairno) {
         int regno = regpairno << 1;
@@ -314,43 +356,135 @@ public class QaopZ80Impl implements Z80 {
         time = -value;
     }
     private AddressBusProvider ula;
+    /* Contention delays of the bus, looked up on every access */
+    private MemoryContention contention = MemoryContention.NONE;
+
+    /* Memory accessed directly, or null if the bus does not allow it */
+    private MemoryPages pages;
 
     @Override
     public void setUla(AddressBusProvider newUla) {
         this.ula = newUla;
+        if (newUla instanceof ContendedAddressBusProvider) {
+            contention = ((ContendedAddressBusProvider) newUla).getMemoryContention();
+        } else {
+            contention = MemoryContention.NONE;
+        }
+        if (newUla instanceof FastAddressBusProvider) {
+            pages = ((FastAddressBusProvider) newUla).getMemoryPages();
+            this.env = fastEnv(pages);
+            return;
+        }
+        pages = null;
         this.env = new Env() {
             @Override
             public int in(int port) {
+                time += contention.getIODelay(port, -time);
                 return ula.getIOByte((short) port) & 0xff;
             }
 
             @Override
             public int m1(int pc, int mr) {
+                time += contention.getMemoryDelay(pc, -time);
                 return ula.getByte((short) pc) & 0xff;
             }
 
             @Override
             public int mem(int addr) {
+                time += contention.getMemoryDelay(addr, -time);
                 return ula.getByte((short) addr) & 0xff;
             }
 
             @Override
             public void mem(int addr, int v) {
+                time += contention.getMemoryDelay(addr, -time);
                 ula.setByte((short) addr, (byte) v);
             }
 
             @Override
             public int mem16(int addr) {
+                time += contention.getMemoryDelay(addr, -time);
+                time += contention.getMemoryDelay(addr + 1, -time - 3);
                 return ula.getWord((short) addr) & 0xffff;
             }
 
             @Override
             public void mem16(int addr, int v) {
+                time += contention.getMemoryDelay(addr, -time);
+                time += contention.getMemoryDelay(addr + 1, -time - 3);
                 ula.setWord((short) addr, (short) v);
             }
 
             @Override
             public void out(int port, int v) {
+                time += contention.getIODelay(port, -time);
+                ula.setIOByte((short) port, (byte) v);
+            }
+        };
+    }
+
+    /**
+     * Environment which accesses the memory pages directly, and the bus only
+     * for I/O and writes to watched addresses.
+     */
+    private Env fastEnv(final MemoryPages pages) {
+        return new Env() {
+            @Override
+            public int in(int port) {
+                time += contention.getIODelay(port, -time);
+                return ula.getIOByte((short) port) & 0xff;
+            }
+
+            @Override
+            public int m1(int pc, int mr) {
+                time += contention.getMemoryDelay(pc, -time);
+                return pages.read(pc) & 0xff;
+            }
+
+            @Override
+            public int mem(int addr) {
+                time += contention.getMemoryDelay(addr, -time);
+                return pages.read(addr) & 0xff;
+            }
+
+            @Override
+            public void mem(int addr, int v) {
+                time += contention.getMemoryDelay(addr, -time);
+                if (!pages.write(addr, (byte) v)) {
+                    ula.setByte((short) addr, (byte) v);
+                }
+                if (translator != null) {
+                    translator.written(addr);
+                }
+            }
+
+            @Override
+            public int mem16(int addr) {
+                time += contention.getMemoryDelay(addr, -time);
+                time += contention.getMemoryDelay(addr + 1, -time - 3);
+                return (pages.read(addr) & 0xff)
+                        | ((pages.read(addr + 1) & 0xff) << 8);
+            }
+
+            @Override
+            public void mem16(int addr, int v) {
+                time += contention.getMemoryDelay(addr, -time);
+                time += contention.getMemoryDelay(addr + 1, -time - 3);
+                if (!pages.write(addr, (byte) v)) {
+                    ula.setByte((short) addr, (byte) v);
+                }
+                if (!pages.write(addr + 1, (byte) (v >> 8))) {
+                    ula.setByte((short) (addr + 1), (byte) (v >> 8));
+                }
+                if (translator != null) {
+                    translator.written(addr);
+                    translator.written(addr + 1);
+                }
+            }
+
+            @Override
+            public void out(int port, int v) {
+                time += contention.getIODelay(port, -time);
                 ula.setIOByte((short) port, (byte) v);
             }
         };
@@ -360,7 +494,6 @@ public class QaopZ80Impl implements Z80 {
     public boolean testFlag(int flag) {
         return (flags() & flag) != 0;
     }
-
     /* Z80 interface ends */
     interface Env {
 
@@ -378,14 +511,15 @@ public class QaopZ80Impl implements Z80 {
 
         void mem16(int addr, int v);
     }
-    private Env env;
-    private int PC, SP;
-    private int A, B, C, D, E, HL;
+    /* Package private for the handlers of BlockTranslator */
+    Env env;
+    int PC, SP;
+    int A, B, C, D, E, HL;
     private int A_, B_, C_, D_, E_, HL_;
     private int IX, IY;
     private int IR, R;
-    private int mr; // hidden register
-    private int Ff, Fr, Fa, Fb;
+    int mr; // hidden register
+    int Ff, Fr, Fa, Fb;
     private int Ff_, Fr_, Fa_, Fb_;
 
     /*
@@ -615,58 +749,58 @@ public class QaopZ80Impl implements Z80 {
         return v;
     }
 
-    private void add(int b) {
+    void add(int b) {
         A = Fr = (Ff = (Fa = A) + (Fb = b)) & 0xFF;
     }
 
-    private void adc(int b) {
+    void adc(int b) {
         A = Fr = (Ff = (Fa = A) + (Fb = b) + (Ff >>> 8 & FC)) & 0xFF;
     }
 
-    private void sub(int b) {
+    void sub(int b) {
         Fb = ~b;
         A = Fr = (Ff = (Fa = A) - b) & 0xFF;
     }
 
-    private void sbc(int b) {
+    void sbc(int b) {
         Fb = ~b;
         A = Fr = (Ff = (Fa = A) - b - (Ff >>> 8 & FC)) & 0xFF;
     }
 
-    private void cp(int b) {
+    void cp(int b) {
         int r = (Fa = A) - b;
         Fb = ~b;
         Ff = r & ~F53 | b & F53;
         Fr = r & 0xFF;
     }
 
-    private void and(int b) {
+    void and(int b) {
         Fa = ~(A = Ff = Fr = A & b);
         Fb = 0;
     }
 
-    private void or(int b) {
+    void or(int b) {
         Fa = (A = Ff = Fr = A | b) | 0x100;
         Fb = 0;
     }
 
-    private void xor(int b) {
+    void xor(int b) {
         Fa = (A = Ff = Fr = A ^ b) | 0x100;
         Fb = 0;
     }
 
-    private void cpl() {
+    void cpl() {
         Ff = Ff & ~F53 | (A ^= 0xFF) & F53;
         Fb |= ~0x80;
         Fa = Fa & ~FH | ~Fr & FH; // set H, N
     }
 
-    private int inc(int v) {
+    int inc(int v) {
         Ff = Ff & 0x100 | (Fr = v = (Fa = v) + (Fb = 1) & 0xFF);
         return v;
     }
 
-    private int dec(int v) {
+    int dec(int v) {
         Ff = Ff & 0x100 | (Fr = v = (Fa = v) + (Fb = -1) & 0xFF);
         return v;
     }
@@ -685,7 +819,7 @@ public class QaopZ80Impl implements Z80 {
         Fb = 0;
     }
 
-    private void rot(int a) {
+    void rot(int a) {
         Ff = Ff & 0xD7 | a & 0x128;
         Fb &= 0x80;
         Fa = Fa & ~FH | Fr & FH; // reset H, N
@@ -724,7 +858,7 @@ public class QaopZ80Impl implements Z80 {
         return v;
     }
 
-    private int add16(int a, int b) {
+    int add16(int a, int b) {
         int r = a + b;
         Ff = Ff & FS | r >>> 8 & 0x128;
         Fa &= ~FH;
@@ -754,7 +888,7 @@ public class QaopZ80Impl implements Z80 {
         time += 7;
     }
 
-    private void scf_ccf(int x) {
+    void scf_ccf(int x) {
         Fa &= ~FH;
         Fb = Fb & 0x80 | (x >>> 4 ^ Fr) & FH;
         Ff = 0x100 ^ x | Ff & FS | A & F53;
@@ -782,7 +916,7 @@ public class QaopZ80Impl implements Z80 {
     }
 
     /* instructions */
-    private void daa() {
+    void daa() {
         int h = (Fr ^ Fa ^ Fb ^ Fb >> 8) & FH;
 
         int d = 0;
@@ -921,8 +1055,9 @@ public class QaopZ80Impl implements Z80 {
         int b = B - 1 & 0xFF;
         time++;
         HL = k;
+        /* INI puts B on the address bus before and OUTI after decrementing */
         if ((op & 1) == 0) {
-            v = env.in(b << 8 | C);
+            v = env.in(B << 8 | C);
             time += 4;
             env.mem(m, v);
             time += 3;
@@ -930,7 +1065,7 @@ public class QaopZ80Impl implements Z80 {
         } else {
             v = env.mem(m);
             time += 3;
-            env.out(B << 8 | C, v);
+            env.out(b << 8 | C, v);
             time += 4;
         }
         k = (k & 0xFF) + v;
@@ -955,6 +1090,134 @@ public class QaopZ80Impl implements Z80 {
         Fb |= 0x200;
     }
 
+    /* Receiver of the executed instructions, or null if not tracing */
+    private InstructionTracer tracer;
+    private final int[] tracedPairs = new int[Z80.IR + 1];
+
+    @Override
+    public void setInstructionTracer(InstructionTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Reads a byte without contention, for the tracer.
+     */
+    private int peekByte(int addr) {
+        if (pages != null) {
+            return pages.read(addr) & 0xff;
+        }
+        return ula.getByte((short) addr) & 0xff;
+    }
+
+    /**
+     * @return	The four bytes at PC, the first one in the highest byte
+     */
+    private int peekOpcode() {
+        if ((pages != null) && ((PC & 0x3fff) <= 0x3ffc)) {
+            byte[] m = pages.getMemory();
+            int p = pages.index(PC);
+            return (m[p] << 24) | ((m[p + 1] & 0xff) << 16)
+                    | ((m[p + 2] & 0xff) << 8) | (m[p + 3] & 0xff);
+        }
+        return (peekByte(PC) << 24) | (peekByte(PC + 1) << 16)
+                | (peekByte(PC + 2) << 8) | peekByte(PC + 3);
+    }
+
+    /**
+     * Reports the instruction at PC to the tracer, with the register pairs
+     * as getRegPair() returns them if the tracer asks for them.
+     */
+    private void trace() {
+        if (!tracer.instruction(-time, PC, peekOpcode())) {
+            return;
+        }
+        int[] pairs = tracedPairs;
+        pairs[Z80.BC] = B << 8 | C;
+        pairs[Z80.DE] = D << 8 | E;
+        pairs[Z80.HL] = HL;
+        pairs[Z80.AF] = A << 8 | flags();
+        pairs[Z80.BC_ALT] = B_ << 8 | C_;
+        pairs[Z80.DE_ALT] = D_ << 8 | E_;
+        pairs[Z80.HL_ALT] = HL_;
+        ex_af();
+        pairs[Z80.AF_ALT] = A << 8 | flags();
+        ex_af();
+        pairs[Z80.IX] = IX;
+        pairs[Z80.IY] = IY;
+        pairs[Z80.SP] = SP;
+        pairs[Z80.PC] = PC;
+        pairs[Z80.IR] = IR;
+        tracer.registers(pairs, imIff());
+    }
+
+    /* Translator of the basic blocks, or null if translation is off */
+    private BlockTranslator translator;
+
+    public boolean getBlockTranslation() {
+        return translator != null;
+    }
+
+    /**
+     * Enables or disables the translation of basic blocks, see
+     * BlockTranslator. The results and T-states are the same either way.
+     * Blocks are cached only on a FastAddressBusProvider, and not while
+     * tracing. Otherwise executeTStates() interprets, and
+     * executeNextCommand() translates each instruction without caching it.
+     */
+    public synchronized void setBlockTranslation(boolean blockTranslation) {
+        translator = blockTranslation ? new BlockTranslator() : null;
+    }
+
+    /**
+     * Takes the time of reading an operand of a translated instruction,
+     * which is already decoded.
+     */
+    void operand(int addr) {
+        time += contention.getMemoryDelay(addr, -time);
+    }
+
+    /**
+     * Takes the time of reading a 16 bit operand of a translated
+     * instruction, as mem16() of the environment does.
+     */
+    void operand16(int addr) {
+        time += contention.getMemoryDelay(addr, -time);
+        time += contention.getMemoryDelay(addr + 1, -time - 3);
+    }
+
+    /**
+     * Executes a translated instruction at PC.
+     */
+    private void step(BlockTranslator.Op op) {
+        time += contention.getMemoryDelay(PC, -time);
+        R++;
+        time += 4;
+        PC = op.next;
+        op.run(this);
+    }
+
+    /**
+     * Executes the blocks from PC on until the T-states run out, a block is
+     * overwritten or an instruction which is not translated is reached,
+     * which is then interpreted.
+     */
+    private void executeBlocks() {
+        for (;;) {
+            BlockTranslator.Block block = translator.getBlock(PC);
+            BlockTranslator.Op[] ops = block.ops;
+            if (ops.length == 0) {
+                execute();
+                return;
+            }
+            for (int i = 0; i < ops.length; i++) {
+                step(ops[i]);
+                if ((time >= 0) || !block.valid) {
+                    return;
+                }
+            }
+        }
+    }
+
     /* Note: EI isn't prefix here - interrupt will be acknowledged */
     void execute() {
         if (halted) {
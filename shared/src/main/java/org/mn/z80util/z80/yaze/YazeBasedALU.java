@@ -23,13 +23,25 @@ package org.mn.z80util.z80.yaze;
 
 public class YazeBasedALU {
 
-    /* Parity table */
-    private final int[] partab = new int[0x100];
+    private static final int C = 0x01, N = 0x02, H = 0x10, Z = 0x40;
+    /* Sign, zero, bit 5, bit 3 and parity flags of a byte */
+    private static final int[] SZ53P = new int[0x100];
+    /* Flags except carry after INC and DEC, indexed by the result */
+    private static final int[] incFlags = new int[0x100];
+    private static final int[] decFlags = new int[0x100];
+    /*
+     * Results of ADD/ADC and SUB/SBC with A in the high byte and the flags
+     * in the low byte, indexed by carry << 16 | a << 8 | value.
+     */
+    private static final char[] addTable = new char[0x20000];
+    private static final char[] subTable = new char[0x20000];
+    /* Results of DAA, indexed by N << 10 | H << 9 | C << 8 | a */
+    private static final char[] daaTable = new char[0x800];
 
     /**
-     * Constructor initializes parity table.
+     * Initializes the flag and result tables.
      */
-    public YazeBasedALU() {
+    static {
         for (int i = 0; i < 0x100; i++) {
             int tmp = 4;
             for (int j = 0; j < 8; j++) {
@@ -37,12 +49,79 @@ public class YazeBasedALU {
                     tmp ^= 4;
                 }
             }
-            partab[i] = tmp;
+            SZ53P[i] = (i & 0xa8) | ((i == 0) ? Z : 0) | tmp;
+            incFlags[i] = (i & 0xa8) | ((i == 0) ? Z : 0)
+                    | (((i & 0xf) == 0) ? H : 0) | ((i == 0x80) ? 4 : 0);
+            decFlags[i] = (i & 0xa8) | ((i == 0) ? Z : 0)
+                    | (((i & 0xf) == 0xf) ? H : 0) | ((i == 0x7f) ? 4 : 0) | N;
+        }
+
+        for (int carry = 0; carry < 2; carry++) {
+            for (int acu = 0; acu < 0x100; acu++) {
+                for (int value = 0; value < 0x100; value++) {
+                    int index = (carry << 16) | (acu << 8) | value;
+                    int sum = acu + value + carry;
+                    int cbits = acu ^ value ^ sum;
+                    addTable[index] = (char) (((sum & 0xff) << 8)
+                            | (sum & 0xa8) | (((sum & 0xff) == 0) ? Z : 0)
+                            | (cbits & 0x10)
+                            | (((cbits >> 6) ^ (cbits >> 5)) & 4)
+                            | ((cbits >> 8) & 1));
+                    sum = acu - value - carry;
+                    cbits = acu ^ value ^ sum;
+                    subTable[index] = (char) (((sum & 0xff) << 8)
+                            | (sum & 0xa8) | (((sum & 0xff) == 0) ? Z : 0)
+                            | (cbits & 0x10)
+                            | (((cbits >> 6) ^ (cbits >> 5)) & 4) | N
+                            | ((cbits >> 8) & 1));
+                }
+            }
+        }
+
+        for (int i = 0; i < 0x800; i++) {
+            int f = ((i >> 8) & C) | ((i >> 5) & H) | ((i >> 9) & N);
+            daaTable[i] = (char) computeDaa(i & 0xff, f);
+        }
+    }
+
+    /**
+     * Decimal adjustment of the accumulator, used for building the DAA
+     * table.
+     *
+     * @param acu	Value of A
+     * @param f	Flags, only C, H and N matter
+     * @return	The new value of AF
+     */
+    private static int computeDaa(int acu, int f) {
+        int temp = acu & 0xf;
+        int cbits = f & C;
+        if ((f & N) != 0) {	/* last operation was a subtract */
+            boolean hd = (cbits != 0) || (acu > 0x99);
+            if (((f & H) != 0) || (temp > 9)) { /* adjust low digit */
+                if (temp > 5) {
+                    f &= ~H;
+                }
+                acu -= 6;
+                acu &= 0xff;
+            }
+            if (hd) /* adjust high digit */ {
+                acu -= 0x160;
+            }
+        } else {			/* last operation was an add */
+            if (((f & H) != 0) || (temp > 9)) { /* adjust low digit */
+                f = (temp > 9) ? (f | H) : (f & ~H);
+                acu += 6;
+            }
+            if ((cbits != 0) || ((acu & 0x1f0) > 0x90)) /* adjust high digit */ {
+                acu += 0x60;
+            }
         }
+        cbits |= (acu >> 8) & 1;
+        acu &= 0xff;
+        return (acu << 8) | SZ53P[acu] | (f & 0x12) | cbits;
     }
     /* Accumulator and flags */
     private int af = 0x0000, af_alt = 0x0000;
-    private final int C = 0x01, N = 0x02, H = 0x10, Z = 0x40;
 
     public int af() {
         return af;
@@ -121,10 +200,6 @@ public class YazeBasedALU {
         SETFLAG(flag, value != 0);
     }
 
-    private int parity(int value) {
-        return partab[value & 0xff];
-    }
-
     /* Arithmetic operations involving flags */
     public void ex_af() {
         int tmp = af;
@@ -134,20 +209,14 @@ public class YazeBasedALU {
 
     public int inc8(int value) {
         int tmp = (value + 1) & 0xff;
-        af = (af & ~0xfe) | (tmp & 0xa8)
-                | (v((tmp & 0xff) == 0) << 6)
-                | (v((tmp & 0xf) == 0) << 4)
-                | (v(tmp == 0x80) << 2);
-        return tmp & 0xff;
+        af = (af & ~0xfe) | incFlags[tmp];
+        return tmp;
     }
 
     public int dec8(int value) {
         int tmp = (value - 1) & 0xff;
-        af = (af & ~0xfe) | (tmp & 0xa8)
-                | (v((tmp & 0xff) == 0) << 6)
-                | (v((tmp & 0xf) == 0xf) << 4)
-                | (v(tmp == 0x7f) << 2) | 2;
-        return tmp & 0xff;
+        af = (af & ~0xfe) | decFlags[tmp];
+        return tmp;
     }
 
     public void rlca() {
@@ -185,34 +254,8 @@ public class YazeBasedALU {
     }
 
     public void daa() {
-        int acu = a();
-        int temp = ldig(acu);
-        int cbits = v(TSTFLAG(C));
-        if (TSTFLAG(N)) {	/* last operation was a subtract */
-            boolean hd = (cbits != 0) || (acu > 0x99);
-            if (TSTFLAG(H) || (temp > 9)) { /* adjust low digit */
-                if (temp > 5) {
-                    SETFLAG(H, 0);
-                }
-                acu -= 6;
-                acu &= 0xff;
-            }
-            if (hd) /* adjust high digit */ {
-                acu -= 0x160;
-            }
-        } else {			/* last operation was an add */
-            if (TSTFLAG(H) || (temp > 9)) { /* adjust low digit */
-                SETFLAG(H, (temp > 9));
-                acu += 6;
-            }
-            if ((cbits != 0) || ((acu & 0x1f0) > 0x90)) /* adjust high digit */ {
-                acu += 0x60;
-            }
-        }
-        cbits |= (acu >> 8) & 1;
-        acu &= 0xff;
-        af = (acu << 8) | (acu & 0xa8) | (v(acu == 0) << 6)
-                | (af & 0x12) | partab[acu] | cbits;
+        af = daaTable[((af & N) << 9) | ((af & H) << 5) | ((af & C) << 8)
+                | a()];
     }
 
     public void cpl() {
@@ -258,87 +301,45 @@ public class YazeBasedALU {
     }
 
     public void add8(int value) {
-        value &= 0xff;
-        int acu = a();
-        int sum = acu + value;
-        int cbits = acu ^ value ^ sum;
-        af = ((sum & 0xff) << 8) | (sum & 0xa8)
-                | (v((sum & 0xff) == 0) << 6) | (cbits & 0x10)
-                | (((cbits >> 6) ^ (cbits >> 5)) & 4)
-                | ((cbits >> 8) & 1);
+        af = addTable[(af & 0xff00) | (value & 0xff)];
     }
 
     public void adc8(int value) {
-        value &= 0xff;
-        int acu = a();
-        int sum = acu + value + v(TSTFLAG(C));
-        int cbits = acu ^ value ^ sum;
-        af = ((sum & 0xff) << 8) | (sum & 0xa8)
-                | (v((sum & 0xff) == 0) << 6) | (cbits & 0x10)
-                | (((cbits >> 6) ^ (cbits >> 5)) & 4)
-                | ((cbits >> 8) & 1);
+        af = addTable[((af & C) << 16) | (af & 0xff00) | (value & 0xff)];
     }
 
     public void sub8(int value) {
-        value &= 0xff;
-        int acu = a();
-        int sum = acu - value;
-        int cbits = acu ^ value ^ sum;
-        af = ((sum & 0xff) << 8) | (sum & 0xa8)
-                | (v((sum & 0xff) == 0) << 6) | (cbits & 0x10)
-                | (((cbits >> 6) ^ (cbits >> 5)) & 4) | 2
-                | ((cbits >> 8) & 1);
+        af = subTable[(af & 0xff00) | (value & 0xff)];
     }
 
     public void sbc8(int value) {
-        value &= 0xff;
-        int acu = a();
-        int sum = acu - value - v(TSTFLAG(C));
-        int cbits = acu ^ value ^ sum;
-        af = ((sum & 0xff) << 8) | (sum & 0xa8)
-                | (v((sum & 0xff) == 0) << 6) | (cbits & 0x10)
-                | (((cbits >> 6) ^ (cbits >> 5)) & 4) | 2
-                | ((cbits >> 8) & 1);
+        af = subTable[((af & C) << 16) | (af & 0xff00) | (value & 0xff)];
     }
 
     public void and8(int value) {
-        value &= 0xff;
         int sum = ((af >> 8) & value) & 0xff;
-        af = (sum << 8) | (sum & 0xa8)
-                | (v(sum == 0) << 6) | 0x10 | partab[sum];
+        af = (sum << 8) | SZ53P[sum] | 0x10;
     }
 
     public void xor8(int value) {
-        value &= 0xff;
         int sum = ((af >> 8) ^ value) & 0xff;
-        af = (sum << 8) | (sum & 0xa8)
-                | (v(sum == 0) << 6) | partab[sum];
+        af = (sum << 8) | SZ53P[sum];
     }
 
     public void or8(int value) {
-        value &= 0xff;
         int sum = ((af >> 8) | value) & 0xff;
-        af = (sum << 8) | (sum & 0xa8)
-                | (v(sum == 0) << 6) | partab[sum];
+        af = (sum << 8) | SZ53P[sum];
     }
 
+    /* As SUB, but A is kept and bits 5 and 3 come from the operand */
     public void cp8(int value) {
         value &= 0xff;
-        af = (af & ~0x28) | (value & 0x28);
-        int acu = a();
-        int sum = acu - value;
-        int cbits = acu ^ value ^ sum;
-        af = (af & ~0xff) | (sum & 0x80)
-                | (v((sum & 0xff) == 0) << 6) | (value & 0x28)
-                | (((cbits >> 6) ^ (cbits >> 5)) & 4) | 2
-                | (cbits & 0x10) | ((cbits >> 8) & 1);
+        af = (af & 0xff00) | (subTable[(af & 0xff00) | value] & 0xd7)
+                | (value & 0x28);
     }
 
     private void cbshflg1(int value, boolean cbits) {
-        value &= 0xff;
-        af = (af & ~0xff) | (value & 0xa8)
-                | (v((value & 0xff) == 0) << 6)
-                | parity(value) | v(cbits);
+        af = (af & ~0xff) | SZ53P[value & 0xff] | v(cbits);
     }
 
     public int cb(int op, int acu) {
@@ -417,8 +418,7 @@ public class YazeBasedALU {
      * @param value	Byte from I/O address pointed by BC in Z80.
      */
     public void in_ibc(int value) {
-        af = (af & ~0xfe) | (value & 0xa8) | (v((value & 0xff) == 0) << 6)
-                | parity(value);
+        af = (af & ~0xfe) | SZ53P[value & 0xff];
     }
 
     public int sbc16(int hl, int value) {
@@ -445,12 +445,9 @@ public class YazeBasedALU {
         return sum;
     }
 
+    /* Same as subtracting A from zero */
     public void neg() {
-        int temp = a();
-        af = (-(af & 0xff00) & 0xff00);
-        af |= ((af >> 8) & 0xa8) | (v((af & 0xff00) == 0) << 6)
-                | (v((temp & 0x0f) != 0) << 4) | (v(temp == 0x80) << 2)
-                | 2 | v(temp != 0);
+        af = subTable[a()];
     }
 
     /**
@@ -462,8 +459,7 @@ public class YazeBasedALU {
      */
     public void ld_a_ir(int ir, boolean iff2) {
         ir &= 0xff;
-        af = (af & 0x01) | ((ir & 0xff) << 8) | (ir & 0xa8)
-                | (v((ir & 0xff) == 0) << 6) | v(iff2) << 2;
+        af = (af & 0x01) | (ir << 8) | (SZ53P[ir] & ~4) | v(iff2) << 2;
     }
 
     /**
@@ -477,8 +473,7 @@ public class YazeBasedALU {
         int acu = a();
         ihl = hdig(temp) | (ldig(acu) << 4);
         acu = (acu & 0xf0) | ldig(temp);
-        af = (acu << 8) | (acu & 0xa8) | (v((acu & 0xff) == 0) << 6)
-                | partab[acu] | (af & 1);
+        af = (acu << 8) | SZ53P[acu] | (af & 1);
         return ihl;
     }
 
@@ -493,8 +488,7 @@ public class YazeBasedALU {
         int acu = a();
         ihl = (ldig(temp) << 4) | ldig(acu);
         acu = (acu & 0xf0) | hdig(temp);
-        af = (acu << 8) | (acu & 0xa8) | (v((acu & 0xff) == 0) << 6)
-                | partab[acu] | (af & 1);
+        af = (acu << 8) | SZ53P[acu] | (af & 1);
         return ihl;
     }
 
@@ -28,7 +28,7 @@ import org.apache.log4j.*;
 import org.mn.z80util.z80.*;
 import org.mn.z80util.disassembler.*;
 
-public class YazeBasedZ80Impl implements Z80 {
+public class YazeBasedZ80Impl implements TracingZ80 {
 
     Logger LOG = Logger.getLogger(YazeBasedZ80Impl.class);
     /* YAZE based arithmetic-logical unit, which also hosts AF and AF' */
@@ -36,7 +36,222 @@ public class YazeBasedZ80Impl implements Z80 {
 
     /* Z80 command parsing helpers */
     private boolean ixmode = false, iymode = false;
-    private byte command;
+    private int command;
+
+    /*
+     * Opcode dispatch tables. Each opcode of the unprefixed and EDh pages is
+     * mapped to the number of its handler in executeNextCommand() and EDh(),
+     * so that an instruction is dispatched with one table lookup and a
+     * tableswitch instead of walking the chain of octal mask comparisons.
+     * DDh and FDh prefixed opcodes use the unprefixed page with the IX or IY
+     * mode set, and the CBh page is decoded from the bit fields of the
+     * opcode. The tables are indexed by the opcode, and each row holds the
+     * four opcodes starting from the octal value in its comment.
+     */
+    private static final int OP_ILLEGAL = 0;
+    private static final int OP_NOP = 1;
+    private static final int OP_EX_AF = 2;
+    private static final int OP_DJNZ = 3;
+    private static final int OP_JR = 4;
+    private static final int OP_JR_CC = 5;
+    private static final int OP_LD_RP_NN = 6;
+    private static final int OP_ADD_HL_RP = 7;
+    private static final int OP_LD_IRP_A = 8;
+    private static final int OP_LD_A_IRP = 9;
+    private static final int OP_LD_INN_HL = 10;
+    private static final int OP_LD_HL_INN = 11;
+    private static final int OP_LD_INN_A = 12;
+    private static final int OP_LD_A_INN = 13;
+    private static final int OP_INC_RP = 14;
+    private static final int OP_DEC_RP = 15;
+    private static final int OP_INC_R = 16;
+    private static final int OP_DEC_R = 17;
+    private static final int OP_LD_R_N = 18;
+    private static final int OP_RLCA = 19;
+    private static final int OP_RRCA = 20;
+    private static final int OP_RLA = 21;
+    private static final int OP_RRA = 22;
+    private static final int OP_DAA = 23;
+    private static final int OP_CPL = 24;
+    private static final int OP_SCF = 25;
+    private static final int OP_CCF = 26;
+    private static final int OP_HALT = 27;
+    private static final int OP_LD_R_R = 28;
+    private static final int OP_ALU_R = 29;
+    private static final int OP_RET_CC = 30;
+    private static final int OP_POP = 31;
+    private static final int OP_RET = 32;
+    private static final int OP_EXX = 33;
+    private static final int OP_JP_HL = 34;
+    private static final int OP_LD_SP_HL = 35;
+    private static final int OP_JP_CC = 36;
+    private static final int OP_JP = 37;
+    private static final int OP_OUT_N_A = 38;
+    private static final int OP_IN_A_N = 39;
+    private static final int OP_EX_ISP_HL = 40;
+    private static final int OP_EX_DE_HL = 41;
+    private static final int OP_DI = 42;
+    private static final int OP_EI = 43;
+    private static final int OP_CALL_CC = 44;
+    private static final int OP_PUSH = 45;
+    private static final int OP_CALL = 46;
+    private static final int OP_ALU_N = 47;
+    private static final int OP_RST = 48;
+    private static final int OP_CB = 49;
+    private static final int OP_ED = 50;
+
+    private static final int ED_ILLEGAL = 0;
+    private static final int ED_IN_R_IC = 1;
+    private static final int ED_OUT_IC_R = 2;
+    private static final int ED_SBC_HL_RP = 3;
+    private static final int ED_ADC_HL_RP = 4;
+    private static final int ED_LD_INN_RP = 5;
+    private static final int ED_LD_RP_INN = 6;
+    private static final int ED_NEG = 7;
+    private static final int ED_RETN = 8;
+    private static final int ED_IM = 9;
+    private static final int ED_LD_I_A = 10;
+    private static final int ED_LD_R_A = 11;
+    private static final int ED_LD_A_I = 12;
+    private static final int ED_LD_A_R = 13;
+    private static final int ED_RRD = 14;
+    private static final int ED_RLD = 15;
+    private static final int ED_LDI = 16;
+    private static final int ED_CPI = 17;
+    private static final int ED_INI = 18;
+    private static final int ED_OUTI = 19;
+    private static final byte[] BASE_OPS = {
+        /* 000 */ OP_NOP, OP_LD_RP_NN, OP_LD_IRP_A, OP_INC_RP,
+        /* 004 */ OP_INC_R, OP_DEC_R, OP_LD_R_N, OP_RLCA,
+        /* 010 */ OP_EX_AF, OP_ADD_HL_RP, OP_LD_A_IRP, OP_DEC_RP,
+        /* 014 */ OP_INC_R, OP_DEC_R, OP_LD_R_N, OP_RRCA,
+        /* 020 */ OP_DJNZ, OP_LD_RP_NN, OP_LD_IRP_A, OP_INC_RP,
+        /* 024 */ OP_INC_R, OP_DEC_R, OP_LD_R_N, OP_RLA,
+        /* 030 */ OP_JR, OP_ADD_HL_RP, OP_LD_A_IRP, OP_DEC_RP,
+        /* 034 */ OP_INC_R, OP_DEC_R, OP_LD_R_N, OP_RRA,
+        /* 040 */ OP_JR_CC, OP_LD_RP_NN, OP_LD_INN_HL, OP_INC_RP,
+        /* 044 */ OP_INC_R, OP_DEC_R, OP_LD_R_N, OP_DAA,
+        /* 050 */ OP_JR_CC, OP_ADD_HL_RP, OP_LD_HL_INN, OP_DEC_RP,
+        /* 054 */ OP_INC_R, OP_DEC_R, OP_LD_R_N, OP_CPL,
+        /* 060 */ OP_JR_CC, OP_LD_RP_NN, OP_LD_INN_A, OP_INC_RP,
+        /* 064 */ OP_INC_R, OP_DEC_R, OP_LD_R_N, OP_SCF,
+        /* 070 */ OP_JR_CC, OP_ADD_HL_RP, OP_LD_A_INN, OP_DEC_RP,
+        /* 074 */ OP_INC_R, OP_DEC_R, OP_LD_R_N, OP_CCF,
+        /* 100 */ OP_LD_R_R, OP_LD_R_R, OP_LD_R_R, OP_LD_R_R,
+        /* 104 */ OP_LD_R_R, OP_LD_R_R, OP_LD_R_R, OP_LD_R_R,
+        /* 110 */ OP_LD_R_R, OP_LD_R_R, OP_LD_R_R, OP_LD_R_R,
+        /* 114 */ OP_LD_R_R, OP_LD_R_R, OP_LD_R_R, OP_LD_R_R,
+        /* 120 */ OP_LD_R_R, OP_LD_R_R, OP_LD_R_R, OP_LD_R_R,
+        /* 124 */ OP_LD_R_R, OP_LD_R_R, OP_LD_R_R, OP_LD_R_R,
+        /* 130 */ OP_LD_R_R, OP_LD_R_R, OP_LD_R_R, OP_LD_R_R,
+        /* 134 */ OP_LD_R_R, OP_LD_R_R, OP_LD_R_R, OP_LD_R_R,
+        /* 140 */ OP_LD_R_R, OP_LD_R_R, OP_LD_R_R, OP_LD_R_R,
+        /* 144 */ OP_LD_R_R, OP_LD_R_R, OP_LD_R_R, OP_LD_R_R,
+        /* 150 */ OP_LD_R_R, OP_LD_R_R, OP_LD_R_R, OP_LD_R_R,
+        /* 154 */ OP_LD_R_R, OP_LD_R_R, OP_LD_R_R, OP_LD_R_R,
+        /* 160 */ OP_LD_R_R, OP_LD_R_R, OP_LD_R_R, OP_LD_R_R,
+        /* 164 */ OP_LD_R_R, OP_LD_R_R, OP_HALT, OP_LD_R_R,
+        /* 170 */ OP_LD_R_R, OP_LD_R_R, OP_LD_R_R, OP_LD_R_R,
+        /* 174 */ OP_LD_R_R, OP_LD_R_R, OP_LD_R_R, OP_LD_R_R,
+        /* 200 */ OP_ALU_R, OP_ALU_R, OP_ALU_R, OP_ALU_R,
+        /* 204 */ OP_ALU_R, OP_ALU_R, OP_ALU_R, OP_ALU_R,
+        /* 210 */ OP_ALU_R, OP_ALU_R, OP_ALU_R, OP_ALU_R,
+        /* 214 */ OP_ALU_R, OP_ALU_R, OP_ALU_R, OP_ALU_R,
+        /* 220 */ OP_ALU_R, OP_ALU_R, OP_ALU_R, OP_ALU_R,
+        /* 224 */ OP_ALU_R, OP_ALU_R, OP_ALU_R, OP_ALU_R,
+        /* 230 */ OP_ALU_R, OP_ALU_R, OP_ALU_R, OP_ALU_R,
+        /* 234 */ OP_ALU_R, OP_ALU_R, OP_ALU_R, OP_ALU_R,
+        /* 240 */ OP_ALU_R, OP_ALU_R, OP_ALU_R, OP_ALU_R,
+        /* 244 */ OP_ALU_R, OP_ALU_R, OP_ALU_R, OP_ALU_R,
+        /* 250 */ OP_ALU_R, OP_ALU_R, OP_ALU_R, OP_ALU_R,
+        /* 254 */ OP_ALU_R, OP_ALU_R, OP_ALU_R, OP_ALU_R,
+        /* 260 */ OP_ALU_R, OP_ALU_R, OP_ALU_R, OP_ALU_R,
+        /* 264 */ OP_ALU_R, OP_ALU_R, OP_ALU_R, OP_ALU_R,
+        /* 270 */ OP_ALU_R, OP_ALU_R, OP_ALU_R, OP_ALU_R,
+        /* 274 */ OP_ALU_R, OP_ALU_R, OP_ALU_R, OP_ALU_R,
+        /* 300 */ OP_RET_CC, OP_POP, OP_JP_CC, OP_JP,
+        /* 304 */ OP_CALL_CC, OP_PUSH, OP_ALU_N, OP_RST,
+        /* 310 */ OP_RET_CC, OP_RET, OP_JP_CC, OP_CB,
+        /* 314 */ OP_CALL_CC, OP_CALL, OP_ALU_N, OP_RST,
+        /* 320 */ OP_RET_CC, OP_POP, OP_JP_CC, OP_OUT_N_A,
+        /* 324 */ OP_CALL_CC, OP_PUSH, OP_ALU_N, OP_RST,
+        /* 330 */ OP_RET_CC, OP_EXX, OP_JP_CC, OP_IN_A_N,
+        /* 334 */ OP_CALL_CC, OP_ILLEGAL, OP_ALU_N, OP_RST,
+        /* 340 */ OP_RET_CC, OP_POP, OP_JP_CC, OP_EX_ISP_HL,
+        /* 344 */ OP_CALL_CC, OP_PUSH, OP_ALU_N, OP_RST,
+        /* 350 */ OP_RET_CC, OP_JP_HL, OP_JP_CC, OP_EX_DE_HL,
+        /* 354 */ OP_CALL_CC, OP_ED, OP_ALU_N, OP_RST,
+        /* 360 */ OP_RET_CC, OP_POP, OP_JP_CC, OP_DI,
+        /* 364 */ OP_CALL_CC, OP_PUSH, OP_ALU_N, OP_RST,
+        /* 370 */ OP_RET_CC, OP_LD_SP_HL, OP_JP_CC, OP_EI,
+        /* 374 */ OP_CALL_CC, OP_ILLEGAL, OP_ALU_N, OP_RST
+    };
+    private static final byte[] ED_OPS = {
+        /* 000 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 004 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 010 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 014 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 020 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 024 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 030 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 034 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 040 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 044 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 050 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 054 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 060 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 064 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 070 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 074 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 100 */ ED_IN_R_IC, ED_OUT_IC_R, ED_SBC_HL_RP, ED_LD_INN_RP,
+        /* 104 */ ED_NEG, ED_RETN, ED_IM, ED_LD_I_A,
+        /* 110 */ ED_IN_R_IC, ED_OUT_IC_R, ED_ADC_HL_RP, ED_LD_RP_INN,
+        /* 114 */ ED_NEG, ED_RETN, ED_IM, ED_LD_R_A,
+        /* 120 */ ED_IN_R_IC, ED_OUT_IC_R, ED_SBC_HL_RP, ED_LD_INN_RP,
+        /* 124 */ ED_NEG, ED_RETN, ED_IM, ED_LD_A_I,
+        /* 130 */ ED_IN_R_IC, ED_OUT_IC_R, ED_ADC_HL_RP, ED_LD_RP_INN,
+        /* 134 */ ED_NEG, ED_RETN, ED_IM, ED_LD_A_R,
+        /* 140 */ ED_IN_R_IC, ED_OUT_IC_R, ED_SBC_HL_RP, ED_LD_INN_RP,
+        /* 144 */ ED_NEG, ED_RETN, ED_IM, ED_RRD,
+        /* 150 */ ED_IN_R_IC, ED_OUT_IC_R, ED_ADC_HL_RP, ED_LD_RP_INN,
+        /* 154 */ ED_NEG, ED_RETN, ED_IM, ED_RLD,
+        /* 160 */ ED_IN_R_IC, ED_OUT_IC_R, ED_SBC_HL_RP, ED_LD_INN_RP,
+        /* 164 */ ED_NEG, ED_RETN, ED_IM, ED_ILLEGAL,
+        /* 170 */ ED_IN_R_IC, ED_OUT_IC_R, ED_ADC_HL_RP, ED_LD_RP_INN,
+        /* 174 */ ED_NEG, ED_RETN, ED_IM, ED_ILLEGAL,
+        /* 200 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 204 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 210 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 214 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 220 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 224 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 230 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 234 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 240 */ ED_LDI, ED_CPI, ED_INI, ED_OUTI,
+        /* 244 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 250 */ ED_LDI, ED_CPI, ED_INI, ED_OUTI,
+        /* 254 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 260 */ ED_LDI, ED_CPI, ED_INI, ED_OUTI,
+        /* 264 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 270 */ ED_LDI, ED_CPI, ED_INI, ED_OUTI,
+        /* 274 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 300 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 304 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 310 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 314 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 320 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 324 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 330 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 334 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 340 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 344 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 350 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 354 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 360 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 364 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 370 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL,
+        /* 374 */ ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL, ED_ILLEGAL
+    };
 
     public YazeBasedZ80Impl() {
         this.alu = new YazeBasedALU();
@@ -45,17 +260,50 @@ public class YazeBasedZ80Impl implements Z80 {
     @Override
     public synchronized void reset() {
         Random rand = new Random(System.nanoTime());
-        rand.nextBytes(regs);
+        bc = rand.nextInt() & 0xffff;
+        de = rand.nextInt() & 0xffff;
+        hl = rand.nextInt() & 0xffff;
+        bc_alt = rand.nextInt() & 0xffff;
+        de_alt = rand.nextInt() & 0xffff;
+        hl_alt = rand.nextInt() & 0xffff;
+        ix = rand.nextInt() & 0xffff;
+        iy = rand.nextInt() & 0xffff;
+        sp = rand.nextInt() & 0xffff;
+        i = rand.nextInt() & 0xff;
+        r = rand.nextInt() & 0xff;
         alu.af(rand.nextInt());
         haltState = false;
-        setReg(IM_IFF, (byte) 0x00);
-        setRegPair(PC, (short) 0x0000);
+        im_iff = 0x00;
+        pc = 0x0000;
     }
     private AddressBusProvider ula;
+    /* Contention delays of the bus, looked up on every access */
+    private MemoryContention contention = MemoryContention.NONE;
+    /* Memory accessed directly, or null if the bus does not allow it */
+    private MemoryPages pages;
 
     @Override
     public void setUla(AddressBusProvider ula) {
         this.ula = ula;
+        if (ula instanceof FastAddressBusProvider) {
+            pages = ((FastAddressBusProvider) ula).getMemoryPages();
+        } else {
+            pages = null;
+        }
+        if (ula instanceof ContendedAddressBusProvider) {
+            contention = ((ContendedAddressBusProvider) ula).getMemoryContention();
+        } else {
+            contention = MemoryContention.NONE;
+        }
+    }
+
+    /* Receiver of the executed instructions, or null if not tracing */
+    private InstructionTracer tracer;
+    private final int[] tracedPairs = new int[IR + 1];
+
+    @Override
+    public void setInstructionTracer(InstructionTracer tracer) {
+        this.tracer = tracer;
     }
 
     /* T-states and halt */
@@ -83,108 +331,274 @@ public class YazeBasedZ80Impl implements Z80 {
     public void NMI() {
         LOG.trace("Generating non-maskable interrupt.");
         haltState = false;
-        regs[IM_IFF] = (byte) ((regs[IM_IFF] & ~1) | ((regs[IM_IFF] & 1) << 1));
-        push(PC);
-        setRegPair(PC, (short) 0x0066);
+        im_iff = ((im_iff & ~1) | ((im_iff & 1) << 1)) & 0xff;
+        push(pc);
+        pc = 0x0066;
     }
 
     @Override
     public void interrupt() {
         haltState = false;
-        if ((getReg(IM_IFF) & 1) != 0) {
-            setReg(IM_IFF, (byte) (getReg(IM_IFF) & ~3));
-            push(PC);
-            switch (getReg(IM_IFF) >> 2) {
+        if ((im_iff & 1) != 0) {
+            im_iff &= ~3;
+            push(pc);
+            switch (im_iff >> 2) {
                 case 0:
                     LOG.trace("Generating interrupt of mode 0.");
-                    setRegPair(PC, (short) 0x0038);
+                    pc = 0x0038;
                     break;
                 case 1:
                     LOG.trace("Generating interrupt of mode 1.");
-                    setRegPair(PC, (short) 0x0038);
+                    pc = 0x0038;
                     break;
                 case 2:
                     LOG.trace("Generating interrupt of mode 2.");
-                    int iv = (getReg(I) << 8) | 0xff;
+                    int iv = (i << 8) | 0xff;
                     LOG.trace("Interrupt vector pointer is: " + iv);
-                    int jumpAddress = ula.getWord((short) iv);
+                    int jumpAddress = readWord(iv);
                     LOG.trace("Jump address is: " + jumpAddress);
-                    setRegPair(PC, (short) jumpAddress);
+                    pc = jumpAddress;
                     break;
             }
         }
     }
-    /* Register accessors and helpers */
-    private byte[] regs = new byte[23];
 
-    /**
-     * Gets register. Note that A, F and their alternatives reside in the ALU.
+    /*
+     * Register file. The register pairs are kept unsigned in int fields, and
+     * the execution uses them directly. A, F and their alternatives reside in
+     * the ALU. The byte and register pair accessors of the TestZ80 interface
+     * below only adapt the register numbers to these fields.
      */
+    private int bc, de, hl, bc_alt, de_alt, hl_alt, ix, iy, sp, pc;
+    private int i, r, im_iff;
+
     @Override
     public byte getReg(int regno) {
-        if (regno == F) {
-            return (byte) alu.f();
-        } else if (regno == A) {
-            return (byte) alu.a();
-        } else if (regno == F_ALT) {
-            return (byte) alu.f_alt();
-        } else if (regno == A_ALT) {
-            return (byte) alu.a_alt();
-        } else if (regno < 6) {
-            return regs[regno];
-        } else if ((regno >= 8) && (regno < 14)) {
-            return regs[regno - 2];
-        } else {
-            return regs[regno - 4];
+        switch (regno) {
+            case B:
+                return (byte) (bc >> 8);
+            case C:
+                return (byte) bc;
+            case D:
+                return (byte) (de >> 8);
+            case E:
+                return (byte) de;
+            case H:
+                return (byte) (hl >> 8);
+            case L:
+                return (byte) hl;
+            case F:
+                return (byte) alu.f();
+            case A:
+                return (byte) alu.a();
+            case B_ALT:
+                return (byte) (bc_alt >> 8);
+            case C_ALT:
+                return (byte) bc_alt;
+            case D_ALT:
+                return (byte) (de_alt >> 8);
+            case E_ALT:
+                return (byte) de_alt;
+            case H_ALT:
+                return (byte) (hl_alt >> 8);
+            case L_ALT:
+                return (byte) hl_alt;
+            case F_ALT:
+                return (byte) alu.f_alt();
+            case A_ALT:
+                return (byte) alu.a_alt();
+            case XH:
+                return (byte) (ix >> 8);
+            case XL:
+                return (byte) ix;
+            case YH:
+                return (byte) (iy >> 8);
+            case YL:
+                return (byte) iy;
+            case SPH:
+                return (byte) (sp >> 8);
+            case SPL:
+                return (byte) sp;
+            case PCH:
+                return (byte) (pc >> 8);
+            case PCL:
+                return (byte) pc;
+            case I:
+                return (byte) i;
+            case R:
+                return (byte) r;
+            case IM_IFF:
+                return (byte) im_iff;
         }
+        return (byte) 0x00;
     }
 
     @Override
     public void setReg(int regno, byte value) {
-        if (regno == F) {
-            alu.f((byte) value);
-        } else if (regno == A) {
-            alu.a((byte) value);
-        } else if (regno == F_ALT) {
-            alu.f_alt((byte) value);
-        } else if (regno == A_ALT) {
-            alu.a_alt((byte) value);
-        } else if (regno < 6) {
-            regs[regno] = value;
-        } else if ((regno >= 8) && (regno < 14)) {
-            regs[regno - 2] = value;
-        } else {
-            regs[regno - 4] = value;
+        int v = value & 0xff;
+        switch (regno) {
+            case B:
+                bc = (v << 8) | (bc & 0xff);
+                break;
+            case C:
+                bc = (bc & 0xff00) | v;
+                break;
+            case D:
+                de = (v << 8) | (de & 0xff);
+                break;
+            case E:
+                de = (de & 0xff00) | v;
+                break;
+            case H:
+                hl = (v << 8) | (hl & 0xff);
+                break;
+            case L:
+                hl = (hl & 0xff00) | v;
+                break;
+            case F:
+                alu.f(v);
+                break;
+            case A:
+                alu.a(v);
+                break;
+            case B_ALT:
+                bc_alt = (v << 8) | (bc_alt & 0xff);
+                break;
+            case C_ALT:
+                bc_alt = (bc_alt & 0xff00) | v;
+                break;
+            case D_ALT:
+                de_alt = (v << 8) | (de_alt & 0xff);
+                break;
+            case E_ALT:
+                de_alt = (de_alt & 0xff00) | v;
+                break;
+            case H_ALT:
+                hl_alt = (v << 8) | (hl_alt & 0xff);
+                break;
+            case L_ALT:
+                hl_alt = (hl_alt & 0xff00) | v;
+                break;
+            case F_ALT:
+                alu.f_alt(v);
+                break;
+            case A_ALT:
+                alu.a_alt(v);
+                break;
+            case XH:
+                ix = (v << 8) | (ix & 0xff);
+                break;
+            case XL:
+                ix = (ix & 0xff00) | v;
+                break;
+            case YH:
+                iy = (v << 8) | (iy & 0xff);
+                break;
+            case YL:
+                iy = (iy & 0xff00) | v;
+                break;
+            case SPH:
+                sp = (v << 8) | (sp & 0xff);
+                break;
+            case SPL:
+                sp = (sp & 0xff00) | v;
+                break;
+            case PCH:
+                pc = (v << 8) | (pc & 0xff);
+                break;
+            case PCL:
+                pc = (pc & 0xff00) | v;
+                break;
+            case I:
+                i = v;
+                break;
+            case R:
+                r = v;
+                break;
+            case IM_IFF:
+                im_iff = v;
+                break;
         }
     }
 
     @Override
     public short getRegPair(int regpairno) {
-        int regno = regpairno << 1;
-        short tmp;
-        short high = (short) (getReg(regno) & 0xff);
-        short low = (short) (getReg((short) (regno + 1)) & 0xff);
-        if ((regpairno == AF) || (regpairno == AF_ALT)) {
-            tmp = high;
-            high = low;
-            low = tmp;
+        switch (regpairno) {
+            case BC:
+                return (short) bc;
+            case DE:
+                return (short) de;
+            case HL:
+                return (short) hl;
+            case AF:
+                return (short) alu.af();
+            case BC_ALT:
+                return (short) bc_alt;
+            case DE_ALT:
+                return (short) de_alt;
+            case HL_ALT:
+                return (short) hl_alt;
+            case AF_ALT:
+                return (short) alu.af_alt();
+            case IX:
+                return (short) ix;
+            case IY:
+                return (short) iy;
+            case SP:
+                return (short) sp;
+            case PC:
+                return (short) pc;
+            case IR:
+                return (short) ((i << 8) | r);
         }
-        return (short) (low | (high << 8));
+        return (short) 0x0000;
     }
 
     @Override
     public void setRegPair(int regpairno, short value) {
-        int regno = regpairno << 1;
-        byte tmp;
-        byte low = (byte) (value & 0xff);
-        byte high = (byte) ((value >> 8) & 0xff);
-        if ((regpairno == AF) || (regpairno == AF_ALT)) {
-            tmp = high;
-            high = low;
-            low = tmp;
+        int v = value & 0xffff;
+        switch (regpairno) {
+            case BC:
+                bc = v;
+                break;
+            case DE:
+                de = v;
+                break;
+            case HL:
+                hl = v;
+                break;
+            case AF:
+                alu.af(v);
+                break;
+            case BC_ALT:
+                bc_alt = v;
+                break;
+            case DE_ALT:
+                de_alt = v;
+                break;
+            case HL_ALT:
+                hl_alt = v;
+                break;
+            case AF_ALT:
+                alu.af_alt(v);
+                break;
+            case IX:
+                ix = v;
+                break;
+            case IY:
+                iy = v;
+                break;
+            case SP:
+                sp = v;
+                break;
+            case PC:
+                pc = v;
+                break;
+            case IR:
+                i = v >> 8;
+                r = v & 0xff;
+                break;
         }
-        setReg(regno, high);
-        setReg((short) (regno + 1), low);
     }
 
     @Override
@@ -206,20 +620,37 @@ public class YazeBasedZ80Impl implements Z80 {
      */
     @Override
     public synchronized void executeNextCommand() {
+        if ((tracer != null) && !haltState) {
+            trace();
+        }
+        executeCommand();
+    }
+
+    @Override
+    public synchronized void executeTStates(int tstates) {
+        ts += tstates;
+        while (ts > 0) {
+            if ((tracer != null) && !haltState) {
+                trace();
+            }
+            executeCommand();
+        }
+    }
+
+    private void executeCommand() {
 
         if (haltState) {
             ts = 0;
             return;
         }
 
-        ts -= 4;
         ixmode = iymode = false;
         command = fetchByte();
+        ts -= 4;
 
         /* IX and IY modes */
-        while ((command == (byte) 0xdd) || (command == (byte) 0xfd)) {
-            ts -= 4;
-            if (command == (byte) 0xdd) {
+        while ((command == 0xdd) || (command == 0xfd)) {
+            if (command == 0xdd) {
                 ixmode = true;
                 iymode = false;
             } else {
@@ -227,408 +658,519 @@ public class YazeBasedZ80Impl implements Z80 {
                 iymode = true;
             }
             command = fetchByte();
+            ts -= 4;
         }
 
-        /* CBh and EDh extensions */
-        if ((command & 0xff) == 0xcb) {
-            CBh();
-            return;
-        } else if ((command & 0xff) == 0xed) {
-            EDh();
-            return;
-        }
+        /* Dispatch, see BASE_OPS */
+        switch (BASE_OPS[command]) {
+            /* CBh and EDh extensions */
+            case OP_CB:
+                CBh();
+                break;
 
-        /* Main fork, mostly octal notation to highlight some symmetries. */
+            case OP_ED:
+                EDh();
+                break;
 
-        /* NOP: 00000000 */
-        if ((command & 0377) == 0000) {
-            // do nothing
+            /* Main fork, mostly octal notation to highlight some symmetries. */
+
+            /* NOP: 00000000 */
+            case OP_NOP: {
+                // do nothing
+                break;
+            }
 
             /* EX AF,AF': 00001000 */
-        } else if ((command & 0377) == 0010) {
-            alu.ex_af();
+            case OP_EX_AF: {
+                alu.ex_af();
+                break;
+            }
 
             /* DJNZ dis: 00010000 */
-        } else if ((command & 0377) == 0020) {
-            byte tmp = fetchByte();
-            setReg(B, (byte) (getReg(B) - 1));
-            if (getReg(B) != 0) {
-                rjump(tmp);
-                ts -= 9;
-            } else {
-                ts -= 4;
+            case OP_DJNZ: {
+                ts -= 1;
+                int dis = fetchDisplacement();
+                bc = (bc - 0x100) & 0xffff;
+                if ((bc >> 8) != 0) {
+                    rjump(dis);
+                    ts -= 8;
+                } else {
+                    ts -= 3;
+                }
+                break;
             }
 
             /* JR dis: 00011000 */
-        } else if ((command & 0377) == 0030) {
-            byte tmp = fetchByte();
-            rjump(tmp);
-            ts -= 8;
+            case OP_JR: {
+                int dis = fetchDisplacement();
+                rjump(dis);
+                ts -= 8;
+                break;
+            }
 
             /* JR <cond>,dis: 001CC000 */
-        } else if ((command & 0347) == 0040) {
-            byte tmp = fetchByte();
-            if (flagCond((command & 0030) >> 3)) {
-                rjump(tmp);
-                ts -= 8;
-            } else {
-                ts -= 3;
+            case OP_JR_CC: {
+                int dis = fetchDisplacement();
+                if (flagCond((command & 0030) >> 3)) {
+                    rjump(dis);
+                    ts -= 8;
+                } else {
+                    ts -= 3;
+                }
+                break;
             }
 
             /* LD <rp>,NN: 00RP0001 */
-        } else if ((command & 0317) == 0001) {
-            short tmp = fetchWord();
-            setRegPair(rp1((command & 0060) >> 4), tmp);
-            ts -= 6;
+            case OP_LD_RP_NN: {
+                setRP1((command & 0060) >> 4, fetchWord());
+                ts -= 6;
+                break;
+            }
 
             /* ADD HL,<rp>: 00RP1001 */
-        } else if ((command & 0317) == 0011) {
-            int target = rp1(HL), source = rp1((command & 0060) >> 4);
-            setRegPair(target, (short) alu.add16(getRegPair(target),
-                    getRegPair(source)));
-            ts -= 7;
+            case OP_ADD_HL_RP: {
+                setHL(alu.add16(getHL(), getRP1((command & 0060) >> 4)));
+                ts -= 7;
+                break;
+            }
 
             /* LD (BC/DE),A: 000R0010 */
-        } else if ((command & 0357) == 0002) {
-            int rp = (command & 0020) >> 4;
-            ula.setByte(getRegPair(rp), (byte) alu.a());
-            ts -= 3;
+            case OP_LD_IRP_A: {
+                writeByte((command & 0020) == 0 ? bc : de, alu.a());
+                ts -= 3;
+                break;
+            }
 
             /* LD A,(BC/DE): 000R1010 */
-        } else if ((command & 0357) == 0012) {
-            int rp = (command & 0020) >> 4;
-            alu.a(ula.getByte(getRegPair(rp)));
-            ts -= 3;
+            case OP_LD_A_IRP: {
+                alu.a(readByte((command & 0020) == 0 ? bc : de));
+                ts -= 3;
+                break;
+            }
 
             /* LD (NN),HL: 00100010 */
-        } else if ((command & 0377) == 0042) {
-            short tmp = fetchWord();
-            ula.setWord(tmp, getRegPair(rp1(HL)));
-            ts -= 12;
+            case OP_LD_INN_HL: {
+                int addr = fetchWord();
+                ts -= 6;
+                writeWord(addr, getHL());
+                ts -= 6;
+                break;
+            }
 
             /* LD HL,(NN): 00101010 */
-        } else if ((command & 0377) == 0052) {
-            short tmp = fetchWord();
-            setRegPair(rp1(HL), ula.getWord(tmp));
-            ts -= 12;
+            case OP_LD_HL_INN: {
+                int addr = fetchWord();
+                ts -= 6;
+                setHL(readWord(addr));
+                ts -= 6;
+                break;
+            }
 
             /* LD (NN), A: 00110010 */
-        } else if ((command & 0377) == 0062) {
-            short tmp = fetchWord();
-            ula.setByte(tmp, getReg(A));
-            ts -= 9;
+            case OP_LD_INN_A: {
+                int addr = fetchWord();
+                ts -= 6;
+                writeByte(addr, alu.a());
+                ts -= 3;
+                break;
+            }
 
             /* LD A, (NN): 00111010 */
-        } else if ((command & 0377) == 0072) {
-            short tmp = fetchWord();
-            setReg(A, ula.getByte(tmp));
-            ts -= 9;
+            case OP_LD_A_INN: {
+                int addr = fetchWord();
+                ts -= 6;
+                alu.a(readByte(addr));
+                ts -= 3;
+                break;
+            }
 
             /* INC <rp>: 00RP0011 */
-        } else if ((command & 0317) == 0003) {
-            int rp = rp1((command & 0060) >> 4);
-            short tmp = getRegPair(rp);
-            setRegPair(rp, ++tmp);
-            ts -= 2;
+            case OP_INC_RP: {
+                int rp = (command & 0060) >> 4;
+                setRP1(rp, getRP1(rp) + 1);
+                ts -= 2;
+                break;
+            }
 
             /* DEC <rp>: 00RP1011 */
-        } else if ((command & 0317) == 0013) {
-            int rp = rp1((command & 0060) >> 4);
-            short tmp = getRegPair(rp);
-            setRegPair(rp, --tmp);
-            ts -= 2;
+            case OP_DEC_RP: {
+                int rp = (command & 0060) >> 4;
+                setRP1(rp, getRP1(rp) - 1);
+                ts -= 2;
+                break;
+            }
 
             /* INC <reg>: 00RRR100 */
-        } else if ((command & 0307) == 0004) {
-            int reg = reg1((command & 0070) >> 3);
-            if (reg != 6) {
-                setReg(reg, (byte) alu.inc8((int) getReg(reg)));
-            } else {
-                short addr;
-                if (ixmode) {
-                    addr = (short) (getRegPair(IX) + fetchByte());
-                    ts -= 15;
-                } else if (iymode) {
-                    addr = (short) (getRegPair(IY) + fetchByte());
-                    ts -= 15;
+            case OP_INC_R: {
+                int reg = (command & 0070) >> 3;
+                if (reg != 6) {
+                    setIndexReg8(reg, alu.inc8(getIndexReg8(reg)));
                 } else {
-                    addr = getRegPair(HL);
-                    ts -= 7;
+                    int addr;
+                    if (ixmode) {
+                        addr = ix + fetchDisplacement();
+                        ts -= 8;
+                    } else if (iymode) {
+                        addr = iy + fetchDisplacement();
+                        ts -= 8;
+                    } else {
+                        addr = hl;
+                    }
+                    int tmp = alu.inc8(readByte(addr));
+                    ts -= 4;
+                    writeByte(addr, tmp);
+                    ts -= 3;
                 }
-                ula.setByte(addr, (byte) alu.inc8((int) ula.getByte(addr)));
+                break;
             }
 
             /* DEC <reg>: 00RRR101 */
-        } else if ((command & 0307) == 0005) {
-            int reg = reg1((command & 0070) >> 3);
-            if (reg != 6) {
-                setReg(reg, (byte) alu.dec8((int) getReg(reg)));
-            } else {
-                short addr;
-                if (ixmode) {
-                    addr = (short) (getRegPair(IX) + fetchByte());
-                    ts -= 15;
-                } else if (iymode) {
-                    addr = (short) (getRegPair(IY) + fetchByte());
-                    ts -= 15;
+            case OP_DEC_R: {
+                int reg = (command & 0070) >> 3;
+                if (reg != 6) {
+                    setIndexReg8(reg, alu.dec8(getIndexReg8(reg)));
                 } else {
-                    addr = getRegPair(HL);
-                    ts -= 7;
+                    int addr;
+                    if (ixmode) {
+                        addr = ix + fetchDisplacement();
+                        ts -= 8;
+                    } else if (iymode) {
+                        addr = iy + fetchDisplacement();
+                        ts -= 8;
+                    } else {
+                        addr = hl;
+                    }
+                    int tmp = alu.dec8(readByte(addr));
+                    ts -= 4;
+                    writeByte(addr, tmp);
+                    ts -= 3;
                 }
-                ula.setByte(addr, (byte) alu.dec8((int) ula.getByte(addr)));
+                break;
             }
 
             /* LD <reg>,N: 00RRR110 */
-        } else if ((command & 0307) == 0006) {
-            int reg = reg1((command & 0070) >> 3);
-            if (reg != 6) {
-                setReg(reg, fetchByte());
-                ts -= 3;
-            } else {
-                short addr;
-                if (ixmode) {
-                    addr = (short) (getRegPair(IX) + fetchByte());
-                    ts -= 11;
-                } else if (iymode) {
-                    addr = (short) (getRegPair(IY) + fetchByte());
-                    ts -= 11;
+            case OP_LD_R_N: {
+                int reg = (command & 0070) >> 3;
+                if (reg != 6) {
+                    setIndexReg8(reg, fetchByte());
+                    ts -= 3;
                 } else {
-                    addr = (short) (getRegPair(HL));
-                    ts -= 6;
+                    int addr, tmp;
+                    if (ixmode) {
+                        addr = ix + fetchDisplacement();
+                        ts -= 3;
+                        tmp = fetchByte();
+                        ts -= 5;
+                    } else if (iymode) {
+                        addr = iy + fetchDisplacement();
+                        ts -= 3;
+                        tmp = fetchByte();
+                        ts -= 5;
+                    } else {
+                        addr = hl;
+                        tmp = fetchByte();
+                        ts -= 3;
+                    }
+                    writeByte(addr, tmp);
+                    ts -= 3;
                 }
-                ula.setByte(addr, fetchByte());
+                break;
             }
 
             /* RLCA: 00000111 */
-        } else if ((command & 0377) == 0007) {
-            alu.rlca();
+            case OP_RLCA: {
+                alu.rlca();
+                break;
+            }
 
             /* RRCA: 00001111 */
-        } else if ((command & 0377) == 0017) {
-            alu.rrca();
+            case OP_RRCA: {
+                alu.rrca();
+                break;
+            }
 
             /* RLA: 00010111 */
-        } else if ((command & 0377) == 0027) {
-            alu.rla();
+            case OP_RLA: {
+                alu.rla();
+                break;
+            }
 
             /* RRA: 00011111 */
-        } else if ((command & 0377) == 0037) {
-            alu.rra();
+            case OP_RRA: {
+                alu.rra();
+                break;
+            }
 
             /* DAA: 00100111 */
-        } else if ((command & 0377) == 0047) {
-            alu.daa();
+            case OP_DAA: {
+                alu.daa();
+                break;
+            }
 
             /* CPL: 00101111 */
-        } else if ((command & 0377) == 0057) {
-            alu.cpl();
+            case OP_CPL: {
+                alu.cpl();
+                break;
+            }
 
             /* SCF: 00110111 */
-        } else if ((command & 0377) == 0067) {
-            alu.scf();
+            case OP_SCF: {
+                alu.scf();
+                break;
+            }
 
             /* CCF: 00111111 */
-        } else if ((command & 0377) == 0077) {
-            alu.ccf();
+            case OP_CCF: {
+                alu.ccf();
+                break;
+            }
 
             /* HALT: 01110110 */
-        } else if ((command & 0377) == 0166) {
-            setHaltState(true);
+            case OP_HALT: {
+                setHaltState(true);
+                break;
+            }
 
             /* LD Q,R: 01QQQRRR */
-        } else if ((command & 0300) == 0100) {
-            int q = reg1((command & 0070) >> 3);
-            int r = reg1(command & 0007);
-            if ((q != 6) && (r != 6)) {
-                setReg(q, getReg(r));
-            } else {
-                short addr;
-                if (ixmode) {
-                    addr = (short) (getRegPair(IX) + fetchByte());
-                    ts -= 11;
-                } else if (iymode) {
-                    addr = (short) (getRegPair(IY) + fetchByte());
-                    ts -= 11;
+            case OP_LD_R_R: {
+                int q = (command & 0070) >> 3;
+                int r = command & 0007;
+                if ((q != 6) && (r != 6)) {
+                    setIndexReg8(q, getIndexReg8(r));
                 } else {
-                    addr = (short) (getRegPair(HL));
+                    int addr;
+                    if (ixmode) {
+                        addr = ix + fetchDisplacement();
+                        ts -= 8;
+                    } else if (iymode) {
+                        addr = iy + fetchDisplacement();
+                        ts -= 8;
+                    } else {
+                        addr = hl;
+                    }
+                    /* H and L are not replaced beside (IX+d) and (IY+d) */
+                    if (q == 6) {
+                        writeByte(addr, getReg8(r));
+                    } else {
+                        setReg8(q, readByte(addr));
+                    }
                     ts -= 3;
                 }
-                if (q == 6) {
-                    ula.setByte(addr, getReg(command & 0007));
-                } else {
-                    setReg((command & 0070) >> 3, ula.getByte(addr));
-                }
+                break;
             }
 
             /* CMD A,<reg>: 10CMDRRR */
-        } else if ((command & 0300) == 0200) {
-            int reg = reg1(command & 0007), tmp;
-            if (reg == 6) {
-                short addr;
-                if (ixmode) {
-                    addr = (short) (getRegPair(IX) + fetchByte());
-                    ts -= 11;
-                } else if (iymode) {
-                    addr = (short) (getRegPair(IY) + fetchByte());
-                    ts -= 11;
-                } else {
-                    addr = (short) (getRegPair(HL));
+            case OP_ALU_R: {
+                int reg = command & 0007, tmp;
+                if (reg == 6) {
+                    int addr;
+                    if (ixmode) {
+                        addr = ix + fetchDisplacement();
+                        ts -= 8;
+                    } else if (iymode) {
+                        addr = iy + fetchDisplacement();
+                        ts -= 8;
+                    } else {
+                        addr = hl;
+                    }
+                    tmp = readByte(addr);
                     ts -= 3;
+                } else {
+                    tmp = getIndexReg8(reg);
                 }
-                tmp = ula.getByte(addr);
-            } else {
-                tmp = getReg(reg);
+                int cmd = (command & 0070) >> 3;
+                alu.cmd8(cmd, tmp);
+                break;
             }
-            int cmd = (command & 0070) >> 3;
-            alu.cmd8(cmd, tmp);
 
             /* RET <cond>: 11CCC000 */
-        } else if ((command & 0307) == 0300) {
-            if (flagCond((command & 0070) >> 3)) {
-                pop(PC);
-                ts -= 7;
-            } else {
+            case OP_RET_CC: {
                 ts -= 1;
+                if (flagCond((command & 0070) >> 3)) {
+                    pc = pop();
+                    ts -= 6;
+                }
+                break;
             }
 
             /* POP <rp>: 11RP0001 */
-        } else if ((command & 0317) == 0301) {
-            pop(rp2((command & 0060) >> 4));
-            ts -= 6;
+            case OP_POP: {
+                setRP2((command & 0060) >> 4, pop());
+                ts -= 6;
+                break;
+            }
 
             /* RET: 11001001 */
-        } else if ((command & 0377) == 0311) {
-            pop(PC);
-            ts -= 6;
+            case OP_RET: {
+                pc = pop();
+                ts -= 6;
+                break;
+            }
 
             /* EXX: 11011001 */
-        } else if ((command & 0377) == 0331) {
-            ex(BC, BC_ALT);
-            ex(DE, DE_ALT);
-            ex(HL, HL_ALT);
+            case OP_EXX: {
+                int tmp = bc;
+                bc = bc_alt;
+                bc_alt = tmp;
+                tmp = de;
+                de = de_alt;
+                de_alt = tmp;
+                tmp = hl;
+                hl = hl_alt;
+                hl_alt = tmp;
+                break;
+            }
 
             /* JP (HL): 11101001 */
-        } else if ((command & 0377) == 0351) {
-            setRegPair(PC, getRegPair(rp1(HL)));
+            case OP_JP_HL: {
+                pc = getHL();
+                break;
+            }
 
             /* LD SP,HL: 11111001 */
-        } else if ((command & 0377) == 0371) {
-            setRegPair(SP, getRegPair(rp1(HL)));
-            ts -= 2;
+            case OP_LD_SP_HL: {
+                sp = getHL();
+                ts -= 2;
+                break;
+            }
 
             /* JP <cond>, NN: 11CCC010 */
-        } else if ((command & 0307) == 0302) {
-            short addr = fetchWord();
-            if (flagCond((command & 0070) >> 3)) {
-                setRegPair(PC, addr);
+            case OP_JP_CC: {
+                int addr = fetchWord();
+                if (flagCond((command & 0070) >> 3)) {
+                    pc = addr;
+                }
+                ts -= 6;
+                break;
             }
-            ts -= 6;
 
             /* JP NN: 11000011 */
-        } else if ((command & 0377) == 0303) {
-            setRegPair(PC, fetchWord());
-            ts -= 6;
+            case OP_JP: {
+                pc = fetchWord();
+                ts -= 6;
+                break;
+            }
 
             /* OUT (N), A: 11010011 */
-        } else if ((command & 0377) == 0323) {
-            int high = (alu.a() & 0xff) << 8;
-            int low = fetchByte() & 0xff;
-            short addr = (short) (high | low);
-            ula.setIOByte(addr, getReg(A));
-            ts -= 7;
+            case OP_OUT_N_A: {
+                int addr = (alu.a() << 8) | fetchByte();
+                ts -= 3;
+                writeIO(addr, alu.a());
+                ts -= 4;
+                break;
+            }
 
             /* IN A, (N): 11011011 */
-        } else if ((command & 0377) == 0333) {
-            int high = (alu.a() & 0xff) << 8;
-            int low = fetchByte() & 0xff;
-            short addr = (short) (high | low);
-            setReg(A, ula.getIOByte(addr));
-            ts -= 7;
+            case OP_IN_A_N: {
+                int addr = (alu.a() << 8) | fetchByte();
+                ts -= 3;
+                alu.a(readIO(addr));
+                ts -= 4;
+                break;
+            }
 
             /* EX (SP),HL: 11100011 */
-        } else if ((command & 0377) == 0343) {
-            short sp = getRegPair(SP);
-            short hl = getRegPair(rp1(HL));
-            short isp = ula.getWord(sp);
-            ula.setWord(sp, hl);
-            setRegPair(rp1(HL), isp);
-            ts -= 15;
+            case OP_EX_ISP_HL: {
+                int isp = readWord(sp);
+                ts -= 7;
+                writeWordHighFirst(sp, getHL());
+                setHL(isp);
+                ts -= 8;
+                break;
+            }
 
             /* EX DE,HL: 11101011 */
-        } else if ((command & 0377) == 0353) {
-            ex(DE, HL);
+            case OP_EX_DE_HL: {
+                int tmp = de;
+                de = hl;
+                hl = tmp;
+                break;
+            }
 
             /* DI: 11110011 */
-        } else if ((command & 0377) == 0363) {
-            setReg(IM_IFF, (byte) (getReg(IM_IFF) & ~3));
+            case OP_DI: {
+                im_iff &= ~3;
+                break;
+            }
 
             /* EI: 11111011 */
-        } else if ((command & 0377) == 0373) {
-            setReg(IM_IFF, (byte) (getReg(IM_IFF) | 3));
+            case OP_EI: {
+                im_iff |= 3;
+                break;
+            }
 
             /* CALL <cond>, NN: 11CCC100 */
-        } else if ((command & 0307) == 0304) {
-            short addr = fetchWord();
-            if (flagCond((command & 0070) >> 3)) {
-                push(PC);
-                setRegPair(PC, addr);
-                ts -= 13;
-            } else {
-                ts -= 6;
+            case OP_CALL_CC: {
+                int addr = fetchWord();
+                if (flagCond((command & 0070) >> 3)) {
+                    ts -= 7;
+                    push(pc);
+                    pc = addr;
+                    ts -= 6;
+                } else {
+                    ts -= 6;
+                }
+                break;
             }
 
             /* PUSH <rp>: 11RP0101 */
-        } else if ((command & 0317) == 0305) {
-            push(rp2((command & 0060) >> 4));
-            ts -= 7;
+            case OP_PUSH: {
+                ts -= 1;
+                push(getRP2((command & 0060) >> 4));
+                ts -= 6;
+                break;
+            }
 
             /* CALL NN: 11001101 */
-        } else if ((command & 0377) == 0315) {
-            short tmp = fetchWord();
-            push(PC);
-            setRegPair(PC, tmp);
-            ts -= 13;
+            case OP_CALL: {
+                int addr = fetchWord();
+                ts -= 7;
+                push(pc);
+                pc = addr;
+                ts -= 6;
+                break;
+            }
 
             /* CMD A,N: 11CMD110 */
-        } else if ((command & 0307) == 0306) {
-            int tmp = fetchByte();
-            int cmd = (command & 0070) >> 3;
-            alu.cmd8(cmd, tmp);
-            ts -= 3;
+            case OP_ALU_N: {
+                int tmp = fetchByte();
+                int cmd = (command & 0070) >> 3;
+                alu.cmd8(cmd, tmp);
+                ts -= 3;
+                break;
+            }
 
             /* RST 8*N: 11NNN111 */
-        } else if ((command & 0307) == 0307) {
-            push(PC);
-            setRegPair(PC, (short) (command & 0070));
-            ts -= 7;
+            case OP_RST: {
+                ts -= 1;
+                push(pc);
+                pc = command & 0070;
+                ts -= 6;
+                break;
+            }
         }
     }
 
     private void CBh() {
-        ts -= 4;
-        byte dis = 0x00;
+        int addr;
         if (ixmode || iymode) {
-            dis = fetchByte();
+            /* DDh CBh dis opcode: the opcode is read as an operand */
+            addr = ((ixmode ? ix : iy) + fetchDisplacement()) & 0xffff;
+            ts -= 3;
+            command = fetchByte();
+            ts -= 5;
+        } else {
+            command = fetchByte();
+            ts -= 4;
+            addr = hl;
         }
-
-        command = fetchByte();
         int reg = command & 0007;
         int tmp;
-        short addr = 0x0000;
         if (ixmode || iymode || (reg == 6)) {
-            if (ixmode) {
-                addr = (short) (getRegPair(IX) + dis);
-                ts -= 8;
-            } else if (iymode) {
-                addr = (short) (getRegPair(IY) + dis);
-                ts -= 8;
-            } else {
-                addr = getRegPair(HL);
-                ts -= 4;
-            }
-            tmp = ula.getByte(addr);
+            tmp = readByte(addr);
+            ts -= 4;
         } else {
-            tmp = getReg(reg);
+            tmp = getReg8(reg);
         }
 
         tmp = alu.cb(command, tmp);
@@ -636,346 +1178,604 @@ public class YazeBasedZ80Impl implements Z80 {
         /* Bit only set flags, others didn't but do something else */
         if ((command & 0300) != 0100) {
             if (reg != 6) {
-                setReg(reg, (byte) tmp);
+                setReg8(reg, tmp);
             }
             if (ixmode || iymode || (reg == 6)) {
-                ula.setByte(addr, (byte) tmp);
+                writeByte(addr, tmp);
                 ts -= 3;
             }
         }
     }
 
     private void EDh() {
-        ts -= 4;
         command = fetchByte();
+        ts -= 4;
         if (ixmode || iymode) {
             LOG.warn("IX and IY modes with prefix EDh are not supported.");
             ixmode = iymode = false;
         }
 
-        /* IN <reg>, (C): 01RRR000 */
-        if ((command & 0307) == 0100) {
-            int reg = (command & 0070) >> 3;
-            byte tmp = ula.getIOByte(getRegPair(BC));
-            alu.in_ibc(tmp & 0xff);
-            if (reg != 6) {
-                setReg(reg, tmp);
+        switch (ED_OPS[command]) {
+            /* IN <reg>, (C): 01RRR000 */
+            case ED_IN_R_IC: {
+                int reg = (command & 0070) >> 3;
+                int tmp = readIO(bc);
+                alu.in_ibc(tmp);
+                if (reg != 6) {
+                    setReg8(reg, tmp);
+                }
+                ts -= 4;
+                break;
             }
-            ts -= 4;
 
             /* OUT (C), <reg>: 01RRR001 */
-        } else if ((command & 0307) == 0101) {
-            int reg = (command & 0070) >> 3;
-            if (reg != 6) {
-                ula.setIOByte(getRegPair(BC), getReg(reg));
-            } else {
-                ula.setIOByte(getRegPair(BC), (byte) 0x00);
+            case ED_OUT_IC_R: {
+                int reg = (command & 0070) >> 3;
+                if (reg != 6) {
+                    writeIO(bc, getReg8(reg));
+                } else {
+                    writeIO(bc, 0x00);
+                }
+                ts -= 4;
+                break;
             }
-            ts -= 4;
 
             /* SBC HL, <rp>: 01RP0010 */
-        } else if ((command & 0317) == 0102) {
-            int source = rp1((command & 0060) >> 4);
-            setRegPair(HL, (short) alu.sbc16(getRegPair(HL),
-                    getRegPair(source)));
-            ts -= 7;
+            case ED_SBC_HL_RP: {
+                hl = alu.sbc16(hl, getRP1((command & 0060) >> 4)) & 0xffff;
+                ts -= 7;
+                break;
+            }
 
             /* ADC HL, <rp>: 01RP1010 */
-        } else if ((command & 0317) == 0112) {
-            int source = rp1((command & 0060) >> 4);
-            setRegPair(HL, (short) alu.adc16(getRegPair(HL),
-                    getRegPair(source)));
-            ts -= 7;
+            case ED_ADC_HL_RP: {
+                hl = alu.adc16(hl, getRP1((command & 0060) >> 4)) & 0xffff;
+                ts -= 7;
+                break;
+            }
 
             /* LD (NN), <rp>: 01RP0011 */
-        } else if ((command & 0317) == 0103) {
-            ula.setWord(fetchWord(), getRegPair(rp1((command & 0060) >> 4)));
-            ts -= 12;
+            case ED_LD_INN_RP: {
+                int addr = fetchWord();
+                ts -= 6;
+                writeWord(addr, getRP1((command & 0060) >> 4));
+                ts -= 6;
+                break;
+            }
 
             /* LD <rp>, (NN): 01RP1011 */
-        } else if ((command & 0317) == 0113) {
-            setRegPair(rp1((command & 0060) >> 4), ula.getWord(fetchWord()));
-            ts -= 12;
+            case ED_LD_RP_INN: {
+                int addr = fetchWord();
+                ts -= 6;
+                setRP1((command & 0060) >> 4, readWord(addr));
+                ts -= 6;
+                break;
+            }
 
             /* NEG: 01---100 */
-        } else if ((command & 0307) == 0104) {
-            alu.neg();
+            case ED_NEG: {
+                alu.neg();
+                break;
+            }
 
             /* RETN / RETI: 01--X101 */
-        } else if ((command & 0307) == 0105) {
-            int im_iff = getReg(IM_IFF);
-            im_iff = (im_iff & ~1) | ((im_iff & 2) >> 1);
-            setReg(IM_IFF, (byte) im_iff);
-            pop(PC);
-            ts -= 6;
+            case ED_RETN: {
+                im_iff = (im_iff & ~1) | ((im_iff & 2) >> 1);
+                pc = pop();
+                ts -= 6;
+                break;
+            }
 
             /* IM X: 01-XX110 */
-        } else if ((command & 0307) == 0106) {
-            int im_iff = getReg(IM_IFF);
-            switch ((command & 0030) >> 3) {
-                case 0:
-                case 1:
-                    im_iff &= 3;
-                    break;
-                case 2:
-                    im_iff = (byte) ((im_iff & 3) | 4);
-                    break;
-                case 3:
-                    im_iff = (byte) ((im_iff & 3) | 8);
-                    break;
+            case ED_IM: {
+                switch ((command & 0030) >> 3) {
+                    case 0:
+                    case 1:
+                        im_iff &= 3;
+                        break;
+                    case 2:
+                        im_iff = (im_iff & 3) | 4;
+                        break;
+                    case 3:
+                        im_iff = (im_iff & 3) | 8;
+                        break;
+                }
+                break;
             }
-            setReg(IM_IFF, (byte) im_iff);
 
             /* LD I, A: 01000111 */
-        } else if ((command & 0377) == 0107) {
-            setReg(I, getReg(A));
-            ts -= 1;
+            case ED_LD_I_A: {
+                i = alu.a();
+                ts -= 1;
+                break;
+            }
 
             /* LD R, A: 01001111 */
-        } else if ((command & 0377) == 0117) {
-            setReg(R, getReg(A));
-            ts -= 1;
+            case ED_LD_R_A: {
+                r = alu.a();
+                ts -= 1;
+                break;
+            }
 
             /* LD A, I: 01010111 */
-        } else if ((command & 0377) == 0127) {
-            int tmp = getReg(I);
-            alu.ld_a_ir(tmp, (getReg(IM_IFF) & 2) != 0);
-            ts -= 1;
+            case ED_LD_A_I: {
+                alu.ld_a_ir(i, (im_iff & 2) != 0);
+                ts -= 1;
+                break;
+            }
 
             /* LD A, R: 01011111 */
-        } else if ((command & 0377) == 0137) {
-            int tmp = getReg(R);
-            alu.ld_a_ir(tmp, (getReg(IM_IFF) & 2) != 0);
-            ts -= 1;
+            case ED_LD_A_R: {
+                alu.ld_a_ir(r, (im_iff & 2) != 0);
+                ts -= 1;
+                break;
+            }
 
             /* RRD: 01100111 */
-        } else if ((command & 0377) == 0147) {
-            short addr = getRegPair(HL);
-            int tmp = ula.getByte(addr);
-            tmp = alu.rrd(tmp);
-            ula.setByte(addr, (byte) tmp);
-            ts -= 10;
+            case ED_RRD: {
+                int tmp = alu.rrd(readByte(hl));
+                ts -= 7;
+                writeByte(hl, tmp);
+                ts -= 3;
+                break;
+            }
 
             /* RLD: 01101111 */
-        } else if ((command & 0377) == 0157) {
-            short addr = getRegPair(HL);
-            int tmp = ula.getByte(addr);
-            tmp = alu.rld(tmp);
-            ula.setByte(addr, (byte) tmp);
-            ts -= 10;
-
-            /* LD(I/D)(R): 101RD000 */
-        } else if ((command & 0347) == 0240) {
-            short bc = getRegPair(BC);
-            short de = getRegPair(DE);
-            short hl = getRegPair(HL);
-
-            byte ihl = ula.getByte(hl);
-            alu.ldi_ldd(ihl & 0xff, bc & 0xffff);
-            ula.setByte(de, ihl);
-            bc--;
-
-            if ((command & 0010) == 0) {
-                de++;
-                hl++;
-            } else {
-                de--;
-                hl--;
+            case ED_RLD: {
+                int tmp = alu.rld(readByte(hl));
+                ts -= 7;
+                writeByte(hl, tmp);
+                ts -= 3;
+                break;
             }
 
-            setRegPair(BC, bc);
-            setRegPair(DE, de);
-            setRegPair(HL, hl);
-            ts -= 8;
+            /* LD(I/D)(R): 101RD000 */
+            case ED_LDI: {
+                int ihl = readByte(hl);
+                ts -= 3;
+                alu.ldi_ldd(ihl, bc);
+                writeByte(de, ihl);
+                bc = (bc - 1) & 0xffff;
 
-            /* Repeat and P/V flag on. */
-            if (((command & 0020) != 0) && ((alu.f() & 4) != 0)) {
-                setRegPair(PC, (short) (getRegPair(PC) - 2));
+                if ((command & 0010) == 0) {
+                    de = (de + 1) & 0xffff;
+                    hl = (hl + 1) & 0xffff;
+                } else {
+                    de = (de - 1) & 0xffff;
+                    hl = (hl - 1) & 0xffff;
+                }
                 ts -= 5;
+
+                /* Repeat and P/V flag on. */
+                if (((command & 0020) != 0) && ((alu.f() & 4) != 0)) {
+                    pc = (pc - 2) & 0xffff;
+                    ts -= 5;
+                }
+                break;
             }
 
             /* CP(I/D)(R): 101RD001 */
-        } else if ((command & 0347) == 0241) {
-            short bc = getRegPair(BC);
-            short hl = getRegPair(HL);
+            case ED_CPI: {
+                alu.cpi_cpd(readByte(hl), bc);
+                bc = (bc - 1) & 0xffff;
 
-            byte ihl = ula.getByte(hl);
-            alu.cpi_cpd(ihl & 0xff, bc & 0xffff);
-            bc--;
+                if ((command & 0010) == 0) {
+                    hl = (hl + 1) & 0xffff;
+                } else {
+                    hl = (hl - 1) & 0xffff;
+                }
+                ts -= 8;
 
-            if ((command & 0010) == 0) {
-                hl++;
-            } else {
-                hl--;
+                /* Repeat and P/V flag on and Z flag off. */
+                if (((command & 0020) != 0) && ((alu.f() & 4) != 0)
+                        && ((alu.f() & 0x40) == 0)) {
+                    pc = (pc - 2) & 0xffff;
+                    ts -= 5;
+                }
+                break;
             }
 
-            setRegPair(BC, bc);
-            setRegPair(HL, hl);
-            ts -= 8;
+            /* IN(I/D)(R): 101RD010 */
+            case ED_INI: {
+                ts -= 1;
+                int tmp = readIO(bc);
+                ts -= 4;
+                writeByte(hl, tmp);
+                alu.ini_ind(bc);
+                bc = (bc - 0x100) & 0xffff;
 
-            /* Repeat and P/V flag on and Z flag off. */
-            if (((command & 0020) != 0) && ((alu.f() & 4) != 0)
-                    && ((alu.f() & 0x40) == 0)) {
-                setRegPair(PC, (short) (getRegPair(PC) - 2));
-                ts -= 5;
+                if ((command & 0010) == 0) {
+                    hl = (hl + 1) & 0xffff;
+                } else {
+                    hl = (hl - 1) & 0xffff;
+                }
+                ts -= 3;
+
+                /* Repeat and Z flag off. */
+                if (((command & 0020) != 0) && ((alu.f() & 0x40) == 0)) {
+                    pc = (pc - 2) & 0xffff;
+                    ts -= 5;
+                }
+                break;
             }
 
-            /* IN(I/D)(R): 101RD010 */
-        } else if ((command & 0347) == 0242) {
-            short bc = getRegPair(BC);
-            short hl = getRegPair(HL);
+            /* OT(I/D)(R): 101RD011 */
+            case ED_OUTI: {
+                ts -= 1;
+                int tmp = readByte(hl);
+                ts -= 3;
+                alu.outi_outd(bc >> 8);
+                /* B is decremented before it is put on the address bus */
+                bc = (bc - 0x100) & 0xffff;
+                writeIO(bc, tmp);
 
-            ula.setByte(hl, ula.getIOByte(bc));
-            alu.ini_ind(bc);
-            bc -= 0x100;
+                if ((command & 0010) == 0) {
+                    hl = (hl + 1) & 0xffff;
+                } else {
+                    hl = (hl - 1) & 0xffff;
+                }
+                ts -= 4;
 
-            if ((command & 0010) == 0) {
-                hl++;
-            } else {
-                hl--;
+                /* Repeat and Z flag off. */
+                if (((command & 0020) != 0) && ((alu.f() & 0x40) == 0)) {
+                    pc = (pc - 2) & 0xffff;
+                    ts -= 5;
+                }
+                break;
             }
 
-            setRegPair(BC, bc);
-            setRegPair(HL, hl);
-            ts -= 8;
+            default:
+                LOG.warn("Illegal EDh prefix command " + Hex.intToHex2(command)
+                        + " near " + Hex.intToHex4(pc) + ".");
+        }
+    }
+
+    /*
+     * Memory and I/O accesses. The contention of an access is looked up at
+     * the position of the T-state counter when the access is made, so the
+     * opcode handlers subtract the T-states of each machine cycle before
+     * making the access of the next one. The accesses of a word are 3
+     * T-states apart.
+     */
+    private void contend(int addr) {
+        ts -= contention.getMemoryDelay(addr, ts);
+    }
 
-            /* Repeat and Z flag off. */
-            if (((command & 0020) != 0) && ((alu.f() & 0x40) == 0)) {
-                setRegPair(PC, (short) (getRegPair(PC) - 2));
-                ts -= 5;
-            }
+    private void contendWord(int addr) {
+        ts -= contention.getMemoryDelay(addr, ts);
+        ts -= contention.getMemoryDelay(addr + 1, ts - 3);
+    }
 
-            /* OT(I/D)(R): 101RD011 */
-        } else if ((command & 0347) == 0243) {
-            byte b = getReg(B);
-            short hl = getRegPair(HL);
+    private int readByte(int addr) {
+        contend(addr);
+        if (pages != null) {
+            return pages.read(addr) & 0xff;
+        }
+        return ula.getByte((short) addr) & 0xff;
+    }
 
-            ula.setIOByte(getRegPair(BC), ula.getByte(hl));
-            alu.outi_outd(b);
-            b--;
+    private void writeByte(int addr, int value) {
+        contend(addr);
+        if ((pages == null) || !pages.write(addr, (byte) value)) {
+            ula.setByte((short) addr, (byte) value);
+        }
+    }
 
-            if ((command & 0010) == 0) {
-                hl++;
-            } else {
-                hl--;
-            }
+    private int readWord(int addr) {
+        contendWord(addr);
+        if (pages != null) {
+            return (pages.read(addr) & 0xff)
+                    | ((pages.read(addr + 1) & 0xff) << 8);
+        }
+        return ula.getWord((short) addr) & 0xffff;
+    }
 
-            setReg(B, b);
-            setRegPair(HL, hl);
-            ts -= 8;
+    private void writeWord(int addr, int value) {
+        contendWord(addr);
+        if (pages == null) {
+            ula.setWord((short) addr, (short) value);
+            return;
+        }
+        if (!pages.write(addr, (byte) value)) {
+            ula.setByte((short) addr, (byte) value);
+        }
+        if (!pages.write(addr + 1, (byte) (value >> 8))) {
+            ula.setByte((short) (addr + 1), (byte) (value >> 8));
+        }
+    }
 
-            /* Repeat and Z flag off. */
-            if (((command & 0020) != 0) && ((alu.f() & 0x40) == 0)) {
-                setRegPair(PC, (short) (getRegPair(PC) - 2));
-                ts -= 5;
-            }
+    /**
+     * Writes a word high byte first, as PUSH, CALL, RST and EX (SP),HL do.
+     */
+    private void writeWordHighFirst(int addr, int value) {
+        ts -= contention.getMemoryDelay(addr + 1, ts);
+        ts -= contention.getMemoryDelay(addr, ts - 3);
+        if (pages == null) {
+            ula.setWord((short) addr, (short) value);
+            return;
+        }
+        if (!pages.write(addr + 1, (byte) (value >> 8))) {
+            ula.setByte((short) (addr + 1), (byte) (value >> 8));
+        }
+        if (!pages.write(addr, (byte) value)) {
+            ula.setByte((short) addr, (byte) value);
+        }
+    }
 
-        } else {
-            LOG.warn("Illegal EDh prefix command " + Hex.intToHex2(command)
-                    + " near " + Hex.intToHex4(getRegPair(PC)) + ".");
+    private int readIO(int port) {
+        ts -= contention.getIODelay(port, ts);
+        return ula.getIOByte((short) port) & 0xff;
+    }
+
+    private void writeIO(int port, int value) {
+        ts -= contention.getIODelay(port, ts);
+        ula.setIOByte((short) port, (byte) value);
+    }
+
+    /**
+     * Reads a byte without contention, for the tracer.
+     */
+    private int peekByte(int addr) {
+        if (pages != null) {
+            return pages.read(addr) & 0xff;
         }
+        return ula.getByte((short) addr) & 0xff;
     }
 
-    private byte fetchByte() {
-        short tmp = getRegPair(PC);
-        setRegPair(PC, (short) (tmp + 1));
-        return ula.getByte(tmp);
+    /**
+     * @return	The four bytes at PC, the first one in the highest byte
+     */
+    private int peekOpcode() {
+        if ((pages != null) && ((pc & 0x3fff) <= 0x3ffc)) {
+            byte[] m = pages.getMemory();
+            int p = pages.index(pc);
+            return (m[p] << 24) | ((m[p + 1] & 0xff) << 16)
+                    | ((m[p + 2] & 0xff) << 8) | (m[p + 3] & 0xff);
+        }
+        return (peekByte(pc) << 24) | (peekByte(pc + 1) << 16)
+                | (peekByte(pc + 2) << 8) | peekByte(pc + 3);
     }
 
-    private short fetchWord() {
-        short tmp = getRegPair(PC);
-        setRegPair(PC, (short) (tmp + 2));
-        return ula.getWord(tmp);
+    /**
+     * Reports the instruction at PC to the tracer, with the registers if the
+     * tracer asks for them.
+     */
+    private void trace() {
+        if (!tracer.instruction(ts, pc, peekOpcode())) {
+            return;
+        }
+        int[] pairs = tracedPairs;
+        pairs[BC] = bc;
+        pairs[DE] = de;
+        pairs[HL] = hl;
+        pairs[AF] = alu.af();
+        pairs[BC_ALT] = bc_alt;
+        pairs[DE_ALT] = de_alt;
+        pairs[HL_ALT] = hl_alt;
+        pairs[AF_ALT] = alu.af_alt();
+        pairs[IX] = ix;
+        pairs[IY] = iy;
+        pairs[SP] = sp;
+        pairs[PC] = pc;
+        pairs[IR] = (i << 8) | r;
+        tracer.registers(pairs, im_iff);
     }
 
-    private void push(int regpairno) {
-        short tmp = getRegPair(SP);
-        tmp -= 2;
-        setRegPair(SP, tmp);
-        ula.setWord(tmp, getRegPair(regpairno));
+    private int fetchByte() {
+        int tmp = readByte(pc);
+        pc = (pc + 1) & 0xffff;
+        return tmp;
     }
 
-    private void pop(int regpairno) {
-        short tmp = getRegPair(SP);
-        setRegPair(regpairno, ula.getWord(tmp));
-        tmp += 2;
-        setRegPair(SP, tmp);
+    /**
+     * Fetches a signed displacement byte.
+     */
+    private int fetchDisplacement() {
+        int tmp = (byte) readByte(pc);
+        pc = (pc + 1) & 0xffff;
+        return tmp;
+    }
+
+    private int fetchWord() {
+        int tmp = readWord(pc);
+        pc = (pc + 2) & 0xffff;
+        return tmp;
     }
 
-    private void ex(int rp1, int rp2) {
-        short tmp = getRegPair(rp1);
-        setRegPair(rp1, getRegPair(rp2));
-        setRegPair(rp2, tmp);
+    private void push(int value) {
+        sp = (sp - 2) & 0xffff;
+        writeWordHighFirst(sp, value);
     }
 
-    private void rjump(byte dis) {
-        setRegPair(PC, (short) (getRegPair(PC) + dis));
+    private int pop() {
+        int tmp = readWord(sp);
+        sp = (sp + 2) & 0xffff;
+        return tmp;
+    }
+
+    private void rjump(int dis) {
+        pc = (pc + dis) & 0xffff;
     }
 
     private boolean flagCond(int condType) {
+        int f = alu.f();
         boolean cond = false;
         switch (condType) {
             case 0:
-                cond = !testFlag(ZF);
+                cond = (f & ZF) == 0;
                 break;
             case 1:
-                cond = testFlag(ZF);
+                cond = (f & ZF) != 0;
                 break;
             case 2:
-                cond = !testFlag(CF);
+                cond = (f & CF) == 0;
                 break;
             case 3:
-                cond = testFlag(CF);
+                cond = (f & CF) != 0;
                 break;
             case 4:
-                cond = !testFlag(PVF);
+                cond = (f & PVF) == 0;
                 break;
             case 5:
-                cond = testFlag(PVF);
+                cond = (f & PVF) != 0;
                 break;
             case 6:
-                cond = !testFlag(SF);
+                cond = (f & SF) == 0;
                 break;
             case 7:
-                cond = testFlag(SF);
+                cond = (f & SF) != 0;
                 break;
         }
         return cond;
     }
 
-    private int reg1(int reg) {
-        if ((reg == H) & ixmode) {
-            return XH;
-        } else if ((reg == L) & ixmode) {
-            return XL;
-        } else if ((reg == H) & iymode) {
-            return YH;
-        } else if ((reg == L) & iymode) {
-            return YL;
+    /**
+     * Gets an 8-bit register by its number in the opcode, 0-5 and 7 are
+     * B, C, D, E, H, L and A.
+     */
+    private int getReg8(int reg) {
+        switch (reg) {
+            case 0:
+                return bc >> 8;
+            case 1:
+                return bc & 0xff;
+            case 2:
+                return de >> 8;
+            case 3:
+                return de & 0xff;
+            case 4:
+                return hl >> 8;
+            case 5:
+                return hl & 0xff;
+            case 7:
+                return alu.a();
+        }
+        return 0;
+    }
+
+    private void setReg8(int reg, int value) {
+        value &= 0xff;
+        switch (reg) {
+            case 0:
+                bc = (value << 8) | (bc & 0xff);
+                break;
+            case 1:
+                bc = (bc & 0xff00) | value;
+                break;
+            case 2:
+                de = (value << 8) | (de & 0xff);
+                break;
+            case 3:
+                de = (de & 0xff00) | value;
+                break;
+            case 4:
+                hl = (value << 8) | (hl & 0xff);
+                break;
+            case 5:
+                hl = (hl & 0xff00) | value;
+                break;
+            case 7:
+                alu.a(value);
+                break;
+        }
+    }
+
+    /**
+     * Same as getReg8(), but H and L are replaced by the halves of IX or IY
+     * in the IX and IY modes.
+     */
+    private int getIndexReg8(int reg) {
+        if (reg == 4) {
+            return getHL() >> 8;
+        } else if (reg == 5) {
+            return getHL() & 0xff;
         } else {
-            return reg;
+            return getReg8(reg);
         }
     }
 
-    private int rp1(int rp) {
-        if (rp == AF) {
-            return SP;
-        } else if ((rp == HL) && ixmode) {
-            return IX;
-        } else if ((rp == HL) && iymode) {
-            return IY;
+    private void setIndexReg8(int reg, int value) {
+        if (reg == 4) {
+            setHL(((value & 0xff) << 8) | (getHL() & 0xff));
+        } else if (reg == 5) {
+            setHL((getHL() & 0xff00) | (value & 0xff));
+        } else {
+            setReg8(reg, value);
+        }
+    }
+
+    /**
+     * @return	HL, or IX or IY in the IX and IY modes
+     */
+    private int getHL() {
+        if (ixmode) {
+            return ix;
+        } else if (iymode) {
+            return iy;
         } else {
-            return rp;
+            return hl;
+        }
+    }
+
+    private void setHL(int value) {
+        value &= 0xffff;
+        if (ixmode) {
+            ix = value;
+        } else if (iymode) {
+            iy = value;
+        } else {
+            hl = value;
+        }
+    }
+
+    /**
+     * Gets a register pair by its number in the opcode: BC, DE, HL and SP.
+     */
+    private int getRP1(int rp) {
+        switch (rp) {
+            case 0:
+                return bc;
+            case 1:
+                return de;
+            case 2:
+                return getHL();
+        }
+        return sp;
+    }
+
+    private void setRP1(int rp, int value) {
+        value &= 0xffff;
+        switch (rp) {
+            case 0:
+                bc = value;
+                break;
+            case 1:
+                de = value;
+                break;
+            case 2:
+                setHL(value);
+                break;
+            case 3:
+                sp = value;
+                break;
+        }
+    }
+
+    /**
+     * Gets a register pair by its number in PUSH and POP: BC, DE, HL and AF.
+     */
+    private int getRP2(int rp) {
+        if (rp == 3) {
+            return alu.af();
         }
+        return getRP1(rp);
     }
 
-    private int rp2(int rp) {
-        if ((rp == HL) && ixmode) {
-            return IX;
-        } else if ((rp == HL) && iymode) {
-            return IY;
+    private void setRP2(int rp, int value) {
+        if (rp == 3) {
+            alu.af(value);
         } else {
-            return rp;
+            setRP1(rp, value);
         }
     }
 }
@@ -22,6 +22,8 @@
 
 #include "NativeMNZ80.h"
 
+NativeMNZ80 *NativeMNZ80::processorInstance=NULL;
+
 /**
  * A singleton method to initialize processor instance
  */
@@ -32,6 +34,28 @@ NativeMNZ80 *NativeMNZ80::getProcessor() {
 	return processorInstance;
 }
 
+/**
+ * Builds the flag table.
+ */
+NativeMNZ80::NativeMNZ80() {
+	for(int i=0; i < 0x100; i++) {
+		int parity=FLAG_PV;
+		for(int j=0; j < 8; j++) {
+			if(i & (1 << j)) {
+				parity^=FLAG_PV;
+			}
+		}
+		sz53p[i]=(i & 0xa8) | ((i==0) ? FLAG_Z : 0) | parity;
+	}
+}
+
+/**
+ * Sets the register state, owned by Java.
+ */
+void NativeMNZ80::attach(Z80State *state) {
+	this->state=state;
+}
+
 /**
  * Fills registers with random numbers, sets halt state to FALSE and program
  * counter to zero.
@@ -39,8 +63,910 @@ NativeMNZ80 *NativeMNZ80::getProcessor() {
 void NativeMNZ80::reset() {
 	srand(time(NULL));
 	for(int i=0; i < REGS_COUNT; i++) {
-		regs.single[i]=(rand()<<8)/RAND_MAX;
+		state->regs[i]=(rand()<<8)/RAND_MAX;
+	}
+	state->regs[IM_IFF]=0x00; // Halt state is included in bit 4
+	setPC(0x0000);
+	state->tstates=0;
+	state->commands=0;
+}
+
+/**
+ * Executes commands until the given number of them has been executed, or if
+ * that is zero, until the available T-states have been used up.
+ * @param commands Number of commands, 0 for running by T-states.
+ * @param tstates T-states to add to the available ones.
+ * @param bus Bus of the machine for this call.
+ * @return Number of commands executed.
+ */
+int NativeMNZ80::execute(int commands, int tstates, MachineBus *bus) {
+	this->bus=bus;
+	state->tstates+=tstates;
+	int executed=0;
+	while((commands > 0) ? (executed < commands) : (state->tstates > 0)) {
+		state->tstates-=executeCommand();
+		executed++;
+	}
+	state->commands+=executed;
+	return executed;
+}
+
+/**
+ * Executes a single command, including its prefixes. The flags and T-states
+ * follow YazeBasedZ80Impl, without memory contention.
+ * @return T-states used.
+ */
+int NativeMNZ80::executeCommand() {
+	incrementR();
+	if(state->regs[IM_IFF] & HALT_MASK) {
+		return 4;
+	}
+	used=4;
+	index=HL;
+	u8 opcode=fetchByte();
+	while((opcode==0xdd) || (opcode==0xfd)) {
+		index=(opcode==0xdd) ? IX : IY;
+		incrementR();
+		opcode=fetchByte();
+		used+=4;
+	}
+	switch(opcode) {
+	case 0xcb:
+		executeCB();
+		break;
+	case 0xed:
+		/* IX and IY have no effect on EDh prefixed commands */
+		index=HL;
+		executeED();
+		break;
+	default:
+		executeBase(opcode);
+	}
+	return used;
+}
+
+/**
+ * Executes an unprefixed command, or a DDh or FDh prefixed one, in which
+ * IX or IY replaces HL. Mostly octal notation to highlight the symmetries.
+ */
+void NativeMNZ80::executeBase(u8 opcode) {
+	int y=(opcode >> 3) & 7, z=opcode & 7;
+	u8 *regs=state->regs;
+	switch(opcode >> 6) {
+	case 0:
+		switch(z) {
+		case 0:
+			switch(y) {
+			case 0: // NOP: 00000000
+				break;
+			case 1: { // EX AF,AF': 00001000
+				u16 tmp=getPair(AF);
+				setPair(AF, getPair(AF_ALT));
+				setPair(AF_ALT, tmp);
+				break;
+			}
+			case 2: { // DJNZ dis: 00010000
+				s8 dis=(s8)fetchByte();
+				regs[B]--;
+				if(regs[B]!=0) {
+					setPC(getPC()+dis);
+					used+=9;
+				} else {
+					used+=4;
+				}
+				break;
+			}
+			case 3: { // JR dis: 00011000
+				s8 dis=(s8)fetchByte();
+				setPC(getPC()+dis);
+				used+=8;
+				break;
+			}
+			default: { // JR <cond>,dis: 001CC000
+				s8 dis=(s8)fetchByte();
+				if(condition(y & 3)) {
+					setPC(getPC()+dis);
+					used+=8;
+				} else {
+					used+=3;
+				}
+			}
+			}
+			break;
+		case 1:
+			if(y & 1) { // ADD HL,<rp>: 00RP1001
+				setPair(index, add16(getPair(index), getPair(getRP(y >> 1))));
+				used+=7;
+			} else { // LD <rp>,NN: 00RP0001
+				setPair(getRP(y >> 1), fetchWord());
+				used+=6;
+			}
+			break;
+		case 2:
+			switch(y) {
+			case 0: // LD (BC),A: 00000010
+			case 2: // LD (DE),A: 00010010
+				writeByte(getPair(y >> 1), regs[A]);
+				used+=3;
+				break;
+			case 1: // LD A,(BC): 00001010
+			case 3: // LD A,(DE): 00011010
+				regs[A]=readByte(getPair(y >> 1));
+				used+=3;
+				break;
+			case 4: // LD (NN),HL: 00100010
+				writeWord(fetchWord(), getPair(index));
+				used+=12;
+				break;
+			case 5: // LD HL,(NN): 00101010
+				setPair(index, readWord(fetchWord()));
+				used+=12;
+				break;
+			case 6: // LD (NN),A: 00110010
+				writeByte(fetchWord(), regs[A]);
+				used+=9;
+				break;
+			case 7: // LD A,(NN): 00111010
+				regs[A]=readByte(fetchWord());
+				used+=9;
+			}
+			break;
+		case 3: { // INC <rp>: 00RP0011, DEC <rp>: 00RP1011
+			int rp=getRP(y >> 1);
+			setPair(rp, getPair(rp)+((y & 1) ? -1 : 1));
+			used+=2;
+			break;
+		}
+		case 4: // INC <reg>: 00RRR100
+		case 5: // DEC <reg>: 00RRR101
+			if(y!=6) {
+				int reg=indexReg(y);
+				regs[reg]=(z==4) ? inc8(regs[reg]) : dec8(regs[reg]);
+			} else {
+				u16 address=indexAddress();
+				u8 value=readByte(address);
+				used+=4;
+				writeByte(address, (z==4) ? inc8(value) : dec8(value));
+				used+=3;
+			}
+			break;
+		case 6: // LD <reg>,N: 00RRR110
+			if(y!=6) {
+				regs[indexReg(y)]=fetchByte();
+				used+=3;
+			} else if(index==HL) {
+				u16 address=getPair(HL);
+				writeByte(address, fetchByte());
+				used+=6;
+			} else {
+				s8 dis=(s8)fetchByte();
+				u16 address=getPair(index)+dis;
+				writeByte(address, fetchByte());
+				used+=11;
+			}
+			break;
+		case 7: {
+			int af=getPair(AF);
+			switch(y) {
+			case 0: // RLCA: 00000111
+				af=((af >> 7) & 0x0128) | ((af << 1) & ~0x1ff)
+					| (af & 0xc4) | ((af >> 15) & 1);
+				break;
+			case 1: { // RRCA: 00001111
+				int sum=regs[A] >> 1;
+				af=((regs[A] & 1) << 15) | (sum << 8) | (sum & 0x28)
+					| (af & 0xc4) | (regs[A] & 1);
+				break;
+			}
+			case 2: // RLA: 00010111
+				af=((af << 8) & 0x0100) | ((af >> 7) & 0x28)
+					| ((af << 1) & ~0x01ff) | (af & 0xc4) | ((af >> 15) & 1);
+				break;
+			case 3: { // RRA: 00011111
+				int sum=regs[A] >> 1;
+				af=((af & 1) << 15) | (sum << 8) | (sum & 0x28)
+					| (af & 0xc4) | (regs[A] & 1);
+				break;
+			}
+			case 4: // DAA: 00100111
+				daa();
+				af=getPair(AF);
+				break;
+			case 5: // CPL: 00101111
+				af=(~af & ~0xff) | (af & 0xc5) | ((~af >> 8) & 0x28) | 0x12;
+				break;
+			case 6: // SCF: 00110111
+				af=(af & ~0x3b) | ((af >> 8) & 0x28) | 1;
+				break;
+			case 7: // CCF: 00111111
+				af=(af & ~0x3b) | ((af >> 8) & 0x28) | ((af & 1) << 4)
+					| (~af & 1);
+			}
+			setPair(AF, af);
+		}
+		}
+		break;
+	case 1:
+		if(opcode==0x76) { // HALT: 01110110
+			regs[IM_IFF]|=HALT_MASK;
+		} else if((y!=6) && (z!=6)) { // LD Q,R: 01QQQRRR
+			regs[indexReg(y)]=regs[indexReg(z)];
+		} else {
+			/* H and L are not replaced beside (IX+d) and (IY+d) */
+			u16 address=indexAddress();
+			if(y==6) {
+				writeByte(address, regs[z]);
+			} else {
+				regs[y]=readByte(address);
+			}
+			used+=3;
+		}
+		break;
+	case 2: // CMD A,<reg>: 10CMDRRR
+		if(z!=6) {
+			alu8(y, regs[indexReg(z)]);
+		} else {
+			alu8(y, readByte(indexAddress()));
+			used+=3;
+		}
+		break;
+	case 3:
+		switch(z) {
+		case 0: // RET <cond>: 11CCC000
+			used+=1;
+			if(condition(y)) {
+				setPC(pop());
+				used+=6;
+			}
+			break;
+		case 1:
+			switch(y) {
+			case 1: // RET: 11001001
+				setPC(pop());
+				used+=6;
+				break;
+			case 3: // EXX: 11011001
+				for(int pair=BC; pair <= HL; pair++) {
+					u16 tmp=getPair(pair);
+					setPair(pair, getPair(pair+BC_ALT));
+					setPair(pair+BC_ALT, tmp);
+				}
+				break;
+			case 5: // JP (HL): 11101001
+				setPC(getPair(index));
+				break;
+			case 7: // LD SP,HL: 11111001
+				setPair(SP, getPair(index));
+				used+=2;
+				break;
+			default: // POP <rp>: 11RP0001
+				setPair(getPushRP(y >> 1), pop());
+				used+=6;
+			}
+			break;
+		case 2: { // JP <cond>,NN: 11CCC010
+			u16 address=fetchWord();
+			if(condition(y)) {
+				setPC(address);
+			}
+			used+=6;
+			break;
+		}
+		case 3:
+			switch(y) {
+			case 0: // JP NN: 11000011
+				setPC(fetchWord());
+				used+=6;
+				break;
+			case 2: // OUT (N),A: 11010011
+				bus->out((regs[A] << 8) | fetchByte(), regs[A]);
+				used+=7;
+				break;
+			case 3: // IN A,(N): 11011011
+				regs[A]=bus->in((regs[A] << 8) | fetchByte());
+				used+=7;
+				break;
+			case 4: { // EX (SP),HL: 11100011
+				u16 value=readWord(getPair(SP));
+				writeByte(getPair(SP)+1, getPair(index) >> 8);
+				writeByte(getPair(SP), getPair(index) & 0xff);
+				setPair(index, value);
+				used+=15;
+				break;
+			}
+			case 5: { // EX DE,HL: 11101011
+				u16 tmp=getPair(DE);
+				setPair(DE, getPair(HL));
+				setPair(HL, tmp);
+				break;
+			}
+			case 6: // DI: 11110011
+				regs[IM_IFF]&=~3;
+				break;
+			case 7: // EI: 11111011
+				regs[IM_IFF]|=3;
+			}
+			break;
+		case 4: { // CALL <cond>,NN: 11CCC100
+			u16 address=fetchWord();
+			if(condition(y)) {
+				push(getPC());
+				setPC(address);
+				used+=13;
+			} else {
+				used+=6;
+			}
+			break;
+		}
+		case 5:
+			if(y & 1) { // CALL NN: 11001101
+				u16 address=fetchWord();
+				push(getPC());
+				setPC(address);
+				used+=13;
+			} else { // PUSH <rp>: 11RP0101
+				push(getPair(getPushRP(y >> 1)));
+				used+=7;
+			}
+			break;
+		case 6: // CMD A,N: 11CMD110
+			alu8(y, fetchByte());
+			used+=3;
+			break;
+		case 7: // RST 8*N: 11NNN111
+			push(getPC());
+			setPC(y << 3);
+			used+=7;
+		}
+	}
+}
+
+/**
+ * Executes a CBh prefixed command, or a DDh CBh or FDh CBh prefixed one,
+ * which operates on (IX+d) or (IY+d) and also stores the result into the
+ * register of the opcode.
+ */
+void NativeMNZ80::executeCB() {
+	u16 address;
+	u8 opcode;
+	if(index!=HL) {
+		/* DDh CBh dis opcode: the opcode is read as an operand */
+		s8 dis=(s8)fetchByte();
+		address=getPair(index)+dis;
+		opcode=fetchByte();
+		used+=8;
+	} else {
+		incrementR();
+		opcode=fetchByte();
+		used+=4;
+		address=getPair(HL);
+	}
+	int reg=opcode & 7;
+	bool memory=(index!=HL) || (reg==6);
+	u8 value;
+	if(memory) {
+		value=readByte(address);
+		used+=4;
+	} else {
+		value=state->regs[reg];
+	}
+	value=cb(opcode, value);
+
+	/* BIT only sets the flags */
+	if((opcode & 0300)!=0100) {
+		if(reg!=6) {
+			state->regs[reg]=value;
+		}
+		if(memory) {
+			writeByte(address, value);
+			used+=3;
+		}
+	}
+}
+
+/**
+ * Executes an EDh prefixed command. The illegal ones do nothing.
+ */
+void NativeMNZ80::executeED() {
+	incrementR();
+	u8 opcode=fetchByte();
+	used+=4;
+	int y=(opcode >> 3) & 7, z=opcode & 7;
+	u8 *regs=state->regs;
+	if((opcode & 0300)==0100) {
+		switch(z) {
+		case 0: { // IN <reg>,(C): 01RRR000
+			u8 value=bus->in(getPair(BC));
+			regs[F]=(regs[F] & FLAG_C) | sz53p[value];
+			if(y!=6) {
+				regs[y]=value;
+			}
+			used+=4;
+			break;
+		}
+		case 1: // OUT (C),<reg>: 01RRR001
+			bus->out(getPair(BC), (y!=6) ? regs[y] : 0x00);
+			used+=4;
+			break;
+		case 2: // SBC HL,<rp>: 01RP0010, ADC HL,<rp>: 01RP1010
+			setPair(HL, (y & 1) ? adc16(getPair(HL), getPair(getRP(y >> 1)))
+				: sbc16(getPair(HL), getPair(getRP(y >> 1))));
+			used+=7;
+			break;
+		case 3: // LD (NN),<rp>: 01RP0011, LD <rp>,(NN): 01RP1011
+			if(y & 1) {
+				setPair(getRP(y >> 1), readWord(fetchWord()));
+			} else {
+				writeWord(fetchWord(), getPair(getRP(y >> 1)));
+			}
+			used+=12;
+			break;
+		case 4: { // NEG: 01---100
+			u8 value=regs[A];
+			regs[A]=0;
+			sub8(value, 0);
+			break;
+		}
+		case 5: // RETN / RETI: 01--X101
+			regs[IM_IFF]=(regs[IM_IFF] & ~1) | ((regs[IM_IFF] & 2) >> 1);
+			setPC(pop());
+			used+=6;
+			break;
+		case 6: { // IM X: 01-XX110
+			static const u8 modes[]={ 0x00, 0x00, 0x04, 0x08 };
+			regs[IM_IFF]=(regs[IM_IFF] & ~0x0c) | modes[y & 3];
+			break;
+		}
+		case 7:
+			switch(y) {
+			case 0: // LD I,A: 01000111
+				regs[I]=regs[A];
+				used+=1;
+				break;
+			case 1: // LD R,A: 01001111
+				regs[R]=regs[A];
+				used+=1;
+				break;
+			case 2: // LD A,I: 01010111
+			case 3: // LD A,R: 01011111
+				regs[A]=regs[(y==2) ? I : R];
+				regs[F]=(regs[F] & FLAG_C) | (sz53p[regs[A]] & ~FLAG_PV)
+					| ((regs[IM_IFF] & 2) ? FLAG_PV : 0);
+				used+=1;
+				break;
+			case 4: // RRD: 01100111
+			case 5: { // RLD: 01101111
+				u16 address=getPair(HL);
+				u8 value=readByte(address);
+				u8 a=regs[A];
+				if(y==4) {
+					writeByte(address, (value >> 4) | (a << 4));
+					a=(a & 0xf0) | (value & 0x0f);
+				} else {
+					writeByte(address, (value << 4) | (a & 0x0f));
+					a=(a & 0xf0) | (value >> 4);
+				}
+				regs[A]=a;
+				regs[F]=sz53p[a] | (regs[F] & FLAG_C);
+				used+=10;
+			}
+			}
+		}
+		return;
+	}
+	if((opcode & 0344)!=0240) {
+		return;
+	}
+
+	/* Block commands: 101RDCCC, D for decrement and R for repeat */
+	u16 step=(opcode & 0010) ? -1 : 1;
+	bool repeat=(opcode & 0020)!=0;
+	u16 hl=getPair(HL);
+	switch(z) {
+	case 0: { // LD(I/D)(R): 101RD000
+		u8 value=readByte(hl);
+		writeByte(getPair(DE), value);
+		u16 bc=getPair(BC)-1;
+		int n=value+regs[A];
+		regs[F]=(regs[F] & ~0x3e) | (n & 0x08) | ((n & 0x02) << 4)
+			| ((bc!=0) ? FLAG_PV : 0);
+		setPair(BC, bc);
+		setPair(DE, getPair(DE)+step);
+		setPair(HL, hl+step);
+		used+=8;
+		if(repeat && (bc!=0)) {
+			setPC(getPC()-2);
+			used+=5;
+		}
+		break;
+	}
+	case 1: { // CP(I/D)(R): 101RD001
+		u8 value=readByte(hl);
+		int sum=regs[A]-value;
+		int cbits=regs[A] ^ value ^ sum;
+		u16 bc=getPair(BC)-1;
+		u8 f=(regs[F] & FLAG_C) | (sum & 0x80)
+			| (((sum & 0xff)==0) ? FLAG_Z : 0)
+			| (((sum-((cbits & 16) >> 4)) & 2) << 4) | (cbits & 16)
+			| ((sum-((cbits >> 4) & 1)) & 8)
+			| ((bc!=0) ? FLAG_PV : 0) | FLAG_N;
+		if(((sum & 15)==8) && (cbits & 16)) {
+			f&=~8;
+		}
+		regs[F]=f;
+		setPair(BC, bc);
+		setPair(HL, hl+step);
+		used+=8;
+		if(repeat && (bc!=0) && !(f & FLAG_Z)) {
+			setPC(getPC()-2);
+			used+=5;
+		}
+		break;
+	}
+	case 2: // IN(I/D)(R): 101RD010
+	case 3: { // OT(I/D)(R): 101RD011
+		if(z==2) {
+			writeByte(hl, bus->in(getPair(BC)));
+			regs[B]--;
+		} else {
+			u8 value=readByte(hl);
+			/* B is decremented before it is put on the address bus */
+			regs[B]--;
+			bus->out(getPair(BC), value);
+		}
+		regs[F]=(regs[F] & ~FLAG_Z) | FLAG_N | ((regs[B]==0) ? FLAG_Z : 0);
+		setPair(HL, hl+step);
+		used+=8;
+		if(repeat && (regs[B]!=0)) {
+			setPC(getPC()-2);
+			used+=5;
+		}
+	}
+	}
+}
+
+/**
+ * Increments the lower 7 bits of R, on every opcode fetch.
+ */
+void NativeMNZ80::incrementR() {
+	u8 *r=&state->regs[R];
+	*r=(*r & 0x80) | ((*r+1) & 0x7f);
+}
+
+u16 NativeMNZ80::getPC() {
+	return (state->regs[PCH] << 8) | state->regs[PCL];
+}
+
+void NativeMNZ80::setPC(u16 value) {
+	state->regs[PCH]=value >> 8;
+	state->regs[PCL]=value & 0xff;
+}
+
+u16 NativeMNZ80::getPair(int pair) {
+	u8 *regs=&state->regs[2*pair];
+	if((pair==AF) || (pair==AF_ALT)) {
+		return (regs[1] << 8) | regs[0];
+	}
+	return (regs[0] << 8) | regs[1];
+}
+
+void NativeMNZ80::setPair(int pair, u16 value) {
+	u8 *regs=&state->regs[2*pair];
+	if((pair==AF) || (pair==AF_ALT)) {
+		regs[0]=value & 0xff;
+		regs[1]=value >> 8;
+	} else {
+		regs[0]=value >> 8;
+		regs[1]=value & 0xff;
+	}
+}
+
+/**
+ * Gets the register index of a register number in an opcode, 0-5 and 7 for
+ * B, C, D, E, H, L and A, with H and L replaced by the halves of IX or IY.
+ */
+int NativeMNZ80::indexReg(int reg) {
+	if((reg==4) || (reg==5)) {
+		return 2*index+reg-4;
+	}
+	return reg;
+}
+
+/**
+ * Gets the register pair index of a register pair number in an opcode, 0-3
+ * for BC, DE, HL and SP, with HL replaced by IX or IY.
+ */
+int NativeMNZ80::getRP(int rp) {
+	switch(rp) {
+	case 2:
+		return index;
+	case 3:
+		return SP;
+	default:
+		return rp;
+	}
+}
+
+/**
+ * As getRP, but for PUSH and POP, in which 3 stands for AF.
+ */
+int NativeMNZ80::getPushRP(int rp) {
+	return (rp==3) ? AF : getRP(rp);
+}
+
+/**
+ * Gets the memory operand address (HL), or fetches the displacement of
+ * (IX+d) or (IY+d).
+ */
+u16 NativeMNZ80::indexAddress() {
+	if(index==HL) {
+		return getPair(HL);
+	}
+	s8 dis=(s8)fetchByte();
+	used+=8;
+	return getPair(index)+dis;
+}
+
+/**
+ * Tests a condition of an opcode: NZ, Z, NC, C, PO, PE, P and M.
+ */
+bool NativeMNZ80::condition(int cc) {
+	static const u8 flags[]={ FLAG_Z, FLAG_C, FLAG_PV, FLAG_S };
+	return ((state->regs[F] & flags[cc >> 1])!=0)==((cc & 1)!=0);
+}
+
+u8 NativeMNZ80::readByte(u16 address) {
+	return bus->memory[state->pageOffsets[address >> 14]
+		+ (address & 0x3fff)];
+}
+
+/**
+ * Writes a byte to the memory, or through the bus if the block is watched.
+ */
+void NativeMNZ80::writeByte(u16 address, u8 value) {
+	if(state->watched[address >> 13] & (1u << ((address >> 8) & 0x1f))) {
+		bus->write(address, value);
+	} else {
+		bus->memory[state->pageOffsets[address >> 14]
+			+ (address & 0x3fff)]=value;
+	}
+}
+
+u16 NativeMNZ80::readWord(u16 address) {
+	return readByte(address) | (readByte(address+1) << 8);
+}
+
+void NativeMNZ80::writeWord(u16 address, u16 value) {
+	writeByte(address, value & 0xff);
+	writeByte(address+1, value >> 8);
+}
+
+u8 NativeMNZ80::fetchByte() {
+	u16 pc=getPC();
+	setPC(pc+1);
+	return readByte(pc);
+}
+
+u16 NativeMNZ80::fetchWord() {
+	u16 pc=getPC();
+	setPC(pc+2);
+	return readWord(pc);
+}
+
+/**
+ * Pushes a word high byte first, as the Z80 does.
+ */
+void NativeMNZ80::push(u16 value) {
+	u16 sp=getPair(SP)-2;
+	setPair(SP, sp);
+	writeByte(sp+1, value >> 8);
+	writeByte(sp, value & 0xff);
+}
+
+u16 NativeMNZ80::pop() {
+	u16 sp=getPair(SP);
+	setPair(SP, sp+2);
+	return readWord(sp);
+}
+
+/**
+ * Performs an arithmetic or logical command on A: ADD, ADC, SUB, SBC, AND,
+ * XOR, OR and CP.
+ */
+void NativeMNZ80::alu8(int operation, u8 value) {
+	u8 *regs=state->regs;
+	switch(operation) {
+	case 0:
+		add8(value, 0);
+		break;
+	case 1:
+		add8(value, regs[F] & FLAG_C);
+		break;
+	case 2:
+		sub8(value, 0);
+		break;
+	case 3:
+		sub8(value, regs[F] & FLAG_C);
+		break;
+	case 4:
+		regs[A]&=value;
+		regs[F]=sz53p[regs[A]] | FLAG_H;
+		break;
+	case 5:
+		regs[A]^=value;
+		regs[F]=sz53p[regs[A]];
+		break;
+	case 6:
+		regs[A]|=value;
+		regs[F]=sz53p[regs[A]];
+		break;
+	case 7:
+		cp8(value);
+	}
+}
+
+void NativeMNZ80::add8(u8 value, int carry) {
+	int sum=state->regs[A]+value+carry;
+	int cbits=state->regs[A] ^ value ^ sum;
+	state->regs[A]=sum & 0xff;
+	state->regs[F]=(sum & 0xa8) | (((sum & 0xff)==0) ? FLAG_Z : 0)
+		| (cbits & FLAG_H) | (((cbits >> 6) ^ (cbits >> 5)) & FLAG_PV)
+		| ((cbits >> 8) & FLAG_C);
+}
+
+void NativeMNZ80::sub8(u8 value, int carry) {
+	int sum=state->regs[A]-value-carry;
+	int cbits=state->regs[A] ^ value ^ sum;
+	state->regs[A]=sum & 0xff;
+	state->regs[F]=(sum & 0xa8) | (((sum & 0xff)==0) ? FLAG_Z : 0)
+		| (cbits & FLAG_H) | (((cbits >> 6) ^ (cbits >> 5)) & FLAG_PV)
+		| FLAG_N | ((cbits >> 8) & FLAG_C);
+}
+
+/**
+ * As SUB, but A is kept and bits 5 and 3 come from the operand.
+ */
+void NativeMNZ80::cp8(u8 value) {
+	u8 a=state->regs[A];
+	sub8(value, 0);
+	state->regs[A]=a;
+	state->regs[F]=(state->regs[F] & 0xd7) | (value & 0x28);
+}
+
+u8 NativeMNZ80::inc8(u8 value) {
+	u8 result=value+1;
+	state->regs[F]=(state->regs[F] & FLAG_C) | (result & 0xa8)
+		| ((result==0) ? FLAG_Z : 0) | (((result & 0xf)==0) ? FLAG_H : 0)
+		| ((result==0x80) ? FLAG_PV : 0);
+	return result;
+}
+
+u8 NativeMNZ80::dec8(u8 value) {
+	u8 result=value-1;
+	state->regs[F]=(state->regs[F] & FLAG_C) | (result & 0xa8)
+		| ((result==0) ? FLAG_Z : 0) | (((result & 0xf)==0xf) ? FLAG_H : 0)
+		| ((result==0x7f) ? FLAG_PV : 0) | FLAG_N;
+	return result;
+}
+
+u16 NativeMNZ80::add16(u16 value1, u16 value2) {
+	int sum=value1+value2;
+	int cbits=(value1 ^ value2 ^ sum) >> 8;
+	state->regs[F]=(state->regs[F] & ~0x3b) | ((sum >> 8) & 0x28)
+		| (cbits & FLAG_H) | ((cbits >> 8) & FLAG_C);
+	return sum;
+}
+
+u16 NativeMNZ80::adc16(u16 value1, u16 value2) {
+	int sum=value1+value2+(state->regs[F] & FLAG_C);
+	int cbits=(value1 ^ value2 ^ sum) >> 8;
+	state->regs[F]=((sum >> 8) & 0xa8) | (((sum & 0xffff)==0) ? FLAG_Z : 0)
+		| (((cbits >> 6) ^ (cbits >> 5)) & FLAG_PV) | (cbits & FLAG_H)
+		| ((cbits >> 8) & FLAG_C);
+	return sum;
+}
+
+u16 NativeMNZ80::sbc16(u16 value1, u16 value2) {
+	int sum=value1-value2-(state->regs[F] & FLAG_C);
+	int cbits=(value1 ^ value2 ^ sum) >> 8;
+	state->regs[F]=((sum >> 8) & 0xa8) | (((sum & 0xffff)==0) ? FLAG_Z : 0)
+		| (((cbits >> 6) ^ (cbits >> 5)) & FLAG_PV) | (cbits & FLAG_H)
+		| FLAG_N | ((cbits >> 8) & FLAG_C);
+	return sum;
+}
+
+/**
+ * Decimal adjustment of A after an addition or a subtraction.
+ */
+void NativeMNZ80::daa() {
+	int a=state->regs[A], f=state->regs[F];
+	int low=a & 0xf, carry=f & FLAG_C;
+	if(f & FLAG_N) {
+		bool high=carry || (a > 0x99);
+		if((f & FLAG_H) || (low > 9)) {
+			if(low > 5) {
+				f&=~FLAG_H;
+			}
+			a=(a-6) & 0xff;
+		}
+		if(high) {
+			a-=0x160;
+		}
+	} else {
+		if((f & FLAG_H) || (low > 9)) {
+			f=(low > 9) ? (f | FLAG_H) : (f & ~FLAG_H);
+			a+=6;
+		}
+		if(carry || ((a & 0x1f0) > 0x90)) {
+			a+=0x60;
+		}
+	}
+	carry|=(a >> 8) & 1;
+	state->regs[A]=a & 0xff;
+	state->regs[F]=sz53p[a & 0xff] | (f & 0x12) | carry;
+}
+
+/**
+ * Performs a CBh prefixed command on a value and sets the flags.
+ * @return The result, which BIT does not store.
+ */
+u8 NativeMNZ80::cb(u8 opcode, u8 value) {
+	u8 *f=&state->regs[F];
+	int bit=(opcode >> 3) & 7;
+	u8 result=value;
+	int carry=0;
+	switch(opcode & 0300) {
+	case 0000: // Shifts and rotations
+		switch(bit) {
+		case 0: // RLC
+			result=(value << 1) | (value >> 7);
+			carry=value >> 7;
+			break;
+		case 1: // RRC
+			result=(value >> 1) | (value << 7);
+			carry=value & 1;
+			break;
+		case 2: // RL
+			result=(value << 1) | (*f & FLAG_C);
+			carry=value >> 7;
+			break;
+		case 3: // RR
+			result=(value >> 1) | ((*f & FLAG_C) << 7);
+			carry=value & 1;
+			break;
+		case 4: // SLA
+			result=value << 1;
+			carry=value >> 7;
+			break;
+		case 5: // SRA
+			result=(value >> 1) | (value & 0x80);
+			carry=value & 1;
+			break;
+		case 6: // SLL
+			result=(value << 1) | 1;
+			carry=value >> 7;
+			break;
+		case 7: // SRL
+			result=value >> 1;
+			carry=value & 1;
+		}
+		*f=sz53p[result] | carry;
+		break;
+	case 0100: // BIT
+		if(value & (1 << bit)) {
+			*f=(*f & FLAG_C) | FLAG_H | ((bit==7) ? FLAG_S : 0);
+		} else {
+			*f=(*f & FLAG_C) | FLAG_Z | FLAG_H | FLAG_PV;
+		}
+		if((opcode & 7)!=6) {
+			*f|=value & 0x28;
+		}
+		break;
+	case 0200: // RES
+		result=value & ~(1 << bit);
+		break;
+	case 0300: // SET
+		result=value | (1 << bit);
 	}
-	regs.single[IM_IFF]=0x00; // Halt state is included in bit 4
-	regs.pair[PC]=0x0000;
+	return result;
 }
@@ -77,16 +77,103 @@ typedef unsigned char	u8;
 typedef char		s8;
 typedef unsigned short	u16;
 typedef short		s16;
+typedef int		s32;
+typedef unsigned int	u32;
+
+/* Halt state bit in IM_IFF */
+#define HALT_MASK	0x10
+
+/* Flag masks in F */
+#define FLAG_C	0x01
+#define FLAG_N	0x02
+#define FLAG_PV	0x04
+#define FLAG_H	0x10
+#define FLAG_Z	0x40
+#define FLAG_S	0x80
+
+/*
+ * State of the processor shared with NativeZ80Gateway through a direct byte
+ * buffer - Do NOT change the layout without changing the gateway!
+ * Register pairs are stored high byte first, except AF and AF' which are
+ * stored as F, A.
+ */
+struct Z80State {
+	u8	regs[REGS_COUNT];
+	u8	padding;
+	s32	tstates;	// Available T-states, run while positive
+	s32	commands;	// Commands executed since reset
+	s32	pageOffsets[4];	// Offsets of the 16K pages in the memory
+	u32	watched[8];	// One bit per watched 256 byte block
+};
+
+/*
+ * Bus of the machine, valid during a single call of execute. The processor
+ * accesses the memory directly, except for writes to watched blocks, which
+ * go through write(). A call of the bus may move the memory.
+ */
+class MachineBus {
+public:
+	u8 *memory;
+	virtual u8 in(u16 port)=0;
+	virtual void out(u16 port, u8 value)=0;
+	virtual void write(u16 address, u8 value)=0;
+};
 
 class NativeMNZ80 {
 public:
 	static NativeMNZ80 *getProcessor();
+	void attach(Z80State *state);
 	void reset();
+	int execute(int commands, int tstates, MachineBus *bus);
 private:
 	static NativeMNZ80 *processorInstance;
 	
-	union {
-		u8	single[REGS_COUNT];
-		u16	pair[13];
-	} regs;
+	NativeMNZ80();
+	int executeCommand();
+	void executeBase(u8 opcode);
+	void executeCB();
+	void executeED();
+	
+	void incrementR();
+	u16 getPC();
+	void setPC(u16 value);
+	u16 getPair(int pair);
+	void setPair(int pair, u16 value);
+	int indexReg(int reg);
+	int getRP(int rp);
+	int getPushRP(int rp);
+	u16 indexAddress();
+	bool condition(int cc);
+	
+	u8 readByte(u16 address);
+	void writeByte(u16 address, u8 value);
+	u16 readWord(u16 address);
+	void writeWord(u16 address, u16 value);
+	u8 fetchByte();
+	u16 fetchWord();
+	void push(u16 value);
+	u16 pop();
+	
+	void alu8(int operation, u8 value);
+	void add8(u8 value, int carry);
+	void sub8(u8 value, int carry);
+	void cp8(u8 value);
+	u8 inc8(u8 value);
+	u8 dec8(u8 value);
+	u16 add16(u16 value1, u16 value2);
+	u16 adc16(u16 value1, u16 value2);
+	u16 sbc16(u16 value1, u16 value2);
+	void rotateA(int operation);
+	void daa();
+	u8 cb(u8 opcode, u8 value);
+	
+	/* Sign, zero, bit 5, bit 3 and parity flags of a byte */
+	u8 sz53p[0x100];
+	
+	Z80State *state;
+	MachineBus *bus;
+	/* Register pair replacing HL in the current command: HL, IX or IY */
+	int index;
+	/* T-states used by the current command */
+	int used;
 };
@@ -23,32 +23,86 @@
 #include "NativeMNZ80.h"
 
 NativeMNZ80 *z80;
+/* Methods of the gateway called back, looked up once by attach */
+jmethodID readPort, writePort, writeByte;
 
 /**
- * Executes next command from processor
+ * Bus calling back to the address bus provider of the gateway. The memory
+ * array of the provider is held in place for the processor, and released
+ * for the duration of each call back, since no JNI calls are allowed while
+ * it is held. Valid during a single call of execute only.
  */
-JNIEXPORT void JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_executeNextCommand
-  (JNIEnv *envP, jobject thisP) {
-}
+class JavaBus : public MachineBus {
+public:
+	JavaBus(JNIEnv *envP, jobject thisP, jbyteArray array) : envP(envP),
+		thisP(thisP), array(array) {
+		hold();
+	}
+	~JavaBus() {
+		release();
+	}
+	u8 in(u16 port) {
+		release();
+		u8 value=envP->CallByteMethod(thisP, readPort, (jshort)port);
+		hold();
+		return value;
+	}
+	void out(u16 port, u8 value) {
+		release();
+		envP->CallVoidMethod(thisP, writePort, (jshort)port, (jbyte)value);
+		hold();
+	}
+	void write(u16 address, u8 value) {
+		release();
+		envP->CallVoidMethod(thisP, writeByte, (jshort)address,
+			(jbyte)value);
+		hold();
+	}
+private:
+	void hold() {
+		memory=(u8 *)envP->GetPrimitiveArrayCritical(array, NULL);
+	}
+	void release() {
+		if(memory!=NULL) {
+			envP->ReleasePrimitiveArrayCritical(array, memory, 0);
+			memory=NULL;
+		}
+	}
+	
+	JNIEnv *envP;
+	jobject thisP;
+	jbyteArray array;
+};
 
 /**
- * Gets register contents.
- * @see org.mn.z80util.z80.TestZ80
- * @param regNo Register number.
- * @return Register content.
+ * Shares the register state with Java and looks up the methods called back.
+ * @param state Direct byte buffer holding a Z80State.
  */
-JNIEXPORT jbyte JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_getReg
-  (JNIEnv *envP, jobject thisP, jint regNo) {
+JNIEXPORT void JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_attach
+  (JNIEnv *envP, jobject thisP, jobject state) {
+	  jclass cls=envP->GetObjectClass(thisP);
+	  readPort=envP->GetMethodID(cls, "readPort", "(S)B");
+	  writePort=envP->GetMethodID(cls, "writePort", "(SB)V");
+	  writeByte=envP->GetMethodID(cls, "writeByte", "(SB)V");
+	  z80=NativeMNZ80::getProcessor();
+	  z80->attach((Z80State *)envP->GetDirectBufferAddress(state));
 }
 
 /**
- * Gets register pair contents.
- * @see org.mn.z80util.z80.TestZ80
- * @param regPairNo Register pair number.
- * @return Register pair contents.
+ * Executes commands in a single call, see NativeMNZ80::execute.
+ * @param memory The memory array of the address bus provider.
+ * @param commands Number of commands, 0 for running by T-states.
+ * @param tstates T-states to add to the available ones.
+ * @return Number of commands executed.
  */
-JNIEXPORT jshort JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_getRegPair
-  (JNIEnv *envP, jobject thisP, jint regPairNo) {
+JNIEXPORT jint JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_execute
+  (JNIEnv *envP, jobject thisP, jbyteArray memory, jint commands,
+  jint tstates) {
+	  JavaBus bus(envP, thisP, memory);
+	  if(bus.memory==NULL) {
+		  return 0;
+	  }
+	  return z80->execute(commands, tstates, &bus);
 }
 
 /**
@@ -56,37 +110,5 @@ JNIEXPORT jshort JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_getRegPair
  */
 JNIEXPORT void JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_reset
   (JNIEnv *envP, jobject thisP) {
-		cout << "--> reset.";
-
-	  // Initializes singleton object.
-	  z80=NativeMNZ80::getProcessor();
 	  z80->reset();
 }
-
-/**
- * Sets or releases processor halt state.
- * @param haltState <code>true</code> if going to halting, <code>false</code> if releasing
- */
-JNIEXPORT void JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_setHaltState
-  (JNIEnv *envP, jobject thisP, jboolean haltState) {
-}
-
-/**
- * Sets register contents.
- * @see org.mn.z80util.z80.TestZ80
- * @param regNo Register number.
- * @param value New value.
- */
-JNIEXPORT void JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_setReg
-  (JNIEnv *envP, jobject thisP, jint regNo, jbyte value) {
-}
-
-/**
- * Sets register pair contents.
- * @see org.mn.z80util.z80.TestZ80
- * @param regPairNo Register pair number.
- * @param value New value.
- */
-JNIEXPORT void JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_setRegPair
-  (JNIEnv *envP, jobject thisP, jint regNo, jshort value) {
-}
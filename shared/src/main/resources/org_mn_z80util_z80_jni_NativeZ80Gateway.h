@@ -9,27 +9,19 @@ extern "C" {
 #endif
 /*
  * Class:     org_mn_z80util_z80_jni_NativeZ80Gateway
- * Method:    executeNextCommand
- * Signature: ()V
+ * Method:    attach
+ * Signature: (Ljava/nio/ByteBuffer;)V
  */
-JNIEXPORT void JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_executeNextCommand
-  (JNIEnv *, jobject);
+JNIEXPORT void JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_attach
+  (JNIEnv *, jobject, jobject);
 
 /*
  * Class:     org_mn_z80util_z80_jni_NativeZ80Gateway
- * Method:    getReg
- * Signature: (I)B
+ * Method:    execute
+ * Signature: ([BII)I
  */
-JNIEXPORT jbyte JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_getReg
-  (JNIEnv *, jobject, jint);
-
-/*
- * Class:     org_mn_z80util_z80_jni_NativeZ80Gateway
- * Method:    getRegPair
- * Signature: (I)S
- */
-JNIEXPORT jshort JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_getRegPair
-  (JNIEnv *, jobject, jint);
+JNIEXPORT jint JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_execute
+  (JNIEnv *, jobject, jbyteArray, jint, jint);
 
 /*
  * Class:     org_mn_z80util_z80_jni_NativeZ80Gateway
@@ -39,30 +31,6 @@ JNIEXPORT jshort JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_getRegPair
 JNIEXPORT void JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_reset
   (JNIEnv *, jobject);
 
-/*
- * Class:     org_mn_z80util_z80_jni_NativeZ80Gateway
- * Method:    setHaltState
- * Signature: (Z)V
- */
-JNIEXPORT void JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_setHaltState
-  (JNIEnv *, jobject, jboolean);
-
-/*
- * Class:     org_mn_z80util_z80_jni_NativeZ80Gateway
- * Method:    setReg
- * Signature: (IB)V
- */
-JNIEXPORT void JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_setReg
-  (JNIEnv *, jobject, jint, jbyte);
-
-/*
- * Class:     org_mn_z80util_z80_jni_NativeZ80Gateway
- * Method:    setRegPair
- * Signature: (IS)V
- */
-JNIEXPORT void JNICALL Java_org_mn_z80util_z80_jni_NativeZ80Gateway_setRegPair
-  (JNIEnv *, jobject, jint, jshort);
-
 #ifdef __cplusplus
 }
 #endif
@@ -0,0 +1,169 @@
+package org.mn.z80util.z80.qaop;
+
+import java.util.*;
+
+import junit.framework.*;
+
+import org.apache.log4j.*;
+import org.mn.z80util.z80.*;
+import org.mn.z80util.z80.yaze.*;
+
+/**
+ * Runs QaopZ80Impl with block translation in lockstep with the interpreter
+ * over pseudo-random code, which overwrites itself, with a random contention
+ * delay for every T-state, and checks that all registers, T-states and
+ * memory stay the same. The processors run a random number of T-states at a
+ * time, so that blocks are left at any instruction, and the code is replaced
+ * every CODE_RUNS runs, which the translator must see from
+ * MemoryPages.markModified().
+ */
+public class BlockTranslatorTest extends TestCase {
+	private static final int FRAME_LENGTH = 69888;
+	private static final int RUNS = 200000;
+	private static final int MAX_RUN_TSTATES = 400;
+	private static final int REGISTER_RUNS = 16;
+	private static final int CODE_RUNS = 4096;
+	private static final int STEPS = 1000000;
+
+	private QaopZ80Impl z80 = new QaopZ80Impl();
+	private QaopZ80Impl ref = new QaopZ80Impl();
+
+	/**
+	 * Bus with direct memory access and given contention, which answers I/O
+	 * reads with a value depending on the port.
+	 */
+	private static class FastBus extends MockAddressBusProvider implements
+			FastAddressBusProvider, ContendedAddressBusProvider {
+		private final MemoryPages pages = new MemoryPages(getMemory());
+		private final MemoryContention contention;
+
+		public FastBus(MemoryContention contention) {
+			this.contention = contention;
+		}
+
+		@Override
+		public MemoryPages getMemoryPages() {
+			return pages;
+		}
+
+		@Override
+		public MemoryContention getMemoryContention() {
+			return contention;
+		}
+
+		@Override
+		public byte getIOByte(short address) {
+			return (byte) ((address >> 8) ^ (address * 7));
+		}
+	}
+
+	@Override
+	protected void setUp() {
+		/* Illegal opcodes created by self-modifying code are not of interest */
+		Logger.getLogger(QaopZ80Impl.class).setLevel(Level.ERROR);
+		z80.setBlockTranslation(true);
+	}
+
+	private void newRegisters(Random rand) {
+		for (int reg = TestZ80.B; reg <= TestZ80.IM_IFF; reg++) {
+			byte value = (byte) rand.nextInt();
+			z80.setReg(reg, value);
+			ref.setReg(reg, value);
+		}
+		short af = (short) rand.nextInt(), afAlt = (short) rand.nextInt();
+		z80.setRegPair(TestZ80.AF, af);
+		ref.setRegPair(TestZ80.AF, af);
+		z80.setRegPair(TestZ80.AF_ALT, afAlt);
+		ref.setRegPair(TestZ80.AF_ALT, afAlt);
+		z80.setHaltState(false);
+		ref.setHaltState(false);
+	}
+
+	private void assertSameState(String where) {
+		for (int reg = TestZ80.B; reg <= TestZ80.IM_IFF; reg++) {
+			assertEquals(where + ": register " + reg, ref.getReg(reg),
+					z80.getReg(reg));
+		}
+		assertEquals(where + ": T-states", ref.getTStates(),
+				z80.getTStates());
+	}
+
+	/**
+	 * Runs cached blocks with executeTStates() on a bus with direct memory
+	 * access.
+	 */
+	public void testBlocks() {
+		Random rand = new Random(0x5a85L);
+		byte[] delays = new byte[FRAME_LENGTH];
+		for (int i = 0; i < FRAME_LENGTH; i++) {
+			delays[i] = (byte) rand.nextInt(7);
+		}
+		MemoryContention contention = new MemoryContention(delays, 0);
+		FastBus ula = new FastBus(contention);
+		FastBus refUla = new FastBus(contention);
+		z80.setUla(ula);
+		ref.setUla(refUla);
+		z80.reset();
+		ref.reset();
+		for (int run = 0; run < RUNS; run++) {
+			if ((run % CODE_RUNS) == 0) {
+				YazeBasedZ80ImplTest.randomCode(refUla.getMemory(), rand);
+				if (rand.nextBoolean()) {
+					YazeBasedZ80ImplTest.prefixCode(refUla.getMemory(), rand);
+				}
+				System.arraycopy(refUla.getMemory(), 0, ula.getMemory(), 0,
+						0x10000);
+				ula.getMemoryPages().markModified();
+			}
+			if ((run % REGISTER_RUNS) == 0) {
+				newRegisters(rand);
+				contention.setContendedPages(rand.nextInt(16));
+				if (rand.nextInt(4) == 0) {
+					z80.interrupt();
+					ref.interrupt();
+				}
+			}
+			z80.setTStates(0);
+			ref.setTStates(0);
+			contention.setFrameOffset(rand.nextInt(FRAME_LENGTH));
+			int tstates = 1 + rand.nextInt(MAX_RUN_TSTATES);
+			z80.executeTStates(tstates);
+			ref.executeTStates(tstates);
+			assertSameState("Run " + run);
+			if (((run + 1) % REGISTER_RUNS) == 0) {
+				assertTrue("Memory differs after run " + run,
+						Arrays.equals(ula.getMemory(), refUla.getMemory()));
+			}
+		}
+	}
+
+	/**
+	 * Runs single instructions, translated without caching, on a bus
+	 * without direct memory access, as the testbench does.
+	 */
+	public void testSingleSteps() {
+		Random rand = new Random(0x5a86L);
+		MockAddressBusProvider ula = new MockAddressBusProvider();
+		MockAddressBusProvider refUla = new MockAddressBusProvider();
+		z80.setUla(ula);
+		ref.setUla(refUla);
+		z80.reset();
+		ref.reset();
+		z80.setTStates(0);
+		ref.setTStates(0);
+		for (int i = 0; i < STEPS; i++) {
+			if ((i % (CODE_RUNS * REGISTER_RUNS)) == 0) {
+				YazeBasedZ80ImplTest.randomCode(refUla.getMemory(), rand);
+				System.arraycopy(refUla.getMemory(), 0, ula.getMemory(), 0,
+						0x10000);
+			}
+			if ((i % 1024) == 0) {
+				newRegisters(rand);
+			}
+			z80.executeNextCommand();
+			ref.executeNextCommand();
+			assertSameState("Instruction " + i);
+		}
+		assertTrue(Arrays.equals(ula.getMemory(), refUla.getMemory()));
+	}
+}
@@ -0,0 +1,192 @@
+package org.mn.z80util.z80.yaze;
+
+import java.util.*;
+
+import junit.framework.*;
+
+import org.apache.log4j.*;
+import org.mn.z80util.z80.*;
+import org.mn.z80util.z80.qaop.*;
+import org.mn.z80util.disassembler.*;
+
+/**
+ * Checks that YazeBasedZ80Impl makes its memory and I/O accesses at the same
+ * T-states as QaopZ80Impl, so that both are delayed the same by contention.
+ * The processors are compared by the T-states they use for each
+ * instruction, first on a loop in contended memory with the contention of
+ * the 48K Spectrum, and then on random code with a random delay for every
+ * T-state, where an access made at any other T-state would almost always
+ * get another delay.
+ */
+public class ContendedTimingTest extends TestCase {
+	private static final int FRAME_LENGTH = 69888;
+	private static final int INSTRUCTIONS = 1000000;
+	private static final int RUN_LENGTH = 1024;
+	private static final int CODE_RUNS = 64;
+
+	/* A loop at 6000h, which uses the screen memory at 4000h-5FFFh */
+	private static final int[] LOOP = {
+		0x31, 0xf0, 0x7f, /* 6000 LD SP,7FF0h */
+		0x21, 0x00, 0x40, /* 6003 LD HL,4000h */
+		0x11, 0x00, 0x41, /* 6006 LD DE,4100h */
+		0x01, 0x20, 0x00, /* 6009 LD BC,0020h */
+		0xed, 0xb0, /* 600C LDIR */
+		0xdd, 0x21, 0x00, 0x50, /* 600E LD IX,5000h */
+		0x06, 0x10, /* 6012 LD B,10h */
+		0xdd, 0x34, 0x05, /* 6014 INC (IX+5) */
+		0x7e, /* 6017 LD A,(HL) */
+		0xdd, 0x86, 0x01, /* 6018 ADD A,(IX+1) */
+		0x77, /* 601B LD (HL),A */
+		0xe5, /* 601C PUSH HL */
+		0xe3, /* 601D EX (SP),HL */
+		0xe1, /* 601E POP HL */
+		0xcd, 0x31, 0x60, /* 601F CALL 6031h */
+		0xcb, 0x06, /* 6022 RLC (HL) */
+		0xdd, 0xcb, 0x02, 0x5e, /* 6024 BIT 3,(IX+2) */
+		0xd3, 0xfe, /* 6028 OUT (FEh),A */
+		0xdb, 0xfe, /* 602A IN A,(FEh) */
+		0x23, /* 602C INC HL */
+		0x10, 0xe5, /* 602D DJNZ 6014h */
+		0x18, 0xcf, /* 602F JR 6000h */
+		0x22, 0x00, 0x51, /* 6031 LD (5100h),HL */
+		0xc9 /* 6034 RET */
+	};
+
+	private YazeBasedZ80Impl z80 = new YazeBasedZ80Impl();
+	private QaopZ80Impl ref = new QaopZ80Impl();
+
+	/**
+	 * Bus with given contention, which answers I/O reads with a value
+	 * depending on the port.
+	 */
+	private static class ContendedBus extends MockAddressBusProvider
+			implements ContendedAddressBusProvider {
+		private final MemoryContention contention;
+
+		public ContendedBus(MemoryContention contention) {
+			this.contention = contention;
+		}
+
+		@Override
+		public MemoryContention getMemoryContention() {
+			return contention;
+		}
+
+		@Override
+		public byte getIOByte(short address) {
+			return (byte) ((address >> 8) ^ (address * 7));
+		}
+	}
+
+	@Override
+	protected void setUp() {
+		/* Illegal opcodes created by self-modifying code are not of interest */
+		Logger.getLogger(YazeBasedZ80Impl.class).setLevel(Level.ERROR);
+		Logger.getLogger(QaopZ80Impl.class).setLevel(Level.ERROR);
+	}
+
+	private static String where(int instruction, int pc) {
+		return "Instruction " + instruction + " at " + Hex.intToHex4(pc);
+	}
+
+	private void step(int instruction) {
+		int pc = ref.getRegPair(TestZ80.PC) & 0xffff;
+		int before = ref.getTStates();
+		z80.executeNextCommand();
+		ref.executeNextCommand();
+		if (z80.getTStates() != ref.getTStates()) {
+			fail(where(instruction, pc) + " took "
+					+ (before - z80.getTStates()) + " T-states, expected "
+					+ (before - ref.getTStates()));
+		}
+	}
+
+	/**
+	 * Runs the loop in contended memory for a frame of the 48K Spectrum.
+	 */
+	public void testContendedLoop() {
+		byte[] delays = new byte[FRAME_LENGTH];
+		for (int line = 0; line < 192; line++) {
+			for (int t = 0; t < 128; t++) {
+				int delay = 6 - (t & 7);
+				delays[14335 + line * 224 + t] = (byte) Math.max(delay, 0);
+			}
+		}
+		MemoryContention contention = new MemoryContention(delays, 0x02);
+		contention.setFrameOffset(FRAME_LENGTH);
+		ContendedBus ula = new ContendedBus(contention);
+		ContendedBus refUla = new ContendedBus(contention);
+		for (int i = 0; i < LOOP.length; i++) {
+			ula.getMemory()[0x6000 + i] = (byte) LOOP[i];
+			refUla.getMemory()[0x6000 + i] = (byte) LOOP[i];
+		}
+		z80.setUla(ula);
+		ref.setUla(refUla);
+		z80.reset();
+		ref.reset();
+		for (int pair = TestZ80.BC; pair <= TestZ80.IR; pair++) {
+			z80.setRegPair(pair, (short) 0x0000);
+			ref.setRegPair(pair, (short) 0x0000);
+		}
+		z80.setRegPair(TestZ80.PC, (short) 0x6000);
+		ref.setRegPair(TestZ80.PC, (short) 0x6000);
+		z80.setTStates(FRAME_LENGTH);
+		ref.setTStates(FRAME_LENGTH);
+		int instruction = 0;
+		while (ref.getTStates() > 0) {
+			step(instruction++);
+		}
+		assertTrue(Arrays.equals(ula.getMemory(), refUla.getMemory()));
+	}
+
+	/**
+	 * Runs random code with a random delay for every T-state, contended
+	 * pages changing between the runs. Before each instruction the
+	 * registers are copied from QaopZ80Impl, as the processors differ in
+	 * some register results, and the frame offset is moved randomly.
+	 */
+	public void testRandomCode() {
+		Random rand = new Random(0x5a83L);
+		byte[] delays = new byte[FRAME_LENGTH];
+		for (int i = 0; i < FRAME_LENGTH; i++) {
+			delays[i] = (byte) rand.nextInt(7);
+		}
+		MemoryContention contention = new MemoryContention(delays, 0);
+		ContendedBus ula = new ContendedBus(contention);
+		ContendedBus refUla = new ContendedBus(contention);
+		z80.setUla(ula);
+		ref.setUla(refUla);
+		z80.reset();
+		ref.reset();
+		for (int i = 0; i < INSTRUCTIONS; i++) {
+			if ((i % (RUN_LENGTH * CODE_RUNS)) == 0) {
+				YazeBasedZ80ImplTest.randomCode(refUla.getMemory(), rand);
+				YazeBasedZ80ImplTest.prefixCode(refUla.getMemory(), rand);
+				System.arraycopy(refUla.getMemory(), 0, ula.getMemory(), 0,
+						0x10000);
+			}
+			if ((i % RUN_LENGTH) == 0) {
+				for (int reg = TestZ80.B; reg <= TestZ80.R; reg++) {
+					ref.setReg(reg, (byte) rand.nextInt());
+				}
+				ref.setReg(TestZ80.IM_IFF, (byte) 0x00);
+				contention.setContendedPages(rand.nextInt(16));
+			}
+			for (int pair = TestZ80.BC; pair <= TestZ80.IR; pair++) {
+				z80.setRegPair(pair, ref.getRegPair(pair));
+			}
+			z80.setReg(TestZ80.IM_IFF, ref.getReg(TestZ80.IM_IFF));
+			/* Self-modified code may halt */
+			z80.setHaltState(false);
+			ref.setHaltState(false);
+			z80.setTStates(0);
+			ref.setTStates(0);
+			contention.setFrameOffset(rand.nextInt(FRAME_LENGTH));
+			step(i);
+			if (((i + 1) % RUN_LENGTH) == 0) {
+				assertTrue("Memory differs after instruction " + i,
+						Arrays.equals(ula.getMemory(), refUla.getMemory()));
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package org.mn.z80util.z80.yaze;
+
+import junit.framework.*;
+
+/**
+ * Checks the table driven YazeBasedALU against the original arithmetic
+ * implementation for every accumulator, flag and operand combination.
+ */
+public class YazeBasedALUTest extends TestCase {
+	private YazeBasedALU alu = new YazeBasedALU();
+	private ArithmeticYazeALU ref = new ArithmeticYazeALU();
+
+	private void setAF(int af) {
+		alu.af(af);
+		ref.af(af);
+	}
+
+	private void assertSameAF(String op, int af, int value) {
+		if (alu.af() != ref.af()) {
+			fail(op + " with AF=" + Integer.toHexString(af) + ", value="
+					+ Integer.toHexString(value) + ": "
+					+ Integer.toHexString(alu.af()) + " != "
+					+ Integer.toHexString(ref.af()));
+		}
+	}
+
+	public void testCmd8() {
+		for (int cmd = 0; cmd < 8; cmd++) {
+			String name = "cmd8 " + cmd;
+			for (int af = 0; af < 0x10000; af++) {
+				for (int value = 0; value < 0x100; value++) {
+					setAF(af);
+					alu.cmd8(cmd, value);
+					ref.cmd8(cmd, value);
+					assertSameAF(name, af, value);
+				}
+			}
+		}
+	}
+
+	public void testIncDec() {
+		for (int af = 0; af < 0x10000; af++) {
+			for (int value = 0; value < 0x100; value++) {
+				setAF(af);
+				assertEquals(ref.inc8(value), alu.inc8(value));
+				assertSameAF("inc8", af, value);
+				setAF(af);
+				assertEquals(ref.dec8(value), alu.dec8(value));
+				assertSameAF("dec8", af, value);
+			}
+		}
+	}
+
+	public void testAccumulatorOperations() {
+		for (int af = 0; af < 0x10000; af++) {
+			setAF(af);
+			alu.daa();
+			ref.daa();
+			assertSameAF("daa", af, 0);
+			setAF(af);
+			alu.neg();
+			ref.neg();
+			assertSameAF("neg", af, 0);
+		}
+	}
+
+	public void testOperandOperations() {
+		for (int af = 0; af < 0x10000; af++) {
+			for (int value = 0; value < 0x100; value++) {
+				setAF(af);
+				alu.in_ibc(value);
+				ref.in_ibc(value);
+				assertSameAF("in_ibc", af, value);
+				setAF(af);
+				assertEquals(ref.rrd(value), alu.rrd(value));
+				assertSameAF("rrd", af, value);
+				setAF(af);
+				assertEquals(ref.rld(value), alu.rld(value));
+				assertSameAF("rld", af, value);
+				setAF(af);
+				alu.ld_a_ir(value, (af & 1) != 0);
+				ref.ld_a_ir(value, (af & 1) != 0);
+				assertSameAF("ld_a_ir", af, value);
+			}
+		}
+	}
+
+	public void testCB() {
+		for (int op = 0; op < 0x100; op++) {
+			String name = "cb " + op;
+			for (int f = 0; f < 0x100; f++) {
+				int af = ((op * 37) & 0xff) << 8 | f;
+				for (int value = 0; value < 0x100; value++) {
+					setAF(af);
+					assertEquals(ref.cb(op, value), alu.cb(op, value));
+					assertSameAF(name, af, value);
+				}
+			}
+		}
+	}
+}
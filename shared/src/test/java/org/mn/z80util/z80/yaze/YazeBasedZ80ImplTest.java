@@ -0,0 +1,241 @@
+package org.mn.z80util.z80.yaze;
+
+import java.util.*;
+
+import junit.framework.*;
+
+import org.apache.log4j.*;
+import org.mn.z80util.z80.*;
+import org.mn.z80util.disassembler.*;
+
+/**
+ * Runs YazeBasedZ80Impl in lockstep with the original implementation, which
+ * decodes the opcodes with a chain of comparisons and keeps the registers in
+ * a byte array, over pseudo-random code and checks that all registers,
+ * T-states and memory stay the same. Random code soon falls into a tight
+ * loop, so the run is restarted from a random address with random registers
+ * every RUN_LENGTH instructions, and the code is generated again every
+ * CODE_RUNS runs. Some runs start with an interrupt.
+ */
+public class YazeBasedZ80ImplTest extends TestCase {
+	private static final int INSTRUCTIONS = 6000000;
+	private static final int RUN_LENGTH = 1024;
+	private static final int CODE_RUNS = 64;
+
+	private YazeBasedZ80Impl z80 = new YazeBasedZ80Impl();
+	private ChainedYazeZ80Impl ref = new ChainedYazeZ80Impl();
+	private MockAddressBusProvider ula = new PortAddressBusProvider();
+	private MockAddressBusProvider refUla = new PortAddressBusProvider();
+
+	/**
+	 * Answers I/O reads with a value depending on the port, so that the
+	 * flags of the input instructions vary.
+	 */
+	private static class PortAddressBusProvider extends MockAddressBusProvider {
+		@Override
+		public byte getIOByte(short address) {
+			return (byte) ((address >> 8) ^ (address * 7));
+		}
+	}
+
+	@Override
+	protected void setUp() {
+		/* Illegal opcodes created by self-modifying code are not of interest */
+		Logger.getLogger(YazeBasedZ80Impl.class).setLevel(Level.ERROR);
+		Logger.getLogger(ChainedYazeZ80Impl.class).setLevel(Level.ERROR);
+		z80.setUla(ula);
+		ref.setUla(refUla);
+	}
+
+	/**
+	 * Fills 64K of memory with pseudo-random code without HALT, where the
+	 * EDh prefix is always followed by a valid opcode.
+	 */
+	public static void randomCode(byte[] code, Random rand) {
+		rand.nextBytes(code);
+		for (int i = 0; i < 0x10000; i++) {
+			int c = code[i] & 0xff;
+			int next = (i + 1) & 0xffff;
+			if (c == 0x76) {
+				code[i] = 0x00;
+			} else if (c == 0xed) {
+				code[next] = (byte) validEDOpcode(rand);
+			} else if (((c == 0xdd) || (c == 0xfd))
+					&& ((code[next] & 0xff) == 0xed)) {
+				code[next] = 0x00;
+			}
+		}
+	}
+
+	/**
+	 * Places a CBh, DDh, FDh, EDh, DDCBh or FDCBh prefixed instruction at
+	 * about every other 4 byte boundary of the code.
+	 */
+	public static void prefixCode(byte[] code, Random rand) {
+		for (int i = 0; i < 0x10000; i += 4) {
+			if (rand.nextBoolean()) {
+				continue;
+			}
+			int index = rand.nextInt(0x100);
+			switch (rand.nextInt(5)) {
+				case 0:
+					code[i] = (byte) 0xcb;
+					code[i + 1] = (byte) rand.nextInt(0x100);
+					break;
+				case 1:
+					code[i] = (byte) (rand.nextBoolean() ? 0xdd : 0xfd);
+					int c = rand.nextInt(0x100);
+					code[i + 1] = (byte) (((c == 0x76) || (c == 0xed)) ? 0x00 : c);
+					break;
+				case 2:
+					code[i] = (byte) 0xed;
+					code[i + 1] = (byte) validEDOpcode(rand);
+					break;
+				default:
+					code[i] = (byte) (rand.nextBoolean() ? 0xdd : 0xfd);
+					code[i + 1] = (byte) 0xcb;
+					code[i + 2] = (byte) index;
+					code[i + 3] = (byte) rand.nextInt(0x100);
+			}
+		}
+	}
+
+	private static int validEDOpcode(Random rand) {
+		for (;;) {
+			int c = rand.nextInt(0x100);
+			if ((c >= 0x40) && (c < 0x80) && (c != 0x77) && (c != 0x7f)) {
+				return c;
+			}
+			if ((c >= 0xa0) && (c < 0xc0) && ((c & 4) == 0)) {
+				return c;
+			}
+		}
+	}
+
+	private void newCode(Random rand, boolean prefixed) {
+		randomCode(ula.getMemory(), rand);
+		if (prefixed) {
+			prefixCode(ula.getMemory(), rand);
+		}
+		System.arraycopy(ula.getMemory(), 0, refUla.getMemory(), 0, 0x10000);
+	}
+
+	/**
+	 * Sets all registers, including PC, to the same random values in both
+	 * processors and wakes them up if they have halted.
+	 */
+	private void newRegisters(Random rand) {
+		for (int reg = TestZ80.B; reg <= TestZ80.IM_IFF; reg++) {
+			byte value = (byte) rand.nextInt();
+			if (reg == TestZ80.IM_IFF) {
+				value &= 0x0f;
+			}
+			z80.setReg(reg, value);
+			ref.setReg(reg, value);
+		}
+		short af = (short) rand.nextInt(), afAlt = (short) rand.nextInt();
+		z80.setRegPair(TestZ80.AF, af);
+		ref.setRegPair(TestZ80.AF, af);
+		z80.setRegPair(TestZ80.AF_ALT, afAlt);
+		ref.setRegPair(TestZ80.AF_ALT, afAlt);
+		z80.setHaltState(false);
+		ref.setHaltState(false);
+	}
+
+	private static String where(int instruction, int pc) {
+		return "Instruction " + instruction + " at " + Hex.intToHex4(pc);
+	}
+
+	private void assertSameState(int instruction, int pc) {
+		for (int reg = TestZ80.B; reg <= TestZ80.IM_IFF; reg++) {
+			if (z80.getReg(reg) != ref.getReg(reg)) {
+				fail(where(instruction, pc) + ": register " + reg + " is "
+						+ Hex.intToHex2(z80.getReg(reg) & 0xff) + ", expected "
+						+ Hex.intToHex2(ref.getReg(reg) & 0xff));
+			}
+		}
+		for (int pair = TestZ80.BC; pair <= TestZ80.IR; pair++) {
+			if (z80.getRegPair(pair) != ref.getRegPair(pair)) {
+				fail(where(instruction, pc) + ": register pair " + pair
+						+ " is " + Hex.intToHex4(z80.getRegPair(pair))
+						+ ", expected " + Hex.intToHex4(ref.getRegPair(pair)));
+			}
+		}
+		if (z80.getTStates() != ref.getTStates()) {
+			fail(where(instruction, pc) + ": T-states are "
+					+ z80.getTStates() + ", expected " + ref.getTStates());
+		}
+	}
+
+	private void assertSameMemory(String where) {
+		if (!Arrays.equals(ula.getMemory(), refUla.getMemory())) {
+			fail(where + ": memory differs");
+		}
+	}
+
+	private void lockstep(long seed, boolean prefixed) {
+		Random rand = new Random(seed);
+		z80.reset();
+		ref.reset();
+		z80.setTStates(0);
+		ref.setTStates(0);
+		for (int i = 0; i < INSTRUCTIONS; i++) {
+			if ((i % (RUN_LENGTH * CODE_RUNS)) == 0) {
+				newCode(rand, prefixed);
+			}
+			if ((i % RUN_LENGTH) == 0) {
+				newRegisters(rand);
+				switch (rand.nextInt(8)) {
+					case 0:
+						z80.interrupt();
+						ref.interrupt();
+						break;
+					case 1:
+						z80.NMI();
+						ref.NMI();
+						break;
+				}
+			}
+			int pc = z80.getRegPair(TestZ80.PC) & 0xffff;
+			z80.executeNextCommand();
+			ref.executeNextCommand();
+			assertSameState(i, pc);
+			if (((i + 1) % RUN_LENGTH) == 0) {
+				assertSameMemory(where(i, pc));
+			}
+		}
+	}
+
+	public void testLockstep() {
+		lockstep(0x5a80L, false);
+	}
+
+	public void testPrefixedLockstep() {
+		lockstep(0x5a81L, true);
+	}
+
+	/**
+	 * Sets random registers and register pairs in turn and checks that all
+	 * registers read back the same from both processors.
+	 */
+	public void testRegisterAccessors() {
+		Random rand = new Random(0x5a82L);
+		z80.reset();
+		ref.reset();
+		newRegisters(rand);
+		for (int i = 0; i < 100000; i++) {
+			if (rand.nextBoolean()) {
+				int reg = rand.nextInt(TestZ80.IM_IFF + 1);
+				byte value = (byte) rand.nextInt();
+				z80.setReg(reg, value);
+				ref.setReg(reg, value);
+			} else {
+				int pair = rand.nextInt(TestZ80.IR + 1);
+				short value = (short) rand.nextInt();
+				z80.setRegPair(pair, value);
+				ref.setRegPair(pair, value);
+			}
+			assertSameState(i, ref.getRegPair(TestZ80.PC) & 0xffff);
+		}
+	}
+}
@@ -20,6 +20,8 @@
  */
 package org.mn.z80util.spectrum;
 
+import java.io.*;
+
 import javax.swing.*;
 
 import org.apache.log4j.*;
@@ -36,6 +38,10 @@ public class Main {
             "Jeccy - a Sinclair ZX Spectrum 48K emulator\n"
             + "(C) 2009, Mikko Nummelin, <mikko.nummelin@tkk.fi>\n"
             + "Jeccy is free software and comes with ABSOLUTELY NO WARRANTY.\n";
+    /* One minute of frames for rewinding, at most 32 MB */
+    private static final int REWIND_FRAMES = 3000;
+    private static final long REWIND_BUDGET = 32L << 20;
+    private static final int REWIND_KEYFRAME_INTERVAL = 50;
     private static Logger LOG = Logger.getLogger(Main.class);
     private static String[] args;
 
@@ -66,6 +72,8 @@ public class Main {
         clock.setZ80(z80);
         clock.setUla(ula);
         clock.setGui(spectrumGUI);
+        clock.setRewindBuffer(new RewindBuffer(REWIND_FRAMES, REWIND_BUDGET,
+                REWIND_KEYFRAME_INTERVAL));
         scr.setUla(ula);
         controller.setUla(ula);
         controller.setClock(clock);
@@ -95,14 +103,19 @@ public class Main {
             }
         }
         ula.loadROM(Main.class.getResourceAsStream("/" + ROMFileName));
-        if (Z80FileName != null) {
-            AbstractSpectrumSnapshot snsh =
-                    new Z80Snapshot(Z80FileName);
-            snsh.write(z80, ula);
-        } else if (SNAFileName != null) {
-            AbstractSpectrumSnapshot snsh =
-                    new SNASnapshot(SNAFileName);
-            snsh.write(z80, ula);
+        try {
+            if (Z80FileName != null) {
+                AbstractSpectrumSnapshot snsh =
+                        new Z80Snapshot(Z80FileName);
+                snsh.write(z80, ula);
+            } else if (SNAFileName != null) {
+                AbstractSpectrumSnapshot snsh =
+                        new SNASnapshot(SNAFileName);
+                snsh.write(z80, ula);
+            }
+        } catch (IOException e) {
+            LOG.fatal("Unable to load snapshot.", e);
+            System.exit(1);
         }
 
         SwingUtilities.invokeLater(new Runnable() {
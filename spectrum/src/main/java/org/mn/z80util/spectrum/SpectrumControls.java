@@ -32,6 +32,8 @@ import org.mn.z80util.spectrum.snapshots.Snapshots;
 public class SpectrumControls implements KeyListener, ActionListener {
 
     private Logger LOG = Logger.getLogger(SpectrumControls.class);
+    /* Frames rewound by F4 and the rewind menu item, one second */
+    private static final int REWIND_FRAMES = 50;
     /* Dependency injection setters. */
     private SpectrumULA ula;
 
@@ -221,22 +223,18 @@ public class SpectrumControls implements KeyListener, ActionListener {
                 break;
             case KeyEvent.VK_F2:
                 handleSaveDialog();
-                synchronized (clock) {
-                    clock.notifyAll();
-                }
                 break;
             case KeyEvent.VK_F3:
                 handleLoadDialog();
-                synchronized (clock) {
-                    clock.notifyAll();
+                break;
+            case KeyEvent.VK_F4:
+                if (eventType) {
+                    clock.rewind(REWIND_FRAMES);
                 }
                 break;
             case KeyEvent.VK_F5:
                 if (eventType) {
                     clock.reset();
-                    synchronized (clock) {
-                        clock.notifyAll();
-                    }
                 }
                 break;
             case KeyEvent.VK_F10:
@@ -246,17 +244,11 @@ public class SpectrumControls implements KeyListener, ActionListener {
                     debuggerFrame.pack();
                     debuggerFrame.setVisible(true);
                     clock.stepMode();
-                    synchronized (clock) {
-                        clock.notifyAll();
-                    }
                 }
                 break;
             case KeyEvent.VK_F12:
                 if (eventType) {
                     clock.runMode();
-                    synchronized (clock) {
-                        clock.notifyAll();
-                    }
                 }
                 break;
         }
@@ -272,38 +264,27 @@ public class SpectrumControls implements KeyListener, ActionListener {
     public void actionPerformed(ActionEvent e) {
         if (e.getActionCommand().equalsIgnoreCase("Load")) {
             handleLoadDialog();
-            synchronized (clock) {
-                clock.notifyAll();
-            }
         } else if (e.getActionCommand().equalsIgnoreCase("Save")) {
             handleSaveDialog();
-            synchronized (clock) {
-                clock.notifyAll();
-            }
         } else if (e.getActionCommand().equalsIgnoreCase("Step")) {
             clock.stepMode();
-            synchronized (clock) {
-                clock.notifyAll();
-            }
         } else if (e.getActionCommand().equalsIgnoreCase("Continue")) {
             clock.runMode();
-            synchronized (clock) {
-                clock.notifyAll();
-            }
+        } else if (e.getActionCommand().equalsIgnoreCase("Rewind")) {
+            clock.rewind(REWIND_FRAMES);
         } else if (e.getActionCommand().equalsIgnoreCase("Profiling")) {
-            if (!clock.profilingOn) {
-                clock.startProfiling = true;
-            } else {
-                clock.endProfiling = true;
-            }
-            synchronized (clock) {
-                clock.notifyAll();
-            }
+            clock.toggleProfiling();
         } else if (e.getActionCommand().equalsIgnoreCase("Save profile")) {
             SpectrumRunningProfile profile = clock.getProfile();
             if (profile != null) {
                 profile.saveBlocks();
             }
+        } else if (e.getActionCommand().equalsIgnoreCase("Tracing")) {
+            if (clock.isTracing()) {
+                clock.stopTracing();
+            } else {
+                handleTraceDialog();
+            }
         } else if (e.getActionCommand().equalsIgnoreCase("Debugger")) {
             debuggerFrame.pack();
             debuggerFrame.setVisible(true);
@@ -330,11 +311,11 @@ public class SpectrumControls implements KeyListener, ActionListener {
                  * thread (SpectrumZ80Clock), not here in event dispatch thread.
                  */
                 if (ftype.equals("z80")) {
-                    clock.setSnapshotImportFileType(SpectrumZ80Clock.Z80_FILE);
-                    clock.setSnapshotImportFile(new FileInputStream(f));
+                    clock.importSnapshot(SpectrumZ80Clock.Z80_FILE,
+                            new FileInputStream(f));
                 } else if (ftype.equals("sna")) {
-                    clock.setSnapshotImportFileType(SpectrumZ80Clock.SNA_FILE);
-                    clock.setSnapshotImportFile(new FileInputStream(f));
+                    clock.importSnapshot(SpectrumZ80Clock.SNA_FILE,
+                            new FileInputStream(f));
                 }
             } catch (FileNotFoundException fnfe) {
                 LOG.warn("Unable to load selected file");
@@ -342,6 +323,14 @@ public class SpectrumControls implements KeyListener, ActionListener {
         }
     }
 
+    private void handleTraceDialog() {
+        JFileChooser chooser = new JFileChooser();
+        int returnVal = chooser.showSaveDialog(null);
+        if (returnVal == JFileChooser.APPROVE_OPTION) {
+            clock.startTracing(chooser.getSelectedFile());
+        }
+    }
+
     private void handleSaveDialog() {
         JFileChooser chooser = new JFileChooser();
         int returnVal = chooser.showSaveDialog(null);
@@ -350,11 +339,11 @@ public class SpectrumControls implements KeyListener, ActionListener {
                 File f = chooser.getSelectedFile();
                 String ftype = Snapshots.fileType(f.getName());
                 if (ftype.equals("z80")) {
-                    clock.setSnapshotExportFileType(SpectrumZ80Clock.Z80_FILE);
-                    clock.setSnapshotExportFile(new FileOutputStream(f));
+                    clock.exportSnapshot(SpectrumZ80Clock.Z80_FILE,
+                            new FileOutputStream(f));
                 } else if (ftype.equals("sna")) {
-                    clock.setSnapshotExportFileType(SpectrumZ80Clock.SNA_FILE);
-                    clock.setSnapshotExportFile(new FileOutputStream(f));
+                    clock.exportSnapshot(SpectrumZ80Clock.SNA_FILE,
+                            new FileOutputStream(f));
                 } else {
                     LOG.warn("Attempted to save into unknown file type " + ftype + ".");
                 }
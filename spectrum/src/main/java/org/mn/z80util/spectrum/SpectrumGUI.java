@@ -40,7 +40,8 @@ public class SpectrumGUI {
     private JMenuBar GUIFrameMenuBar;
     private JMenu fileMenu, actionMenu, viewMenu, helpMenu;
     private JMenuItem loadItem, saveItem, exitItem, stepItem, continueItem,
-            profilingItem, saveProfileItem, debuggerItem, aboutItem;
+            rewindItem, profilingItem, saveProfileItem, tracingItem,
+            debuggerItem, aboutItem;
 
     public JMenuItem getProfilingItem() {
         return profilingItem;
@@ -134,6 +135,9 @@ public class SpectrumGUI {
         continueItem = new JMenuItem("Continue", KeyEvent.VK_C);
         continueItem.addActionListener(controller);
         actionMenu.add(continueItem);
+        rewindItem = new JMenuItem("Rewind", KeyEvent.VK_R);
+        rewindItem.addActionListener(controller);
+        actionMenu.add(rewindItem);
         profilingItem = new JMenuItem("Start/end profiling", KeyEvent.VK_P);
         profilingItem.setActionCommand("Profiling");
         profilingItem.addActionListener(controller);
@@ -141,6 +145,10 @@ public class SpectrumGUI {
         saveProfileItem = new JMenuItem("Save profile", null);
         saveProfileItem.addActionListener(controller);
         actionMenu.add(saveProfileItem);
+        tracingItem = new JMenuItem("Start/end tracing", null);
+        tracingItem.setActionCommand("Tracing");
+        tracingItem.addActionListener(controller);
+        actionMenu.add(tracingItem);
         GUIFrameMenuBar.add(actionMenu);
 
         /* View menu */
@@ -304,8 +312,8 @@ public class SpectrumGUI {
         }
 
         if (!existsAlready) {
-            byte[] memory = ula.getMemory();
-            DisasmResult dar = Disassembler.disassemble(memory, (short) address);
+            DisasmResult dar = Disassembler.disassemble(ula.getMemoryPages(),
+                    (short) address);
             tableContents.add(dar);
             Collections.sort(tableContents);
             LOG.debug("Disassembler command added to table.");
@@ -330,9 +338,9 @@ public class SpectrumGUI {
      */
     public void addCommandListing(int start, int end) {
         LinkedList<DisasmResult> newTableContents = new LinkedList<DisasmResult>();
-        byte[] memory = ula.getMemory();
+        MemoryPages pages = ula.getMemoryPages();
         for (int i = (start & 0xffff); i < (end & 0xffff);) {
-            DisasmResult dar = Disassembler.disassemble(memory, (short) i);
+            DisasmResult dar = Disassembler.disassemble(pages, (short) i);
             newTableContents.add(dar);
             i += dar.getBytesRead() & 0xffff;
         }
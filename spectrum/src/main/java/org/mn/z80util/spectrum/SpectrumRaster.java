@@ -0,0 +1,243 @@
+/*
+ * SpectrumRaster.java - Spectrum screen rendered into an RGB array.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.spectrum;
+
+import java.awt.image.*;
+import java.util.*;
+
+/**
+ * Renders the whole Spectrum screen, border included, into an array of RGB
+ * integers of 352x296 pixels without scaling. Needs no GUI, so it can be
+ * used headless and by several threads at once, each with its own raster.
+ */
+public class SpectrumRaster {
+
+    /**
+     * The RGB integer array of Spectrum colors. Change this in order to fix the
+     * colors appearance.
+     */
+    static final int[] COLORS_RGB = {
+        0x000000, // DARK BLACK
+        0x0000cf, // DARK BLUE
+        0xcf0000, // DARK RED
+        0xcf00cf, // DARK MAGENTA
+        0x00cf00, // DARK GREEN
+        0x00cfcf, // DARK CYAN
+        0xcfcf00, // DARK YELLOW
+        0xcfcfcf, // DARK WHITE (e.g. grey)
+        0x000000, // BLACK
+        0x0000ff, // BRIGHT BLUE
+        0xff0000, // BRIGHT RED
+        0xff00ff, // BRIGHT MAGENTA
+        0x00ff00, // BRIGHT GREEN
+        0x00ffff, // BRIGHT CYAN
+        0xffff00, // BRIGHT YELLOW
+        0xffffff // BRIGHT WHITE
+    };
+    public static final int WIDTH = SpectrumScreen.WIDTH_S;
+    public static final int HEIGHT = SpectrumScreen.HEIGHT_S;
+    private static final int BORDER_WIDTH = SpectrumScreen.BORDER_WIDTH;
+    private static final int PAPER_WIDTH = SpectrumScreen.PAPER_WIDTH;
+    private static final int PAPER_HEIGHT = SpectrumScreen.PAPER_HEIGHT;
+
+    /*
+     * RGB values of the eight pixels of every pixel byte for every ink and
+     * paper pair, indexed by ((attribute & 7Fh) << 11) | (byte << 3).
+     */
+    private static final int[] EXPANSION = new int[128 * 256 * 8];
+
+    static {
+        for (int attr = 0; attr < 128; attr++) {
+            int inkRGB = COLORS_RGB[ink((byte) attr, false)];
+            int paperRGB = COLORS_RGB[paper((byte) attr, false)];
+            for (int bits = 0; bits < 256; bits++) {
+                int pos = (attr << 11) | (bits << 3);
+                for (int mask = 0x80; mask != 0; mask >>= 1) {
+                    EXPANSION[pos++] = ((bits & mask) != 0) ? inkRGB : paperRGB;
+                }
+            }
+        }
+    }
+    private final int[] pixels;
+
+    public SpectrumRaster() {
+        this(new int[WIDTH * HEIGHT]);
+    }
+
+    /**
+     * @param pixels	Array of at least 352x296 integers to render into,
+     * for example the data buffer of a BufferedImage of type TYPE_INT_RGB
+     */
+    public SpectrumRaster(int[] pixels) {
+        this.pixels = pixels;
+    }
+
+    /**
+     * @return	Ink color 0-15 of an attribute byte, FLASH taken into account
+     */
+    public static int ink(byte attr, boolean flashState) {
+        if (((attr & 0x80) != 0) & flashState) {
+            /* FLASH: x------- */
+            return (attr & 0x78) >> 3;
+        }
+        /* INK:   -x---xxx */
+        return (attr & 7) | ((attr & 0x40) >> 3);
+    }
+
+    /**
+     * @return	Paper color 0-15 of an attribute byte, FLASH taken into account
+     */
+    public static int paper(byte attr, boolean flashState) {
+        if (((attr & 0x80) != 0) & flashState) {
+            /* FLASH: x------- */
+            return (attr & 7) | ((attr & 0x40) >> 3);
+        }
+        /* PAPER: -xxxx--- */
+        return (attr & 0x78) >> 3;
+    }
+
+    /**
+     * @return	The rendered pixels, row by row
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Renders the current screen of the ULA.
+     */
+    public void render(SpectrumULA ula) {
+        render(ula.getScreenMemory(), ula.getScreenOffset(), ula.getBorder(),
+                ula.getFlashState());
+    }
+
+    /**
+     * Renders the screen from the memory.
+     *
+     * @param memory	The memory
+     * @param screenOffset	Index of the screen in the memory, 4000h for a
+     * 64K memory image
+     * @param border	Border color 0-7
+     * @param flashState	Whether flashing cells are shown inverted
+     */
+    public void render(byte[] memory, int screenOffset, int border,
+            boolean flashState) {
+        for (int row = 0; row < HEIGHT; row++) {
+            renderRow(memory, screenOffset, border, flashState, row);
+        }
+    }
+
+    /**
+     * Renders a single row of the screen.
+     *
+     * @param row	The row, 0-295, of which the highest 48 and lowest 56
+     * consist solely of border
+     */
+    public void renderRow(byte[] memory, int screenOffset, int border,
+            boolean flashState, int row) {
+        int borderRGB = COLORS_RGB[border & 7];
+        int pos = row * WIDTH;
+        if ((row < BORDER_WIDTH) || (row >= BORDER_WIDTH + PAPER_HEIGHT)) {
+            Arrays.fill(pixels, pos, pos + WIDTH, borderRGB);
+            return;
+        }
+        Arrays.fill(pixels, pos, pos + BORDER_WIDTH, borderRGB);
+        pos += BORDER_WIDTH;
+        int n = row - BORDER_WIDTH;
+        int third = (n & 0xc0) >> 6;
+        int characterRow = (n & 0x38) >> 3;
+        int pixelRow = n & 0x7;
+        int pixBase = screenOffset + ((characterRow << 5) | (pixelRow << 8)
+                | (third << 11));
+        int attrBase = screenOffset + (0x1800 | (characterRow << 5)
+                | (third << 8));
+        for (int c = 0; c < PAPER_WIDTH / 8; c++) {
+            int pair = colorPair(memory[attrBase + c], flashState);
+            System.arraycopy(EXPANSION,
+                    (pair << 11) | ((memory[pixBase + c] & 0xff) << 3),
+                    pixels, pos, 8);
+            pos += 8;
+        }
+        Arrays.fill(pixels, pos, pos + BORDER_WIDTH, borderRGB);
+    }
+
+    /**
+     * Renders a single 8x8 cell of the paper.
+     *
+     * @param characterRow	Character row 0-23
+     * @param column	Column 0-31
+     */
+    public void renderCell(byte[] memory, int screenOffset,
+            boolean flashState, int characterRow, int column) {
+        int pair = colorPair(memory[screenOffset
+                + (0x1800 | (characterRow << 5) | column)], flashState);
+        int pixBase = screenOffset + (((characterRow & 0x7) << 5)
+                | ((characterRow & 0x18) << 8) | column);
+        int pos = (BORDER_WIDTH + (characterRow << 3)) * WIDTH + BORDER_WIDTH
+                + (column << 3);
+        for (int pixelRow = 0; pixelRow < 8; pixelRow++) {
+            int bits = memory[pixBase + (pixelRow << 8)] & 0xff;
+            System.arraycopy(EXPANSION, (pair << 11) | (bits << 3), pixels,
+                    pos, 8);
+            pos += WIDTH;
+        }
+    }
+
+    /**
+     * Renders the border around the paper.
+     *
+     * @param border	Border color 0-7
+     */
+    public void renderBorder(int border) {
+        int borderRGB = COLORS_RGB[border & 7];
+        int paperEnd = BORDER_WIDTH + PAPER_HEIGHT;
+        Arrays.fill(pixels, 0, BORDER_WIDTH * WIDTH, borderRGB);
+        for (int row = BORDER_WIDTH; row < paperEnd; row++) {
+            int pos = row * WIDTH;
+            Arrays.fill(pixels, pos, pos + BORDER_WIDTH, borderRGB);
+            pos += BORDER_WIDTH + PAPER_WIDTH;
+            Arrays.fill(pixels, pos, pos + BORDER_WIDTH, borderRGB);
+        }
+        Arrays.fill(pixels, paperEnd * WIDTH, HEIGHT * WIDTH, borderRGB);
+    }
+
+    /**
+     * @return	Index of the ink and paper pair of an attribute byte in the
+     * expansion table
+     */
+    private static int colorPair(int attr, boolean flashState) {
+        if ((attr < 0) && flashState) {
+            /* FLASH: ink and paper swapped, BRIGHT kept */
+            return (attr & 0x40) | ((attr & 7) << 3) | ((attr >> 3) & 7);
+        }
+        return attr & 0x7f;
+    }
+
+    /**
+     * @return	A new image of the rendered pixels
+     */
+    public BufferedImage toImage() {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT,
+                BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, WIDTH, HEIGHT, pixels, 0, WIDTH);
+        return image;
+    }
+}
@@ -32,30 +32,6 @@ public class SpectrumScreen extends JPanel {
     public void setUla(SpectrumULA ula) {
         this.ula = ula;
     }
-    /**
-     * The RGB integer array of Spectrum colors. Change this in order to fix the
-     * colors appearance.
-     */
-    private final int[] spectrumColorsRGB = {
-        0x000000, // DARK BLACK
-        0x0000cf, // DARK BLUE
-        0xcf0000, // DARK RED
-        0xcf00cf, // DARK MAGENTA
-        0x00cf00, // DARK GREEN
-        0x00cfcf, // DARK CYAN
-        0xcfcf00, // DARK YELLOW
-        0xcfcfcf, // DARK WHITE (e.g. grey)
-        0x000000, // BLACK
-        0x0000ff, // BRIGHT BLUE
-        0xff0000, // BRIGHT RED
-        0xff00ff, // BRIGHT MAGENTA
-        0x00ff00, // BRIGHT GREEN
-        0x00ffff, // BRIGHT CYAN
-        0xffff00, // BRIGHT YELLOW
-        0xffffff // BRIGHT WHITE
-    };
-    private Color[] spectrumColors = new Color[16];
-    private BufferedImage paperStripe;
     public static final int SCALE = 2;
     public static final int PAPER_WIDTH = 256;
     public static final int PAPER_HEIGHT = 192;
@@ -64,16 +40,22 @@ public class SpectrumScreen extends JPanel {
     public static final int WIDTH_S = BORDER_WIDTH + PAPER_WIDTH + BORDER_WIDTH;
     public static final int HEIGHT_S = BORDER_WIDTH + PAPER_HEIGHT + LOWER_BORDER_WIDTH;
 
+    /*
+     * The whole unscaled screen. Cells are rendered straight into its data
+     * buffer by the emulation thread, and the event dispatch thread only
+     * scales it onto the panel.
+     */
+    private final BufferedImage frame;
+    private final SpectrumRaster raster;
+
     /**
      * Initializes the screen with Spectrum-related measures of paper area and
      * colors.
      */
     public SpectrumScreen() {
-        paperStripe = new BufferedImage(SCALE * PAPER_WIDTH, SCALE,
-                BufferedImage.TYPE_INT_RGB);
-        for (int i = 0; i < 16; i++) {
-            spectrumColors[i] = new Color(spectrumColorsRGB[i]);
-        }
+        frame = new BufferedImage(WIDTH_S, HEIGHT_S, BufferedImage.TYPE_INT_RGB);
+        raster = new SpectrumRaster(((DataBufferInt) frame.getRaster()
+                .getDataBuffer()).getData());
     }
 
     @Override
@@ -81,76 +63,64 @@ public class SpectrumScreen extends JPanel {
         return new Dimension(SCALE * WIDTH_S, SCALE * HEIGHT_S);
     }
 
-    private void setPixel(int x, int colorno) {
-        for (int i = 0; i < SCALE; i++) {
-            for (int j = 0; j < SCALE; j++) {
-                paperStripe.setRGB(SCALE * x + j, i, spectrumColorsRGB[colorno]);
-            }
-        }
-    }
-
     /**
-     * Updates screen row from range 0-311. The highest 48 and lowest 56 rows
-     * consist solely of BORDER area. This entry point is for external calls
-     * only.
+     * Renders the given 8x8 cells of the paper and requests their repaint.
+     * Consecutive character rows with dirty cells are merged into a single
+     * rectangle spanning their leftmost and rightmost dirty columns, so a
+     * frame takes a few repaint requests at most, and none if nothing has
+     * changed.
+     *
+     * @param dirtyCells	One bit per column for each of the 24 character
+     * rows
+     * @param borderDirty	Whether the border is to be rendered as well, in
+     * which case the whole screen is repainted
      */
-    public void updateRow(int row) {
-        repaint(0, SCALE * row, SCALE * WIDTH_S, SCALE);
-    }
-
-    public void updateRowSync(Graphics g, int row) {
-        int b = ula.getBorder();
-        g.setColor(spectrumColors[b]);
-        if ((row < BORDER_WIDTH) || (row >= BORDER_WIDTH + PAPER_HEIGHT)) {
-            g.fillRect(0, SCALE * row, SCALE * WIDTH_S, SCALE);
-        } else {
-            g.fillRect(0, SCALE * row, SCALE * BORDER_WIDTH, SCALE);
-            g.fillRect(SCALE * (BORDER_WIDTH + PAPER_WIDTH), SCALE * row,
-                    SCALE * BORDER_WIDTH, SCALE);
-            int n = row - BORDER_WIDTH;
-            byte[] memory = ula.getMemory();
-            int third = (n & 0xc0) >> 6;
-            int characterRow = (n & 0x38) >> 3;
-            int pixelRow = n & 0x7;
-            int pixBase = 0x4000 | (characterRow << 5) | (pixelRow << 8)
-                    | (third << 11);
-            int attrBase = 0x5800 | (characterRow << 5) | (third << 8);
-            for (int i = 0; i < PAPER_WIDTH; i++) {
-                int c = i >> 3;
-                byte attrCell = memory[attrBase + c];
-
-                /* INK:   -x---xxx */
-                int ink = (attrCell & 7) | ((attrCell & 0x40) >> 3);
-
-                /* PAPER: -xxxx--- */
-                int paper = (attrCell & 0x78) >> 3;
-
-                if (((attrCell & 0x80) != 0) & ula.getFlashState()) {
-                    /* FLASH: x------- */
-                    int tmp = ink;
-                    ink = paper;
-                    paper = tmp;
+    public void updateCells(int[] dirtyCells, boolean borderDirty) {
+        byte[] memory = ula.getScreenMemory();
+        int screenOffset = ula.getScreenOffset();
+        boolean flashState = ula.getFlashState();
+        int top = -1, columns = 0;
+        for (int row = 0; row <= dirtyCells.length; row++) {
+            int cells = (row < dirtyCells.length) ? dirtyCells[row] : 0;
+            if (cells != 0) {
+                for (int c = 0; c < 32; c++) {
+                    if ((cells & (1 << c)) != 0) {
+                        raster.renderCell(memory, screenOffset, flashState,
+                                row, c);
+                    }
                 }
-                int ind = i & 7;
-                if ((memory[pixBase + c] & (0x80 >> ind)) != 0) {
-                    setPixel(i, ink);
-                } else {
-                    setPixel(i, paper);
+                if (top < 0) {
+                    top = row;
                 }
+                columns |= cells;
+            } else if (top >= 0) {
+                if (!borderDirty) {
+                    repaintCells(top, row, columns);
+                }
+                top = -1;
+                columns = 0;
             }
-            g.drawImage(paperStripe, SCALE * BORDER_WIDTH, SCALE * row,
-                    SCALE * PAPER_WIDTH, SCALE, this);
+        }
+        if (borderDirty) {
+            raster.renderBorder(ula.getBorder());
+            repaint();
         }
     }
 
+    /**
+     * Requests the repaint of the columns set in the mask, from character
+     * row top up to but not including row bottom.
+     */
+    private void repaintCells(int top, int bottom, int columns) {
+        int left = Integer.numberOfTrailingZeros(columns);
+        int right = 32 - Integer.numberOfLeadingZeros(columns);
+        repaint(SCALE * (BORDER_WIDTH + 8 * left),
+                SCALE * (BORDER_WIDTH + 8 * top), SCALE * 8 * (right - left),
+                SCALE * 8 * (bottom - top));
+    }
+
     @Override
     protected void paintComponent(Graphics g) {
-        Rectangle clipBounds = g.getClipBounds();
-        int y1 = clipBounds.y / SCALE;
-        int y2;
-        y2 = (clipBounds.y + clipBounds.height) / SCALE;
-        for (int i = y1; i < y2; i++) {
-            updateRowSync(g, i);
-        }
+        g.drawImage(frame, 0, 0, SCALE * WIDTH_S, SCALE * HEIGHT_S, this);
     }
 }
@@ -0,0 +1,239 @@
+/*
+ * SpectrumScreenshotBatch.java - Renders screenshots of many snapshots.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.spectrum;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.imageio.*;
+
+import org.apache.log4j.*;
+
+import org.mn.z80util.spectrum.snapshots.*;
+import org.mn.z80util.z80.*;
+import org.mn.z80util.z80.qaop.*;
+import org.mn.z80util.z80.yaze.*;
+
+/**
+ * Runs each of the given snapshots headless for a number of frames and saves
+ * the screen as a PNG image of 352x296 pixels. The snapshots are divided
+ * among worker threads, each of which has its own processor, ULA and raster,
+ * so the workers share nothing but the ROM image.
+ */
+public class SpectrumScreenshotBatch {
+
+    private static Logger LOG = Logger.getLogger(SpectrumScreenshotBatch.class);
+    private final byte[] rom;
+    private final int frames;
+    private final File outputDir;
+    private final boolean useQaop;
+    private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+
+        @Override
+        protected Worker initialValue() {
+            return new Worker();
+        }
+    };
+
+    /**
+     * Emulator of a single worker thread.
+     */
+    private class Worker {
+
+        private final Z80 z80;
+        private final SpectrumULA ula = new SpectrumULA();
+        private final SpectrumRaster raster = new SpectrumRaster();
+
+        Worker() {
+            if (useQaop) {
+                z80 = new QaopZ80Impl();
+            } else {
+                z80 = new YazeBasedZ80Impl();
+            }
+            z80.setUla(ula);
+            ula.reset();
+            ula.loadROM(new ByteArrayInputStream(rom));
+        }
+
+        void render(String fileName) throws IOException {
+            ula.clearKeyData();
+            ula.setFlashState(false);
+            z80.reset();
+            if (Snapshots.fileType(fileName).equals("sna")) {
+                new SNASnapshot(fileName).write(z80, ula);
+            } else {
+                new Z80Snapshot(fileName).write(z80, ula);
+            }
+
+            SpectrumTurboRunner runner = new SpectrumTurboRunner();
+            runner.setZ80(z80);
+            runner.setUla(ula);
+            runner.runFrames(frames);
+
+            raster.render(ula);
+            File output = new File(outputDir, imageName(fileName));
+            ImageIO.write(raster.toImage(), "png", output);
+            LOG.info("Saved " + output.getPath() + ".");
+        }
+    }
+
+    /**
+     * @param rom	The 16K ROM image
+     * @param frames	Number of frames to run each snapshot before rendering
+     * @param outputDir	Directory of the images
+     * @param useQaop	Whether to use QaopZ80Impl instead of YazeBasedZ80Impl
+     */
+    public SpectrumScreenshotBatch(byte[] rom, int frames, File outputDir,
+            boolean useQaop) {
+        this.rom = rom;
+        this.frames = frames;
+        this.outputDir = outputDir;
+        this.useQaop = useQaop;
+    }
+
+    /**
+     * @return	Image file name of a snapshot, the directory and extension
+     * removed.
+     */
+    static String imageName(String fileName) {
+        String name = new File(fileName).getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return name + ".png";
+    }
+
+    /**
+     * Renders the snapshots using given number of threads.
+     *
+     * @return	Number of snapshots which could not be rendered
+     */
+    public int run(List<String> fileNames, int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (final String fileName : fileNames) {
+            results.add(executor.submit(new Callable<Void>() {
+
+                public Void call() throws IOException {
+                    workers.get().render(fileName);
+                    return null;
+                }
+            }));
+        }
+        executor.shutdown();
+
+        int failures = 0;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                results.get(i).get();
+            } catch (ExecutionException e) {
+                LOG.error("Unable to render " + fileNames.get(i) + ".",
+                        e.getCause());
+                failures++;
+            } catch (InterruptedException e) {
+                LOG.error("Interrupted while rendering.", e);
+                Thread.currentThread().interrupt();
+                return fileNames.size() - i;
+            }
+        }
+        return failures;
+    }
+
+    private static byte[] readROM(String ROMFileName) {
+        InputStream is = SpectrumScreenshotBatch.class.getResourceAsStream("/"
+                + ROMFileName);
+        if (is == null) {
+            LOG.error("ROM " + ROMFileName + " not found.");
+            System.exit(1);
+        }
+        byte[] rom = new byte[0x4000];
+        try {
+            int len = 0, n;
+            while ((len < rom.length)
+                    && ((n = is.read(rom, len, rom.length - len)) > 0)) {
+                len += n;
+            }
+            is.close();
+        } catch (IOException e) {
+            LOG.error("Unable to read ROM " + ROMFileName + ".", e);
+            System.exit(1);
+        }
+        return rom;
+    }
+
+    /**
+     * Renders screenshots of .z80 and .sna snapshots given as arguments.
+     * Options:
+     *
+     * <ul> <li>-rom FILE: ROM resource (default 48.rom)</li>
+     * <li>-frames N: number of frames to run before rendering (default
+     * 100)</li> <li>-threads N: number of worker threads (default the number
+     * of processors)</li> <li>-out DIR: directory of the images (default
+     * current directory)</li> <li>-qaop: use QaopZ80Impl instead of
+     * YazeBasedZ80Impl</li> </ul>
+     */
+    public static void main(String[] args) {
+        String ROMFileName = "48.rom";
+        int frames = 100;
+        int threads = Runtime.getRuntime().availableProcessors();
+        File outputDir = new File(".");
+        boolean useQaop = false;
+        List<String> fileNames = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-rom")) {
+                ROMFileName = args[++i];
+            } else if (args[i].equals("-frames")) {
+                frames = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-out")) {
+                outputDir = new File(args[++i]);
+            } else if (args[i].equals("-qaop")) {
+                useQaop = true;
+            } else {
+                fileNames.add(args[i]);
+            }
+        }
+        if (fileNames.isEmpty()) {
+            LOG.error("Usage: SpectrumScreenshotBatch [options] snapshots...");
+            System.exit(1);
+        }
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            LOG.error("Unable to create directory " + outputDir + ".");
+            System.exit(1);
+        }
+
+        System.setProperty("java.awt.headless", "true");
+        SpectrumScreenshotBatch batch = new SpectrumScreenshotBatch(
+                readROM(ROMFileName), frames, outputDir, useQaop);
+        long startTime = System.nanoTime();
+        int failures = batch.run(fileNames, threads);
+        LOG.info("Rendered " + (fileNames.size() - failures) + " of "
+                + fileNames.size() + " snapshots with " + threads
+                + " threads in " + String.format("%.3f",
+                (System.nanoTime() - startTime) / 1e9) + " s.");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * SpectrumTurboRunner.java - Headless Spectrum runner without speed limit.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.spectrum;
+
+import java.io.*;
+
+import org.apache.log4j.*;
+
+import org.mn.z80util.spectrum.profiling.*;
+import org.mn.z80util.spectrum.snapshots.*;
+import org.mn.z80util.z80.*;
+import org.mn.z80util.z80.qaop.*;
+import org.mn.z80util.z80.yaze.*;
+
+/**
+ * Drives the processor and the ULA without GUI, screen or speed limit. The
+ * timing follows SpectrumZ80Clock: an interrupt at the beginning of each
+ * frame, 312 lines of 224 T-states each, but there is no delay between the
+ * frames. Useful for running snapshots in batch.
+ */
+public class SpectrumTurboRunner {
+
+    private static Logger LOG = Logger.getLogger(SpectrumTurboRunner.class);
+    public static final int TSTATES_PER_LINE = SpectrumULA.TSTATES_PER_LINE;
+    public static final int LINES_PER_FRAME = SpectrumULA.LINES_PER_FRAME;
+    public static final int TSTATES_PER_FRAME = SpectrumULA.TSTATES_PER_FRAME;
+    private Z80 z80;
+
+    public void setZ80(Z80 z80) {
+        this.z80 = z80;
+        attachTraceRecorder();
+    }
+    private SpectrumULA ula;
+
+    public void setUla(SpectrumULA ula) {
+        this.ula = ula;
+    }
+    private RewindBuffer rewindBuffer;
+
+    /**
+     * @param rewindBuffer	Buffer where the state at the end of each frame
+     * is recorded, null for none
+     */
+    public void setRewindBuffer(RewindBuffer rewindBuffer) {
+        this.rewindBuffer = rewindBuffer;
+    }
+    private TraceRecorder traceRecorder;
+    /* True if the processor is not a TracingZ80 and is traced by the runner */
+    private boolean traceEachCommand;
+
+    /**
+     * @param traceRecorder	Recorder of every executed instruction, null
+     * for none. A TracingZ80 records its instructions itself, other
+     * processors are run command by command while tracing.
+     */
+    public void setTraceRecorder(TraceRecorder traceRecorder) {
+        this.traceRecorder = traceRecorder;
+        attachTraceRecorder();
+    }
+
+    private void attachTraceRecorder() {
+        if (z80 instanceof TracingZ80) {
+            ((TracingZ80) z80).setInstructionTracer(traceRecorder);
+            traceEachCommand = false;
+        } else {
+            traceEachCommand = (traceRecorder != null);
+        }
+    }
+    private int interrupts, screenLine;
+    private long executedTStates, elapsedNanos;
+
+    public int getInterrupts() {
+        return interrupts;
+    }
+
+    public long getExecutedTStates() {
+        return executedTStates;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return	Emulated T-states per wall clock microsecond, that is, the
+     * speed of the emulated processor in MHz.
+     */
+    public double getEmulatedMHz() {
+        if (elapsedNanos == 0) {
+            return 0.0;
+        }
+        return (double) executedTStates * 1000.0 / elapsedNanos;
+    }
+
+    /**
+     * A single line of 224 T-states. The interrupt is generated at the
+     * beginning of the first line of each frame.
+     */
+    private void processorLine() {
+        if (screenLine == 0) {
+            z80.interrupt();
+            if ((interrupts % 25) == 0) {
+                ula.changeFlashState();
+            }
+        }
+
+        ula.startLine(screenLine);
+        if (traceRecorder != null) {
+            traceRecorder.setTimeBase(executedTStates + TSTATES_PER_LINE);
+        }
+        if (traceEachCommand) {
+            tracedLine();
+        } else {
+            z80.executeTStates(TSTATES_PER_LINE);
+        }
+        executedTStates += TSTATES_PER_LINE;
+
+        if (++screenLine == LINES_PER_FRAME) {
+            screenLine = 0;
+            interrupts++;
+            if (rewindBuffer != null) {
+                rewindBuffer.record(z80, ula);
+            }
+            if (traceRecorder != null) {
+                traceRecorder.updateHeader();
+            }
+        }
+    }
+
+    /**
+     * A line run command by command, each command recorded before it is
+     * executed, for processors which do not trace themselves. The T-states
+     * of a record count from the beginning of the run.
+     */
+    private void tracedLine() {
+        z80.setTStates(z80.getTStates() + TSTATES_PER_LINE);
+        while (z80.getTStates() > 0) {
+            traceRecorder.record(z80, ula);
+            z80.executeNextCommand();
+        }
+    }
+
+    /**
+     * Runs given number of full frames as fast as possible.
+     *
+     * @param frames	Number of frames (interrupt periods)
+     */
+    public void runFrames(int frames) {
+        long startTime = System.nanoTime();
+        for (long i = (long) frames * LINES_PER_FRAME; i > 0; i--) {
+            processorLine();
+        }
+        elapsedNanos += System.nanoTime() - startTime;
+    }
+
+    /**
+     * Runs at least given number of T-states as fast as possible. The run is
+     * rounded up to the next full line of 224 T-states.
+     *
+     * @param tstates	Number of T-states
+     */
+    public void runTStates(long tstates) {
+        long startTime = System.nanoTime();
+        long target = executedTStates + tstates;
+        while (executedTStates < target) {
+            processorLine();
+        }
+        elapsedNanos += System.nanoTime() - startTime;
+    }
+
+    /**
+     * Rewinds the machine to the end of an earlier frame, and the count of
+     * frames with it.
+     *
+     * @param frames	Number of frames to go back from the latest one
+     * @return	Number of frames gone back, -1 if nothing was recorded
+     */
+    public int rewind(int frames) {
+        if (rewindBuffer == null) {
+            return -1;
+        }
+        int framesBack = rewindBuffer.rewind(frames, z80, ula);
+        if (framesBack > 0) {
+            interrupts -= framesBack;
+        }
+        return framesBack;
+    }
+
+    /**
+     * Logs the throughput of the runs so far.
+     */
+    public void reportThroughput() {
+        double seconds = elapsedNanos / 1e9;
+        double mhz = getEmulatedMHz();
+        LOG.info("Executed " + interrupts + " frames (" + executedTStates
+                + " T-states) in " + String.format("%.3f", seconds) + " s.");
+        LOG.info("Emulated speed: " + String.format("%.2f", mhz) + " MHz ("
+                + String.format("%.1f", mhz / 3.5) + " x real Spectrum).");
+    }
+
+    /**
+     * Runs a snapshot headless. Arguments are as in Main, with additional
+     * options:
+     *
+     * <ul> <li>-frames N: number of frames to run (default 500)</li>
+     * <li>-tstates N: number of T-states to run instead of frames</li>
+     * <li>-qaop: use QaopZ80Impl instead of YazeBasedZ80Impl</li>
+     * <li>-blocks: use QaopZ80Impl with block translation</li>
+     * <li>-rewind N: record the frames and finally rewind N frames back</li>
+     * <li>-trace FILE: record every instruction into a trace file, listed by
+     * TraceDecoder</li> <li>-tracesize MB: size of the trace file, of which
+     * the latest instructions are kept (default 1024)</li> </ul>
+     */
+    public static void main(String[] args) {
+        String ROMFileName = "48.rom", Z80FileName = null, SNAFileName = null;
+        int frames = 500;
+        long tstates = -1;
+        int rewindFrames = -1;
+        String traceFileName = null;
+        long traceMegabytes = 1024;
+        boolean useQaop = false, useBlocks = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-rom")) {
+                ROMFileName = args[++i];
+            } else if (args[i].equals("-z80")) {
+                Z80FileName = args[++i];
+            } else if (args[i].equals("-sna")) {
+                SNAFileName = args[++i];
+            } else if (args[i].equals("-frames")) {
+                frames = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-tstates")) {
+                tstates = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-qaop")) {
+                useQaop = true;
+            } else if (args[i].equals("-blocks")) {
+                useQaop = useBlocks = true;
+            } else if (args[i].equals("-rewind")) {
+                rewindFrames = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-trace")) {
+                traceFileName = args[++i];
+            } else if (args[i].equals("-tracesize")) {
+                traceMegabytes = Long.parseLong(args[++i]);
+            } else {
+                LOG.warn("Unknown argument: " + args[i]);
+            }
+        }
+
+        Z80 z80;
+        if (useQaop) {
+            QaopZ80Impl qaop = new QaopZ80Impl();
+            qaop.setBlockTranslation(useBlocks);
+            z80 = qaop;
+        } else {
+            z80 = new YazeBasedZ80Impl();
+        }
+        SpectrumULA ula = new SpectrumULA();
+        z80.setUla(ula);
+        ula.reset();
+        z80.reset();
+        ula.loadROM(SpectrumTurboRunner.class.getResourceAsStream("/"
+                + ROMFileName));
+        try {
+            if (Z80FileName != null) {
+                new Z80Snapshot(Z80FileName).write(z80, ula);
+            } else if (SNAFileName != null) {
+                new SNASnapshot(SNAFileName).write(z80, ula);
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to load snapshot.", e);
+            System.exit(1);
+        }
+
+        SpectrumTurboRunner runner = new SpectrumTurboRunner();
+        runner.setZ80(z80);
+        runner.setUla(ula);
+        RewindBuffer rewindBuffer = null;
+        if (rewindFrames >= 0) {
+            rewindBuffer = new RewindBuffer(Math.max(rewindFrames + 1, 3000),
+                    64L << 20, 50);
+            runner.setRewindBuffer(rewindBuffer);
+        }
+        TraceRecorder traceRecorder = null;
+        if (traceFileName != null) {
+            try {
+                traceRecorder = new TraceRecorder(new File(traceFileName),
+                        traceMegabytes << 20);
+            } catch (IOException e) {
+                LOG.error("Unable to create trace " + traceFileName + ".", e);
+                System.exit(1);
+            }
+            runner.setTraceRecorder(traceRecorder);
+        }
+        LOG.info("Running " + z80.getClass().getName() + " headless.");
+        if (tstates >= 0) {
+            runner.runTStates(tstates);
+        } else {
+            runner.runFrames(frames);
+        }
+        runner.reportThroughput();
+        if (traceRecorder != null) {
+            try {
+                traceRecorder.close();
+            } catch (IOException e) {
+                LOG.error("Unable to write trace " + traceFileName + ".", e);
+            }
+        }
+        if (rewindBuffer != null) {
+            LOG.info("Recorded " + rewindBuffer.getFrameCount()
+                    + " frames in " + rewindBuffer.getSize() + " bytes.");
+            long startTime = System.nanoTime();
+            int framesBack = runner.rewind(rewindFrames);
+            LOG.info("Rewound " + framesBack + " frames in " + String.format(
+                    "%.3f", (System.nanoTime() - startTime) / 1e6) + " ms.");
+        }
+    }
+}
@@ -28,9 +28,65 @@ import org.apache.log4j.*;
 
 import org.mn.z80util.z80.*;
 
-public class SpectrumULA implements AddressBusProvider {
+public class SpectrumULA implements ContendedAddressBusProvider,
+        FastAddressBusProvider {
 
     Logger LOG = Logger.getLogger(SpectrumULA.class);
+
+    /* Frame timing of the 48K Spectrum */
+    public static final int TSTATES_PER_LINE = 224;
+    public static final int LINES_PER_FRAME = 312;
+    public static final int TSTATES_PER_FRAME = TSTATES_PER_LINE * LINES_PER_FRAME;
+    /* T-state of the first contended access to the screen memory */
+    public static final int CONTENTION_START = 14335;
+
+    /* Machine models */
+    public static final int MODEL_48K = 0;
+    public static final int MODEL_128K = 1;
+    public static final int MODEL_PLUS3 = 2;
+    public static final int BANK_SIZE = MemoryPages.PAGE_SIZE;
+
+    /* RAM banks in the four pages in the special paging modes of +2A/+3 */
+    private static final int[][] SPECIAL_PAGING = {
+        {0, 1, 2, 3}, {4, 5, 6, 7}, {4, 5, 6, 3}, {4, 7, 6, 3}
+    };
+
+    /*
+     * Contention delays for every T-state of the frame. While the ULA reads
+     * the 128 T-states of display data of each of the 192 screen lines, an
+     * access to 4000h-7FFFh is delayed until the end of the current 8 T-state
+     * fetch cycle: 6, 5, 4, 3, 2, 1, 0, 0 T-states.
+     */
+    private static final byte[] CONTENTION_DELAYS = new byte[TSTATES_PER_FRAME];
+
+    static {
+        for (int line = 0; line < 192; line++) {
+            int start = CONTENTION_START + line * TSTATES_PER_LINE;
+            for (int t = 0; t < 128; t++) {
+                int delay = 6 - (t & 7);
+                CONTENTION_DELAYS[start + t] = (byte) (delay < 0 ? 0 : delay);
+            }
+        }
+    }
+    private final MemoryContention contention =
+            new MemoryContention(CONTENTION_DELAYS, 1 << 1);
+
+    @Override
+    public MemoryContention getMemoryContention() {
+        return contention;
+    }
+
+    /**
+     * Positions the contention model to given line of the frame. Must be
+     * called after the T-states of the line have been given to the
+     * processor, so that its T-state counter reaches zero at the end of the
+     * line.
+     *
+     * @param line	The line, 0-311
+     */
+    public void startLine(int line) {
+        contention.setFrameOffset((line + 1) * TSTATES_PER_LINE);
+    }
     private SpectrumScreen scr;
 
     public void setScreen(SpectrumScreen scr) {
@@ -38,12 +94,259 @@ public class SpectrumULA implements AddressBusProvider {
     }
     private boolean flashState = false;
     private int border = 0;
+    /*
+     * The memory of the 48K model is the flat 64K address space. The other
+     * models have their ROMs followed by the eight RAM banks, and the pages
+     * of the address space are mapped to them by the paging registers.
+     */
     private byte[] memory = new byte[0x10000];
+    private final MemoryPages pages = new MemoryPages(memory);
+    private int model = MODEL_48K;
+    private int romCount = 1;
+    private int port7ffd, port1ffd;
+    /* Bit mask of the pages of the address space which are mapped to ROM */
+    private int romPages = 1;
+    /* Index of the displayed screen in the memory */
+    private int screenOffset = 0x4000;
     private byte[] keys = new byte[8];
-    private boolean[] screenLineUpdateRequest = new boolean[296];
+    /*
+     * Paper cells to be rendered, one bit per column for each of the 24
+     * character rows, and whether the border is to be rendered.
+     */
+    private final int[] dirtyCells = new int[24];
+    private boolean borderDirty;
+
+    public SpectrumULA() {
+        updatePaging();
+    }
+
+    @Override
+    public MemoryPages getMemoryPages() {
+        return pages;
+    }
+
+    /**
+     * Writes to the ROM and the displayed screen must always go through
+     * setByte().
+     */
+    private void updateWatchedMemory() {
+        pages.setWatched(0x0000, 0x10000, false);
+        for (int page = 0; page < 4; page++) {
+            int start = page * BANK_SIZE;
+            if ((romPages & (1 << page)) != 0) {
+                pages.setWatched(start, start + BANK_SIZE, true);
+            } else if (pages.getPageOffset(page) == screenOffset) {
+                pages.setWatched(start, start + 0x1b00, true);
+            }
+        }
+    }
+
+    public int getModel() {
+        return model;
+    }
+
+    /**
+     * Changes the machine model and reallocates the memory. The RAM is
+     * cleared and the paging registers are reset. Every ROM of the new model
+     * is a copy of the last ROM of the previous one, which is the 48K BASIC
+     * on every model, until the ROMs of the model are loaded by loadROM().
+     *
+     * @param model	MODEL_48K, MODEL_128K or MODEL_PLUS3
+     */
+    public void setModel(int model) {
+        if (model == this.model) {
+            return;
+        }
+        byte[] basic = new byte[BANK_SIZE];
+        System.arraycopy(memory, (romCount - 1) * BANK_SIZE, basic, 0,
+                BANK_SIZE);
+        this.model = model;
+        switch (model) {
+            case MODEL_128K:
+                romCount = 2;
+                memory = new byte[(romCount + 8) * BANK_SIZE];
+                break;
+            case MODEL_PLUS3:
+                romCount = 4;
+                memory = new byte[(romCount + 8) * BANK_SIZE];
+                break;
+            default:
+                romCount = 1;
+                memory = new byte[0x10000];
+        }
+        for (int rom = 0; rom < romCount; rom++) {
+            System.arraycopy(basic, 0, memory, rom * BANK_SIZE, BANK_SIZE);
+        }
+        pages.setMemory(memory);
+        port7ffd = port1ffd = 0;
+        updatePaging();
+        LOG.info("Machine model changed to " + model + ".");
+    }
+
+    /**
+     * @return	Index of given RAM bank in the memory. The 48K model has only
+     * banks 5, 2 and 0, at 4000h, 8000h and C000h.
+     */
+    private int bankOffset(int bank) {
+        if (model != MODEL_48K) {
+            return (romCount + bank) * BANK_SIZE;
+        }
+        switch (bank) {
+            case 5:
+                return 0x4000;
+            case 2:
+                return 0x8000;
+            case 0:
+                return 0xc000;
+        }
+        throw new IllegalArgumentException("No RAM bank " + bank
+                + " in 48K model.");
+    }
+
+    /**
+     * Copies the contents of a 16K RAM bank.
+     */
+    public void readRAMBank(int bank, byte[] data) {
+        System.arraycopy(memory, bankOffset(bank), data, 0, BANK_SIZE);
+    }
+
+    /**
+     * Replaces the contents of a 16K RAM bank.
+     */
+    public void writeRAMBank(int bank, byte[] data) {
+        writeRAMBank(bank, data, 0);
+        markScreenDirty();
+    }
+
+    /**
+     * Replaces the contents of a 16K RAM bank without marking the screen
+     * dirty, for loading several banks at once.
+     *
+     * @param start	Index of the bank contents in the array
+     */
+    public void writeRAMBank(int bank, byte[] data, int start) {
+        System.arraycopy(data, start, memory, bankOffset(bank), BANK_SIZE);
+        pages.markModified();
+    }
+
+    public int getPort7FFD() {
+        return port7ffd;
+    }
+
+    public int getPort1FFD() {
+        return port1ffd;
+    }
+
+    /**
+     * Sets the paging registers regardless of the paging lock, for example
+     * when loading a snapshot.
+     */
+    public void setPagingPorts(int port7ffd, int port1ffd) {
+        this.port7ffd = port7ffd & 0xff;
+        this.port1ffd = port1ffd & 0xff;
+        updatePaging();
+    }
+
+    /**
+     * Maps the pages of the address space according to the model and the
+     * paging registers. Switching banks only changes the page offsets, so
+     * nothing is copied.
+     */
+    private void updatePaging() {
+        int contendedPages = 0;
+        int oldScreenOffset = screenOffset;
+        if (model == MODEL_48K) {
+            for (int page = 0; page < 4; page++) {
+                pages.setPageOffset(page, page * BANK_SIZE);
+            }
+            romPages = 1;
+            contendedPages = 1 << 1;
+            screenOffset = 0x4000;
+        } else {
+            int[] banks;
+            if ((model == MODEL_PLUS3) && ((port1ffd & 1) != 0)) {
+                banks = SPECIAL_PAGING[(port1ffd >> 1) & 3];
+                romPages = 0;
+            } else {
+                int rom = (port7ffd >> 4) & 1;
+                if (model == MODEL_PLUS3) {
+                    rom |= (port1ffd >> 1) & 2;
+                }
+                banks = new int[] {-1, 5, 2, port7ffd & 7};
+                pages.setPageOffset(0, rom * BANK_SIZE);
+                romPages = 1;
+            }
+            for (int page = 0; page < 4; page++) {
+                int bank = banks[page];
+                if (bank < 0) {
+                    continue;
+                }
+                pages.setPageOffset(page, bankOffset(bank));
+                /* Banks 1, 3, 5 and 7 on 128K, 4-7 on +2A/+3 are contended */
+                if ((model == MODEL_PLUS3) ? (bank >= 4) : ((bank & 1) != 0)) {
+                    contendedPages |= 1 << page;
+                }
+            }
+            screenOffset = bankOffset(((port7ffd & 8) != 0) ? 7 : 5);
+        }
+        contention.setContendedPages(contendedPages);
+        updateWatchedMemory();
+        if (screenOffset != oldScreenOffset) {
+            markScreenDirty();
+        }
+    }
+
+    /**
+     * Resets the paging registers, as the reset of the machine does.
+     */
+    public void resetPaging() {
+        setPagingPorts(0, 0);
+    }
+
+    private void writePort7FFD(int value) {
+        if ((port7ffd & 0x20) == 0) {
+            /* Not locked by bit 5 */
+            port7ffd = value & 0xff;
+            updatePaging();
+        }
+    }
+
+    private void writePort1FFD(int value) {
+        if ((port7ffd & 0x20) == 0) {
+            port1ffd = value & 0xff;
+            updatePaging();
+        }
+    }
+
+    /**
+     * @return	The memory containing the displayed screen
+     */
+    public byte[] getScreenMemory() {
+        return memory;
+    }
+
+    /**
+     * @return	Index of the displayed screen, that is, of 4000h on the 48K
+     * model, in the screen memory
+     */
+    public int getScreenOffset() {
+        return screenOffset;
+    }
 
     public void changeFlashState() {
         flashState = !flashState;
+        markFlashingCellsDirty();
+    }
+
+    /**
+     * Marks the cells with the FLASH attribute set to be rendered.
+     */
+    private void markFlashingCellsDirty() {
+        for (int i = 0; i < 0x300; i++) {
+            if (memory[screenOffset + 0x1800 + i] < 0) {
+                dirtyCells[i >> 5] |= 1 << (i & 0x1f);
+            }
+        }
     }
 
     public boolean getFlashState() {
@@ -56,7 +359,7 @@ public class SpectrumULA implements AddressBusProvider {
 
     @Override
     public byte getByte(short address) {
-        return memory[address & 0xffff];
+        return memory[pages.index(address)];
     }
 
     @Override
@@ -79,9 +382,23 @@ public class SpectrumULA implements AddressBusProvider {
         return retval;
     }
 
+    /**
+     * @return	The memory of the 48K model as such, or a newly allocated copy
+     * of the 64K currently paged in on the other models, to which writes are
+     * lost. Use getMemoryPages() or readRAMBank() for access without
+     * copying.
+     */
     @Override
     public byte[] getMemory() {
-        return memory;
+        if (model == MODEL_48K) {
+            return memory;
+        }
+        byte[] mapped = new byte[0x10000];
+        for (int page = 0; page < 4; page++) {
+            System.arraycopy(memory, pages.getPageOffset(page), mapped,
+                    page * BANK_SIZE, BANK_SIZE);
+        }
+        return mapped;
     }
 
     @Override
@@ -92,13 +409,23 @@ public class SpectrumULA implements AddressBusProvider {
     }
 
     /**
-     * Loads Spectrum ROM
+     * Loads Spectrum ROM. A file of a single 16K ROM is used for every ROM
+     * of the model.
      *
      * @param is	Input stream where the ROM is in uncompressed plain format.
      */
     public void loadROM(InputStream is) {
         try {
-            is.read(memory, 0, 0x4000);
+            int length = 0, n;
+            while ((length < romCount * BANK_SIZE) && ((n = is.read(memory,
+                    length, romCount * BANK_SIZE - length)) > 0)) {
+                length += n;
+            }
+            for (int rom = 1; (rom < romCount) && (length <= BANK_SIZE);
+                    rom++) {
+                System.arraycopy(memory, 0, memory, rom * BANK_SIZE,
+                        BANK_SIZE);
+            }
         } catch (NullPointerException npexc) {
             LOG.error("ROM file not found.", npexc);
             System.exit(1);
@@ -106,64 +433,84 @@ public class SpectrumULA implements AddressBusProvider {
             LOG.error("Unable to load ROM.", ioexc);
             System.exit(1);
         }
+        pages.markModified();
         LOG.info("ROM successfully loaded.");
     }
 
     public void markScreenDirty() {
-        for (int i = 0; i < 296; i++) {
-            screenLineUpdateRequest[i] = true;
-        }
+        Arrays.fill(dirtyCells, -1);
+        borderDirty = true;
     }
 
+    /**
+     * Fills the RAM with random values and resets the paging. The ROM is
+     * kept.
+     */
     public void reset() {
         Random rand = new Random(System.nanoTime());
-        rand.nextBytes(memory);
+        byte[] ram = new byte[memory.length - romCount * BANK_SIZE];
+        rand.nextBytes(ram);
+        System.arraycopy(ram, 0, memory, romCount * BANK_SIZE, ram.length);
+        pages.markModified();
+        resetPaging();
         clearKeyData();
         markScreenDirty();
     }
 
     public void setBorder(int value) {
-        border = value & 7;
-        markScreenDirty();
+        if ((value & 7) != border) {
+            border = value & 7;
+            borderDirty = true;
+        }
     }
 
     @Override
     public void setByte(short address, byte value) {
-        if ((address & 0xc000) == 0) {
+        if ((romPages & (1 << ((address >> 14) & 3))) != 0) {
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Attempted to write into ROM address: " + address);
             }
         } else {
-            /* Contended (screen) memory trap */
-            if ((address >= 0x4000) && (address < 0x5800)) {
+            int index = pages.index(address);
+            int screen = index - screenOffset;
+            /* Displayed screen memory trap */
+            if ((screen >= 0) && (screen < 0x1800)) {
                 /* Pixel rows */
-                int characterRow = (address & 0x00e0) >> 5;
-                int pixelRow = (address & 0x0700) >> 8;
-                int third = (address & 0x1800) >> 11;
-                screenLineUpdateRequest[48 + pixelRow + 8 * 
-                        characterRow + 64 * third] = true;
-            } else if ((address >= 0x5800) && (address < 0x5b00)) {
-                /* Attribute rows */
-                int characterRow = (address & 0x00e0) >> 5;
-                int third = (address & 0x0300) >> 8;
-                for (int i = 0; i < 8; i++) {
-                    screenLineUpdateRequest[48 + 8 * characterRow + 64 * 
-                            third + i] = true;
-                }
+                int characterRow = (screen & 0x00e0) >> 5;
+                int third = (screen & 0x1800) >> 11;
+                dirtyCells[characterRow + 8 * third] |= 1 << (screen & 0x1f);
+            } else if ((screen >= 0x1800) && (screen < 0x1b00)) {
+                /* Attribute rows, each byte covering a whole cell */
+                dirtyCells[(screen - 0x1800) >> 5] |= 1 << (screen & 0x1f);
             }
-            memory[address & 0xffff] = value;
+            memory[index] = value;
         }
     }
 
     public void setFlashState(boolean flashState) {
-        this.flashState = flashState;
+        if (flashState != this.flashState) {
+            this.flashState = flashState;
+            markFlashingCellsDirty();
+        }
     }
 
     @Override
     public void setIOByte(short address, byte value) {
-        if ((address & 0x1) == 0) {
+        int port = address & 0xffff;
+        if ((port & 0x1) == 0) {
             setBorder(value);
         }
+        if (model == MODEL_128K) {
+            if ((port & 0x8002) == 0) {
+                writePort7FFD(value);
+            }
+        } else if (model == MODEL_PLUS3) {
+            if ((port & 0xc002) == 0x4000) {
+                writePort7FFD(value);
+            } else if ((port & 0xf002) == 0x1000) {
+                writePort1FFD(value);
+            }
+        }
     }
 
     /**
@@ -193,12 +540,16 @@ public class SpectrumULA implements AddressBusProvider {
         setByte((short) (address + 1), high);
     }
 
+    /**
+     * Called by the clock after each of the 312 lines of the frame. The
+     * screen is updated once per frame, after the last line, by rendering
+     * the cells and border written since the previous update.
+     */
     public void updateRow(int row) {
-        int tmpRow = row - 16;
-        if ((scr != null) && (tmpRow >= 0) && 
-                screenLineUpdateRequest[tmpRow]) {
-            scr.updateRow(tmpRow);
-            screenLineUpdateRequest[tmpRow] = false;
+        if ((scr != null) && (row == LINES_PER_FRAME - 1)) {
+            scr.updateCells(dirtyCells, borderDirty);
+            Arrays.fill(dirtyCells, 0);
+            borderDirty = false;
         }
     }
 }
@@ -21,6 +21,9 @@
 package org.mn.z80util.spectrum;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 import javax.swing.SwingUtilities;
 
@@ -28,6 +31,7 @@ import org.apache.log4j.*;
 import org.mn.z80util.disassembler.*;
 import org.mn.z80util.z80.*;
 import org.mn.z80util.spectrum.profiling.SpectrumRunningProfile;
+import org.mn.z80util.spectrum.profiling.TraceRecorder;
 import org.mn.z80util.spectrum.snapshots.*;
 
 public class SpectrumZ80Clock implements Runnable {
@@ -42,42 +46,45 @@ public class SpectrumZ80Clock implements Runnable {
     private boolean approveUpdate;
 
     /* Profiling variables */
-    private SpectrumRunningProfile profile;
+    private volatile SpectrumRunningProfile profile;
 
     public SpectrumRunningProfile getProfile() {
         return profile;
     }
 
-    /*
-     * Snapshot file types, flags and functions. These affect the processor
-     * loop so that if snapshotImport/Export file types are nonzero, they
-     * force loading or saving a snapshot before executing next command.
-     */
-    public static final int NONE = 0;
-    public static final int Z80_FILE = 1;
-    public static final int SNA_FILE = 2;
-    private volatile int snapshotImportFileType = NONE;
-    private volatile InputStream snapshotImportFile;
+    /* Tracing variables, the trace file holding 1 GB of records */
+    private static final long TRACE_SIZE = 1L << 30;
+    private volatile TraceRecorder traceRecorder;
+    /* True if the processor is not a TracingZ80 and is traced by the clock */
+    private boolean traceEachCommand;
 
-    public void setSnapshotImportFileType(int filetype) {
-        snapshotImportFileType = filetype;
+    public boolean isTracing() {
+        return traceRecorder != null;
     }
 
-    public void setSnapshotImportFile(InputStream snapshotImportFile) {
-        this.snapshotImportFile = snapshotImportFile;
-    }
-    private volatile int snapshotExportFileType = NONE;
-    private volatile OutputStream snapshotExportFile;
+    /* Snapshot file types */
+    public static final int Z80_FILE = 1;
+    public static final int SNA_FILE = 2;
 
-    public void setSnapshotExportFileType(int filetype) {
-        snapshotExportFileType = filetype;
-    }
+    /*
+     * Commands of the other threads, run by the clock thread between
+     * instructions. Posting a command raises the attention flag, which the
+     * processor loop checks before each line. The flag also stays raised in
+     * stepping mode, while profiling and while tracing a processor which is
+     * not a TracingZ80, which need attention on every instruction.
+     */
+    private final Queue<Runnable> commands =
+            new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean attention;
+    private volatile Thread thread;
 
-    public void setSnapshotExportFile(OutputStream snapshotExportFile) {
-        this.snapshotExportFile = snapshotExportFile;
+    /* Rewinding, recorded at the end of each frame */
+    private RewindBuffer rewindBuffer;
+    private int rewindRequest;
+
+    public void setRewindBuffer(RewindBuffer rewindBuffer) {
+        this.rewindBuffer = rewindBuffer;
     }
-    public volatile boolean startProfiling = false, endProfiling = false,
-            profilingOn = false;
     private SpectrumULA ula;
 
     public void setUla(SpectrumULA ula) {
@@ -93,132 +100,293 @@ public class SpectrumZ80Clock implements Runnable {
     public void setGui(SpectrumGUI gui) {
         this.gui = gui;
     }
+    /* State of the clock thread, changed by the commands only */
     private boolean paused = false;
     private boolean stepMode = false;
+    private boolean profilingOn = false;
+
+    /**
+     * Queues a command for the clock thread and wakes it up if it is paused.
+     */
+    private void post(Runnable command) {
+        commands.add(command);
+        attention = true;
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
 
     public void stepMode() {
-        stepMode = true;
-        paused = false;
+        post(new Runnable() {
+
+            public void run() {
+                stepMode = true;
+                paused = false;
+            }
+        });
     }
 
     public void runMode() {
-        stepMode = false;
-        paused = false;
+        post(new Runnable() {
+
+            public void run() {
+                stepMode = false;
+                paused = false;
+            }
+        });
     }
 
     public void reset() {
-        stepMode = false;
-        paused = false;
-        z80.reset();
+        post(new Runnable() {
+
+            public void run() {
+                stepMode = false;
+                paused = false;
+                ula.resetPaging();
+                z80.reset();
+            }
+        });
     }
 
-    /* Processor loop routines */
     /**
-     * The snapshot handling routine is passed through in both normal processor
-     * cycle AND when paused/in stepping mode. In pause mode it nevertheless
-     * requires an appropriate notifyAll().
+     * Rewinds the machine given number of frames back. The rewind takes
+     * place at the end of the current frame.
      */
-    private void snapshotTrap() {
-        if (snapshotImportFileType != NONE) {
-            /* Snapshot load */
-            AbstractSpectrumSnapshot snsh = null;
-            switch (snapshotImportFileType) {
-                case Z80_FILE:
-                    snsh = new Z80Snapshot(snapshotImportFile);
-                    break;
-                case SNA_FILE:
-                    snsh = new SNASnapshot(snapshotImportFile);
-                    break;
+    public void rewind(final int frames) {
+        post(new Runnable() {
+
+            public void run() {
+                rewindRequest = frames;
             }
-            snsh.write(z80, ula);
-            ula.markScreenDirty();
-            snapshotImportFileType = NONE;
-        } else if (snapshotExportFileType != NONE) {
-            /* Snapshot save */
-            AbstractSpectrumSnapshot snsh = null;
-            switch (snapshotExportFileType) {
-                case Z80_FILE:
-                    snsh = new Z80Snapshot(z80, ula);
-                    break;
-                case SNA_FILE:
-                    snsh = new SNASnapshot(z80, ula);
-                    break;
+        });
+    }
+
+    /**
+     * Loads a snapshot and closes the stream.
+     *
+     * @param fileType	Z80_FILE or SNA_FILE
+     */
+    public void importSnapshot(final int fileType, final InputStream is) {
+        post(new Runnable() {
+
+            public void run() {
+                try {
+                    AbstractSpectrumSnapshot snsh = (fileType == Z80_FILE)
+                            ? new Z80Snapshot(is) : new SNASnapshot(is);
+                    snsh.write(z80, ula);
+                    ula.markScreenDirty();
+                } catch (IOException e) {
+                    LOG.error("Unable to load snapshot.", e);
+                } finally {
+                    close(is);
+                }
             }
-            snsh.write(snapshotExportFile);
-            ula.markScreenDirty();
-            snapshotExportFileType = NONE;
+        });
+    }
+
+    /**
+     * Saves a snapshot and closes the stream.
+     *
+     * @param fileType	Z80_FILE or SNA_FILE
+     */
+    public void exportSnapshot(final int fileType, final OutputStream os) {
+        post(new Runnable() {
+
+            public void run() {
+                AbstractSpectrumSnapshot snsh = (fileType == Z80_FILE)
+                        ? new Z80Snapshot(z80, ula) : new SNASnapshot(z80, ula);
+                try {
+                    snsh.write(os);
+                } catch (IOException e) {
+                    LOG.error("Unable to save snapshot.", e);
+                } finally {
+                    close(os);
+                }
+                ula.markScreenDirty();
+            }
+        });
+    }
+
+    private static void close(Closeable file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to close snapshot file.", e);
         }
     }
 
-    private void profilingTrap() {
-        if (startProfiling) {
-            LOG.info("Starting profiling.");
-            startProfiling = false;
-            profilingOn = true;
-            profile = new SpectrumRunningProfile(z80, ula, this);
-        } else if (endProfiling) {
-            LOG.info("Ending profiling.");
-            endProfiling = false;
-            profilingOn = false;
-            profile.findBlockStartsAndEnds();
-            profile.createBlocks();
-            profile.translatePredecessorsAndSuccessors();
-        } else if (profilingOn) {
-            profile.collectProfilingData();
+    /**
+     * Starts profiling, or ends it if it is on.
+     */
+    public void toggleProfiling() {
+        post(new Runnable() {
+
+            public void run() {
+                if (!profilingOn) {
+                    LOG.info("Starting profiling.");
+                    profilingOn = true;
+                    profile = new SpectrumRunningProfile(z80, ula,
+                            SpectrumZ80Clock.this);
+                } else {
+                    LOG.info("Ending profiling.");
+                    profilingOn = false;
+                    profile.findBlockStartsAndEnds();
+                    profile.createBlocks();
+                    profile.translatePredecessorsAndSuccessors();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts recording every executed instruction into a trace file.
+     */
+    public void startTracing(final File f) {
+        post(new Runnable() {
+
+            public void run() {
+                if (traceRecorder != null) {
+                    return;
+                }
+                try {
+                    traceRecorder = new TraceRecorder(f, TRACE_SIZE);
+                } catch (IOException e) {
+                    LOG.error("Unable to create trace " + f.getPath() + ".",
+                            e);
+                    return;
+                }
+                traceRecorder.setTimeBase(lineEndTStates());
+                if (z80 instanceof TracingZ80) {
+                    ((TracingZ80) z80).setInstructionTracer(traceRecorder);
+                } else {
+                    traceEachCommand = true;
+                }
+            }
+        });
+    }
+
+    /**
+     * Ends recording the trace and closes the trace file.
+     */
+    public void stopTracing() {
+        post(new Runnable() {
+
+            public void run() {
+                if (traceRecorder == null) {
+                    return;
+                }
+                if (z80 instanceof TracingZ80) {
+                    ((TracingZ80) z80).setInstructionTracer(null);
+                }
+                traceEachCommand = false;
+                try {
+                    traceRecorder.close();
+                } catch (IOException e) {
+                    LOG.error("Unable to write trace file.", e);
+                }
+                traceRecorder = null;
+            }
+        });
+    }
+
+    /* Processor loop routines */
+    private void runCommands() {
+        Runnable command;
+        while ((command = commands.poll()) != null) {
+            command.run();
+        }
+    }
+
+    private void rewindTrap() {
+        if (rewindBuffer != null) {
+            rewindBuffer.record(z80, ula);
+            if (rewindRequest > 0) {
+                LOG.info("Rewound " + rewindBuffer.rewind(rewindRequest, z80,
+                        ula) + " frames.");
+                rewindRequest = 0;
+            }
         }
     }
 
     /**
-     * A single processor step. Should be as fast as possible if not in stepping
-     * mode.
+     * Runs the queued commands, in stepping mode waits until the next step
+     * is asked for, and collects profiling data and the trace record of the
+     * next command. The flag is lowered before the queue is drained, so that
+     * a command posted meanwhile raises it again.
      */
-    private void processorStep() {
+    private void serviceAttention() {
+        attention = false;
+        runCommands();
+
         if (stepMode) {
             paused = true;
-            byte[] memory = ula.getMemory();
             short pc = z80.getRegPair(Z80.PC);
-            DisasmResult dar = Disassembler.disassemble(memory, pc);
+            DisasmResult dar = Disassembler.disassemble(ula.getMemoryPages(),
+                    pc);
             String cmdString = Hex.intToHex4(pc & 0xffff) + " " + dar.getHexDigits()
                     + dar.getCommand();
             LOG.debug(cmdString);
             gui.addCommandRow(pc);
         }
 
-        while (true) {
-            synchronized (this) {
-                snapshotTrap();
-                profilingTrap();
-
-                if (!paused) {
-                    break;
-                }
-
-                try {
-                    SwingUtilities.invokeLater(new Runnable() {
-                        @Override
-                        public void run() {
-                            gui.updateDebuggerInfo();
-                        }
-                    });
-                    wait();
-                    ula.markScreenDirty();
-                } catch (InterruptedException e) {
-                    /* Do nothing */
+        while (paused) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    gui.updateDebuggerInfo();
                 }
+            });
+            while (commands.isEmpty()) {
+                LockSupport.park(this);
             }
+            attention = false;
+            runCommands();
+            ula.markScreenDirty();
+        }
+
+        if (profilingOn) {
+            profile.collectProfilingData();
+        }
+        if (traceEachCommand) {
+            traceRecorder.record(z80, ula);
+        }
+        if (stepMode || profilingOn || traceEachCommand) {
+            attention = true;
         }
+    }
 
-        z80.executeNextCommand();
+    /**
+     * @return	T-states from the start of the machine to the end of the
+     * current line, the time base of the trace records
+     */
+    private long lineEndTStates() {
+        return (long) interrupts * SpectrumULA.TSTATES_PER_FRAME
+                + (screenLine + 1) * SpectrumULA.TSTATES_PER_LINE;
     }
 
     /**
      * Processor frame of approximately 224 T-States. In this period, one screen
-     * line is drawn.
+     * line is drawn. Without attention the line is run at once, otherwise
+     * command by command as long as attention is needed.
      */
     private void processorFrame() {
         int ts = z80.getTStates();
-        for (z80.setTStates(ts + 224); z80.getTStates() > 0;) {
-            processorStep();
+        z80.setTStates(ts + 224);
+        ula.startLine(screenLine);
+        if (traceRecorder != null) {
+            traceRecorder.setTimeBase(lineEndTStates());
+        }
+        while (z80.getTStates() > 0) {
+            if (attention) {
+                serviceAttention();
+                z80.executeNextCommand();
+                if (profilingOn) {
+                    profile.commandExecuted();
+                }
+            } else {
+                z80.executeTStates(0);
+            }
         }
 
         if (approveUpdate) {
@@ -251,16 +419,23 @@ public class SpectrumZ80Clock implements Runnable {
 
         /* Processing period begins */
 
+        int pc = z80.getRegPair(Z80.PC) & 0xffff, ts = z80.getTStates();
         z80.interrupt();
+        if (profilingOn) {
+            profile.collectInterrupt(pc, ts);
+        }
         if ((interrupts % 25) == 0) {
             ula.changeFlashState();
             LOG.debug("Flash state changed to: " + ula.getFlashState());
-            ula.markScreenDirty();
         }
 
         for (screenLine = 0; screenLine < 312; screenLine++) {
             processorFrame();
         }
+        rewindTrap();
+        if (traceRecorder != null) {
+            traceRecorder.updateHeader();
+        }
 
         /* Processing period ends */
 
@@ -273,6 +448,7 @@ public class SpectrumZ80Clock implements Runnable {
     @Override
     public void run() {
         LOG.info("Starting the machine.");
+        thread = Thread.currentThread();
         ula.markScreenDirty();
         for (interrupts = 0; true; interrupts++) {
             processorInterruptPeriod();
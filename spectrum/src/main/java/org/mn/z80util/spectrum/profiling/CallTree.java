@@ -0,0 +1,192 @@
+/*
+ * CallTree.java - Calls and T-states of the profiled routines.
+ * 
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.spectrum.profiling;
+
+import java.util.*;
+
+/**
+ * Tree of the routine calls seen while profiling, in primitive arrays. Each
+ * node is a routine, identified by its entry address, as called through the
+ * path of routines from the root, and holds the number of calls and the
+ * T-states spent in the routine itself. A shadow of the processor stack
+ * tracks the current node: calls, restarts and interrupts push onto it and
+ * returns pop the frames up to the one whose return address they reach.
+ * Returns to other addresses, as in jumps through the stack, leave it as it
+ * is.
+ */
+final class CallTree {
+
+    static final int ROOT = 0;
+    /* Deeper calls are counted in the routine at the maximum depth */
+    static final int MAX_DEPTH = 1024;
+    private static final int INITIAL_BITS = 10;
+    private int[] parents, addresses;
+    private long[] calls, selfTStates;
+    private int size;
+    /* Open addressing index from (parent << 16) | address to child + 1 */
+    private long[] keys;
+    private int[] children;
+    private int shift;
+    /* The shadow stack of nodes and return addresses */
+    private final int[] stackNodes = new int[MAX_DEPTH + 1];
+    private final int[] stackReturns = new int[MAX_DEPTH + 1];
+    private int depth;
+
+    CallTree() {
+        parents = new int[1 << INITIAL_BITS];
+        addresses = new int[1 << INITIAL_BITS];
+        calls = new long[1 << INITIAL_BITS];
+        selfTStates = new long[1 << INITIAL_BITS];
+        allocateIndex(INITIAL_BITS + 1);
+        parents[ROOT] = -1;
+        addresses[ROOT] = -1;
+        size = 1;
+    }
+
+    private void allocateIndex(int bits) {
+        keys = new long[1 << bits];
+        children = new int[1 << bits];
+        shift = 64 - bits;
+    }
+
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int i = (int) ((key * 0x9e3779b97f4a7c15L) >>> shift);
+        while ((children[i] != 0) && (keys[i] != key)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * @return	The child of a node for a routine, created if necessary
+     */
+    private int child(int node, int address) {
+        long key = ((long) node << 16) | address;
+        int i = slot(key);
+        if (children[i] != 0) {
+            return children[i] - 1;
+        }
+        if (size == parents.length) {
+            parents = Arrays.copyOf(parents, 2 * size);
+            addresses = Arrays.copyOf(addresses, 2 * size);
+            calls = Arrays.copyOf(calls, 2 * size);
+            selfTStates = Arrays.copyOf(selfTStates, 2 * size);
+        }
+        if (2 * (size + 1) > keys.length) {
+            long[] oldKeys = keys;
+            int[] oldChildren = children;
+            allocateIndex(65 - shift);
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldChildren[j] != 0) {
+                    int k = slot(oldKeys[j]);
+                    keys[k] = oldKeys[j];
+                    children[k] = oldChildren[j];
+                }
+            }
+            i = slot(key);
+        }
+        keys[i] = key;
+        children[i] = size + 1;
+        parents[size] = node;
+        addresses[size] = address;
+        return size++;
+    }
+
+    /**
+     * Enters a routine from the current one.
+     *
+     * @param address	Entry address of the routine
+     * @param returnAddress	Address the routine returns to
+     */
+    void call(int address, int returnAddress) {
+        if (depth == MAX_DEPTH) {
+            return;
+        }
+        int node = child(stackNodes[depth], address);
+        calls[node]++;
+        depth++;
+        stackNodes[depth] = node;
+        stackReturns[depth] = returnAddress;
+    }
+
+    /**
+     * Returns to an address, leaving the routines up to the one which
+     * returns there.
+     */
+    void returnTo(int address) {
+        for (int d = depth; d > 0; d--) {
+            if (stackReturns[d] == address) {
+                depth = d - 1;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds T-states spent in the current routine.
+     */
+    void addTStates(int tstates) {
+        selfTStates[stackNodes[depth]] += tstates;
+    }
+
+    /**
+     * @return	Number of nodes, the root included
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return	The parent of a node, -1 for the root
+     */
+    int getParent(int node) {
+        return parents[node];
+    }
+
+    /**
+     * @return	Entry address of the routine of a node, -1 for the root
+     */
+    int getAddress(int node) {
+        return addresses[node];
+    }
+
+    long getCalls(int node) {
+        return calls[node];
+    }
+
+    long getSelfTStates(int node) {
+        return selfTStates[node];
+    }
+
+    /**
+     * @return	T-states spent in each node and the routines it calls. Parents
+     * are created before their children, so a single backward pass sums
+     * them.
+     */
+    long[] getTotalTStates() {
+        long[] total = Arrays.copyOf(selfTStates, size);
+        for (int node = size - 1; node > ROOT; node--) {
+            total[parents[node]] += total[node];
+        }
+        return total;
+    }
+}
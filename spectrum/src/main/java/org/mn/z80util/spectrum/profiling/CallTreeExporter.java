@@ -0,0 +1,204 @@
+/*
+ * CallTreeExporter.java - Call tree in the formats of profiling tools.
+ * 
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.spectrum.profiling;
+
+import java.io.*;
+
+import org.mn.z80util.disassembler.*;
+
+/**
+ * Writes a call tree in the collapsed stack format of flame graphs and in
+ * the protocol buffer format of pprof. The stacks are the paths of the call
+ * tree, from the top level down to the routine, weighted by the T-states
+ * spent in the routine itself. Both are streamed node by node, so memory
+ * use does not depend on the size of the tree.
+ */
+final class CallTreeExporter {
+
+    static final String TOP_LEVEL = "(top level)";
+    /* Identifier of the top level in pprof, routines are address + 1 */
+    private static final int TOP_LEVEL_ID = 0x10001;
+    /* Fixed part of the string table of pprof */
+    private static final String[] STRINGS = {
+        "", "cycles", "count", "calls", TOP_LEVEL
+    };
+    private static final int CYCLES = 1, COUNT = 2, CALLS = 3,
+            TOP_LEVEL_NAME = 4;
+    private final CallTree tree;
+    /* Path of the node being written, from the node up */
+    private final int[] path = new int[CallTree.MAX_DEPTH + 1];
+
+    CallTreeExporter(CallTree tree) {
+        this.tree = tree;
+    }
+
+    private static String name(int address) {
+        return (address < 0) ? TOP_LEVEL : Hex.intToHex4(address);
+    }
+
+    /**
+     * @return	Length of the path from a node up to the top level
+     */
+    private int path(int node) {
+        int length = 0;
+        for (; node != -1; node = tree.getParent(node)) {
+            path[length++] = node;
+        }
+        return length;
+    }
+
+    /**
+     * Writes a line "(top level);0F2C;15D4 1234" for each routine with
+     * T-states of its own, the T-states ending the line.
+     */
+    void writeCollapsedStacks(Writer out) throws IOException {
+        for (int node = CallTree.ROOT; node < tree.size(); node++) {
+            long self = tree.getSelfTStates(node);
+            if (self == 0) {
+                continue;
+            }
+            for (int i = path(node) - 1; i >= 0; i--) {
+                out.write(name(tree.getAddress(path[i])));
+                out.write((i > 0) ? ';' : ' ');
+            }
+            out.write(Long.toString(self));
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the tree as an uncompressed pprof profile with the sample types
+     * cycles and calls. Every routine is a function and a location of its
+     * own, identified by its address + 1.
+     *
+     * @param durationNanos	Duration of the profiling
+     */
+    void writePprof(OutputStream out, long durationNanos) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        for (String s : STRINGS) {
+            writeString(out, 6, s);
+        }
+        writeValueType(out, message, 1, CYCLES, COUNT);
+        writeValueType(out, message, 1, CALLS, COUNT);
+        writeValueType(out, message, 11, CYCLES, COUNT);
+        writeVarintField(out, 12, 1);
+        writeVarintField(out, 10, durationNanos);
+        writeVarintField(out, 14, CYCLES);
+
+        /* Functions and locations, the names appended to the strings */
+        writeFunction(out, message, TOP_LEVEL_ID, TOP_LEVEL_NAME, 0);
+        boolean[] called = new boolean[0x10000];
+        for (int node = CallTree.ROOT + 1; node < tree.size(); node++) {
+            called[tree.getAddress(node)] = true;
+        }
+        int nameIndex = STRINGS.length;
+        for (int address = 0; address < 0x10000; address++) {
+            if (called[address]) {
+                writeString(out, 6, name(address));
+                writeFunction(out, message, address + 1, nameIndex++, address);
+            }
+        }
+
+        /* Samples, the locations from the routine up */
+        ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        for (int node = CallTree.ROOT; node < tree.size(); node++) {
+            long self = tree.getSelfTStates(node), calls = tree.getCalls(node);
+            if ((self == 0) && (calls == 0)) {
+                continue;
+            }
+            message.reset();
+            packed.reset();
+            int length = path(node);
+            for (int i = 0; i < length; i++) {
+                int address = tree.getAddress(path[i]);
+                writeVarint(packed, (address < 0) ? TOP_LEVEL_ID : address + 1);
+            }
+            writeBytes(message, 1, packed);
+            packed.reset();
+            writeVarint(packed, self);
+            writeVarint(packed, calls);
+            writeBytes(message, 2, packed);
+            writeBytes(out, 2, message);
+        }
+        out.flush();
+    }
+
+    private static void writeVarint(OutputStream out, long value)
+            throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeVarintField(OutputStream out, int field,
+            long value) throws IOException {
+        writeVarint(out, field << 3);
+        writeVarint(out, value);
+    }
+
+    private static void writeBytes(OutputStream out, int field,
+            ByteArrayOutputStream bytes) throws IOException {
+        writeVarint(out, (field << 3) | 2);
+        writeVarint(out, bytes.size());
+        bytes.writeTo(out);
+    }
+
+    private static void writeString(OutputStream out, int field, String s)
+            throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        writeVarint(out, (field << 3) | 2);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeValueType(OutputStream out,
+            ByteArrayOutputStream message, int field, int type, int unit)
+            throws IOException {
+        message.reset();
+        writeVarintField(message, 1, type);
+        writeVarintField(message, 2, unit);
+        writeBytes(out, field, message);
+    }
+
+    /**
+     * Writes a function and its location of the same identifier.
+     */
+    private static void writeFunction(OutputStream out,
+            ByteArrayOutputStream message, int id, int name, int address)
+            throws IOException {
+        message.reset();
+        writeVarintField(message, 1, id);
+        writeVarintField(message, 2, name);
+        writeVarintField(message, 3, name);
+        writeBytes(out, 5, message);
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        writeVarintField(line, 1, id);
+        message.reset();
+        writeVarintField(message, 1, id);
+        writeVarintField(message, 3, address);
+        writeBytes(message, 4, line);
+        writeBytes(out, 4, message);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * EdgeTable.java - Transition counts of the profiler.
+ * 
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.spectrum.profiling;
+
+import java.util.*;
+
+/**
+ * Counts of transitions from an address to the next, in an open addressing
+ * hash table keyed by (from << 16) | to. Counting a transition takes a
+ * multiplication and usually a single probe, and allocates nothing unless
+ * the table grows, which happens only when new code is met.
+ *
+ * A slot is in use if and only if its count is nonzero.
+ */
+final class EdgeTable {
+
+    private static final int INITIAL_BITS = 12;
+    private int[] keys;
+    private long[] counts;
+    private int shift, size;
+
+    EdgeTable() {
+        allocate(INITIAL_BITS);
+    }
+
+    private void allocate(int bits) {
+        keys = new int[1 << bits];
+        counts = new long[1 << bits];
+        shift = 32 - bits;
+    }
+
+    private int slot(int key) {
+        int mask = keys.length - 1;
+        int i = (key * 0x9e3779b9) >>> shift;
+        while ((counts[i] != 0) && (keys[i] != key)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Counts a transition.
+     */
+    void add(int from, int to) {
+        int key = (from << 16) | to;
+        int i = slot(key);
+        if (counts[i] == 0) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+                i = slot(key);
+            }
+            keys[i] = key;
+            size++;
+        }
+        counts[i]++;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        long[] oldCounts = counts;
+        allocate(33 - shift);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldCounts[i] != 0) {
+                int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                counts[j] = oldCounts[i];
+            }
+        }
+    }
+
+    /**
+     * @return	Number of distinct transitions
+     */
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(counts, 0);
+        size = 0;
+    }
+
+    /**
+     * @return	Number of slots, to be iterated with getCount(), getFrom() and
+     * getTo()
+     */
+    int getCapacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return	Count of the transition in a slot, 0 if the slot is not used
+     */
+    long getCount(int slot) {
+        return counts[slot];
+    }
+
+    int getFrom(int slot) {
+        return keys[slot] >>> 16;
+    }
+
+    int getTo(int slot) {
+        return keys[slot] & 0xffff;
+    }
+}
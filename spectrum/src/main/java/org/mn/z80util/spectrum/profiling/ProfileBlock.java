@@ -20,40 +20,47 @@
  */
 package org.mn.z80util.spectrum.profiling;
 
-import java.util.*;
+import java.io.*;
 
 import org.mn.z80util.disassembler.*;
 import org.mn.z80util.spectrum.*;
+import org.mn.z80util.z80.MemoryPages;
 
 public class ProfileBlock implements Comparable<ProfileBlock> {
 
     SpectrumULA ula;
     SpectrumRunningProfile profile;
     long entryDensity;
-    TreeSet<Integer> predecessors, successors;
+    /* T-states of the commands of this block */
+    long tstates;
+    /**
+     * Addresses of the last commands of the preceding blocks and of the first
+     * commands of the succeeding blocks, in ascending order.
+     */
+    int[] predecessors, successors;
     /**
      * Another set of predecessors and successors, which should be in some cases
      * a translation of predecessor and successor addresses into their order
      * numbers in a program block array.
      */
-    TreeSet<Integer> predecessorNumbers, successorNumbers;
-    Vector<Integer> commandAddresses;
+    int[] predecessorNumbers, successorNumbers;
+    int[] commandAddresses;
 
     public ProfileBlock(SpectrumULA ula, SpectrumRunningProfile profile) {
         this.ula = ula;
         this.profile = profile;
         entryDensity = 0L;
-        predecessors = new TreeSet<Integer>();
-        commandAddresses = new Vector<Integer>();
-        successors = new TreeSet<Integer>();
+        predecessors = new int[0];
+        commandAddresses = new int[0];
+        successors = new int[0];
     }
 
     public int getFirstCommandAddress() {
-        return commandAddresses.firstElement() & 0xffff;
+        return commandAddresses[0] & 0xffff;
     }
 
     public int getLastCommandAddress() {
-        return commandAddresses.lastElement() & 0xffff;
+        return commandAddresses[commandAddresses.length - 1] & 0xffff;
     }
 
     @Override
@@ -107,41 +114,52 @@ public class ProfileBlock implements Comparable<ProfileBlock> {
         }
     }
 
-    @Override
-    public String toString() {
-        byte[] memory = ula.getMemory();
-        String retval = "Number of entries: " + entryDensity + "\n";
+    /**
+     * Prints the block with its commands disassembled.
+     */
+    public void print(PrintStream out) {
+        MemoryPages pages = ula.getMemoryPages();
+        out.println("Number of entries: " + entryDensity);
         double frequency = (double) entryDensity / profile.getProfilingTimeInSeconds();
-        retval += "Frequency of entries: " + frequencyString(frequency) + "\n";
-        retval += "Binary logarithm of density: " + Math.log(frequency) / Math.log(2) + "\n";
+        out.println("Frequency of entries: " + frequencyString(frequency));
+        out.println("Binary logarithm of density: " + Math.log(frequency) / Math.log(2));
+        out.printf("T-states: %d (%.2f %% of time)%n", tstates,
+                profile.percentage(tstates));
         if (predecessorNumbers != null) {
-            retval += "Predecessors numbers: ";
+            out.print("Predecessors numbers: ");
             for (int i : predecessorNumbers) {
-                retval += i + " ";
+                out.print(i + " ");
             }
         }
-        retval += "\nPredecessors: ";
+        out.print("\nPredecessors: ");
         for (int i : predecessors) {
-            retval += Hex.intToHex4(i) + " ";
+            out.print(Hex.intToHex4(i) + " ");
         }
-        retval += "\n\n";
+        out.print("\n\n");
         for (int i : commandAddresses) {
-            DisasmResult dar = Disassembler.disassemble(memory, (short) i);
-            retval += String.format("%-4s : %-14s %s\n",
-                    Hex.intToHex4(i & 0xffff),
+            DisasmResult dar = Disassembler.disassemble(pages, (short) i);
+            out.printf("%-4s : %-14s %s\n", Hex.intToHex4(i & 0xffff),
                     dar.getHexDigits(), dar.getCommand());
         }
         if (successorNumbers != null) {
-            retval += "\nSuccessor numbers: ";
+            out.print("\nSuccessor numbers: ");
             for (int i : successorNumbers) {
-                retval += i + " ";
+                out.print(i + " ");
             }
         }
-        retval += "\nSuccessors: ";
+        out.print("\nSuccessors: ");
         for (int i : successors) {
-            retval += Hex.intToHex4(i) + " ";
+            out.print(Hex.intToHex4(i) + " ");
         }
-        retval += "\n\n----------\n";
-        return retval;
+        out.print("\n\n----------\n");
+    }
+
+    @Override
+    public String toString() {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(os);
+        print(out);
+        out.flush();
+        return os.toString();
     }
 }
@@ -22,9 +22,11 @@ package org.mn.z80util.spectrum.profiling;
 
 import java.io.*;
 import java.util.*;
+import java.util.zip.*;
 import javax.swing.*;
 
 import org.apache.log4j.Logger;
+import org.mn.z80util.disassembler.*;
 import org.mn.z80util.spectrum.*;
 import org.mn.z80util.spectrum.snapshots.Snapshots;
 import org.mn.z80util.z80.*;
@@ -32,9 +34,28 @@ import org.mn.z80util.z80.*;
 public class SpectrumRunningProfile {
 
     private Logger LOG = Logger.getLogger(SpectrumRunningProfile.class);
-    private ProfileNode[] profilingMap;
+    /* Minimum share of the time of the routines listed in the call tree */
+    private static final double CALL_TREE_THRESHOLD = 0.001;
+    /*
+     * Collected data: executions and T-states per address, transition counts
+     * and the call tree
+     */
+    private final long[] hits = new long[0x10000];
+    private final long[] tstates = new long[0x10000];
+    private final EdgeTable edges = new EdgeTable();
+    private final CallTree callTree = new CallTree();
+    private long totalTStates;
+    /* The command being executed */
+    private int startTStates, startSP, opcode;
+    /*
+     * Block structure: block start and end flags, the only successor of each
+     * address which is not a block end, and the order number of the block of
+     * each address.
+     */
+    private boolean[] startBlock, endBlock;
+    private int[] successor, blockIndex;
     private Vector<ProfileBlock> blockMap;
-    private int currentPC = -1, previousPC = -1;
+    private int previousPC = -1;
     private int interruptsAtStart, interruptsAtEnd;
     private Z80 z80;
     private SpectrumULA ula;
@@ -45,8 +66,6 @@ public class SpectrumRunningProfile {
         this.z80 = z80;
         this.ula = ula;
         this.clock = clock;
-        profilingMap = new ProfileNode[0x10000];
-        previousPC = -1;
         this.interruptsAtStart = clock.getInterrupts();
     }
 
@@ -55,129 +74,231 @@ public class SpectrumRunningProfile {
     }
 
     /**
-     * Collects profiling data to profilingMap. The following categories are
-     * collected:
+     * @return	T-states of all the commands profiled
+     */
+    public long getTotalTStates() {
+        return totalTStates;
+    }
+
+    /**
+     * @return	Share of given T-states of the time profiled in percents
+     */
+    public double percentage(long tstates) {
+        return (totalTStates > 0) ? 100.0 * tstates / totalTStates : 0.0;
+    }
+
+    /**
+     * Collects profiling data of the command about to be executed. The
+     * following categories are collected:
+     *
+     * <ul> <li>command execution density per address</li> <li>transitions
+     * between commands, from 52h and to 38h are blacklisted, as they are the
+     * IM 1 interrupt return and entry addresses in Spectrum</li> </ul>
      *
-     * <ul> <li>command execution density per address</li> <li>command
-     * predecessors, 52h is blacklisted, as it is IM 1 interrupt return command
-     * address in Spectrum</li> <li>command successors, 38h is blacklisted, as
-     * it is IM 1 interrupt entry address</li> </ul>
+     * The data is kept in primitive arrays, so this allocates nothing and
+     * costs only a few nanoseconds per command. Must be followed by
+     * commandExecuted() once the command has been executed.
      */
     public void collectProfilingData() {
-        currentPC = z80.getRegPair(Z80.PC) & 0xffff;
-        if (profilingMap[currentPC] == null) {
-            profilingMap[currentPC] = new ProfileNode();
-        }
-        profilingMap[currentPC].density++;
+        int pc = z80.getRegPair(Z80.PC) & 0xffff;
+        hits[pc]++;
 
         /* Blacklist mode 1 interrupts (entry and return) */
-        if ((previousPC >= 0) && (previousPC != 0x52)
-                && (currentPC != 0x38)) {
-            profilingMap[currentPC].addPredecessor(previousPC);
-            profilingMap[previousPC].addSuccessor(currentPC);
+        if ((previousPC >= 0) && (previousPC != 0x52) && (pc != 0x38)) {
+            edges.add(previousPC, pc);
+        }
+        previousPC = pc;
+
+        startTStates = z80.getTStates();
+        startSP = z80.getRegPair(Z80.SP) & 0xffff;
+        opcode = ula.getByte((short) pc) & 0xff;
+        if (opcode == 0xed) {
+            opcode = 0xed00 | (ula.getByte((short) (pc + 1)) & 0xff);
+        }
+    }
+
+    /**
+     * Collects the T-states the command used and follows the calls and
+     * returns into the call tree. A call or a conditional return is taken if
+     * and only if it has moved the stack pointer.
+     */
+    public void commandExecuted() {
+        int used = startTStates - z80.getTStates();
+        tstates[previousPC] += used;
+        totalTStates += used;
+        callTree.addTStates(used);
+
+        int sp = z80.getRegPair(Z80.SP) & 0xffff;
+        boolean pushed = (sp == ((startSP - 2) & 0xffff));
+        boolean popped = (sp == ((startSP + 2) & 0xffff));
+        if ((opcode & 0xff00) == 0xed00) {
+            /* RETI, RETN */
+            if (((opcode & 0xc7) == 0x45) && popped) {
+                callTree.returnTo(z80.getRegPair(Z80.PC) & 0xffff);
+            }
+        } else if ((opcode == 0xcd) || ((opcode & 0xc7) == 0xc4)) {
+            /* CALL nn, CALL cc,nn */
+            if (pushed) {
+                callTree.call(z80.getRegPair(Z80.PC) & 0xffff,
+                        (previousPC + 3) & 0xffff);
+            }
+        } else if ((opcode & 0xc7) == 0xc7) {
+            /* RST p */
+            if (pushed) {
+                callTree.call(opcode & 0x38, (previousPC + 1) & 0xffff);
+            }
+        } else if ((opcode == 0xc9) || ((opcode & 0xc7) == 0xc0)) {
+            /* RET, RET cc */
+            if (popped) {
+                callTree.returnTo(z80.getRegPair(Z80.PC) & 0xffff);
+            }
+        }
+    }
+
+    /**
+     * Follows an interrupt into the call tree.
+     *
+     * @param pc	Program counter before the interrupt
+     * @param tstates	T-states of the processor before the interrupt
+     */
+    public void collectInterrupt(int pc, int tstates) {
+        int handler = z80.getRegPair(Z80.PC) & 0xffff;
+        if (handler != pc) {
+            int used = tstates - z80.getTStates();
+            totalTStates += used;
+            callTree.call(handler, pc);
+            callTree.addTStates(used);
         }
-        previousPC = currentPC;
     }
 
     /**
-     * Iterates the start and end blocks in profile array. The algorithm is:
+     * Marks the start and end block addresses in the profile. The rules
+     * are:
      *
-     * An existing profile node is a <b>start block node</b> if and only if:
+     * An executed address is a <b>start block node</b> if and only if:
      * <ul> <li>its address is 38h; or</li> <li>its predecessor count differs
      * from one; or</li> <li>it has a predecessor with higher or equal address
      * than its own address; or</li> <li>it has a predecessor which is an <i>end
      * block node</i></li> </ul>
      *
-     * An existing profile node is an <b>end block node</b> if and only if: <ul>
+     * An executed address is an <b>end block node</b> if and only if: <ul>
      * <li>its address is 52h; or</li> <li>its successor count differs from one;
      * or</li> <li>it has a successor with lesser or equal address than its own
      * address; or</li> <li>it has a successor which is a <i>start block
      * node</i></li> </ul>
      *
-     * As the rules are dependent from each other, one must iterate until a
-     * stable state is reached.
+     * The last two rules only join the two ends of a transition: it ends a
+     * block if and only if it starts one. A transition whose source has other
+     * successors, or whose target has other predecessors, is a block boundary
+     * by the first rules already, so the rules never chain further. Thus the
+     * first rules are applied to all addresses and the last rule once to each
+     * transition, in time linear in the number of transitions.
      */
     public void findBlockStartsAndEnds() {
         interruptsAtEnd = clock.getInterrupts();
 
         LOG.info("Constructing profiling block start and endpoints.");
-
+        startBlock = new boolean[0x10000];
+        endBlock = new boolean[0x10000];
+        successor = new int[0x10000];
+        int[] predecessorCount = new int[0x10000];
+        int[] successorCount = new int[0x10000];
+        for (int slot = 0; slot < edges.getCapacity(); slot++) {
+            if (edges.getCount(slot) != 0) {
+                int from = edges.getFrom(slot), to = edges.getTo(slot);
+                successorCount[from]++;
+                predecessorCount[to]++;
+                successor[from] = to;
+                if (from >= to) {
+                    startBlock[to] = true;
+                    endBlock[from] = true;
+                }
+            }
+        }
         for (int i = 0; i < 0x10000; i++) {
-            if (profilingMap[i] != null) {
-                profilingMap[i].startBlock = false;
-                profilingMap[i].endBlock = false;
+            if (hits[i] != 0) {
+                startBlock[i] |= (i == 0x38) || (predecessorCount[i] != 1);
+                endBlock[i] |= (i == 0x52) || (successorCount[i] != 1);
             }
         }
-
-        boolean hasChanged;
-        do {
-            hasChanged = false;
-            for (int i = 0; i < 0x10000; i++) {
-                if (profilingMap[i] != null) {
-                    if (!profilingMap[i].startBlock) {
-                        if ((i == 0x38)
-                                || (profilingMap[i].predecessors.size() > 1)) {
-                            profilingMap[i].startBlock = true;
-                            hasChanged = true;
-                        }
-                        for (Object addrObj : profilingMap[i].predecessors) {
-                            int addr = ((Integer) addrObj).intValue();
-                            if ((addr >= i) || (profilingMap[addr].endBlock)) {
-                                profilingMap[i].startBlock = true;
-                                hasChanged = true;
-                            }
-                        }
-                    }
-
-                    if (!profilingMap[i].endBlock) {
-                        if ((i == 0x52)
-                                || (profilingMap[i].successors.size() > 1)) {
-                            profilingMap[i].endBlock = true;
-                            hasChanged = true;
-                        }
-                        for (Object addrObj : profilingMap[i].successors) {
-                            int addr = ((Integer) addrObj).intValue();
-                            if ((addr <= i) || (profilingMap[addr].startBlock)) {
-                                profilingMap[i].endBlock = true;
-                                hasChanged = true;
-                            }
-                        }
-                    }
+        for (int slot = 0; slot < edges.getCapacity(); slot++) {
+            if (edges.getCount(slot) != 0) {
+                int from = edges.getFrom(slot), to = edges.getTo(slot);
+                if (startBlock[to] || endBlock[from]) {
+                    startBlock[to] = true;
+                    endBlock[from] = true;
                 }
             }
-        } while (hasChanged == true);
+        }
     }
 
     /**
      * Creates the profiling blocks according to previously marked start and end
-     * addresses.
+     * addresses, sorts them, indexes the addresses by block and gives each
+     * block the transitions into and out of it.
      */
     public void createBlocks() {
         LOG.info("Collecting profiling blocks.");
-        int count = 0;
 
         blockMap = new Vector<ProfileBlock>();
+        int[] addresses = new int[0x10000];
         for (int i = 0; i < 0x10000; i++) {
-            if ((profilingMap[i] != null)
-                    && (profilingMap[i].startBlock)) {
+            if ((hits[i] != 0) && startBlock[i]) {
                 ProfileBlock pb = new ProfileBlock(ula, this);
-                pb.entryDensity = profilingMap[i].density;
-                pb.predecessors = profilingMap[i].predecessors;
-                int j = i;
-                while (!profilingMap[j].endBlock) {
-                    pb.commandAddresses.add(j);
-                    j = profilingMap[j].successors.first();
+                pb.entryDensity = hits[i];
+                int j = i, length = 0;
+                while (!endBlock[j]) {
+                    pb.tstates += tstates[j];
+                    addresses[length++] = j;
+                    j = successor[j];
                 }
-                pb.commandAddresses.add(j);
-                pb.successors = profilingMap[j].successors;
+                pb.tstates += tstates[j];
+                addresses[length++] = j;
+                pb.commandAddresses = Arrays.copyOf(addresses, length);
                 blockMap.add(pb);
-                count++;
             }
         }
 
-        LOG.info(count + " profiling blocks added.");
+        LOG.info(blockMap.size() + " profiling blocks added.");
         Collections.sort(blockMap);
         LOG.info("Profiling information sorted according to entry frequency.");
+
+        blockIndex = new int[0x10000];
+        Arrays.fill(blockIndex, -1);
+        int[] predecessorCount = new int[blockMap.size()];
+        int[] successorCount = new int[blockMap.size()];
+        for (int i = 0; i < blockMap.size(); i++) {
+            for (int address : blockMap.elementAt(i).commandAddresses) {
+                blockIndex[address] = i;
+            }
+        }
+        for (int slot = 0; slot < edges.getCapacity(); slot++) {
+            if ((edges.getCount(slot) != 0) && startBlock[edges.getTo(slot)]) {
+                predecessorCount[blockIndex[edges.getTo(slot)]]++;
+                successorCount[blockIndex[edges.getFrom(slot)]]++;
+            }
+        }
+        for (int i = 0; i < blockMap.size(); i++) {
+            ProfileBlock pb = blockMap.elementAt(i);
+            pb.predecessors = new int[predecessorCount[i]];
+            pb.successors = new int[successorCount[i]];
+            predecessorCount[i] = successorCount[i] = 0;
+        }
+        for (int slot = 0; slot < edges.getCapacity(); slot++) {
+            if (edges.getCount(slot) != 0) {
+                int from = edges.getFrom(slot), to = edges.getTo(slot);
+                if (startBlock[to]) {
+                    int i = blockIndex[to], j = blockIndex[from];
+                    blockMap.elementAt(i).predecessors[predecessorCount[i]++] =
+                            from;
+                    blockMap.elementAt(j).successors[successorCount[j]++] = to;
+                }
+            }
+        }
+        for (ProfileBlock pb : blockMap) {
+            Arrays.sort(pb.predecessors);
+            Arrays.sort(pb.successors);
+        }
     }
 
     /**
@@ -188,11 +309,10 @@ public class SpectrumRunningProfile {
      * @return	The order number in program blocks array, -1 in case of error.
      */
     public int predecessorCorrespondsTo(int address) {
-        for (int i = 0; i < blockMap.size(); i++) {
-            ProfileBlock pb = blockMap.elementAt(i);
-            if ((pb != null) && (pb.getLastCommandAddress() == address)) {
-                return i;
-            }
+        int i = blockIndex[address & 0xffff];
+        if ((i >= 0)
+                && (blockMap.elementAt(i).getLastCommandAddress() == address)) {
+            return i;
         }
         return -1; /* Error */
     }
@@ -205,11 +325,10 @@ public class SpectrumRunningProfile {
      * @return	The order number in program blocks array, -1 in case of error.
      */
     public int successorCorrespondsTo(int address) {
-        for (int i = 0; i < blockMap.size(); i++) {
-            ProfileBlock pb = blockMap.elementAt(i);
-            if ((pb != null) && (pb.getFirstCommandAddress() == address)) {
-                return i;
-            }
+        int i = blockIndex[address & 0xffff];
+        if ((i >= 0)
+                && (blockMap.elementAt(i).getFirstCommandAddress() == address)) {
+            return i;
         }
         return -1; /* Error */
     }
@@ -220,14 +339,18 @@ public class SpectrumRunningProfile {
      */
     public void translatePredecessorsAndSuccessors() {
         for (ProfileBlock pb : blockMap) {
-            pb.predecessorNumbers = new TreeSet<Integer>();
-            pb.successorNumbers = new TreeSet<Integer>();
-            for (int i : pb.predecessors) {
-                pb.predecessorNumbers.add(predecessorCorrespondsTo(i));
+            pb.predecessorNumbers = new int[pb.predecessors.length];
+            pb.successorNumbers = new int[pb.successors.length];
+            for (int i = 0; i < pb.predecessors.length; i++) {
+                pb.predecessorNumbers[i] =
+                        predecessorCorrespondsTo(pb.predecessors[i]);
             }
-            for (int i : pb.successors) {
-                pb.successorNumbers.add(successorCorrespondsTo(i));
+            for (int i = 0; i < pb.successors.length; i++) {
+                pb.successorNumbers[i] =
+                        successorCorrespondsTo(pb.successors[i]);
             }
+            Arrays.sort(pb.predecessorNumbers);
+            Arrays.sort(pb.successorNumbers);
         }
     }
 
@@ -235,7 +358,13 @@ public class SpectrumRunningProfile {
         out.println("Interrupts at start: " + interruptsAtStart);
         out.println("Interrupts at end: " + interruptsAtEnd);
         out.println("Estimated profiling time in seconds: "
-                + getProfilingTimeInSeconds() + "\n");
+                + getProfilingTimeInSeconds());
+        out.println("T-states profiled: " + totalTStates);
+        if (interruptsAtEnd > interruptsAtStart) {
+            out.println("T-states per frame: " + totalTStates
+                    / (interruptsAtEnd - interruptsAtStart));
+        }
+        out.println();
         for (int i = 0; i < blockMap.size(); i++) {
             ProfileBlock pb = blockMap.elementAt(i);
             if (pb.isInnermostNode(i)) {
@@ -243,8 +372,113 @@ public class SpectrumRunningProfile {
             } else {
                 out.println("PROGRAM BLOCK: " + i);
             }
-            out.println(pb);
+            pb.print(out);
+            out.println();
         }
+        saveRoutinesAsText(out);
+        saveCallTreeAsText(out);
+    }
+
+    /**
+     * Lists the called routines by their T-states, those of the routines
+     * they call included. Recursive calls are counted once.
+     */
+    private void saveRoutinesAsText(PrintStream out) {
+        long[] total = callTree.getTotalTStates();
+        long[] routineCalls = new long[0x10000];
+        long[] routineTotal = new long[0x10000];
+        long[] routineSelf = new long[0x10000];
+        for (int node = CallTree.ROOT + 1; node < callTree.size(); node++) {
+            int address = callTree.getAddress(node);
+            routineCalls[address] += callTree.getCalls(node);
+            routineSelf[address] += callTree.getSelfTStates(node);
+            int ancestor = callTree.getParent(node);
+            while ((ancestor != CallTree.ROOT)
+                    && (callTree.getAddress(ancestor) != address)) {
+                ancestor = callTree.getParent(ancestor);
+            }
+            if (ancestor == CallTree.ROOT) {
+                routineTotal[address] += total[node];
+            }
+        }
+
+        List<Integer> routines = new ArrayList<Integer>();
+        for (int address = 0; address < 0x10000; address++) {
+            if (routineCalls[address] != 0) {
+                routines.add(address);
+            }
+        }
+        final long[] order = routineTotal;
+        Collections.sort(routines, new Comparator<Integer>() {
+
+            public int compare(Integer a, Integer b) {
+                return (order[a] < order[b]) ? 1 : ((order[a] == order[b]) ? 0
+                        : -1);
+            }
+        });
+
+        out.println("ROUTINES\n");
+        out.println(String.format("%-4s %10s %12s %7s %12s %7s", "Addr",
+                "Calls", "T-states", "%", "Self", "%"));
+        for (int address : routines) {
+            out.println(String.format("%-4s %10d %12d %7.2f %12d %7.2f",
+                    Hex.intToHex4(address), routineCalls[address],
+                    routineTotal[address], percentage(routineTotal[address]),
+                    routineSelf[address], percentage(routineSelf[address])));
+        }
+        out.println("\n----------\n");
+    }
+
+    /**
+     * Prints the call tree depth first, the most expensive calls first.
+     * Calls under CALL_TREE_THRESHOLD of the time are left out.
+     */
+    private void saveCallTreeAsText(PrintStream out) {
+        final long[] total = callTree.getTotalTStates();
+        List<List<Integer>> children = new ArrayList<List<Integer>>();
+        for (int node = CallTree.ROOT; node < callTree.size(); node++) {
+            children.add(new ArrayList<Integer>());
+        }
+        for (int node = CallTree.ROOT + 1; node < callTree.size(); node++) {
+            if (total[node] >= CALL_TREE_THRESHOLD * totalTStates) {
+                children.get(callTree.getParent(node)).add(node);
+            }
+        }
+        Comparator<Integer> byTotal = new Comparator<Integer>() {
+
+            public int compare(Integer a, Integer b) {
+                return (total[a] < total[b]) ? 1 : ((total[a] == total[b]) ? 0
+                        : -1);
+            }
+        };
+
+        out.println("CALL TREE\n");
+        out.println(String.format("%12s %7s %12s %7s %10s  %s", "T-states",
+                "%", "Self", "%", "Calls", "Routine"));
+        Deque<Integer> stack = new ArrayDeque<Integer>();
+        Deque<Integer> depths = new ArrayDeque<Integer>();
+        stack.push(CallTree.ROOT);
+        depths.push(0);
+        while (!stack.isEmpty()) {
+            int node = stack.pop(), depth = depths.pop();
+            long self = callTree.getSelfTStates(node);
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < depth; i++) {
+                name.append("  ");
+            }
+            name.append((node == CallTree.ROOT) ? CallTreeExporter.TOP_LEVEL
+                    : Hex.intToHex4(callTree.getAddress(node)));
+            out.println(String.format("%12d %7.2f %12d %7.2f %10d  %s",
+                    total[node], percentage(total[node]), self,
+                    percentage(self), callTree.getCalls(node), name));
+            List<Integer> list = children.get(node);
+            Collections.sort(list, Collections.reverseOrder(byTotal));
+            for (int child : list) {
+                stack.push(child);
+                depths.push(depth + 1);
+            }
+        }
+        out.println("\n----------\n");
     }
 
     private void saveBlocksAsSVGFlowChart(PrintStream out) {
@@ -278,29 +512,78 @@ public class SpectrumRunningProfile {
     }
 
     /**
-     * Saves the profiling blocks to disk.
+     * Writes the call tree in the collapsed stack format of flame graphs.
+     */
+    public void saveCollapsedStacks(Writer out) throws IOException {
+        new CallTreeExporter(callTree).writeCollapsedStacks(out);
+    }
+
+    /**
+     * Writes the call tree as an uncompressed pprof profile.
+     */
+    public void savePprof(OutputStream out) throws IOException {
+        new CallTreeExporter(callTree).writePprof(out,
+                (long) (getProfilingTimeInSeconds() * 1e9));
+    }
+
+    /**
+     * Saves the profile of a finished profiling into a file. The type of the
+     * file selects the format: svg for a flowchart of the blocks, folded or
+     * collapsed for the collapsed stacks of flame graphs, pb or pprof for
+     * pprof and anything else for text. A further gz type compresses the
+     * file with gzip, as in profile.pb.gz.
+     */
+    public void saveBlocks(File f) throws IOException {
+        String name = f.getName();
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(f));
+        try {
+            if (Snapshots.fileType(name).equals("gz")) {
+                os = new GZIPOutputStream(os);
+                name = name.substring(0, name.length() - 3);
+            }
+            String ftype = Snapshots.fileType(name);
+            if (ftype.equals("folded") || ftype.equals("collapsed")) {
+                LOG.info("Saving collapsed stacks.");
+                saveCollapsedStacks(new OutputStreamWriter(os, "UTF-8"));
+            } else if (ftype.equals("pb") || ftype.equals("pprof")) {
+                LOG.info("Saving pprof profile.");
+                savePprof(os);
+            } else if (ftype.equals("xml")) {
+                LOG.warn("Plain XML output not implemented.");
+            } else {
+                PrintStream out = new PrintStream(os);
+                if (ftype.equals("svg")) {
+                    LOG.info("Saving SVG diagram.");
+                    saveBlocksAsSVGFlowChart(out);
+                } else {
+                    LOG.info("Defaulting to plain text output.");
+                    saveBlocksAsText(out);
+                }
+                out.flush();
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Saves the profiling blocks to disk, asking for the file on the event
+     * dispatch thread. Profiling must have ended.
      */
     public void saveBlocks() {
+        if (blockMap == null) {
+            LOG.warn("Profiling has not ended yet.");
+            return;
+        }
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
                 JFileChooser chooser = new JFileChooser();
                 int returnVal = chooser.showSaveDialog(null);
                 if (returnVal == JFileChooser.APPROVE_OPTION) {
                     try {
-                        File f = chooser.getSelectedFile();
-                        String ftype = Snapshots.fileType(f.getName());
-                        PrintStream out = new PrintStream(f);
-                        if (ftype.equals("svg")) {
-                            LOG.info("Saving SVG diagram.");
-                            saveBlocksAsSVGFlowChart(out);
-                        } else if (ftype.equals("xml")) {
-                            LOG.warn("Plain XML output not implemented.");
-                        } else {
-                            LOG.info("Defaulting to plain text output.");
-                            saveBlocksAsText(out);
-                        }
+                        saveBlocks(chooser.getSelectedFile());
                     } catch (IOException e) {
-                        LOG.warn("Unable to write profile file.");
+                        LOG.warn("Unable to write profile file.", e);
                     }
                 }
             }
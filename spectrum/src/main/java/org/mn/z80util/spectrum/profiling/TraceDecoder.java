@@ -0,0 +1,318 @@
+/*
+ * TraceDecoder.java - Reads instruction traces written by TraceRecorder.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.spectrum.profiling;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import org.apache.log4j.*;
+
+import org.mn.z80util.disassembler.*;
+import org.mn.z80util.z80.*;
+
+/**
+ * Reads a trace file written by TraceRecorder. The records are numbered in
+ * the order they were written, starting from zero, of which the file keeps
+ * the latest blocks, from getFirst() to getWritten() - 1. The file is mapped
+ * read only in the same segments it was written in.
+ *
+ * The T-states of a record are the sum of the deltas since the keyframe of
+ * its block, so the decoder keeps its place in the current block, and
+ * records read in order are found without going through the block again.
+ */
+public class TraceDecoder {
+
+    private static Logger LOG = Logger.getLogger(TraceDecoder.class);
+    private static final String[] REG_PAIR_NAMES = {"BC", "DE", "HL", "AF",
+        "BC'", "DE'", "HL'", "AF'", "IX", "IY", "SP", "PC", "IR"};
+    /* Register pairs shown in the listing, in the order shown */
+    private static final int[] LISTED_PAIRS = {Z80.AF, Z80.BC, Z80.DE,
+        Z80.HL, Z80.IX, Z80.IY, Z80.SP};
+    private final LongBuffer[] segments;
+    private final long capacity, written, blocks;
+    /* The block of the latest record read and its first record */
+    private LongBuffer block;
+    private long blockFirst;
+    /* The latest record read, its T-states and its place in the block */
+    private long current = -1, tstates;
+    private int index;
+    /* Memory image for the disassembler, holding one instruction at a time */
+    private final byte[] memory = new byte[0x10000];
+
+    public TraceDecoder(File f) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() < TraceRecorder.HEADER_SIZE) {
+                throw new IOException(f.getPath() + " is not a trace file.");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    TraceRecorder.HEADER_SIZE);
+            for (int i = 0; i < TraceRecorder.MAGIC.length; i++) {
+                if (header.get(i) != TraceRecorder.MAGIC[i]) {
+                    throw new IOException(f.getPath()
+                            + " is not a trace file.");
+                }
+            }
+            int version = header.getInt(TraceRecorder.HEADER_VERSION);
+            if ((version != TraceRecorder.VERSION) || (header.getInt(
+                    TraceRecorder.HEADER_BLOCK_SIZE)
+                    != TraceRecorder.BLOCK_SIZE)) {
+                throw new IOException("Unsupported trace version " + version
+                        + ".");
+            }
+            capacity = header.getLong(TraceRecorder.HEADER_CAPACITY);
+            written = header.getLong(TraceRecorder.HEADER_WRITTEN);
+            blocks = header.getLong(TraceRecorder.HEADER_BLOCKS);
+            if (channel.size() < TraceRecorder.HEADER_SIZE
+                    + capacity * TraceRecorder.BLOCK_SIZE) {
+                throw new IOException("Trace " + f.getPath()
+                        + " is truncated.");
+            }
+            int segmentBlocks = TraceRecorder.SEGMENT_BLOCKS;
+            segments = new LongBuffer[(int) ((capacity + segmentBlocks - 1)
+                    / segmentBlocks)];
+            for (int i = 0; i < segments.length; i++) {
+                long first = (long) i * segmentBlocks;
+                long length = Math.min(segmentBlocks, capacity - first)
+                        * TraceRecorder.BLOCK_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        TraceRecorder.HEADER_SIZE
+                        + first * TraceRecorder.BLOCK_SIZE, length)
+                        .asLongBuffer();
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return	Number of records written, including those overwritten
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * @return	Number of the oldest record kept
+     */
+    public long getFirst() {
+        if (blocks == 0) {
+            return 0;
+        }
+        return get(Math.max(0, blocks - capacity),
+                TraceRecorder.BLOCK_FIRST);
+    }
+
+    /**
+     * @return	Long of given index in a block, the blocks numbered in the
+     * order they were written
+     */
+    private long get(long blockNo, int i) {
+        long n = blockNo % capacity;
+        return segments[(int) (n / TraceRecorder.SEGMENT_BLOCKS)].get(
+                (int) (n % TraceRecorder.SEGMENT_BLOCKS)
+                * TraceRecorder.BLOCK_LONGS + i);
+    }
+
+    /**
+     * Finds a record and the T-states before it.
+     *
+     * @return	The record
+     */
+    private long seek(long n) {
+        if ((n < getFirst()) || (n >= written)) {
+            throw new IndexOutOfBoundsException("Record " + n
+                    + " not within " + getFirst() + "-" + (written - 1) + ".");
+        }
+        if ((block == null) || (n < current) || (n >= blockFirst
+                + block.get(TraceRecorder.BLOCK_RECORDS))) {
+            /* The blocks hold their first records in ascending order */
+            long low = Math.max(0, blocks - capacity), high = blocks - 1;
+            while (low < high) {
+                long middle = (low + high + 1) / 2;
+                if (get(middle, TraceRecorder.BLOCK_FIRST) <= n) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            long b = low % capacity;
+            LongBuffer segment = segments[(int) (b
+                    / TraceRecorder.SEGMENT_BLOCKS)];
+            int start = (int) (b % TraceRecorder.SEGMENT_BLOCKS)
+                    * TraceRecorder.BLOCK_LONGS;
+            segment.limit(start + TraceRecorder.BLOCK_LONGS);
+            segment.position(start);
+            block = segment.slice();
+            segment.clear();
+            blockFirst = block.get(TraceRecorder.BLOCK_FIRST);
+            tstates = block.get(TraceRecorder.BLOCK_TSTATES);
+            current = blockFirst;
+            index = TraceRecorder.BLOCK_RECORD;
+        }
+        while (current < n) {
+            current++;
+            index++;
+            tstates += block.get(index) & TraceRecorder.MAX_DELTA;
+        }
+        return block.get(index);
+    }
+
+    /**
+     * @return	True if the registers before the instruction of the record
+     * were kept, which they are for the first record of each block
+     */
+    public boolean isKeyframe(long n) {
+        seek(n);
+        return current == blockFirst;
+    }
+
+    /**
+     * @return	T-states executed before the instruction of the record
+     */
+    public long getTStates(long n) {
+        seek(n);
+        return tstates;
+    }
+
+    /**
+     * @return	Address of the instruction of the record
+     */
+    public short getPC(long n) {
+        return (short) (seek(n) >>> 48);
+    }
+
+    /**
+     * @param regpairno	Register pair index as in Z80
+     * @return	The register pair before the instruction of a keyframe record
+     */
+    public short getRegPair(long n, int regpairno) {
+        if (!isKeyframe(n)) {
+            throw new IllegalArgumentException("Record " + n
+                    + " has no registers.");
+        }
+        return (short) (block.get(TraceRecorder.BLOCK_REGISTERS
+                + regpairno / 4) >>> (48 - 16 * (regpairno & 3)));
+    }
+
+    /**
+     * @return	The interrupt flags byte of a keyframe record, as register
+     * IM_IFF of Z80
+     */
+    public byte getInterruptFlags(long n) {
+        if (!isKeyframe(n)) {
+            throw new IllegalArgumentException("Record " + n
+                    + " has no registers.");
+        }
+        return (byte) (block.get(TraceRecorder.BLOCK_REGISTERS
+                + TraceRecorder.REG_PAIRS / 4) >>> 32);
+    }
+
+    /**
+     * @return	The four bytes at PC, of which the instruction takes as many
+     * as it needs
+     */
+    public byte[] getOpcode(long n) {
+        int opcode = (int) (seek(n) >>> 16);
+        byte[] bytes = new byte[TraceRecorder.OPCODE_LENGTH];
+        for (int i = 0; i < TraceRecorder.OPCODE_LENGTH; i++) {
+            bytes[i] = (byte) (opcode >>> (24 - 8 * i));
+        }
+        return bytes;
+    }
+
+    /**
+     * Disassembles the instruction of a record.
+     */
+    public DisasmResult disassemble(long n) {
+        int pc = getPC(n) & 0xffff;
+        byte[] opcode = getOpcode(n);
+        for (int i = 0; i < TraceRecorder.OPCODE_LENGTH; i++) {
+            memory[(pc + i) & 0xffff] = opcode[i];
+        }
+        DisasmResult dar = Disassembler.disassemble(memory, (short) pc);
+        for (int i = 0; i < TraceRecorder.OPCODE_LENGTH; i++) {
+            memory[(pc + i) & 0xffff] = 0;
+        }
+        return dar;
+    }
+
+    /**
+     * @return	A listing line of a record: the T-states, the address and the
+     * instruction, and the registers before it if the record is a keyframe
+     */
+    public String format(long n) {
+        DisasmResult dar = disassemble(n);
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%12d ", getTStates(n)));
+        sb.append(Hex.intToHex4(getPC(n))).append(' ');
+        sb.append(dar.getHexDigits());
+        sb.append(String.format("%-16s", dar.getCommand()));
+        if (isKeyframe(n)) {
+            for (int pair : LISTED_PAIRS) {
+                sb.append(' ').append(REG_PAIR_NAMES[pair]).append('=');
+                sb.append(Hex.intToHex4(getRegPair(n, pair)));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Prints the listing of records, in the order they were written.
+     *
+     * @param from	Number of the first record
+     * @param count	Maximum number of records
+     */
+    public void print(PrintStream out, long from, long count) {
+        long end = Math.min(written, from + count);
+        for (long n = Math.max(from, getFirst()); n < end; n++) {
+            out.println(format(n));
+        }
+    }
+
+    /**
+     * Prints the listing of a trace file. Arguments: the file, optionally
+     * the number of the first record to print (default the oldest one kept)
+     * and the number of records (default all).
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            LOG.error("Usage: TraceDecoder file [first [count]]");
+            System.exit(1);
+        }
+        try {
+            TraceDecoder decoder = new TraceDecoder(new File(args[0]));
+            long from = (args.length > 1) ? Long.parseLong(args[1])
+                    : decoder.getFirst();
+            long count = (args.length > 2) ? Long.parseLong(args[2])
+                    : Long.MAX_VALUE - from;
+            PrintStream out = new PrintStream(new BufferedOutputStream(
+                    System.out, 1 << 16), false);
+            decoder.print(out, from, count);
+            out.flush();
+        } catch (IOException e) {
+            LOG.error("Unable to read trace " + args[0] + ".", e);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * TraceRecorder.java - Instruction trace into a memory mapped ring file.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.spectrum.profiling;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import org.apache.log4j.*;
+
+import org.mn.z80util.z80.*;
+
+/**
+ * Records each executed instruction into a trace file of fixed size blocks,
+ * read back by TraceDecoder. The file is a ring: when it is full, the oldest
+ * blocks are overwritten, so the file keeps the latest instructions of an
+ * arbitrarily long run.
+ *
+ * The file begins with a header of 64 bytes: the magic "Z80TRACE", the
+ * version and the block size as ints, and the capacity in blocks, the number
+ * of records written and the number of blocks begun as longs. The blocks of
+ * 64 KB follow. A block begins with a keyframe: the number of its first
+ * record, the number of its records, the T-state count before the first
+ * record, and the register pairs BC to IR in the order of their indices and
+ * the interrupt flags before it as shorts. The records follow as longs, each
+ * holding the address of the instruction in the highest 16 bits, the four
+ * bytes at that address in the next 32 bits and the T-states since the
+ * previous record in the lowest 16 bits. The first record of a block has no
+ * previous one and holds zero. All values are big-endian.
+ *
+ * The registers are thus kept only once a block. A new block is begun when
+ * the current one is full, and early when the T-states since the previous
+ * record do not fit into a record, which happens after the processor has
+ * been halted for a long time.
+ *
+ * The file is mapped into memory in segments of 1 GB, so that traces may
+ * exceed the 2 GB limit of a single mapping. The current block is staged in
+ * a heap array and copied into the mapping when it is full. The staged block
+ * and the numbers in the header are stored into the file whenever
+ * updateHeader() is called, for example once a frame, and when the recorder
+ * is closed, so that the trace of a program which exits without closing the
+ * recorder is still readable up to the last update.
+ *
+ * A TracingZ80 reports its instructions to the recorder from inside its
+ * execution loop, other processors are recorded one record() at a time.
+ * Either way the processor gives its own T-state count, which the recorder
+ * subtracts from the time base set by the caller.
+ */
+public class TraceRecorder implements InstructionTracer {
+
+    private static Logger LOG = Logger.getLogger(TraceRecorder.class);
+    static final byte[] MAGIC = {'Z', '8', '0', 'T', 'R', 'A', 'C', 'E'};
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 64;
+    public static final int BLOCK_SIZE = 1 << 16;
+    /* Offsets of the header fields */
+    static final int HEADER_VERSION = 8;
+    static final int HEADER_BLOCK_SIZE = 12;
+    static final int HEADER_CAPACITY = 16;
+    static final int HEADER_WRITTEN = 24;
+    static final int HEADER_BLOCKS = 32;
+    /* Indices of the keyframe fields in a block of longs */
+    static final int BLOCK_FIRST = 0;
+    static final int BLOCK_RECORDS = 1;
+    static final int BLOCK_TSTATES = 2;
+    static final int BLOCK_REGISTERS = 3;
+    static final int BLOCK_RECORD = 7;
+    public static final int REG_PAIRS = Z80.IR + 1;
+    public static final int OPCODE_LENGTH = 4;
+    static final int BLOCK_LONGS = BLOCK_SIZE / 8;
+    /* Largest T-states since the previous record a record holds */
+    static final int MAX_DELTA = 0xffff;
+    /* Number of blocks in a full segment */
+    static final int SEGMENT_BLOCKS = (1 << 30) / BLOCK_SIZE;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] mappings;
+    private final LongBuffer[] segments;
+    private final long capacity;
+    private long blocks;
+    private long timeBase;
+    /*
+     * The current block and its next free index, and the T-state count of
+     * the processor at the previous record, moved with the time base
+     */
+    private final long[] block = new long[BLOCK_LONGS];
+    private int index = BLOCK_LONGS;
+    private int lastCount;
+    private final int[] regPairs = new int[REG_PAIRS];
+
+    /**
+     * Creates the trace file, replacing an existing one.
+     *
+     * @param f	The file
+     * @param size	Size of the records in bytes, rounded up to whole blocks
+     */
+    public TraceRecorder(File f, long size) throws IOException {
+        if (size < 1) {
+            throw new IllegalArgumentException("Size of a trace must be "
+                    + "positive.");
+        }
+        capacity = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        file = new RandomAccessFile(f, "rw");
+        file.setLength(0);
+        file.setLength(HEADER_SIZE + capacity * BLOCK_SIZE);
+        FileChannel channel = file.getChannel();
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        mappings = new MappedByteBuffer[(int) ((capacity + SEGMENT_BLOCKS - 1)
+                / SEGMENT_BLOCKS)];
+        segments = new LongBuffer[mappings.length];
+        for (int i = 0; i < mappings.length; i++) {
+            long first = (long) i * SEGMENT_BLOCKS;
+            long length = Math.min(SEGMENT_BLOCKS, capacity - first)
+                    * BLOCK_SIZE;
+            mappings[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + first * BLOCK_SIZE, length);
+            segments[i] = mappings[i].asLongBuffer();
+        }
+
+        header.put(MAGIC);
+        header.putInt(HEADER_VERSION, VERSION);
+        header.putInt(HEADER_BLOCK_SIZE, BLOCK_SIZE);
+        header.putLong(HEADER_CAPACITY, capacity);
+        header.putLong(HEADER_WRITTEN, 0);
+        header.putLong(HEADER_BLOCKS, 0);
+        LOG.info("Tracing into " + f.getPath() + ", " + capacity
+                + " blocks of " + (BLOCK_LONGS - BLOCK_RECORD)
+                + " records.");
+    }
+
+    /**
+     * @return	Number of blocks the file holds
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return	Number of records written, including those overwritten
+     */
+    public long getWritten() {
+        if (blocks == 0) {
+            return 0;
+        }
+        return block[BLOCK_FIRST] + index - BLOCK_RECORD;
+    }
+
+    /**
+     * Sets the T-states executed when the processor's T-state count reaches
+     * zero, for example at the end of the current line. The T-states of a
+     * record are the time base less the count of the processor.
+     */
+    public void setTimeBase(long timeBase) {
+        lastCount += (int) (timeBase - this.timeBase);
+        this.timeBase = timeBase;
+    }
+
+    @Override
+    public boolean instruction(int tstates, int pc, int opcode) {
+        int delta = lastCount - tstates;
+        lastCount = tstates;
+        long record = ((long) pc << 48) | ((opcode & 0xffffffffL) << 16);
+        /* The delta is checked for being negative too */
+        if ((index < BLOCK_LONGS) && ((delta & ~MAX_DELTA) == 0)) {
+            block[index++] = record | delta;
+            return false;
+        }
+        beginBlock(timeBase - tstates);
+        block[index++] = record;
+        return true;
+    }
+
+    /**
+     * Stores the current block into the file and begins the next one, of
+     * which the keyframe is completed by registers().
+     *
+     * @param tstates	T-states before the first record of the block
+     */
+    private void beginBlock(long tstates) {
+        long first = getWritten();
+        if (blocks > 0) {
+            storeBlock();
+        }
+        blocks++;
+        block[BLOCK_FIRST] = first;
+        block[BLOCK_TSTATES] = tstates;
+        index = BLOCK_RECORD;
+    }
+
+    @Override
+    public void registers(int[] regPairs, int imIff) {
+        long l = 0;
+        for (int i = 0; i < REG_PAIRS; i++) {
+            l = (l << 16) | (regPairs[i] & 0xffff);
+            if ((i & 3) == 3) {
+                block[BLOCK_REGISTERS + i / 4] = l;
+            }
+        }
+        block[BLOCK_REGISTERS + REG_PAIRS / 4] = (l << 48)
+                | ((imIff & 0xffL) << 32);
+    }
+
+    /**
+     * Copies the used part of the current block into its place in the file.
+     */
+    private void storeBlock() {
+        block[BLOCK_RECORDS] = index - BLOCK_RECORD;
+        long n = (blocks - 1) % capacity;
+        LongBuffer segment = segments[(int) (n / SEGMENT_BLOCKS)];
+        segment.position((int) (n % SEGMENT_BLOCKS) * BLOCK_LONGS);
+        segment.put(block, 0, index);
+    }
+
+    /**
+     * Records the state of a processor which is not a TracingZ80 before its
+     * next instruction.
+     *
+     * @param bus	The memory of the processor, read for the instruction
+     */
+    public void record(Z80 z80, AddressBusProvider bus) {
+        short pc = z80.getRegPair(Z80.PC);
+        int opcode = 0;
+        for (int i = 0; i < OPCODE_LENGTH; i++) {
+            opcode = (opcode << 8) | (bus.getByte((short) (pc + i)) & 0xff);
+        }
+        if (instruction(z80.getTStates(), pc & 0xffff, opcode)) {
+            for (int i = 0; i < REG_PAIRS; i++) {
+                regPairs[i] = z80.getRegPair(i);
+            }
+            registers(regPairs, z80.getReg(Z80.IM_IFF));
+        }
+    }
+
+    /**
+     * Copies the current block into the file and stores the number of
+     * records and blocks written so far into the header.
+     */
+    public void updateHeader() {
+        if (blocks > 0) {
+            storeBlock();
+        }
+        header.putLong(HEADER_WRITTEN, getWritten());
+        header.putLong(HEADER_BLOCKS, blocks);
+    }
+
+    /**
+     * Stores the current block and the numbers into the file, flushes the
+     * file and closes it. The recorder may not be used afterwards.
+     */
+    public void close() throws IOException {
+        updateHeader();
+        header.force();
+        for (int i = 0; i < mappings.length; i++) {
+            mappings[i].force();
+        }
+        file.close();
+        LOG.info("Traced " + getWritten() + " instructions in " + blocks
+                + " blocks, " + Math.min(blocks, capacity) + " kept.");
+    }
+}
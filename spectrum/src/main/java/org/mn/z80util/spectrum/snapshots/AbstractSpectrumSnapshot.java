@@ -32,6 +32,10 @@ public abstract class AbstractSpectrumSnapshot implements Snapshot {
     protected byte[] memory;
     protected byte[] regs;
     protected int border;
+    protected int model = SpectrumULA.MODEL_48K;
+    /* The eight RAM banks of the models other than 48K, null on 48K */
+    protected byte[][] banks;
+    protected int port7ffd, port1ffd;
 
     /**
      * Creates an empty abstract snapshot with fresh arrays for memory and
@@ -65,13 +69,30 @@ public abstract class AbstractSpectrumSnapshot implements Snapshot {
     public void read(Z80 z80, SpectrumULA ula) {
         this.z80 = z80;
         this.ula = ula;
-        for (int i = 0; i < 0x10000; i++) {
-            memory[i] = ula.getByte((short) i);
-        }
+        System.arraycopy(ula.getMemory(), 0, memory, 0, 0x10000);
         for (int i = 0; i < 27; i++) {
             regs[i] = z80.getReg(i);
         }
         border = ula.getBorder();
+        model = ula.getModel();
+        if (model == SpectrumULA.MODEL_48K) {
+            banks = null;
+        } else {
+            createBanks(model);
+            for (int bank = 0; bank < 8; bank++) {
+                ula.readRAMBank(bank, banks[bank]);
+            }
+            port7ffd = ula.getPort7FFD();
+            port1ffd = ula.getPort1FFD();
+        }
+    }
+
+    /**
+     * Makes this a snapshot of a model with RAM banks.
+     */
+    protected void createBanks(int model) {
+        this.model = model;
+        banks = new byte[8][SpectrumULA.BANK_SIZE];
     }
 
     /**
@@ -83,9 +104,19 @@ public abstract class AbstractSpectrumSnapshot implements Snapshot {
     public void write(Z80 z80, SpectrumULA ula) {
         this.z80 = z80;
         this.ula = ula;
-        for (int i = 0; i < 0x10000; i++) {
-            ula.setByte((short) i, memory[i]);
+        ula.setModel(model);
+        if (banks == null) {
+            /* The ROM stays, as the 48K model maps banks 5, 2 and 0 only */
+            ula.writeRAMBank(5, memory, 0x4000);
+            ula.writeRAMBank(2, memory, 0x8000);
+            ula.writeRAMBank(0, memory, 0xc000);
+        } else {
+            for (int bank = 0; bank < 8; bank++) {
+                ula.writeRAMBank(bank, banks[bank], 0);
+            }
+            ula.setPagingPorts(port7ffd, port1ffd);
         }
+        ula.markScreenDirty();
         for (int i = 0; i < 27; i++) {
             z80.setReg(i, regs[i]);
         }
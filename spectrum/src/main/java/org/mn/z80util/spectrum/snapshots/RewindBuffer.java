@@ -0,0 +1,335 @@
+/*
+ * RewindBuffer.java - Recent states of the machine for rewinding.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.spectrum.snapshots;
+
+import java.util.*;
+
+import org.apache.log4j.*;
+
+import org.mn.z80util.spectrum.*;
+import org.mn.z80util.z80.*;
+
+/**
+ * Ring buffer of the states of the machine at the ends of the recent frames,
+ * for rewinding. Every keyframeInterval frames the whole RAM is stored run
+ * length compressed. The frames between store only the 256-byte pages which
+ * have changed since the previous frame, XORed with their previous contents
+ * and compressed, so an unchanged byte costs next to nothing. The changed
+ * pages are found by comparing with the RAM of the previous frame, which
+ * keeps the memory writes of the processor free of bookkeeping.
+ *
+ * Rewinding decodes the nearest keyframe before the target and applies the
+ * deltas after it. When the frames exceed the memory budget or the capacity
+ * of the ring, the oldest keyframe is dropped together with its deltas.
+ *
+ * The buffer is not thread safe: it must be used by the thread running the
+ * machine, between the frames.
+ */
+public class RewindBuffer {
+
+    private static Logger LOG = Logger.getLogger(RewindBuffer.class);
+    private static final int PAGE_SIZE = 0x100;
+    private static final int PAGES_PER_BANK = SpectrumULA.BANK_SIZE / PAGE_SIZE;
+    /* Approximate size of a frame besides its memory data */
+    private static final int FRAME_OVERHEAD = 64;
+    /* The RAM banks of the 48K model in the order of the address space */
+    private static final int[] BANKS_48K = {5, 2, 0};
+    private static final int[] BANKS_128K = {0, 1, 2, 3, 4, 5, 6, 7};
+
+    /**
+     * State of the machine at the end of a frame.
+     */
+    private static class Frame {
+
+        final byte[] regs = new byte[27];
+        int tstates, border, port7ffd, port1ffd;
+        boolean flashState, keyframe;
+        /* Whole RAM for keyframes, changed pages for deltas */
+        byte[] data;
+    }
+    private final Frame[] frames;
+    private final long budget;
+    private final int keyframeInterval;
+    private int first, count, keyframes, sinceKeyframe;
+    private long size;
+    private int model = -1;
+    private int[] banks;
+    /* The RAM at the latest recorded frame, and the RAM being recorded */
+    private byte[][] last, current;
+    private byte[] scratch;
+    private final byte[] page = new byte[PAGE_SIZE];
+
+    /**
+     * @param maxFrames	Capacity of the ring in frames
+     * @param budget	Memory budget of the recorded frames in bytes
+     * @param keyframeInterval	Number of frames from a keyframe to the next,
+     * less than maxFrames
+     */
+    public RewindBuffer(int maxFrames, long budget, int keyframeInterval) {
+        if ((keyframeInterval < 1) || (keyframeInterval >= maxFrames)) {
+            throw new IllegalArgumentException("Keyframe interval "
+                    + keyframeInterval + " not within 1-" + (maxFrames - 1)
+                    + ".");
+        }
+        this.frames = new Frame[maxFrames];
+        this.budget = budget;
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * @return	Number of frames recorded
+     */
+    public int getFrameCount() {
+        return count;
+    }
+
+    /**
+     * @return	Approximate memory used by the recorded frames in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Forgets all recorded frames.
+     */
+    public void clear() {
+        Arrays.fill(frames, null);
+        first = count = keyframes = sinceKeyframe = 0;
+        size = 0;
+    }
+
+    private Frame frame(int i) {
+        return frames[(first + i) % frames.length];
+    }
+
+    /**
+     * Allocates the RAM images for a model.
+     */
+    private void setModel(int model) {
+        this.model = model;
+        banks = (model == SpectrumULA.MODEL_48K) ? BANKS_48K : BANKS_128K;
+        last = new byte[banks.length][SpectrumULA.BANK_SIZE];
+        current = new byte[banks.length][SpectrumULA.BANK_SIZE];
+        scratch = new byte[banks.length * PAGES_PER_BANK
+                * (4 + Z80Compression.maxCompressedLength(PAGE_SIZE))];
+    }
+
+    /**
+     * Writes a compressed block preceded by its length.
+     *
+     * @return	Index after the last byte written
+     */
+    private static int putBlock(byte[] src, int start, int length,
+            byte[] dst, int pos) {
+        int end = Z80Compression.compress(src, start, length, dst, pos + 2);
+        int blockLength = end - pos - 2;
+        dst[pos] = (byte) (blockLength >> 8);
+        dst[pos + 1] = (byte) blockLength;
+        return end;
+    }
+
+    /**
+     * Expands a block written by putBlock().
+     *
+     * @return	Index after the block
+     */
+    private static int getBlock(byte[] src, int pos, byte[] target,
+            int length) {
+        int end = pos + 2 + (((src[pos] & 0xff) << 8) | (src[pos + 1] & 0xff));
+        Z80Compression.expand(src, pos + 2, end, target, 0, length);
+        return end;
+    }
+
+    private int encodeKeyframe() {
+        int pos = 0;
+        for (int i = 0; i < banks.length; i++) {
+            pos = putBlock(current[i], 0, SpectrumULA.BANK_SIZE, scratch, pos);
+        }
+        return pos;
+    }
+
+    /**
+     * Writes the index and the XOR of each changed page.
+     */
+    private int encodeDelta() {
+        int pos = 0;
+        for (int i = 0; i < banks.length; i++) {
+            byte[] cur = current[i], old = last[i];
+            for (int start = 0; start < SpectrumULA.BANK_SIZE;
+                    start += PAGE_SIZE) {
+                int p = start, end = start + PAGE_SIZE;
+                while ((p < end) && (cur[p] == old[p])) {
+                    p++;
+                }
+                if (p == end) {
+                    continue;
+                }
+                for (p = 0; p < PAGE_SIZE; p++) {
+                    page[p] = (byte) (cur[start + p] ^ old[start + p]);
+                }
+                int index = i * PAGES_PER_BANK + start / PAGE_SIZE;
+                scratch[pos++] = (byte) (index >> 8);
+                scratch[pos++] = (byte) index;
+                pos = putBlock(page, 0, PAGE_SIZE, scratch, pos);
+            }
+        }
+        return pos;
+    }
+
+    private void decodeKeyframe(byte[] data) {
+        int pos = 0;
+        for (int i = 0; i < banks.length; i++) {
+            pos = getBlock(data, pos, last[i], SpectrumULA.BANK_SIZE);
+        }
+    }
+
+    private void applyDelta(byte[] data) {
+        int pos = 0;
+        while (pos < data.length) {
+            int index = ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+            pos = getBlock(data, pos + 2, page, PAGE_SIZE);
+            byte[] bank = last[index / PAGES_PER_BANK];
+            int start = (index % PAGES_PER_BANK) * PAGE_SIZE;
+            for (int p = 0; p < PAGE_SIZE; p++) {
+                bank[start + p] ^= page[p];
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest keyframe and the deltas after it.
+     */
+    private void dropOldest() {
+        do {
+            Frame frame = frames[first];
+            frames[first] = null;
+            first = (first + 1) % frames.length;
+            count--;
+            size -= frame.data.length + FRAME_OVERHEAD;
+            if (frame.keyframe) {
+                keyframes--;
+            }
+        } while ((count > 0) && !frames[first].keyframe);
+    }
+
+    /**
+     * Records the current state of the machine as the latest frame.
+     */
+    public void record(Z80 z80, SpectrumULA ula) {
+        if (ula.getModel() != model) {
+            clear();
+            setModel(ula.getModel());
+        }
+        for (int i = 0; i < banks.length; i++) {
+            ula.readRAMBank(banks[i], current[i]);
+        }
+
+        Frame frame = new Frame();
+        for (int i = 0; i < frame.regs.length; i++) {
+            frame.regs[i] = z80.getReg(i);
+        }
+        frame.tstates = z80.getTStates();
+        frame.border = ula.getBorder();
+        frame.flashState = ula.getFlashState();
+        frame.port7ffd = ula.getPort7FFD();
+        frame.port1ffd = ula.getPort1FFD();
+        frame.keyframe = (count == 0) || (sinceKeyframe == keyframeInterval);
+        int length = frame.keyframe ? encodeKeyframe() : encodeDelta();
+        frame.data = Arrays.copyOf(scratch, length);
+        sinceKeyframe = frame.keyframe ? 1 : sinceKeyframe + 1;
+        byte[][] tmp = last;
+        last = current;
+        current = tmp;
+
+        if (count == frames.length) {
+            dropOldest();
+        }
+        frames[(first + count) % frames.length] = frame;
+        count++;
+        size += length + FRAME_OVERHEAD;
+        if (frame.keyframe) {
+            keyframes++;
+        }
+        while ((size > budget) && (keyframes > 1)) {
+            dropOldest();
+        }
+    }
+
+    /**
+     * Restores the state of a recorded frame and forgets the frames after
+     * it, so that recording continues from the restored state.
+     *
+     * @param framesBack	Number of frames to go back from the latest
+     * recorded one, limited to the frames available
+     * @return	Number of frames actually gone back, -1 if there are no
+     * frames
+     */
+    public int rewind(int framesBack, Z80 z80, SpectrumULA ula) {
+        if (count == 0) {
+            return -1;
+        }
+        framesBack = Math.max(0, Math.min(framesBack, count - 1));
+        int target = count - 1 - framesBack;
+        int key = target;
+        while (!frame(key).keyframe) {
+            key--;
+        }
+        decodeKeyframe(frame(key).data);
+        for (int i = key + 1; i <= target; i++) {
+            applyDelta(frame(i).data);
+        }
+
+        Frame frame = frame(target);
+        if (ula.getModel() != model) {
+            ula.setModel(model);
+        }
+        for (int i = 0; i < banks.length; i++) {
+            ula.writeRAMBank(banks[i], last[i]);
+        }
+        if (model != SpectrumULA.MODEL_48K) {
+            ula.setPagingPorts(frame.port7ffd, frame.port1ffd);
+        }
+        for (int i = 0; i < frame.regs.length; i++) {
+            z80.setReg(i, frame.regs[i]);
+        }
+        z80.setTStates(frame.tstates);
+        ula.setBorder(frame.border);
+        ula.setFlashState(frame.flashState);
+        ula.markScreenDirty();
+
+        while (count > target + 1) {
+            count--;
+            int i = (first + count) % frames.length;
+            size -= frames[i].data.length + FRAME_OVERHEAD;
+            if (frames[i].keyframe) {
+                keyframes--;
+            }
+            frames[i] = null;
+        }
+        sinceKeyframe = target - key + 1;
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Rewound " + framesBack + " frames, " + count
+                    + " frames left.");
+        }
+        return framesBack;
+    }
+}
@@ -12,17 +12,18 @@ public class SNASnapshot extends AbstractSpectrumSnapshot {
 
     private Logger LOG = Logger.getLogger(SNASnapshot.class);
 
-    public SNASnapshot(InputStream is) {
+    public SNASnapshot(InputStream is) throws IOException {
         super();
         read(is);
     }
 
-    public SNASnapshot(String filename) {
+    public SNASnapshot(String filename) throws IOException {
         super();
+        FileInputStream fis = new FileInputStream(filename);
         try {
-            read(new FileInputStream(filename));
-        } catch (FileNotFoundException e) {
-            LOG.warn("SNA snapshot file " + filename + " not found.");
+            read(fis);
+        } finally {
+            fis.close();
         }
     }
 
@@ -60,40 +61,73 @@ public class SNASnapshot extends AbstractSpectrumSnapshot {
         border = (sna_header[26] & 7);
     }
 
-    public void read(InputStream is) {
+    /**
+     * Reads the header and the memory, and the rest of a 128K snapshot if
+     * the stream continues.
+     *
+     * @throws IOException	If the stream cannot be read or is truncated
+     */
+    public void read(InputStream is) throws IOException {
         if (SwingUtilities.isEventDispatchThread()) {
-            LOG.fatal("\n  Attempted to load SNA snapshot from event dispatch thread.\n"
-                    + "This is not allowed, because it is a possibly time-consuming task\n"
-                    + "and not thread safe with main emulator loop thread.");
-            System.exit(1);
+            throw new IllegalStateException("Attempted to load SNA snapshot "
+                    + "from event dispatch thread. This is not allowed, "
+                    + "because it is a possibly time-consuming task and not "
+                    + "thread safe with main emulator loop thread.");
         }
 
+        DataInputStream dis = new DataInputStream(is);
         byte[] sna_header = new byte[27];
-        try {
-            is.read(sna_header);
-        } catch (Exception e) {
-            LOG.error("Unable to read SNA header.", e);
-            System.exit(1);
-        }
-
+        dis.readFully(sna_header);
         setSNARegisterValues(sna_header);
-
-        try {
-            is.read(memory, 0x4000, 0xc000);
-        } catch (IOException e) {
-            LOG.error("Unable to read SNA snapshot memory contents.", e);
-            System.exit(1);
+        dis.readFully(memory, 0x4000, 0xc000);
+
+        /* 128K snapshots continue with PC, paging and the other banks */
+        byte[] ext = new byte[4];
+        int extlen = 0, n;
+        while ((extlen < ext.length)
+                && ((n = dis.read(ext, extlen, ext.length - extlen)) > 0)) {
+            extlen += n;
+        }
+        if (extlen == 4) {
+            read128K(dis, ext);
+            return;
+        }
+        if (extlen > 0) {
+            throw new IOException("SNA snapshot 128K extension is "
+                    + "truncated.");
         }
 
         /* Pops the value of program counter from top of the stack. */
         int sp = (regs[Z80.SPL] & 0xff) | ((regs[Z80.SPH] & 0xff) << 8);
         regs[Z80.PCL] = memory[sp];
-        regs[Z80.PCH] = memory[sp + 1];
+        regs[Z80.PCH] = memory[(sp + 1) & 0xffff];
         sp += 2;
         regs[Z80.SPL] = (byte) (sp & 0xff);
         regs[Z80.SPH] = (byte) ((sp & 0xff00) >> 8);
     }
 
+    /**
+     * Reads the rest of a 128K snapshot. The 48K already read are the banks
+     * 5, 2 and the one paged in at C000h, and the remaining banks follow in
+     * ascending order.
+     */
+    private void read128K(DataInputStream is, byte[] ext) throws IOException {
+        LOG.info("SNA file is a 128K snapshot.");
+        createBanks(SpectrumULA.MODEL_128K);
+        regs[Z80.PCL] = ext[0];
+        regs[Z80.PCH] = ext[1];
+        port7ffd = ext[2] & 0xff;
+        int paged = port7ffd & 7;
+        System.arraycopy(memory, 0x4000, banks[5], 0, 0x4000);
+        System.arraycopy(memory, 0x8000, banks[2], 0, 0x4000);
+        System.arraycopy(memory, 0xc000, banks[paged], 0, 0x4000);
+        for (int bank = 0; bank < 8; bank++) {
+            if ((bank != 5) && (bank != 2) && (bank != paged)) {
+                is.readFully(banks[bank]);
+            }
+        }
+    }
+
     public void getSNARegisterValues(byte[] sna_header) {
         sna_header[0] = regs[Z80.I];
         sna_header[1] = regs[Z80.L_ALT];
@@ -125,12 +159,17 @@ public class SNASnapshot extends AbstractSpectrumSnapshot {
         sna_header[26] = (byte) (border & 7);
     }
 
-    public void write(OutputStream os) {
+    public void write(OutputStream os) throws IOException {
         if (SwingUtilities.isEventDispatchThread()) {
-            LOG.fatal("\n  Attempted to save SNA snapshot from event dispatch thread.\n"
-                    + "This is not allowed, because it is a possibly time-consuming task\n"
-                    + "and not thread safe with main emulator loop thread.");
-            System.exit(1);
+            throw new IllegalStateException("Attempted to save SNA snapshot "
+                    + "from event dispatch thread. This is not allowed, "
+                    + "because it is a possibly time-consuming task and not "
+                    + "thread safe with main emulator loop thread.");
+        }
+
+        if (banks != null) {
+            write128K(os);
+            return;
         }
 
         /* Pushes the value of program counter to top of the stack. */
@@ -143,18 +182,30 @@ public class SNASnapshot extends AbstractSpectrumSnapshot {
 
         byte[] sna_header = new byte[27];
         getSNARegisterValues(sna_header);
-        try {
-            os.write(sna_header);
-        } catch (Exception e) {
-            LOG.error("Unable to write SNA header.", e);
-            System.exit(1);
-        }
+        os.write(sna_header);
+        os.write(memory, 0x4000, 0xc000);
+    }
 
-        try {
-            os.write(memory, 0x4000, 0xc000);
-        } catch (IOException e) {
-            LOG.error("Unable to write memory contents to SNA snapshot.", e);
-            System.exit(1);
+    /**
+     * Writes a 128K snapshot, where the program counter is saved after the
+     * 48K paged in instead of the stack.
+     */
+    private void write128K(OutputStream os) throws IOException {
+        byte[] sna_header = new byte[27];
+        getSNARegisterValues(sna_header);
+        int paged = port7ffd & 7;
+        os.write(sna_header);
+        os.write(banks[5]);
+        os.write(banks[2]);
+        os.write(banks[paged]);
+        os.write(regs[Z80.PCL]);
+        os.write(regs[Z80.PCH]);
+        os.write(port7ffd);
+        os.write(0);
+        for (int bank = 0; bank < 8; bank++) {
+            if ((bank != 5) && (bank != 2) && (bank != paged)) {
+                os.write(banks[bank]);
+            }
         }
     }
 }
@@ -32,8 +32,6 @@ public final class Snapshots {
 
     private static Logger LOG = Logger.getLogger(Snapshots.class);
     private static byte[] memory;
-    private static int memptr;
-    private static boolean isCompressed, isVersion2, prev_ed;
 
     public static String fileType(String fileName) {
         String[] tokens = fileName.split("[/\\.]");
@@ -50,226 +48,6 @@ public final class Snapshots {
         System.exit(1);
     }
 
-    private static void loadZ80Header(InputStream is, Z80 z80, SpectrumULA ula) {
-        byte[] header = new byte[30];
-        memory = ula.getMemory();
-        isCompressed = false;
-        try {
-            is.read(header);
-        } catch (IOException e) {
-            failZ80(e);
-        }
-        z80.setReg(Z80.A, header[0]);
-        z80.setReg(Z80.F, header[1]);
-        z80.setReg(Z80.C, header[2]);
-        z80.setReg(Z80.B, header[3]);
-        z80.setReg(Z80.L, header[4]);
-        z80.setReg(Z80.H, header[5]);
-        z80.setReg(Z80.PCL, header[6]);
-        z80.setReg(Z80.PCH, header[7]);
-        z80.setReg(Z80.SPL, header[8]);
-        z80.setReg(Z80.SPH, header[9]);
-        z80.setReg(Z80.I, header[10]);
-        z80.setReg(Z80.R, (byte) (header[11] & 0x7f));
-        byte b12 = header[12];
-        if (b12 == 0xff) {
-            b12 = 1;
-        }
-        if ((b12 & 0x1) != 0) {
-            byte r = z80.getReg(Z80.R);
-            z80.setReg(Z80.R, (byte) (r | 0x80));
-        }
-        ula.setBorder((b12 & 0xe) >> 1);
-        if (isCompressed = ((b12 & 0x20) != 0)) {
-            LOG.info("Z80 file is compressed.");
-        }
-        z80.setReg(Z80.E, header[13]);
-        z80.setReg(Z80.D, header[14]);
-        z80.setReg(Z80.C_ALT, header[15]);
-        z80.setReg(Z80.B_ALT, header[16]);
-        z80.setReg(Z80.E_ALT, header[17]);
-        z80.setReg(Z80.D_ALT, header[18]);
-        z80.setReg(Z80.L_ALT, header[19]);
-        z80.setReg(Z80.H_ALT, header[20]);
-        z80.setReg(Z80.A_ALT, header[21]);
-        z80.setReg(Z80.F_ALT, header[22]);
-        z80.setReg(Z80.YL, header[23]);
-        z80.setReg(Z80.YH, header[24]);
-        z80.setReg(Z80.XL, header[25]);
-        z80.setReg(Z80.XH, header[26]);
-        z80.setReg(Z80.IM_IFF, (byte) (header[27] | (header[28] << 1)
-                | (header[29] << 2)));
-        /*
-         * header[29] other bits (omitted) are:
-         * 2: Issue 2
-         * 3: Double interrupt frequency
-         * 4-5: 1=High video sync, 3=Low video sync
-         * 6-7: joystick, 0=Cursor, 1=Kempston
-         */
-
-        if (z80.getRegPair(Z80.PC) == 0x0000) {
-            LOG.info("Type 2 Z80 file detected, attempting to parse relevant part of it.");
-            try {
-                byte[] len = new byte[2];
-                is.read(len);
-                int length = (len[0] & 0xff) | ((len[1] & 0xff) << 8);
-                LOG.info("Extra header length is: " + length);
-                byte[] extraheader = new byte[length];
-                is.read(extraheader);
-                z80.setReg(Z80.PCL, extraheader[0]);
-                z80.setReg(Z80.PCH, extraheader[1]);
-                LOG.info("PC = "
-                        + Hex.intToHex4(z80.getRegPair(Z80.PC)));
-                isVersion2 = true;
-            } catch (IOException e) {
-                failZ80(e);
-            }
-        }
-    }
-
-    /**
-     * The Z80 compressed block algorithm. Two EDh values in a row followed by
-     * count and byte means count times byte written to the memory.
-     */
-    private static void loadZ80CompressedBlock(InputStream is) {
-        try {
-            LOG.debug("Memory pointer is: " + Hex.intToHex4(memptr));
-
-            byte[] repeat_params = new byte[2];
-
-            /* Base case, the byte is just read into memory. */
-            is.read(memory, memptr, 1);
-            LOG.debug("Byte " + Hex.intToHex2(memory[memptr]) + " -> "
-                    + Hex.intToHex4(memptr));
-
-            /* In case of current and previous EDh, enter the special routine. */
-            if (((memory[memptr] & 0xff) == 0xed) && prev_ed) {
-
-                /* The first EDh written must be reverted. */
-                memptr--;
-                is.read(repeat_params);
-                int counter = (repeat_params[0] & 0xff);
-                if (counter == 0) {
-                    LOG.error("Zero count of bytes detected in Z80 compressed block.");
-                    System.exit(1);
-                }
-                LOG.debug("Bytes " + Hex.intToHex2(repeat_params[1]) + " x "
-                        + counter + " -> " + Hex.intToHex4(memptr));
-
-                for (int i = 0; i < counter; i++) {
-                    memory[memptr++] = repeat_params[1];
-                }
-
-                /* The last repeat increment must be reverted and previous EDh
-                 * property assumed false. */
-                memptr--;
-                prev_ed = false;
-
-            } else {
-
-                /* Set the previous EDh property if necessary. */
-                prev_ed = ((memory[memptr] & 0xff) == 0xed);
-            }
-        } catch (IOException e) {
-            failZ80(e);
-        }
-    }
-
-    private static void checkFinalSignature(InputStream is) {
-        LOG.debug("Checking Z80 final signature (should be 00eded00).");
-        byte[] final_signature = new byte[4];
-
-        try {
-            is.read(final_signature);
-        } catch (IOException e) {
-            failZ80(e);
-        }
-
-        if (((final_signature[0] & 0xff) != 0x00)
-                || ((final_signature[1] & 0xff) != 0xed)
-                || ((final_signature[2] & 0xff) != 0xed)
-                || ((final_signature[3] & 0xff) != 0x00)) {
-            LOG.warn("Malformed Z80 file, end signature not OK.");
-        }
-    }
-
-    private static void loadZ80Compressed(InputStream is) {
-        prev_ed = false;
-        for (memptr = 0x4000; memptr < 0x10000; memptr++) {
-            LOG.debug("Memory pointer before loading compressed block is: "
-                    + Hex.intToHex4(memptr));
-            loadZ80CompressedBlock(is);
-        }
-        LOG.debug("Memory pointer after leaving compressed loading loop is: "
-                + Hex.intToHex4(memptr));
-        checkFinalSignature(is);
-    }
-
-    private static void loadZ80Version2(InputStream is) {
-
-        /* Loops through pages */
-        while (true) {
-            byte header[] = new byte[3];
-            int hdrlen = 0;
-            try {
-                hdrlen = is.read(header);
-            } catch (IOException e) {
-                failZ80(e);
-            }
-            if (hdrlen < 3) {
-                break;
-            }
-
-            int length = (header[0] & 0xff) | ((header[1] & 0xff) << 8);
-            int pageno = header[2] & 0xff;
-            LOG.info("Attempting to load page: " + pageno + ", length: " + length);
-
-            /*
-             * If ever extending to other machines than Spectrum 48K, this hack
-             * should be replaced.
-             */
-            int startAddr = ((pageno & 4) << 13) | ((pageno & 1) << 14)
-                    | ((pageno & 8) << 11);
-            LOG.info("Page start address is: " + Hex.intToHex4(startAddr));
-
-            if (startAddr == 0x0000) {
-                LOG.warn("ROM block!");
-            }
-
-            if (length == 0x10000) {
-                LOG.info("Noncompressed block.");
-                try {
-                    is.read(memory, startAddr, startAddr + 0x4000);
-                } catch (IOException e) {
-                    failZ80(e);
-                }
-            } else {
-                LOG.info("Compressed block.");
-                for (memptr = startAddr; memptr < startAddr + 0x4000; memptr++) {
-                    LOG.debug("Memory pointer before loading compressed block is: "
-                            + Hex.intToHex4(memptr));
-                    loadZ80CompressedBlock(is);
-                }
-                LOG.debug("Memory pointer after leaving compressed loading loop is: "
-                        + Hex.intToHex4(memptr));
-            }
-        }
-    }
-
-    private static void loadZ80Contents(InputStream is) {
-        if (isCompressed) {
-            loadZ80Compressed(is);
-        } else if (isVersion2) {
-            loadZ80Version2(is);
-        } else {
-            try {
-                is.read(memory, 0x4000, 0xc000);
-            } catch (IOException e) {
-                failZ80(e);
-            }
-        }
-    }
-
     /**
      * Loads Z80 snapshot file into memory and processor.
      *
@@ -280,10 +58,8 @@ public final class Snapshots {
             z80.reset();
             ula.clearKeyData();
 
-            loadZ80Header(is, z80, ula);
-            loadZ80Contents(is);
-
             try {
+                new Z80Snapshot(is).write(z80, ula);
                 is.close();
             } catch (IOException e) {
                 failZ80(e);
@@ -367,6 +143,7 @@ public final class Snapshots {
             z80.setRegPair(Z80.PC, ula.getWord(tmp));
             z80.setRegPair(Z80.SP, (short) (tmp + 2));
 
+            ula.getMemoryPages().markModified();
             ula.markScreenDirty();
             LOG.info("Z80 (SNA) snapshot loaded successfully.");
             LOG.info("Loaded snapshot should have PC="
@@ -427,74 +204,10 @@ public final class Snapshots {
         }
     }
 
-    private static int compr_read_byte() {
-        if (memptr < 0x10000) {
-            return memory[memptr++] & 0xff;
-        } else {
-            return -1;
-        }
-    }
-
-    public static void saveZ80Contents(OutputStream os) {
-        int j, c, lc, lled, num;
-        boolean rep = false;
-
-        c = compr_read_byte();
-        lc = 0;
-        num = 0;
-
-        try {
-            while (c >= 0) {
-                if (lc == 0xed) {
-                    lled = 1;
-                } else {
-                    lled = 0;
-                }
-
-                lc = c;
-                c = compr_read_byte();
-                if ((c == lc) && (num != 255) && ((lled == 0) || rep)) {
-                    if (!rep) {
-                        num = 1;
-                        rep = true;
-                    }
-                    num++;
-                } else {
-                    if (!rep) {
-                        if (num < 5 && lc != 0xED) {
-                            for (j = 0; j < num; j++) {
-                                os.write(lc);
-                            }
-                        } else {
-                            os.write(0xed);
-                            os.write(0xed);
-                            os.write(num);
-                            os.write(lc);
-                            num = 0;
-                        }
-                        rep = false;
-                    } else {
-                        os.write(lc);
-                    }
-                }
-            }
-
-            os.write(0x00);
-            os.write(0xed);
-            os.write(0xed);
-            os.write(0x00);
-        } catch (IOException e) {
-            failWriteZ80(e);
-        }
-    }
-
     public static void saveZ80(OutputStream os, Z80 z80, SpectrumULA ula) {
         synchronized (z80) {
-            saveZ80Header(os, z80, ula);
-            memptr = 0x4000;
-            saveZ80Contents(os);
-
             try {
+                new Z80Snapshot(z80, ula).write(os);
                 os.close();
             } catch (IOException e) {
                 failWriteZ80(e);
@@ -558,6 +271,7 @@ public final class Snapshots {
             /* Stores current value of PC into top of stack. */
             short sp = z80.getRegPair(Z80.SP), pc = z80.getRegPair(Z80.PC);
             ula.setWord(sp, pc);
+            ula.getMemoryPages().markModified();
             z80.setRegPair(Z80.SP, (short) sp);
 
             LOG.info("Z80 (SNA) snapshot saved successfully.");
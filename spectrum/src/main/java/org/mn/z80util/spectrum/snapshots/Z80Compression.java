@@ -0,0 +1,141 @@
+/*
+ * Z80Compression.java - Run length compression of Z80 snapshots.
+ * 
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.spectrum.snapshots;
+
+import java.util.*;
+
+import org.apache.log4j.*;
+
+/**
+ * The run length compression of Z80 snapshots, working on whole arrays. A
+ * run of equal bytes is coded as ED ED count byte, and other bytes as such.
+ * The byte following a single EDh is never the beginning of a run, so that
+ * the two cannot be mistaken for a run.
+ */
+final class Z80Compression {
+
+    private static Logger LOG = Logger.getLogger(Z80Compression.class);
+
+    private Z80Compression() {
+    }
+
+    private static boolean isRun(byte[] src, int pos, int end) {
+        return (src[pos] == (byte) 0xed) && (pos + 1 < end)
+                && (src[pos + 1] == (byte) 0xed);
+    }
+
+    /**
+     * Expands a compressed block into target memory. The bytes between runs
+     * are copied and the runs filled in bulk.
+     *
+     * @param src	The compressed data
+     * @param pos	Index of the block in the data
+     * @param end	Index after the last byte the block may use
+     * @param target	Target memory
+     * @param start	Start address of target memory area
+     * @param length	Length of target memory area
+     * @return	Index of the first byte after the expanded data
+     */
+    static int expand(byte[] src, int pos, int end, byte[] target,
+            int start, int length) {
+        int p = start, targetEnd = start + length;
+        while ((p < targetEnd) && (pos < end)) {
+            if (isRun(src, pos, end)) {
+                if (pos + 3 >= end) {
+                    break;
+                }
+                int times = src[pos + 2] & 0xff;
+                if (times == 0) {
+                    pos += 3;
+                    break;
+                }
+                if (times > targetEnd - p) {
+                    LOG.warn("Repeat parameter too large in snapshot.");
+                    times = targetEnd - p;
+                }
+                Arrays.fill(target, p, p + times, src[pos + 3]);
+                p += times;
+                pos += 4;
+            } else {
+                int literalEnd = pos + 1;
+                int limit = Math.min(end, pos + targetEnd - p);
+                while ((literalEnd < limit) && !isRun(src, literalEnd, end)) {
+                    literalEnd++;
+                }
+                System.arraycopy(src, pos, target, p, literalEnd - pos);
+                p += literalEnd - pos;
+                pos = literalEnd;
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * @return	Largest possible size of a compressed memory area
+     */
+    static int maxCompressedLength(int length) {
+        return 2 * length;
+    }
+
+    /**
+     * Compresses a memory area. Runs of at least five equal bytes, and of at
+     * least two EDh bytes, are coded as runs.
+     *
+     * @param src	Source memory
+     * @param start	Start address of source memory area
+     * @param length	Length of source memory area
+     * @param dst	Array to write the compressed data into, with room for
+     * maxCompressedLength(length) bytes
+     * @param pos	Index in the array to write at
+     * @return	Index after the last byte written
+     */
+    static int compress(byte[] src, int start, int length, byte[] dst,
+            int pos) {
+        int p = start, end = start + length;
+        while (p < end) {
+            byte b = src[p];
+            int runEnd = p + 1, limit = Math.min(end, p + 255);
+            while ((runEnd < limit) && (src[runEnd] == b)) {
+                runEnd++;
+            }
+            int times = runEnd - p;
+            if ((times >= 5) || ((b == (byte) 0xed) && (times >= 2))) {
+                dst[pos++] = (byte) 0xed;
+                dst[pos++] = (byte) 0xed;
+                dst[pos++] = (byte) times;
+                dst[pos++] = b;
+                p = runEnd;
+            } else if (b == (byte) 0xed) {
+                dst[pos++] = b;
+                p++;
+                if (p < end) {
+                    dst[pos++] = src[p++];
+                }
+            } else {
+                while (p < runEnd) {
+                    dst[pos++] = b;
+                    p++;
+                }
+            }
+        }
+        return pos;
+    }
+}
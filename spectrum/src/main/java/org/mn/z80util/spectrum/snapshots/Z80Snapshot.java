@@ -1,6 +1,7 @@
 package org.mn.z80util.spectrum.snapshots;
 
 import java.io.*;
+import java.util.*;
 import javax.swing.*;
 
 import org.apache.log4j.*;
@@ -11,23 +12,49 @@ import org.mn.z80util.disassembler.*;
 public class Z80Snapshot extends AbstractSpectrumSnapshot {
 
     private Logger LOG = Logger.getLogger(Z80Snapshot.class);
+    private static final int PAGE_SIZE = 0x4000;
+    /**
+     * Size of a buffer sufficient for encoding any snapshot, compression
+     * space included: the larger of a V1 file of 48K and a V3 file with the
+     * longest extended header and eight RAM banks
+     */
+    public static final int MAX_LENGTH = Math.max(30
+            + Z80Compression.maxCompressedLength(0xc000) + 4,
+            32 + 55 + 8 * (3 + Z80Compression.maxCompressedLength(PAGE_SIZE)));
+    /* Encoding buffers of the saving threads, reused between snapshots */
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {
+
+        @Override
+        protected byte[] initialValue() {
+            return new byte[MAX_LENGTH];
+        }
+    };
     private boolean isCompressed = false, isVersion2 = false;
-    private int memptr;
+    private boolean version3 = false;
 
-    public Z80Snapshot(InputStream is) {
+    public Z80Snapshot(InputStream is) throws IOException {
         super();
         read(is);
     }
 
-    public Z80Snapshot(String filename) {
+    public Z80Snapshot(String filename) throws IOException {
         super();
+        FileInputStream fis = new FileInputStream(filename);
         try {
-            read(new FileInputStream(filename));
-        } catch (FileNotFoundException e) {
-            LOG.warn("Z80 snapshot file " + filename + " not found.");
+            read(fis);
+        } finally {
+            fis.close();
         }
     }
 
+    /**
+     * @param data	Contents of a Z80 file
+     */
+    public Z80Snapshot(byte[] data) throws IOException {
+        super();
+        read(data, data.length);
+    }
+
     public Z80Snapshot(Z80 z80, SpectrumULA ula) {
         super(z80, ula);
     }
@@ -106,283 +133,296 @@ public class Z80Snapshot extends AbstractSpectrumSnapshot {
         v1_header[29] = (byte) ((regs[Z80.IM_IFF] & 0xc) >> 2);
     }
 
-    /**
-     * Ported from Szeredi Miklos' Spectemu.
-     *
-     * @param is	Input stream where data is read
-     * @param startAddr	Start address of target memory area
-     * @param length	Length of target memory area
-     * @param hasEndSignature	true if end signature 00 ED ED 00 is expected
-     */
-    private void loadCompressedBlock(InputStream is, int startAddr,
-            int length, boolean hasEndSignature) throws IOException {
-        int j, p, end, times, ch;
-        boolean last_ed;
-
-        p = startAddr;
-        end = startAddr + length;
-        last_ed = false;
-
-        LOG.info("Compressed block start address is: " + Hex.intToHex4(p));
-        LOG.info("Compressed block end address is: " + Hex.intToHex4(end));
-
-        while (p < end) {
-            ch = is.read();
-
-            if (ch != 0xED) {
-                last_ed = false;
-                memory[p++] = (byte) ch;
-            } else if (last_ed) {
-                last_ed = false;
-                p--;
-                times = is.read();
-                if (times == 0) {
-                    break;
-                }
-                ch = is.read();
-                if (p + times > end) {
-                    LOG.warn("Repeat parameter too large in snapshot.");
-                    times = (int) ((long) end - (long) p);
-                }
-                for (j = 0; j < times; j++) {
-                    memory[p++] = (byte) ch;
-                }
-            } else {
-                last_ed = true;
-                memory[p++] = (byte) 0xED;
-            }
-        }
-
-        LOG.info("Memory write pointer has reached value: " + Hex.intToHex4(p));
-
-        if (hasEndSignature) {
-            byte[] supposed_ending = new byte[4];
-            is.read(supposed_ending);
-            if (supposed_ending[0] != (byte) 0
-                    || supposed_ending[1] != (byte) 0xED
-                    || supposed_ending[2] != (byte) 0xED
-                    || supposed_ending[3] != (byte) 0) {
-                LOG.warn("Illegal ending of snapshot.");
-                LOG.warn("Got [0]=" + Hex.intToHex2(supposed_ending[0])
-                        + ", [1]=" + Hex.intToHex2(supposed_ending[1])
-                        + ", [2]=" + Hex.intToHex2(supposed_ending[2])
-                        + ", [3]=" + Hex.intToHex2(supposed_ending[3]));
-            }
+    private void checkEndSignature(byte[] data, int pos, int length) {
+        if ((pos + 4 > length) || (data[pos] != (byte) 0)
+                || (data[pos + 1] != (byte) 0xED)
+                || (data[pos + 2] != (byte) 0xED)
+                || (data[pos + 3] != (byte) 0)) {
+            LOG.warn("Illegal ending of snapshot.");
         }
     }
 
-    private void loadZ80Version2(InputStream is) {
+    /**
+     * Loads the memory blocks of V2 and V3 files.
+     *
+     * @param data	The file
+     * @param pos	Index of the first block
+     * @param length	Length of the file
+     */
+    private void loadZ80Version2(byte[] data, int pos, int length) {
 
         /* Loops through pages */
-        while (true) {
-            byte header[] = new byte[3];
-            int hdrlen = 0;
-            try {
-                hdrlen = is.read(header);
-            } catch (IOException e) {
-                LOG.error("Unable to read Z80 V2 block header length.", e);
-                System.exit(1);
-            }
-            if (hdrlen < 3) {
-                break;
+        while (pos + 3 <= length) {
+            int blockLength = (data[pos] & 0xff) | ((data[pos + 1] & 0xff) << 8);
+            int pageno = data[pos + 2] & 0xff;
+            pos += 3;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Loading Z80 V2 page: " + pageno + ", length: "
+                        + blockLength);
             }
 
-            int length = (header[0] & 0xff) | ((header[1] & 0xff) << 8);
-            int pageno = header[2] & 0xff;
-            LOG.info("Attempting to load Z80 V2 page: " + pageno
-                    + ", length: " + length);
-
-            /*
-             * If ever extending to other machines than Spectrum 48K, this hack
-             * should be replaced.
-             */
-            int startAddr = ((pageno & 4) << 13) | ((pageno & 1) << 14)
-                    | ((pageno & 8) << 11);
-            LOG.info("Z80 V2 page start address is: " + Hex.intToHex4(startAddr));
+            byte[] target = memory;
+            int startAddr = 0x0000;
+            boolean romBlock;
+            if (banks == null) {
+                /* Pages 8, 4 and 5 of 48K are at 4000h, 8000h and C000h */
+                startAddr = ((pageno & 4) << 13) | ((pageno & 1) << 14)
+                        | ((pageno & 8) << 11);
+                romBlock = (startAddr == 0x0000);
+            } else {
+                /* Pages 3-10 are the RAM banks 0-7 */
+                romBlock = (pageno < 3) || (pageno > 10);
+                target = romBlock ? new byte[0x4000] : banks[pageno - 3];
+            }
 
-            if (startAddr == 0x0000) {
+            if (romBlock) {
                 LOG.warn("ROM block!");
             }
 
-            if (length == 0x10000) {
-                LOG.info("Noncompressed block.");
-                try {
-                    is.read(memory, startAddr, startAddr + 0x4000);
-                } catch (IOException e) {
-                    LOG.error("Unable to read Z80 V2 noncompressed block.", e);
-                    System.exit(1);
-                }
+            if (blockLength == 0xffff) {
+                /* Noncompressed block */
+                System.arraycopy(data, pos, target, startAddr,
+                        Math.min(0x4000, length - pos));
+                pos += 0x4000;
             } else {
-                LOG.info("Compressed block.");
-                try {
-                    loadCompressedBlock(is, startAddr, 0x4000, false);
-                } catch (IOException e) {
-                    LOG.error("Unable to read Z80 V2 compressed block.", e);
-                    System.exit(1);
-                }
+                Z80Compression.expand(data, pos,
+                        Math.min(pos + blockLength, length), target,
+                        startAddr, 0x4000);
+                pos += blockLength;
             }
         }
     }
 
-    public void read(InputStream is) {
+    /**
+     * @param version2	true for V2, false for V3 header
+     * @param hardwareMode	Hardware mode byte of the header
+     * @return	The ULA model of the hardware mode
+     */
+    private int model(boolean version2, int hardwareMode) {
+        switch (hardwareMode) {
+            case 0:
+            case 1:
+            case 2:
+                return SpectrumULA.MODEL_48K;
+            case 3:
+                return version2 ? SpectrumULA.MODEL_128K
+                        : SpectrumULA.MODEL_48K;
+            case 4:
+            case 5:
+            case 6:
+            case 9:
+            case 12:
+                return SpectrumULA.MODEL_128K;
+            case 7:
+            case 8:
+            case 13:
+                return SpectrumULA.MODEL_PLUS3;
+        }
+        LOG.warn("Unsupported Z80 hardware mode " + hardwareMode
+                + ", loading as 48K.");
+        return SpectrumULA.MODEL_48K;
+    }
+
+    /**
+     * Reads the whole snapshot from the stream and decodes it.
+     */
+    public void read(InputStream is) throws IOException {
+        byte[] data = new byte[0x20000];
+        int length = 0;
+        int n;
+        while ((n = is.read(data, length, data.length - length)) > 0) {
+            length += n;
+            if (length == data.length) {
+                data = Arrays.copyOf(data, 2 * data.length);
+            }
+        }
+        read(data, length);
+    }
+
+    /**
+     * Decodes a snapshot from the contents of a Z80 file.
+     *
+     * @param data	The file
+     * @param length	Length of the file
+     * @throws IOException	If the file is truncated
+     */
+    public void read(byte[] data, int length) throws IOException {
 
         if (SwingUtilities.isEventDispatchThread()) {
-            LOG.fatal("\n  Attempted to load Z80 snapshot from event dispatch thread.\n"
-                    + "This is not allowed, because it is a possibly time-consuming task\n"
-                    + "and not thread safe with main emulator loop thread.");
-            System.exit(1);
+            throw new IllegalStateException("Attempted to load Z80 snapshot "
+                    + "from event dispatch thread. This is not allowed, "
+                    + "because it is a possibly time-consuming task and not "
+                    + "thread safe with main emulator loop thread.");
         }
 
-        byte[] v1_header = new byte[30];
-        try {
-            is.read(v1_header);
-        } catch (Exception e) {
-            LOG.error("Unable to read Z80 V1 header.", e);
-            System.exit(1);
+        if (length < 30) {
+            throw new IOException("Z80 snapshot is too short.");
         }
-        setV1RegisterValues(v1_header);
+        setV1RegisterValues(data);
         if ((regs[Z80.PCL] == (byte) 0) && (regs[Z80.PCH] == (byte) 0)) {
             isVersion2 = true;
-            LOG.info("Z80 file is of V2 format.");
-            byte[] lenbytes = new byte[2];
-            try {
-                is.read(lenbytes);
-            } catch (Exception e) {
-                LOG.error("Unable to read Z80 V2/3 header length bytes.", e);
-                System.exit(1);
+            LOG.debug("Z80 file is of V2 format.");
+            int extLength = (length < 32) ? 0
+                    : (data[30] & 0xff) | ((data[31] & 0xff) << 8);
+            if (32 + Math.max(extLength, 4) > length) {
+                throw new IOException("Z80 V2/3 extended header is "
+                        + "truncated.");
             }
-            int length = (lenbytes[0] & 0xff) | ((lenbytes[1] & 0xff) << 8);
-            byte[] v23_header = new byte[length];
-            try {
-                is.read(v23_header);
-            } catch (Exception e) {
-                LOG.error("Unable to read Z80 V2/3 extended header.", e);
-                System.exit(1);
+            regs[Z80.PCL] = data[32];
+            regs[Z80.PCH] = data[33];
+            int hardwareModel = model(extLength == 23, data[34] & 0xff);
+            if (hardwareModel != SpectrumULA.MODEL_48K) {
+                createBanks(hardwareModel);
+                port7ffd = data[35] & 0xff;
+                if (extLength > 54) {
+                    port1ffd = data[32 + 54] & 0xff;
+                }
             }
-            regs[Z80.PCL] = v23_header[0];
-            regs[Z80.PCH] = v23_header[1];
-            loadZ80Version2(is);
+            loadZ80Version2(data, 32 + extLength, length);
         } else {
-            LOG.info("Z80 file is of V1 format.");
+            LOG.debug("Z80 file is of V1 format.");
             if (!isCompressed) {
-                LOG.info("Z80 file is not compressed.");
-                try {
-                    is.read(memory, 0x4000, 0xc000);
-                } catch (IOException e) {
-                    LOG.error("Unable to read uncompressed Z80 snapshot "
-                            + "memory contents.", e);
-                    System.exit(1);
-                }
+                System.arraycopy(data, 30, memory, 0x4000,
+                        Math.min(0xc000, length - 30));
             } else {
-                LOG.info("Z80 file is compressed.");
-                try {
-                    loadCompressedBlock(is, 0x4000, 0xc000, true);
-                } catch (IOException e) {
-                    LOG.error("Unable to read compressed Z80 snapshot memory "
-                            + "contents.", e);
-                    System.exit(1);
-                }
+                int end = Z80Compression.expand(data, 30, length, memory,
+                        0x4000, 0xc000);
+                checkEndSignature(data, end, length);
             }
         }
     }
 
     /**
-     * Ported from Szeredi Miklos' Spectemu.
-     *
-     * @return	Next byte from memory, -1 if overlapping above FFFFh.
+     * @param version3	Whether to save a V3 file, with a compressed memory
+     * block for each 16K page, instead of a V1 file
      */
-    private int compr_read_byte() {
-        if (memptr < 0x10000) {
-            return (memory[memptr++] & 0xff);
-        } else {
-            return -1;
+    public void setVersion3(boolean version3) {
+        this.version3 = version3;
+    }
+
+    /**
+     * @return	The V3 hardware mode byte of the model
+     */
+    private int hardwareMode() {
+        switch (model) {
+            case SpectrumULA.MODEL_128K:
+                return 4;
+            case SpectrumULA.MODEL_PLUS3:
+                return 7;
         }
+        return 0;
     }
 
     /**
-     * Ported from Szeredi Miklos' Spectemu.
+     * Writes a V3 memory block of a 16K page, compressed unless it would
+     * grow, in which case the page is stored as such with length FFFFh.
      *
-     * @param os	Output stream where data is written to
-     * @param startAddr	Start address of target memory area
-     * @param length	Length of target memory area
+     * @return	Index after the last byte written
      */
-    private void saveCompressedBlock(OutputStream os, int startAddr, int length)
-            throws IOException {
-        int j, c, lc, num;
-        boolean lled, rep;
-
-        memptr = startAddr;
-        rep = false;
+    private static int encodePage(byte[] src, int start, int pageno,
+            byte[] dst, int pos) {
+        int end = Z80Compression.compress(src, start, PAGE_SIZE, dst, pos + 3);
+        int blockLength = end - pos - 3;
+        if (blockLength >= PAGE_SIZE) {
+            System.arraycopy(src, start, dst, pos + 3, PAGE_SIZE);
+            blockLength = 0xffff;
+            end = pos + 3 + PAGE_SIZE;
+        }
+        dst[pos] = (byte) blockLength;
+        dst[pos + 1] = (byte) (blockLength >> 8);
+        dst[pos + 2] = (byte) pageno;
+        return end;
+    }
 
-        c = compr_read_byte();
-        lc = 0;
-        num = 0;
+    /**
+     * Encodes a V1 file, which is stored uncompressed if compression would
+     * make it larger.
+     */
+    private int encodeVersion1(byte[] buffer) {
+        getV1RegisterValues(buffer);
+        int end = Z80Compression.compress(memory, 0x4000, 0xc000, buffer, 30);
+        if (end + 4 - 30 >= 0xc000) {
+            buffer[12] &= ~0x20;
+            System.arraycopy(memory, 0x4000, buffer, 30, 0xc000);
+            return 30 + 0xc000;
+        }
+        buffer[end++] = (byte) 0x00;
+        buffer[end++] = (byte) 0xed;
+        buffer[end++] = (byte) 0xed;
+        buffer[end++] = (byte) 0x00;
+        return end;
+    }
 
-        while (c >= 0) {
-            if (lc == 0xED) {
-                lled = true;
-            } else {
-                lled = false;
-            }
+    /**
+     * Encodes a V3 file with a memory block for each 16K page of RAM.
+     */
+    private int encodeVersion3(byte[] buffer) {
+        getV1RegisterValues(buffer);
+        buffer[6] = (byte) 0;
+        buffer[7] = (byte) 0;
+        int extLength = (model == SpectrumULA.MODEL_PLUS3) ? 55 : 54;
+        Arrays.fill(buffer, 30, 32 + extLength, (byte) 0);
+        buffer[30] = (byte) extLength;
+        buffer[32] = regs[Z80.PCL];
+        buffer[33] = regs[Z80.PCH];
+        buffer[34] = (byte) hardwareMode();
+        if (banks != null) {
+            buffer[35] = (byte) port7ffd;
+        }
+        /* Both 8K halves of the ROM are the ROM, not paged out */
+        buffer[32 + 29] = (byte) 0xff;
+        buffer[32 + 30] = (byte) 0xff;
+        if (extLength > 54) {
+            buffer[32 + 54] = (byte) port1ffd;
+        }
+        int pos = 32 + extLength;
 
-            lc = c;
-            c = compr_read_byte();
-            if (c == lc && num != 255 && (!lled || rep)) {
-                if (!rep) {
-                    num = 1;
-                    rep = true;
-                }
-                num++;
-            } else {
-                if (rep) {
-                    if (num < 5 && lc != 0xED) {
-                        for (j = 0; j < num; j++) {
-                            os.write(lc);
-                        }
-                    } else {
-                        os.write(0xED);
-                        os.write(0xED);
-                        os.write(num);
-                        os.write(lc);
-                        num = 0;
-                    }
-                    rep = false;
-                } else {
-                    os.write(lc);
-                }
-            }
+        if (banks == null) {
+            pos = encodePage(memory, 0x4000, 8, buffer, pos);
+            pos = encodePage(memory, 0x8000, 4, buffer, pos);
+            return encodePage(memory, 0xc000, 5, buffer, pos);
+        }
+        for (int bank = 0; bank < 8; bank++) {
+            pos = encodePage(banks[bank], 0, bank + 3, buffer, pos);
         }
+        return pos;
+    }
+
+    /**
+     * @return	Whether the snapshot is saved as V3, which it is when asked so,
+     * when the model has RAM banks and when PC is 0000h, as zero PC marks a
+     * file of a later version than V1
+     */
+    private boolean isVersion3() {
+        return version3 || (banks != null)
+                || ((regs[Z80.PCL] == (byte) 0) && (regs[Z80.PCH] == (byte) 0));
+    }
 
-        os.write(0x00);
-        os.write(0xED);
-        os.write(0xED);
-        os.write(0x00);
+    /**
+     * Encodes the snapshot as a Z80 file.
+     *
+     * @param buffer	Array of at least MAX_LENGTH bytes to encode into
+     * @return	Length of the file
+     */
+    public int encode(byte[] buffer) {
+        if (isVersion3()) {
+            return encodeVersion3(buffer);
+        }
+        return encodeVersion1(buffer);
     }
 
-    public void write(OutputStream os) {
+    public void write(OutputStream os) throws IOException {
         if (SwingUtilities.isEventDispatchThread()) {
-            LOG.fatal("\n  Attempted to save Z80 snapshot from event dispatch thread.\n"
-                    + "This is not allowed, because it is a possibly time-consuming task\n"
-                    + "and not thread safe with main emulator loop thread.");
-            System.exit(1);
+            throw new IllegalStateException("Attempted to save Z80 snapshot "
+                    + "from event dispatch thread. This is not allowed, "
+                    + "because it is a possibly time-consuming task and not "
+                    + "thread safe with main emulator loop thread.");
         }
 
-        LOG.info("Saving compressed Z80 V1 file.");
-        byte[] v1_header = new byte[30];
-        getV1RegisterValues(v1_header);
-        try {
-            os.write(v1_header);
-        } catch (Exception e) {
-            LOG.error("Unable to write Z80 V1 header.", e);
-            System.exit(1);
-        }
-        LOG.info("Header information written, header length was " + v1_header.length);
-        LOG.info("Saving compressed Z80 V1 file memory contents.");
-        try {
-            saveCompressedBlock(os, 0x4000, 0xc000);
-        } catch (IOException e) {
-            LOG.error("Unable to save compressed Z80 V1 snapshot.", e);
-            System.exit(1);
-        }
+        byte[] buffer = BUFFERS.get();
+        int length = encode(buffer);
+        LOG.info("Saving Z80 " + (isVersion3() ? "V3" : "V1") + " file of "
+                + length + " bytes.");
+        os.write(buffer, 0, length);
     }
 }
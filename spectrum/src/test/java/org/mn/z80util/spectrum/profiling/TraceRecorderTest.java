@@ -0,0 +1,145 @@
+package org.mn.z80util.spectrum.profiling;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+import org.apache.log4j.*;
+import org.mn.z80util.z80.*;
+import org.mn.z80util.z80.yaze.*;
+
+/**
+ * Records random code into a trace of a few blocks, which wraps around, and
+ * checks that TraceDecoder reads back every record kept as the processor
+ * reported it.
+ */
+public class TraceRecorderTest extends TestCase {
+	private static final int LINES = 3000;
+	private static final int TSTATES_PER_LINE = 224;
+	/* Line after which the time base jumps, which begins a new block */
+	private static final int JUMP_LINE = 2990;
+
+	private YazeBasedZ80Impl z80 = new YazeBasedZ80Impl();
+	private MockAddressBusProvider bus = new MockAddressBusProvider();
+	private File file;
+	private TraceRecorder recorder;
+	private long timeBase;
+	/* What the processor reported, by record number */
+	private List<long[]> expected = new ArrayList<long[]>();
+
+	/**
+	 * Passes the instructions to the recorder and keeps what it was given.
+	 */
+	private class CheckingTracer implements InstructionTracer {
+		private long[] last;
+
+		public boolean instruction(int tstates, int pc, int opcode) {
+			last = new long[] {timeBase - tstates, pc, opcode, -1};
+			expected.add(last);
+			return recorder.instruction(tstates, pc, opcode);
+		}
+
+		public void registers(int[] regPairs, int imIff) {
+			/* Marks the record as a keyframe */
+			last[3] = expected.size() - 1;
+			recorder.registers(regPairs, imIff);
+		}
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		/* Illegal opcodes of the random code are not of interest */
+		Logger.getLogger(YazeBasedZ80Impl.class).setLevel(Level.ERROR);
+		file = File.createTempFile("trace", ".trc");
+		file.deleteOnExit();
+		recorder = new TraceRecorder(file, 3 * TraceRecorder.BLOCK_SIZE);
+		Random rand = new Random(0x5a84L);
+		byte[] memory = bus.getMemory();
+		rand.nextBytes(memory);
+		for (int i = 0; i < memory.length; i++) {
+			if (memory[i] == 0x76) {
+				memory[i] = 0x00;
+			}
+		}
+		z80.setUla(bus);
+		z80.reset();
+		z80.setInstructionTracer(new CheckingTracer());
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		recorder.close();
+		file.delete();
+	}
+
+	public void testRoundTrip() throws IOException {
+		for (int line = 0; line < LINES; line++) {
+			timeBase += TSTATES_PER_LINE;
+			if (line == JUMP_LINE) {
+				timeBase += 100000;
+			}
+			recorder.setTimeBase(timeBase);
+			z80.executeTStates(TSTATES_PER_LINE);
+			if ((line % 7) == 0) {
+				recorder.updateHeader();
+			}
+		}
+		recorder.updateHeader();
+
+		/* Read before closing, as after a kill */
+		TraceDecoder decoder = new TraceDecoder(file);
+		assertEquals(expected.size(), decoder.getWritten());
+		assertTrue(decoder.getFirst() > 0);
+		int keyframes = 0;
+		long lastKeyframe = -1;
+		for (long n = decoder.getFirst(); n < decoder.getWritten(); n++) {
+			long[] e = expected.get((int) n);
+			assertEquals("T-states of " + n, e[0], decoder.getTStates(n));
+			assertEquals("PC of " + n, e[1], decoder.getPC(n) & 0xffff);
+			byte[] opcode = decoder.getOpcode(n);
+			for (int i = 0; i < TraceRecorder.OPCODE_LENGTH; i++) {
+				assertEquals("opcode of " + n, (byte) (e[2] >> (24 - 8 * i)),
+						opcode[i]);
+			}
+			assertEquals("keyframe " + n, e[3] >= 0, decoder.isKeyframe(n));
+			if (e[3] >= 0) {
+				keyframes++;
+				lastKeyframe = n;
+			}
+		}
+		/* The blocks kept, of which the last one begins at the jump */
+		assertEquals(3, keyframes);
+		assertTrue(expected.get((int) lastKeyframe)[0]
+				- expected.get((int) lastKeyframe - 1)[0]
+				> TraceRecorder.MAX_DELTA);
+	}
+
+	public void testKeyframeRegisters() throws IOException {
+		recorder.setTimeBase(TSTATES_PER_LINE);
+		z80.setRegPair(Z80.HL, (short) 0x1234);
+		z80.setRegPair(Z80.IX, (short) 0xabcd);
+		z80.setReg(Z80.IM_IFF, (byte) 0x07);
+		short[] pairs = new short[TraceRecorder.REG_PAIRS];
+		for (int i = 0; i < TraceRecorder.REG_PAIRS; i++) {
+			pairs[i] = z80.getRegPair(i);
+		}
+		z80.executeTStates(TSTATES_PER_LINE);
+		recorder.updateHeader();
+
+		TraceDecoder decoder = new TraceDecoder(file);
+		assertTrue(decoder.isKeyframe(0));
+		for (int i = 0; i < TraceRecorder.REG_PAIRS; i++) {
+			assertEquals("register pair " + i, pairs[i],
+					decoder.getRegPair(0, i));
+		}
+		assertEquals(0x07, decoder.getInterruptFlags(0));
+		assertEquals(0, decoder.getTStates(0));
+		assertFalse(decoder.isKeyframe(1));
+		try {
+			decoder.getRegPair(1, Z80.HL);
+			fail("Registers of a record within a block were read.");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package org.mn.z80util.spectrum.snapshots;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+import org.mn.z80util.spectrum.*;
+import org.mn.z80util.z80.*;
+import org.mn.z80util.z80.yaze.*;
+
+public class Z80SnapshotTest extends TestCase {
+
+	private SpectrumULA ula = new SpectrumULA();
+	private Z80 z80 = new YazeBasedZ80Impl();
+
+	private void roundTrip(int model, int port7ffd, int port1ffd)
+			throws IOException {
+		ula.setModel(model);
+		z80.setUla(ula);
+		ula.reset();
+		z80.reset();
+		ula.setPagingPorts(port7ffd, port1ffd);
+		z80.setRegPair(Z80.PC, (short) 0x8000);
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		new Z80Snapshot(z80, ula).write(os);
+		assertTrue(os.size() <= Z80Snapshot.MAX_LENGTH);
+
+		SpectrumULA ula2 = new SpectrumULA();
+		Z80 z802 = new YazeBasedZ80Impl();
+		z802.setUla(ula2);
+		new Z80Snapshot(os.toByteArray()).write(z802, ula2);
+
+		assertEquals(model, ula2.getModel());
+		assertEquals(ula.getPort7FFD(), ula2.getPort7FFD());
+		assertEquals(ula.getPort1FFD(), ula2.getPort1FFD());
+		for (int i = 0; i < 27; i++) {
+			assertEquals("register " + i, z80.getReg(i), z802.getReg(i));
+		}
+		byte[] bank = new byte[SpectrumULA.BANK_SIZE];
+		byte[] bank2 = new byte[SpectrumULA.BANK_SIZE];
+		int[] ramBanks = (model == SpectrumULA.MODEL_48K) ? new int[] {5, 2, 0}
+			: new int[] {0, 1, 2, 3, 4, 5, 6, 7};
+		for (int i : ramBanks) {
+			ula.readRAMBank(i, bank);
+			ula2.readRAMBank(i, bank2);
+			assertTrue("bank " + i, Arrays.equals(bank, bank2));
+		}
+	}
+
+	public void testTruncatedFile() throws IOException {
+		ula.setModel(SpectrumULA.MODEL_128K);
+		z80.setUla(ula);
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		new Z80Snapshot(z80, ula).write(os);
+		byte[] data = Arrays.copyOf(os.toByteArray(), 40);
+		try {
+			new Z80Snapshot(data);
+			fail("Truncated snapshot was loaded.");
+		} catch (IOException e) {
+		}
+		try {
+			new Z80Snapshot(new byte[10]);
+			fail("Truncated snapshot was loaded.");
+		} catch (IOException e) {
+		}
+	}
+
+	public void testMissingFile() {
+		try {
+			new Z80Snapshot(new File("no-such-snapshot.z80").getPath());
+			fail("Missing snapshot was loaded.");
+		} catch (IOException e) {
+		}
+	}
+
+	public void test48KRoundTrip() throws IOException {
+		roundTrip(SpectrumULA.MODEL_48K, 0, 0);
+	}
+
+	public void test128KRoundTrip() throws IOException {
+		roundTrip(SpectrumULA.MODEL_128K, 0x13, 0);
+	}
+
+	public void testPlus3RoundTrip() throws IOException {
+		roundTrip(SpectrumULA.MODEL_PLUS3, 0x06, 0x04);
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * BulkExecutionBenchmark.java - Single commands vs. bulk execution.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.testbench;
+
+import java.util.*;
+
+import org.apache.log4j.*;
+import org.mn.z80util.z80.*;
+import org.mn.z80util.z80.qaop.*;
+import org.mn.z80util.z80.yaze.*;
+
+/**
+ * Compares running the processors line by line with executeNextCommand(),
+ * which synchronizes on every command, and with executeTStates(), which
+ * synchronizes once per line. The code is the pseudo-random code of
+ * DispatchBenchmark, run in lines of 224 T-states as on the Spectrum.
+ *
+ * Usage: BulkExecutionBenchmark [lines per round] [rounds]
+ */
+public class BulkExecutionBenchmark {
+
+    private static Logger LOG = Logger.getLogger(BulkExecutionBenchmark.class);
+    private static final long SEED = 0x5a80L;
+    private static final int TSTATES_PER_LINE = 224;
+    private final byte[] code = new byte[0x10000];
+    private final MockAddressBusProvider ula = new MockAddressBusProvider();
+
+    public BulkExecutionBenchmark() {
+        DispatchBenchmark.randomCode(code, SEED);
+    }
+
+    /**
+     * Runs given number of lines from the beginning of the code.
+     *
+     * @param z80	The processor
+     * @param bulk	Whether to use executeTStates()
+     * @param lines	Number of lines to run
+     * @return	Emulated T-states per microsecond, that is, MHz
+     */
+    public double run(Z80 z80, boolean bulk, int lines) {
+        System.arraycopy(code, 0, ula.getMemory(), 0, 0x10000);
+        z80.setUla(ula);
+        z80.reset();
+        Random rand = new Random(SEED);
+        for (int j = TestZ80.B; j <= TestZ80.I; j++) {
+            z80.setReg(j, (byte) rand.nextInt());
+        }
+        z80.setRegPair(TestZ80.PC, (short) 0x0000);
+        z80.setRegPair(TestZ80.SP, (short) 0xfffe);
+        z80.setTStates(0);
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < lines; i++) {
+            z80.setHaltState(false);
+            if (bulk) {
+                z80.executeTStates(TSTATES_PER_LINE);
+            } else {
+                z80.setTStates(z80.getTStates() + TSTATES_PER_LINE);
+                while (z80.getTStates() > 0) {
+                    z80.executeNextCommand();
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - startTime;
+        return (double) lines * TSTATES_PER_LINE * 1000.0 / elapsed;
+    }
+
+    public static void main(String[] args) {
+        int lines = 200000, rounds = 5;
+        try {
+            if (args.length > 0) {
+                lines = Integer.parseInt(args[0]);
+            }
+            if (args.length > 1) {
+                rounds = Integer.parseInt(args[1]);
+            }
+        } catch (NumberFormatException nfex) {
+            LOG.error("Usage: BulkExecutionBenchmark [lines] [rounds]");
+            System.exit(1);
+        }
+
+        /* Illegal opcodes created by self-modifying code are not of interest */
+        Logger.getLogger(YazeBasedZ80Impl.class).setLevel(Level.ERROR);
+        Logger.getLogger(QaopZ80Impl.class).setLevel(Level.ERROR);
+        BulkExecutionBenchmark benchmark = new BulkExecutionBenchmark();
+        Z80[] processors = {new YazeBasedZ80Impl(), new QaopZ80Impl()};
+        for (Z80 z80 : processors) {
+            String name = z80.getClass().getSimpleName();
+            double single = 0.0, bulk = 0.0;
+            for (int round = 1; round <= rounds; round++) {
+                single = benchmark.run(z80, false, lines);
+                bulk = benchmark.run(z80, true, lines);
+                LOG.info(name + " round " + round + ": single commands "
+                        + String.format("%.1f", single) + " MHz, bulk "
+                        + String.format("%.1f", bulk) + " MHz.");
+            }
+            LOG.info(name + ": bulk execution is "
+                    + String.format("%.2f", bulk / single)
+                    + " times as fast as single commands.");
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * CommandRound.java - One journaled test round of two Z80 cores.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.testbench;
+
+import java.util.*;
+
+import org.mn.z80util.z80.*;
+
+/**
+ * Executes the command at 8000h on two processors sharing a journaling bus
+ * and compares the results. Instead of 64K snapshots, only the bytes written
+ * by each processor are saved, restored and compared, so a round costs time
+ * in proportion to the bytes written.
+ *
+ * The whole memory is randomized only every MEMORY_RANDOMIZE_ROUNDS rounds.
+ * In between, the registers, the operand bytes of the command and the top of
+ * the stack are randomized on every round, so the command still reads
+ * different memory on each round.
+ */
+final class CommandRound {
+
+    static final int MEMORY_RANDOMIZE_ROUNDS = 256;
+    private final TestZ80 z1, z2;
+    private final JournalingAddressBusProvider bus;
+    private final Random rand;
+    private final byte[] initialRegs = new byte[27];
+    private final byte[] regs1 = new byte[27];
+    private final byte[] regs2 = new byte[27];
+    /* Addresses and values written by the first processor */
+    private final int[] written1 = new int[0x10000];
+    private final byte[] values1 = new byte[0x10000];
+    private final int[] written1Stamp = new int[0x10000];
+    private int written1Count, round;
+    private final MZ80TestBench.TestResultSet trs =
+            new MZ80TestBench.TestResultSet(-1, -1);
+
+    CommandRound(TestZ80 z1, TestZ80 z2, JournalingAddressBusProvider bus,
+            Random rand) {
+        this.z1 = z1;
+        this.z2 = z2;
+        this.bus = bus;
+        this.rand = rand;
+    }
+
+    /**
+     * Sets up a random initial configuration for the command: randomizes
+     * the registers of the first processor and the bytes around PC and SP,
+     * and every MEMORY_RANDOMIZE_ROUNDS rounds the whole memory.
+     *
+     * @param cmdno	The command number, see MZ80TestBench.run()
+     */
+    void setUp(int cmdno) {
+        if ((round % MEMORY_RANDOMIZE_ROUNDS) == 0) {
+            bus.randomize(rand);
+        }
+        for (int a = 0x7ff8; a < 0x8004; a++) {
+            bus.setByte((short) a, (byte) rand.nextInt());
+        }
+        MZ80TestBench.setUpCommand(bus, cmdno);
+
+        z1.reset();
+        for (int j = TestZ80.B; j <= TestZ80.I; j++) {
+            z1.setReg(j, (byte) rand.nextInt());
+        }
+        z1.setRegPair(TestZ80.PC, (short) 0x8000);
+        z1.setRegPair(TestZ80.SP, (short) 0x7ffe);
+    }
+
+    /**
+     * Executes the command on both processors, starting from the current
+     * memory and the registers of the first processor, and compares the
+     * results. The memory is restored afterwards.
+     *
+     * @param cmdno	The command number, see MZ80TestBench.run()
+     * @param result1	Full snapshot of the first processor is written here
+     * if the results differ, may be null
+     * @param result2	Same for the second processor
+     * @return	The lowest differing memory address and the first differing
+     * register. The same object is returned on every round.
+     */
+    MZ80TestBench.TestResultSet run(int cmdno, byte[] result1,
+            byte[] result2) {
+        round++;
+        for (int j = 0; j < 27; j++) {
+            initialRegs[j] = z1.getReg(j);
+        }
+
+        /* First processor */
+        bus.startJournal();
+        z1.setHaltState(false);
+        z1.executeNextCommand();
+        byte[] memory = bus.getMemory();
+        written1Count = bus.getJournalLength();
+        for (int i = 0; i < written1Count; i++) {
+            int a = bus.getJournalAddress(i);
+            written1[i] = a;
+            values1[i] = memory[a];
+            written1Stamp[a] = round;
+        }
+        for (int j = 0; j < 27; j++) {
+            regs1[j] = z1.getReg(j);
+        }
+        bus.rollback();
+
+        /* Second processor from the same initial configuration */
+        for (int j = 0; j < 27; j++) {
+            z2.setReg(j, initialRegs[j]);
+        }
+        bus.startJournal();
+        z2.setHaltState(false);
+        z2.executeNextCommand();
+        for (int j = 0; j < 27; j++) {
+            regs2[j] = z2.getReg(j);
+        }
+
+        /*
+         * Memory now holds the result of the second processor. Addresses
+         * written only by the second processor hold their initial values in
+         * the result of the first one.
+         */
+        int m = -1;
+        for (int i = 0; i < written1Count; i++) {
+            int a = written1[i];
+            if ((values1[i] != memory[a]) && ((m < 0) || (a < m))) {
+                m = a;
+            }
+        }
+        int written2Count = bus.getJournalLength();
+        for (int i = 0; i < written2Count; i++) {
+            int a = bus.getJournalAddress(i);
+            if ((written1Stamp[a] != round)
+                    && (bus.getJournalOldValue(i) != memory[a])
+                    && ((m < 0) || (a < m))) {
+                m = a;
+            }
+        }
+        int r = MZ80TestBench.compareRegisters(cmdno, regs1, regs2, 0);
+
+        if (((m >= 0) || (r >= 0)) && (result1 != null)) {
+            takeResults(result1, result2);
+        }
+        bus.rollback();
+        trs.differingMemoryAddress = m;
+        trs.differingRegisterNumber = r;
+        return trs;
+    }
+
+    /**
+     * Reconstructs full snapshots of both processors while the memory holds
+     * the result of the second one.
+     */
+    private void takeResults(byte[] result1, byte[] result2) {
+        byte[] memory = bus.getMemory();
+        System.arraycopy(memory, 0, result2, 0, 0x10000);
+        System.arraycopy(memory, 0, result1, 0, 0x10000);
+        for (int i = bus.getJournalLength() - 1; i >= 0; i--) {
+            result1[bus.getJournalAddress(i)] = bus.getJournalOldValue(i);
+        }
+        for (int i = 0; i < written1Count; i++) {
+            result1[written1[i]] = values1[i];
+        }
+        System.arraycopy(regs1, 0, result1, 0x10000, 27);
+        System.arraycopy(regs2, 0, result2, 0x10000, 27);
+    }
+}
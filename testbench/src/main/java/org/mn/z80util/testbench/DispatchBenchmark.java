@@ -0,0 +1,359 @@
+/*
+ * DispatchBenchmark.java - Measures the opcode dispatch of the YAZE based
+ * processor.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.testbench;
+
+import java.util.*;
+
+import org.apache.log4j.*;
+import org.mn.z80util.z80.*;
+import org.mn.z80util.z80.yaze.*;
+
+/**
+ * Compares the cost of decoding opcodes with 256-entry dispatch tables, as
+ * YazeBasedZ80Impl does, and with the chain of opcode pattern comparisons
+ * that it used before. The chain is copied here as decodeBase() and
+ * decodeED(), and the tables are filled from it. Both decoders are run over
+ * the same opcode stream, taken from pseudo-random code which has every
+ * opcode of the unprefixed page about equally often, so the branches of the
+ * chain are hard to predict. The instruction throughput of YazeBasedZ80Impl
+ * running that code is measured alongside for scale. HALT is removed from
+ * the code and the EDh prefix is always followed by a valid opcode, so that
+ * the processor does not stop or spend its time logging.
+ *
+ * Usage: DispatchBenchmark [instructions per round] [rounds]
+ */
+public class DispatchBenchmark {
+
+    private static Logger LOG = Logger.getLogger(DispatchBenchmark.class);
+    private static final long SEED = 0x5a80L;
+    /* Halt state is cleared every this many instructions */
+    private static final int HALT_CHECK_INTERVAL = 4096;
+    /* Opcodes following the EDh prefix have this bit set in the stream */
+    private static final int ED_PAGE = 0x100;
+    private static final byte[] BASE_OPS = new byte[256];
+    private static final byte[] ED_OPS = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            BASE_OPS[i] = (byte) decodeBase(i);
+            ED_OPS[i] = (byte) decodeED(i);
+        }
+    }
+    private final byte[] code = new byte[0x10000];
+    private final int[] opcodes;
+    private final MockAddressBusProvider ula = new MockAddressBusProvider();
+    private final YazeBasedZ80Impl z80 = new YazeBasedZ80Impl();
+
+    public DispatchBenchmark() {
+        randomCode(code, SEED);
+        opcodes = opcodeStream(code);
+        z80.setUla(ula);
+    }
+
+    /**
+     * Fills 64K of memory with pseudo-random code without HALT, where the
+     * EDh prefix is always followed by a valid opcode.
+     */
+    static void randomCode(byte[] code, long seed) {
+        Random rand = new Random(seed);
+        rand.nextBytes(code);
+        for (int i = 0; i < 0x10000; i++) {
+            int c = code[i] & 0xff;
+            int next = (i + 1) & 0xffff;
+            if (c == 0x76) {
+                code[i] = 0x00;
+            } else if (c == 0xed) {
+                code[next] = (byte) validEDOpcode(rand);
+            } else if (((c == 0xdd) || (c == 0xfd))
+                    && ((code[next] & 0xff) == 0xed)) {
+                code[next] = 0x00;
+            }
+        }
+    }
+
+    private static int validEDOpcode(Random rand) {
+        for (;;) {
+            int c = rand.nextInt(0x100);
+            if ((c >= 0x40) && (c < 0x80) && (c != 0x77) && (c != 0x7f)) {
+                return c;
+            }
+            if ((c >= 0xa0) && (c < 0xc0) && ((c & 4) == 0)) {
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Splits the code into the opcodes to decode. An opcode following the
+     * EDh prefix is marked with ED_PAGE and replaces the prefix.
+     */
+    private static int[] opcodeStream(byte[] code) {
+        int[] stream = new int[code.length];
+        int n = 0;
+        for (int i = 0; i < code.length; i++) {
+            int c = code[i] & 0xff;
+            if ((c == 0xed) && (i + 1 < code.length)) {
+                stream[n++] = ED_PAGE | (code[++i] & 0xff);
+            } else {
+                stream[n++] = c;
+            }
+        }
+        return Arrays.copyOf(stream, n);
+    }
+
+    static int decodeBase(int command) {
+        if (command == 0xcb) {
+            return 49; /* CB */
+        } else if (command == 0xed) {
+            return 50; /* ED */
+        } else if ((command & 0377) == 0000) {
+            return 1; /* NOP */
+        } else if ((command & 0377) == 0010) {
+            return 2; /* EX_AF */
+        } else if ((command & 0377) == 0020) {
+            return 3; /* DJNZ */
+        } else if ((command & 0377) == 0030) {
+            return 4; /* JR */
+        } else if ((command & 0347) == 0040) {
+            return 5; /* JR_CC */
+        } else if ((command & 0317) == 0001) {
+            return 6; /* LD_RP_NN */
+        } else if ((command & 0317) == 0011) {
+            return 7; /* ADD_HL_RP */
+        } else if ((command & 0357) == 0002) {
+            return 8; /* LD_IRP_A */
+        } else if ((command & 0357) == 0012) {
+            return 9; /* LD_A_IRP */
+        } else if ((command & 0377) == 0042) {
+            return 10; /* LD_INN_HL */
+        } else if ((command & 0377) == 0052) {
+            return 11; /* LD_HL_INN */
+        } else if ((command & 0377) == 0062) {
+            return 12; /* LD_INN_A */
+        } else if ((command & 0377) == 0072) {
+            return 13; /* LD_A_INN */
+        } else if ((command & 0317) == 0003) {
+            return 14; /* INC_RP */
+        } else if ((command & 0317) == 0013) {
+            return 15; /* DEC_RP */
+        } else if ((command & 0307) == 0004) {
+            return 16; /* INC_R */
+        } else if ((command & 0307) == 0005) {
+            return 17; /* DEC_R */
+        } else if ((command & 0307) == 0006) {
+            return 18; /* LD_R_N */
+        } else if ((command & 0377) == 0007) {
+            return 19; /* RLCA */
+        } else if ((command & 0377) == 0017) {
+            return 20; /* RRCA */
+        } else if ((command & 0377) == 0027) {
+            return 21; /* RLA */
+        } else if ((command & 0377) == 0037) {
+            return 22; /* RRA */
+        } else if ((command & 0377) == 0047) {
+            return 23; /* DAA */
+        } else if ((command & 0377) == 0057) {
+            return 24; /* CPL */
+        } else if ((command & 0377) == 0067) {
+            return 25; /* SCF */
+        } else if ((command & 0377) == 0077) {
+            return 26; /* CCF */
+        } else if ((command & 0377) == 0166) {
+            return 27; /* HALT */
+        } else if ((command & 0300) == 0100) {
+            return 28; /* LD_R_R */
+        } else if ((command & 0300) == 0200) {
+            return 29; /* ALU_R */
+        } else if ((command & 0307) == 0300) {
+            return 30; /* RET_CC */
+        } else if ((command & 0317) == 0301) {
+            return 31; /* POP */
+        } else if ((command & 0377) == 0311) {
+            return 32; /* RET */
+        } else if ((command & 0377) == 0331) {
+            return 33; /* EXX */
+        } else if ((command & 0377) == 0351) {
+            return 34; /* JP_HL */
+        } else if ((command & 0377) == 0371) {
+            return 35; /* LD_SP_HL */
+        } else if ((command & 0307) == 0302) {
+            return 36; /* JP_CC */
+        } else if ((command & 0377) == 0303) {
+            return 37; /* JP */
+        } else if ((command & 0377) == 0323) {
+            return 38; /* OUT_N_A */
+        } else if ((command & 0377) == 0333) {
+            return 39; /* IN_A_N */
+        } else if ((command & 0377) == 0343) {
+            return 40; /* EX_ISP_HL */
+        } else if ((command & 0377) == 0353) {
+            return 41; /* EX_DE_HL */
+        } else if ((command & 0377) == 0363) {
+            return 42; /* DI */
+        } else if ((command & 0377) == 0373) {
+            return 43; /* EI */
+        } else if ((command & 0307) == 0304) {
+            return 44; /* CALL_CC */
+        } else if ((command & 0317) == 0305) {
+            return 45; /* PUSH */
+        } else if ((command & 0377) == 0315) {
+            return 46; /* CALL */
+        } else if ((command & 0307) == 0306) {
+            return 47; /* ALU_N */
+        } else if ((command & 0307) == 0307) {
+            return 48; /* RST */
+        }
+        return 0; /* ILLEGAL */
+    }
+
+    static int decodeED(int command) {
+        if ((command & 0307) == 0100) {
+            return 1; /* IN_R_IC */
+        } else if ((command & 0307) == 0101) {
+            return 2; /* OUT_IC_R */
+        } else if ((command & 0317) == 0102) {
+            return 3; /* SBC_HL_RP */
+        } else if ((command & 0317) == 0112) {
+            return 4; /* ADC_HL_RP */
+        } else if ((command & 0317) == 0103) {
+            return 5; /* LD_INN_RP */
+        } else if ((command & 0317) == 0113) {
+            return 6; /* LD_RP_INN */
+        } else if ((command & 0307) == 0104) {
+            return 7; /* NEG */
+        } else if ((command & 0307) == 0105) {
+            return 8; /* RETN */
+        } else if ((command & 0307) == 0106) {
+            return 9; /* IM */
+        } else if ((command & 0377) == 0107) {
+            return 10; /* LD_I_A */
+        } else if ((command & 0377) == 0117) {
+            return 11; /* LD_R_A */
+        } else if ((command & 0377) == 0127) {
+            return 12; /* LD_A_I */
+        } else if ((command & 0377) == 0137) {
+            return 13; /* LD_A_R */
+        } else if ((command & 0377) == 0147) {
+            return 14; /* RRD */
+        } else if ((command & 0377) == 0157) {
+            return 15; /* RLD */
+        } else if ((command & 0347) == 0240) {
+            return 16; /* LDI */
+        } else if ((command & 0347) == 0241) {
+            return 17; /* CPI */
+        } else if ((command & 0347) == 0242) {
+            return 18; /* INI */
+        } else if ((command & 0347) == 0243) {
+            return 19; /* OUTI */
+        }
+        return 0; /* ILLEGAL */
+    }
+
+    /**
+     * Decodes given number of opcodes from the opcode stream.
+     *
+     * @param tables	Whether to decode with the tables or the chain
+     * @param count	Number of opcodes to decode
+     * @return	Nanoseconds per opcode
+     */
+    public double decode(boolean tables, int count) {
+        long startTime = System.nanoTime();
+        int sum = 0, pos = 0;
+        for (int i = 0; i < count; i++) {
+            int op = opcodes[pos];
+            if (++pos == opcodes.length) {
+                pos = 0;
+            }
+            if (tables) {
+                sum += ((op & ED_PAGE) == 0) ? BASE_OPS[op] : ED_OPS[op & 0xff];
+            } else {
+                sum += ((op & ED_PAGE) == 0) ? decodeBase(op)
+                        : decodeED(op & 0xff);
+            }
+        }
+        long elapsed = System.nanoTime() - startTime;
+        /* Keeps the result alive */
+        if (sum == 42) {
+            LOG.trace("Checksum " + sum);
+        }
+        return (double) elapsed / count;
+    }
+
+    /**
+     * Runs given number of instructions from the beginning of the code.
+     *
+     * @param instructions	Number of instructions to execute
+     * @return	Instructions per second
+     */
+    public double run(int instructions) {
+        System.arraycopy(code, 0, ula.getMemory(), 0, 0x10000);
+        z80.reset();
+        Random rand = new Random(SEED);
+        for (int j = TestZ80.B; j <= TestZ80.I; j++) {
+            z80.setReg(j, (byte) rand.nextInt());
+        }
+        z80.setRegPair(TestZ80.PC, (short) 0x0000);
+        z80.setRegPair(TestZ80.SP, (short) 0xfffe);
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < instructions; i++) {
+            if ((i % HALT_CHECK_INTERVAL) == 0) {
+                z80.setHaltState(false);
+            }
+            z80.executeNextCommand();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        return instructions * 1e9 / elapsed;
+    }
+
+    public static void main(String[] args) {
+        int instructions = 10000000, rounds = 5;
+        try {
+            if (args.length > 0) {
+                instructions = Integer.parseInt(args[0]);
+            }
+            if (args.length > 1) {
+                rounds = Integer.parseInt(args[1]);
+            }
+        } catch (NumberFormatException nfex) {
+            LOG.error("Usage: DispatchBenchmark [instructions] [rounds]");
+            System.exit(1);
+        }
+
+        /* Illegal opcodes created by self-modifying code are not of interest */
+        Logger.getLogger(YazeBasedZ80Impl.class).setLevel(Level.ERROR);
+        DispatchBenchmark benchmark = new DispatchBenchmark();
+        double chained = 0.0, table = 0.0, rate = 0.0;
+        for (int round = 1; round <= rounds; round++) {
+            chained = benchmark.decode(false, instructions);
+            table = benchmark.decode(true, instructions);
+            rate = benchmark.run(instructions);
+            LOG.info("Round " + round + ": chained "
+                    + String.format("%.2f", chained) + " ns, tables "
+                    + String.format("%.2f", table) + " ns per opcode, "
+                    + String.format("%.0f", rate) + " instructions/s.");
+        }
+        LOG.info("Opcode dispatch tables decode "
+                + String.format("%.1f", chained / table)
+                + " times as fast as the chained decoder.");
+    }
+}
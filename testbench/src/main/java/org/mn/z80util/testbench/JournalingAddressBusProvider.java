@@ -0,0 +1,114 @@
+/*
+ * JournalingAddressBusProvider.java - Mock bus recording memory writes.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.testbench;
+
+import java.util.*;
+
+import org.mn.z80util.z80.*;
+
+/**
+ * Mock address bus which can record the memory writes into an undo journal.
+ * The first write into each address after startJournal() saves the old
+ * value, and rollback() restores them. This way the testbench saves,
+ * restores and compares only the bytes an instruction actually wrote
+ * instead of the whole 64K memory.
+ *
+ * An address is journaled only once per journal, which is detected by
+ * stamping the address with the current journal number, so no clearing is
+ * needed between journals and nothing is allocated after construction.
+ */
+public class JournalingAddressBusProvider extends MockAddressBusProvider {
+
+    private final int[] stamp = new int[0x10000];
+    private final int[] journalAddress = new int[0x10000];
+    private final byte[] journalValue = new byte[0x10000];
+    private int journalLength, epoch = 1;
+    private boolean journaling;
+
+    /**
+     * Starts recording the memory writes.
+     */
+    public void startJournal() {
+        epoch++;
+        journalLength = 0;
+        journaling = true;
+    }
+
+    /**
+     * Restores the values the memory had when the journal was started and
+     * stops recording.
+     */
+    public void rollback() {
+        journaling = false;
+        for (int i = journalLength - 1; i >= 0; i--) {
+            super.setByte((short) journalAddress[i], journalValue[i]);
+        }
+        journalLength = 0;
+        epoch++;
+    }
+
+    /**
+     * @return	Number of distinct addresses written since the journal was
+     * started.
+     */
+    public int getJournalLength() {
+        return journalLength;
+    }
+
+    /**
+     * @param i	Index in the journal, in the order of the first writes
+     * @return	The address written
+     */
+    public int getJournalAddress(int i) {
+        return journalAddress[i];
+    }
+
+    /**
+     * @param i	Index in the journal, in the order of the first writes
+     * @return	The value of the address before the first write
+     */
+    public byte getJournalOldValue(int i) {
+        return journalValue[i];
+    }
+
+    @Override
+    public void setByte(short address, byte value) {
+        if (journaling) {
+            int a = address & 0xffff;
+            if (stamp[a] != epoch) {
+                stamp[a] = epoch;
+                journalAddress[journalLength] = a;
+                journalValue[journalLength++] = getMemory()[a];
+            }
+        }
+        super.setByte(address, value);
+    }
+
+    /**
+     * Fills the whole memory with random data. Must not be called while
+     * recording.
+     *
+     * @param rand	The random number generator
+     */
+    public void randomize(Random rand) {
+        rand.nextBytes(getMemory());
+    }
+}
@@ -47,7 +47,7 @@ public class MZ80TestBench implements Runnable {
             "MZ80TestBench - a Z80 processor testbench.\n"
             + "(C) 2009, Mikko Nummelin, <mikko.nummelin@tkk.fi>\n"
             + "MZ80TestBench is free software and comes with ABSOLUTELY NO WARRANTY.";
-    private final String[] registerName = {"B", "C", "D", "E", "H", "L", "F", "A",
+    final static String[] registerName = {"B", "C", "D", "E", "H", "L", "F", "A",
         "B'", "C'", "D'", "E'", "H'", "L'", "F'", "A'",
         "XH", "XL", "YH", "YL", "SPH", "SPL", "PCH", "PCL", "I", "R", "IM_IFF"};
 
@@ -176,6 +176,17 @@ public class MZ80TestBench implements Runnable {
     public void setProcessor2(TestZ80 processor2) {
         this.processor2 = processor2;
     }
+
+    /*
+     * Number of worker threads in parallel mode, 0 for the normal serial
+     * mode. In parallel mode every thread has its own processors and buses,
+     * and all mismatches are collected instead of stopping at the first one.
+     */
+    private int parallelThreads;
+
+    public void setParallelThreads(int parallelThreads) {
+        this.parallelThreads = parallelThreads;
+    }
     private DisasmResult dar;
     private int cmdno;
 
@@ -223,7 +234,22 @@ public class MZ80TestBench implements Runnable {
     }
 
     private TestResultSet createResult() {
-        int m = -1, r = -1;
+        return compareResults(cmdno, result1, result2);
+    }
+
+    /**
+     * Compares two snapshots taken after executing the same command. Flags
+     * which may legitimately differ between Z80 cores are masked out from
+     * the snapshots.
+     *
+     * @param cmdno	The command number, see run()
+     * @param result1	Snapshot of the first processor
+     * @param result2	Snapshot of the second processor
+     * @return	The first differing memory address and register
+     */
+    static TestResultSet compareResults(int cmdno, byte[] result1,
+            byte[] result2) {
+        int m = -1;
         for (int i = 0; i < 0x10000; i++) {
             if (result1[i] != result2[i]) {
                 m = i;
@@ -231,6 +257,22 @@ public class MZ80TestBench implements Runnable {
             }
         }
 
+        int r = compareRegisters(cmdno, result1, result2, 0x10000);
+        return new TestResultSet(m, r);
+    }
+
+    /**
+     * Compares the register sets of two snapshots, masking out flags which
+     * may legitimately differ between Z80 cores.
+     *
+     * @param cmdno	The command number, see run()
+     * @param result1	Registers of the first processor
+     * @param result2	Registers of the second processor
+     * @param offset	Index of the first register in the arrays
+     * @return	The first differing register, or -1 if none
+     */
+    static int compareRegisters(int cmdno, byte[] result1, byte[] result2,
+            int offset) {
         for (int i = 0; i < 27; i++) {
             if (i == TestZ80.R) {
                 continue;
@@ -243,30 +285,29 @@ public class MZ80TestBench implements Runnable {
              */
             if ((cmdno >= 0x300) && (cmdno < 0x5ff) && ((cmdno & 0300) == 0100)
                     && (i == 6)) {
-                result1[i + 0x10000] &= 0x53;
-                result2[i + 0x10000] &= 0x53;
+                result1[i + offset] &= 0x53;
+                result2[i + offset] &= 0x53;
             }
 
             /* To avoid contribution of IFF2 to flags in LD A,I  */
             if ((cmdno == 0x657) && (i == 6)) {
-                result1[i + 0x10000] &= 0xfb;
-                result2[i + 0x10000] &= 0xfb;
+                result1[i + offset] &= 0xfb;
+                result2[i + offset] &= 0xfb;
             }
 
             /* Unknown flags are masked away from INI, OUTI and similar
              * instructions */
             if (((cmdno & 0x6e6) == 0x6a2) && (i == 6)) {
-                result1[i + 0x10000] &= 0x43;
-                result2[i + 0x10000] &= 0x43;
+                result1[i + offset] &= 0x43;
+                result2[i + offset] &= 0x43;
             }
 
-            if (result1[i + 0x10000] != result2[i + 0x10000]) {
-                r = i;
-                break;
+            if (result1[i + offset] != result2[i + offset]) {
+                return i;
             }
         }
 
-        return new TestResultSet(m, r);
+        return -1;
     }
     private volatile TestResultSet trs;
 
@@ -380,7 +421,149 @@ public class MZ80TestBench implements Runnable {
         }
     }
 
+    /**
+     * @param cmdno	The command number, see run()
+     * @return	Whether the command is tested at all. Prefixes alone,
+     * illegal EDh commands and commands changing the R-register are omitted.
+     */
+    static boolean isTestedCommand(int cmdno) {
+        /* Omissions */
+        switch (cmdno) {
+            case 0xcb:
+            case 0xdd:
+            case 0xed:
+            case 0xfd:
+            case 0x1cb:
+            case 0x1dd:
+            case 0x1ed:
+            case 0x1fd:
+            case 0x2cb:
+            case 0x2dd:
+            case 0x2ed:
+            case 0x2fd:
+            case 0x65f: // to avoid messing with R-register
+            case 0x677:
+            case 0x67f:
+                return false;
+        }
+
+        /* To avoid illegal EDh zeroth page */
+        if ((cmdno >= 0x600) && (cmdno < 0x640)) {
+            return false;
+        }
+
+        /* To avoid illegal commands on EDh second page */
+        if ((cmdno >= 0x680) && (cmdno < 0x6c0) && (((cmdno & 7) >= 4)
+                || (((cmdno & 0070) >> 3) < 4))) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sets up the command to be tested at address 8000h.
+     *
+     * @param ula	The ULA (containing memory)
+     * @param cmdno	The command number, see run()
+     */
+    static void setUpCommand(AddressBusProvider ula, int cmdno) {
+        if (cmdno < 0x100) {
+            ula.setByte((short) 0x8000, (byte) cmdno);
+        } else if (cmdno < 0x200) {
+            ula.setByte((short) 0x8000, (byte) 0xdd);
+            ula.setByte((short) 0x8001, (byte) cmdno);
+        } else if (cmdno < 0x300) {
+            ula.setByte((short) 0x8000, (byte) 0xfd);
+            ula.setByte((short) 0x8001, (byte) cmdno);
+        } else if (cmdno < 0x400) {
+            ula.setByte((short) 0x8000, (byte) 0xcb);
+            ula.setByte((short) 0x8001, (byte) cmdno);
+        } else if (cmdno < 0x500) {
+            ula.setByte((short) 0x8000, (byte) 0xdd);
+            ula.setByte((short) 0x8001, (byte) 0xcb);
+            ula.setByte((short) 0x8003, (byte) cmdno);
+        } else if (cmdno < 0x600) {
+            ula.setByte((short) 0x8000, (byte) 0xfd);
+            ula.setByte((short) 0x8001, (byte) 0xcb);
+            ula.setByte((short) 0x8003, (byte) cmdno);
+        } else {
+            ula.setByte((short) 0x8000, (byte) 0xed);
+            ula.setByte((short) 0x8001, (byte) cmdno);
+        }
+    }
+
+    /**
+     * Called by the parallel test run whenever a command has been tested.
+     *
+     * @param cmdno	The command tested
+     * @param completed	Number of commands completed so far
+     */
+    void parallelProgress(int cmdno, final int completed) {
+        if (wantGui) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    progressBar.setValue(completed);
+                }
+            });
+        } else if ((completed & 0x3f) == 0) {
+            System.out.print(".");
+        }
+    }
+
+    private void runParallel() {
+        final ParallelTestRun ptr = new ParallelTestRun(this, processor1,
+                processor2, ula, sameCommandRounds, parallelThreads);
+        if (wantGui) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    statusMessage.setText("Testing in " + parallelThreads
+                            + " threads.");
+                }
+            });
+        } else {
+            System.out.println("Testing in " + parallelThreads + " threads, "
+                    + sameCommandRounds + " rounds per command.");
+        }
+
+        ptr.run();
+
+        final String summary = ptr.getTestedRounds() + " commands tested in "
+                + String.format("%.1f", ptr.getElapsedNanos() / 1e9) + " s, "
+                + String.format("%.0f", ptr.getRoundsPerSecond())
+                + " commands/s, " + ptr.getMismatchCount() + " mismatches.";
+        if (wantGui) {
+            final java.util.List<ParallelTestRun.Mismatch> mismatches =
+                    ptr.getMismatches();
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    statusMessage.setText(summary);
+                    if (!mismatches.isEmpty()) {
+                        progressBar.setForeground(Color.RED);
+                        executedCommand.setText(mismatches.get(0).description);
+                    }
+                    okCancelButton.setText("OK");
+                }
+            });
+        } else {
+            System.out.println();
+            for (ParallelTestRun.Mismatch m : ptr.getMismatches()) {
+                System.out.println(m.description);
+            }
+            if (ptr.getMismatchCount() > ParallelTestRun.MAX_REPORTED_MISMATCHES) {
+                System.out.println("(only the first "
+                        + ParallelTestRun.MAX_REPORTED_MISMATCHES
+                        + " mismatches are listed)");
+            }
+            System.out.println(summary);
+            System.exit(ptr.getMismatchCount() == 0 ? 0 : 1);
+        }
+    }
+
     public void run() {
+        if (parallelThreads > 0) {
+            runParallel();
+            return;
+        }
 
         /*
          * 0x00-0xff	Normal commands.
@@ -391,41 +574,39 @@ public class MZ80TestBench implements Runnable {
          * 0x500-0x5ff	IY/CBh
          * 0x600-0x6ff	EDh-prefixed commands.
          */
-        for (cmdno = 0x00; cmdno < 0x6c0; cmdno++) {
-            commandselect:
-            {
-                /* Omissions */
-                switch (cmdno) {
-                    case 0xcb:
-                    case 0xdd:
-                    case 0xed:
-                    case 0xfd:
-                    case 0x1cb:
-                    case 0x1dd:
-                    case 0x1ed:
-                    case 0x1fd:
-                    case 0x2cb:
-                    case 0x2dd:
-                    case 0x2ed:
-                    case 0x2fd:
-                    case 0x65f: // to avoid messing with R-register
-                    case 0x677:
-                    case 0x67f:
-                        break commandselect;
-                }
-
-                /* To avoid illegal EDh zeroth page */
-                if ((cmdno >= 0x600) && (cmdno < 0x640)) {
-                    break commandselect;
-                }
-
-                /* To avoid illegal commands on EDh second page */
-                if ((cmdno >= 0x680) && (cmdno < 0x6c0) && (((cmdno & 7) >= 4)
-                        || (((cmdno & 0070) >> 3) < 4))) {
-                    break commandselect;
-                }
+        CommandRound journaledRound = null;
+        if (ula instanceof JournalingAddressBusProvider) {
+            journaledRound = new CommandRound(processor1, processor2,
+                    (JournalingAddressBusProvider) ula,
+                    new Random(System.nanoTime()));
+        }
+        byte[] journaledResult1 = new byte[0x10000 + 27];
+        byte[] journaledResult2 = new byte[0x10000 + 27];
 
+        for (cmdno = 0x00; cmdno < 0x6c0; cmdno++) {
+            if (isTestedCommand(cmdno)) {
                 for (int j = 0; j < sameCommandRounds; j++) {
+                    if (journaledRound != null) {
+                        /* Only the written bytes are saved and compared. */
+                        journaledRound.setUp(cmdno);
+                        TestResultSet rs = journaledRound.run(cmdno,
+                                journaledResult1, journaledResult2);
+                        if ((rs.differingMemoryAddress < 0)
+                                && (rs.differingRegisterNumber < 0)) {
+                            continue;
+                        }
+                        dar = Disassembler.disassemble(ula.getMemory(),
+                                (short) 0x8000);
+                        result1 = journaledResult1;
+                        result2 = journaledResult2;
+                        if (wantGui) {
+                            reportResultsToGUI();
+                        } else {
+                            reportResults();
+                        }
+                        return;
+                    }
+
                     byte[] memory = ula.getMemory();
                     Random rand = new Random(System.nanoTime());
                     rand.nextBytes(memory);
@@ -433,30 +614,7 @@ public class MZ80TestBench implements Runnable {
                     processor1.setRegPair(TestZ80.PC, (short) 0x8000);
                     processor1.setRegPair(TestZ80.SP, (short) 0x7ffe);
 
-                    /* Sets up the command to be tested. */
-                    if (cmdno < 0x100) {
-                        ula.setByte((short) 0x8000, (byte) cmdno);
-                    } else if (cmdno < 0x200) {
-                        ula.setByte((short) 0x8000, (byte) 0xdd);
-                        ula.setByte((short) 0x8001, (byte) cmdno);
-                    } else if (cmdno < 0x300) {
-                        ula.setByte((short) 0x8000, (byte) 0xfd);
-                        ula.setByte((short) 0x8001, (byte) cmdno);
-                    } else if (cmdno < 0x400) {
-                        ula.setByte((short) 0x8000, (byte) 0xcb);
-                        ula.setByte((short) 0x8001, (byte) cmdno);
-                    } else if (cmdno < 0x500) {
-                        ula.setByte((short) 0x8000, (byte) 0xdd);
-                        ula.setByte((short) 0x8001, (byte) 0xcb);
-                        ula.setByte((short) 0x8003, (byte) cmdno);
-                    } else if (cmdno < 0x600) {
-                        ula.setByte((short) 0x8000, (byte) 0xfd);
-                        ula.setByte((short) 0x8001, (byte) 0xcb);
-                        ula.setByte((short) 0x8003, (byte) cmdno);
-                    } else {
-                        ula.setByte((short) 0x8000, (byte) 0xed);
-                        ula.setByte((short) 0x8001, (byte) cmdno);
-                    }
+                    setUpCommand(ula, cmdno);
 
                     dar = Disassembler.disassemble(ula.getMemory(), (short) 0x8000);
 
@@ -484,7 +642,7 @@ public class MZ80TestBench implements Runnable {
                     }
 
                 } // for j=...
-            } // commandselect
+            }
 
             switch ((cmdno & 0x700) >> 8) {
                 case 0:
@@ -563,7 +721,7 @@ public class MZ80TestBench implements Runnable {
         }
     }
 
-    class TestResultSet {
+    static class TestResultSet {
         /*
          * Possibly differing memory address and register number. Set to -1
          * if there was no difference in such category.
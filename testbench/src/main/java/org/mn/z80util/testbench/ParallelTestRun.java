@@ -0,0 +1,310 @@
+/*
+ * ParallelTestRun.java - Multi-threaded differential test of two Z80 cores.
+ *
+ * (C) 2009, Mikko Nummelin <mikko.nummelin@tkk.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package org.mn.z80util.testbench;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.mn.z80util.disassembler.*;
+import org.mn.z80util.z80.*;
+import org.mn.z80util.z80.jni.*;
+import org.springframework.beans.*;
+
+/**
+ * Runs the testbench command set split across a thread pool. Each worker
+ * thread has its own copies of both processors, each on a private address
+ * bus, so no memory is shared between the threads or between the two
+ * processors under test. Every mismatch is collected instead of stopping at
+ * the first one.
+ *
+ * The processor copies are created from the classes of the configured
+ * processors and their bean properties (except the ULA) are copied. The
+ * bus copies are created from the class of the configured ULA, whose
+ * getMemory() must return the backing memory array, as
+ * MockAddressBusProvider does. With
+ * JournalingAddressBusProvider both processors of a thread share one bus
+ * and only the written bytes are compared, see CommandRound.
+ */
+class ParallelTestRun {
+
+    /* At most this many mismatches are kept for the report */
+    static final int MAX_REPORTED_MISMATCHES = 1000;
+    /* Number of commands of the testbench and commands per task */
+    private static final int COMMANDS = 0x6c0;
+    private static final int CHUNK_SIZE = 0x10;
+
+    static final class Mismatch implements Comparable<Mismatch> {
+
+        final int cmdno;
+        final String description;
+
+        Mismatch(int cmdno, String description) {
+            this.cmdno = cmdno;
+            this.description = description;
+        }
+
+        public int compareTo(Mismatch m) {
+            return cmdno - m.cmdno;
+        }
+    }
+    private final MZ80TestBench bench;
+    private final TestZ80 processor1, processor2;
+    private final AddressBusProvider ula;
+    private final int rounds, threads;
+    private final ConcurrentLinkedQueue<Mismatch> mismatches =
+            new ConcurrentLinkedQueue<Mismatch>();
+    private final AtomicInteger mismatchCount = new AtomicInteger();
+    private final AtomicInteger completedCommands = new AtomicInteger();
+    private final AtomicLong testedRounds = new AtomicLong();
+    private long elapsedNanos;
+
+    ParallelTestRun(MZ80TestBench bench, TestZ80 processor1,
+            TestZ80 processor2, AddressBusProvider ula, int rounds,
+            int threads) {
+        this.bench = bench;
+        this.processor1 = processor1;
+        this.processor2 = processor2;
+        this.ula = ula;
+        this.rounds = rounds;
+        this.threads = threads;
+        if ((processor1 instanceof NativeZ80Gateway)
+                || (processor2 instanceof NativeZ80Gateway)) {
+            throw new IllegalArgumentException("The native processor has a "
+                    + "single instance and cannot be tested in parallel.");
+        }
+    }
+
+    /**
+     * Per-thread test rig: private copies of both processors and buses.
+     */
+    private final class Rig {
+
+        final TestZ80 z1, z2;
+        final AddressBusProvider bus1, bus2;
+        final Random rand = new Random(System.nanoTime()
+                ^ Thread.currentThread().getId());
+        final byte[] result1 = new byte[0x10000 + 27];
+        final byte[] result2 = new byte[0x10000 + 27];
+        final byte[] command = new byte[4];
+        /* Set if the ULA is journaling, then both processors share bus1 */
+        final CommandRound journaledRound;
+
+        Rig() {
+            bus1 = (AddressBusProvider) BeanUtils.instantiateClass(ula.getClass());
+            if (bus1 instanceof JournalingAddressBusProvider) {
+                bus2 = bus1;
+            } else {
+                bus2 = (AddressBusProvider) BeanUtils.instantiateClass(ula.getClass());
+            }
+            z1 = copyProcessor(processor1, bus1);
+            z2 = copyProcessor(processor2, bus2);
+            if (bus1 instanceof JournalingAddressBusProvider) {
+                journaledRound = new CommandRound(z1, z2,
+                        (JournalingAddressBusProvider) bus1, rand);
+            } else {
+                journaledRound = null;
+            }
+        }
+
+        private TestZ80 copyProcessor(TestZ80 z80, AddressBusProvider bus) {
+            TestZ80 copy = (TestZ80) BeanUtils.instantiateClass(z80.getClass());
+            BeanUtils.copyProperties(z80, copy, new String[]{"ula"});
+            copy.setUla(bus);
+            return copy;
+        }
+
+        private void takeResult(TestZ80 z80, AddressBusProvider bus,
+                byte[] result) {
+            System.arraycopy(bus.getMemory(), 0, result, 0, 0x10000);
+            for (int j = 0; j < 27; j++) {
+                result[j + 0x10000] = z80.getReg(j);
+            }
+        }
+
+        void runRound(int cmdno) {
+            if (journaledRound != null) {
+                journaledRound.setUp(cmdno);
+                System.arraycopy(bus1.getMemory(), 0x8000, command, 0, 4);
+                MZ80TestBench.TestResultSet trs =
+                        journaledRound.run(cmdno, result1, result2);
+                if ((trs.differingMemoryAddress >= 0)
+                        || (trs.differingRegisterNumber >= 0)) {
+                    reportMismatch(cmdno, command, trs, result1, result2);
+                }
+                return;
+            }
+
+            byte[] memory1 = bus1.getMemory();
+            rand.nextBytes(memory1);
+            z1.reset();
+            z2.reset();
+            for (int j = TestZ80.B; j <= TestZ80.I; j++) {
+                z1.setReg(j, (byte) rand.nextInt());
+            }
+            z1.setRegPair(TestZ80.PC, (short) 0x8000);
+            z1.setRegPair(TestZ80.SP, (short) 0x7ffe);
+            MZ80TestBench.setUpCommand(bus1, cmdno);
+            System.arraycopy(memory1, 0x8000, command, 0, 4);
+
+            /* Same initial configuration for the second processor */
+            System.arraycopy(memory1, 0, bus2.getMemory(), 0, 0x10000);
+            for (int j = 0; j < 27; j++) {
+                z2.setReg(j, z1.getReg(j));
+            }
+
+            z1.setHaltState(false);
+            z1.executeNextCommand();
+            z2.setHaltState(false);
+            z2.executeNextCommand();
+            takeResult(z1, bus1, result1);
+            takeResult(z2, bus2, result2);
+
+            MZ80TestBench.TestResultSet trs =
+                    MZ80TestBench.compareResults(cmdno, result1, result2);
+            if ((trs.differingMemoryAddress >= 0)
+                    || (trs.differingRegisterNumber >= 0)) {
+                reportMismatch(cmdno, command, trs, result1, result2);
+            }
+        }
+    }
+    private final ThreadLocal<Rig> rigs = new ThreadLocal<Rig>() {
+
+        @Override
+        protected Rig initialValue() {
+            return new Rig();
+        }
+    };
+
+    private void reportMismatch(int cmdno, byte[] command,
+            MZ80TestBench.TestResultSet trs, byte[] result1, byte[] result2) {
+        if (mismatchCount.incrementAndGet() > MAX_REPORTED_MISMATCHES) {
+            return;
+        }
+
+        byte[] memory = new byte[0x10000];
+        System.arraycopy(command, 0, memory, 0x8000, 4);
+        DisasmResult dar;
+        /* The disassembler is not thread safe */
+        synchronized (Disassembler.class) {
+            dar = Disassembler.disassemble(memory, (short) 0x8000);
+        }
+
+        String msg = "[ " + dar.getHexDigits() + "] " + dar.getCommand() + ": ";
+        if (trs.differingMemoryAddress >= 0) {
+            int i = trs.differingMemoryAddress;
+            msg += "memory (" + Hex.intToHex4(i) + ") "
+                    + Hex.intToHex2(result1[i] & 0xff) + " / "
+                    + Hex.intToHex2(result2[i] & 0xff);
+        } else {
+            int i = trs.differingRegisterNumber;
+            msg += "register " + MZ80TestBench.registerName[i] + " "
+                    + Hex.intToHex2(result1[i + 0x10000] & 0xff) + " / "
+                    + Hex.intToHex2(result2[i + 0x10000] & 0xff);
+        }
+        mismatches.add(new Mismatch(cmdno, msg));
+    }
+
+    /**
+     * Tests the commands of given range.
+     */
+    private final class CommandRangeTask implements Callable<Void> {
+
+        private final int start, end;
+
+        CommandRangeTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public Void call() {
+            Rig rig = rigs.get();
+            for (int cmdno = start; cmdno < end; cmdno++) {
+                if (MZ80TestBench.isTestedCommand(cmdno)) {
+                    for (int j = 0; j < rounds; j++) {
+                        rig.runRound(cmdno);
+                    }
+                    testedRounds.addAndGet(rounds);
+                }
+                bench.parallelProgress(cmdno,
+                        completedCommands.incrementAndGet());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Runs the whole command set and waits for completion. The commands are
+     * split into chunks small enough to keep all threads busy until the
+     * end, as the commands differ much in their cost.
+     */
+    void run() {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long startTime = System.nanoTime();
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int start = 0x00; start < COMMANDS; start += CHUNK_SIZE) {
+                results.add(executor.submit(new CommandRangeTask(start,
+                        Math.min(start + CHUNK_SIZE, COMMANDS))));
+            }
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Parallel test failed.",
+                            e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Parallel test interrupted.",
+                            e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        elapsedNanos = System.nanoTime() - startTime;
+    }
+
+    int getMismatchCount() {
+        return mismatchCount.get();
+    }
+
+    /**
+     * @return	The collected mismatches, ordered by command number
+     */
+    List<Mismatch> getMismatches() {
+        List<Mismatch> result = new ArrayList<Mismatch>(mismatches);
+        Collections.sort(result);
+        return result;
+    }
+
+    long getTestedRounds() {
+        return testedRounds.get();
+    }
+
+    double getRoundsPerSecond() {
+        return elapsedNanos == 0 ? 0.0 : testedRounds.get() * 1e9 / elapsedNanos;
+    }
+
+    long getElapsedNanos() {
+        return elapsedNanos;
+    }
+}